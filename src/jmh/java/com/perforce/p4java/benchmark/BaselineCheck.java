@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares a JMH CSV results file (as written by the jmh task) against a
+ * published baseline in the same format, and fails if any benchmark has got
+ * worse by more than the tolerance and by more than the two runs' combined
+ * error. Benchmarks only in one file are listed but don't fail the check.
+ * <p>
+ * Usage: BaselineCheck baseline.csv results.csv [tolerance percent]
+ * <p>
+ * Exits 0 if there are no regressions, 1 if there are, and 2 if either file
+ * is missing or unreadable.
+ */
+public class BaselineCheck {
+
+	private static class Result {
+		final String mode;
+		final double score;
+		final double error;
+		final String unit;
+
+		Result(String mode, double score, double error, String unit) {
+			this.mode = mode;
+			this.score = score;
+			this.error = error;
+			this.unit = unit;
+		}
+
+		boolean higherIsBetter() {
+			return mode.equals("thrpt");
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: BaselineCheck baseline.csv results.csv [tolerance percent]");
+			System.exit(2);
+		}
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+		Map<String, Result> baseline;
+		Map<String, Result> results;
+		try {
+			baseline = read(new File(args[0]));
+			results = read(new File(args[1]));
+		} catch (IOException exc) {
+			System.err.println(exc.getMessage());
+			System.err.println("Run the jmh task first; see src/jmh/README.md for publishing a baseline.");
+			System.exit(2);
+			return;
+		}
+
+		int regressions = 0;
+		for (Map.Entry<String, Result> entry : results.entrySet()) {
+			Result now = entry.getValue();
+			Result then = baseline.get(entry.getKey());
+			if ((then == null) || !then.unit.equals(now.unit)) {
+				System.out.println("NEW        " + entry.getKey() + "  " + format(now));
+				continue;
+			}
+
+			double change = (now.score - then.score) / then.score * 100.0;
+			double worse = now.higherIsBetter() ? -change : change;
+			boolean significant = Math.abs(now.score - then.score) > errorOf(now) + errorOf(then);
+			boolean regressed = (worse > tolerance) && significant;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println(String.format(Locale.ROOT, "%-10s %s  %s -> %s (%+.1f%%)",
+					regressed ? "REGRESSED" : (worse < -tolerance && significant) ? "IMPROVED" : "OK",
+					entry.getKey(), format(then), format(now), change));
+		}
+		for (String key : baseline.keySet()) {
+			if (!results.containsKey(key)) {
+				System.out.println("MISSING    " + key);
+			}
+		}
+
+		System.out.println(regressions + " regression(s) beyond " + tolerance + "%");
+		System.exit(regressions == 0 ? 0 : 1);
+	}
+
+	private static double errorOf(Result result) {
+		return Double.isNaN(result.error) ? 0.0 : result.error;
+	}
+
+	private static String format(Result result) {
+		return String.format(Locale.ROOT, "%.3f +/- %.3f %s", result.score, errorOf(result), result.unit);
+	}
+
+	/**
+	 * Read a JMH CSV file, keyed by benchmark, mode and parameters.
+	 */
+	private static Map<String, Result> read(File file) throws IOException {
+		if (!file.isFile()) {
+			throw new IOException("No JMH results in " + file.getPath());
+		}
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		if (lines.isEmpty()) {
+			return results;
+		}
+
+		List<String> header = split(lines.get(0));
+		for (String line : lines.subList(1, lines.size())) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			List<String> columns = split(line);
+			StringBuilder key = new StringBuilder(columns.get(0)).append(' ').append(columns.get(1));
+			for (int i = 7; i < columns.size() && i < header.size(); i++) {
+				key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(columns.get(i));
+			}
+			results.put(key.toString(), new Result(columns.get(1), number(columns.get(4)),
+					number(columns.get(5)), columns.get(6)));
+		}
+		return results;
+	}
+
+	private static double number(String str) {
+		try {
+			return Double.parseDouble(str);
+		} catch (NumberFormatException exc) {
+			return Double.NaN;
+		}
+	}
+
+	private static List<String> split(String line) {
+		List<String> columns = new ArrayList<String>();
+		StringBuilder column = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && (i + 1 < line.length()) && (line.charAt(i + 1) == '"')) {
+					column.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if ((c == ',') && !quoted) {
+				columns.add(column.toString());
+				column.setLength(0);
+			} else {
+				column.append(c);
+			}
+		}
+		columns.add(column.toString());
+		return columns;
+	}
+}
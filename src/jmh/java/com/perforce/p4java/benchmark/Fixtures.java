@@ -0,0 +1,263 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.benchmark;
+
+import com.perforce.p4java.admin.IProtectionEntry;
+import com.perforce.p4java.impl.generic.admin.ProtectionEntry;
+import com.perforce.p4java.impl.generic.admin.ProtectionsTable;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketField;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+import com.perforce.p4java.mapapi.MapFlag;
+import com.perforce.p4java.mapapi.MapTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic, repeatable fixtures for the benchmarks: client views and
+ * protections tables shaped like those of large installations, depot paths
+ * that fall inside them, and server-to-client packet streams.
+ * <p>
+ * The packet streams are generated fstat and print output by default. A
+ * capture of real server output (the raw bytes the server sent, preambles
+ * included, from an uncompressed, non-SSL connection) can be used instead
+ * by naming it in the p4java.jmh.fstat or p4java.jmh.print system property;
+ * see src/jmh/README.md.
+ */
+public class Fixtures {
+
+	private static final String[] TEAMS = {
+			"core", "web", "mobile", "infra", "data", "tools", "qa", "docs",
+			"games", "audio", "render", "physics", "net", "build", "ml", "sec"
+	};
+
+	private static final String[] DIRS = {
+			"src", "include", "lib", "test", "res", "assets", "scripts", "doc",
+			"main", "java", "com", "util", "impl", "api", "internal", "gen"
+	};
+
+	private static final String[] EXTENSIONS = {
+			".c", ".h", ".cpp", ".java", ".py", ".js", ".png", ".txt", ".xml", ".gradle"
+	};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * A client view of the passed-in number of lines: mostly per-project
+	 * mappings, with exclusions, positional wildcards and overlays mixed in.
+	 */
+	public static MapTable clientView(int lines, long seed) {
+		Random random = new Random(seed);
+		MapTable view = new MapTable();
+		view.insert("//depot/main/...", "//ws/main/...", MapFlag.MfMap);
+		view.insert("//depot/main/.../obj/...", "//ws/main/.../obj/...", MapFlag.MfUnmap);
+
+		for (int i = 2; i < lines; i++) {
+			String project = project(i);
+			switch (random.nextInt(10)) {
+				case 0:
+					view.insert("//depot/" + project + "/....tmp", "//ws/" + project + "/....tmp", MapFlag.MfUnmap);
+					break;
+				case 1:
+					view.insert("//depot/" + project + "/%%1/" + DIRS[random.nextInt(DIRS.length)] + "/...",
+							"//ws/" + project + "/" + DIRS[random.nextInt(DIRS.length)] + "/%%1/...", MapFlag.MfMap);
+					break;
+				case 2:
+					view.insert("//depot/overlay/" + project + "/...", "//ws/" + project + "/...", MapFlag.MfRemap);
+					break;
+				case 3:
+					view.insert("//depot/" + project + "/*/" + DIRS[random.nextInt(DIRS.length)] + "/*.h",
+							"//ws/" + project + "/headers/*/*.h", MapFlag.MfMap);
+					break;
+				default:
+					view.insert("//depot/" + project + "/...", "//ws/" + project + "/...", MapFlag.MfMap);
+			}
+		}
+		return view;
+	}
+
+	/**
+	 * A protections table of the passed-in number of lines, granting and
+	 * excluding by user, group and (sometimes) host.
+	 */
+	public static ProtectionsTable protections(int lines, long seed) {
+		Random random = new Random(seed);
+		List<IProtectionEntry> entries = new ArrayList<IProtectionEntry>();
+		entries.add(new ProtectionEntry(0, "write", false, "*", "*", "//...", false));
+		entries.add(new ProtectionEntry(1, "super", false, "*", "p4admin", "//...", false));
+
+		String[] modes = {"read", "write", "open", "list", "=write", "review"};
+		for (int i = 2; i < lines; i++) {
+			String project = project(i);
+			boolean group = random.nextInt(3) > 0;
+			String name = group ? "group" + random.nextInt(64) : "user" + random.nextInt(512);
+			String host = random.nextInt(20) == 0 ? "10." + random.nextInt(8) + ".*" : "*";
+			boolean excluded = random.nextInt(4) == 0;
+			String path = "//depot/" + project + (random.nextInt(5) == 0 ? "/" + DIRS[random.nextInt(DIRS.length)] : "") + "/...";
+			entries.add(new ProtectionEntry(i, modes[random.nextInt(modes.length)], group, host, name, path, excluded));
+		}
+		return new ProtectionsTable(entries);
+	}
+
+	/**
+	 * The depot paths of a protections table as a MapTable, with exclusions
+	 * unmapped; the shape of table an access audit joins views against.
+	 */
+	public static MapTable protectionsMap(ProtectionsTable table) {
+		MapTable map = new MapTable();
+		for (IProtectionEntry entry : table.getEntries()) {
+			map.insert(entry.getLeft(), entry.getLeft(),
+					entry.isPathExcluded() ? MapFlag.MfUnmap : MapFlag.MfMap);
+		}
+		return map;
+	}
+
+	/**
+	 * Depot file paths in the projects clientView() and protections() use.
+	 */
+	public static String[] depotPaths(int count, int lines, long seed) {
+		Random random = new Random(seed);
+		String[] paths = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder path = new StringBuilder("//depot/");
+			path.append(random.nextInt(8) == 0 ? "main" : project(random.nextInt(Math.max(lines, 1))));
+			int depth = 1 + random.nextInt(4);
+			for (int d = 0; d < depth; d++) {
+				path.append('/').append(DIRS[random.nextInt(DIRS.length)]);
+			}
+			path.append("/file").append(i).append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+			paths[i] = path.toString();
+		}
+		return paths;
+	}
+
+	/**
+	 * A server-to-client fstat stream: one client-FstatInfo packet per file,
+	 * or the capture named by the p4java.jmh.fstat property.
+	 */
+	public static byte[] fstatStream(int files, long seed) throws IOException {
+		byte[] recorded = recorded("p4java.jmh.fstat");
+		if (recorded != null) {
+			return recorded;
+		}
+
+		Random random = new Random(seed);
+		String[] paths = depotPaths(files, files, seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		for (int i = 0; i < files; i++) {
+			long time = 1600000000L + random.nextInt(100000000);
+			int rev = 1 + random.nextInt(40);
+			buf.clear();
+			field(buf, RpcFunctionMapKey.DEPOT_FILE, paths[i]);
+			field(buf, RpcFunctionMapKey.CLIENT_FILE, "/home/build/ws" + paths[i].substring(7));
+			field(buf, "isMapped", "");
+			field(buf, "headAction", random.nextInt(6) == 0 ? "edit" : "add");
+			field(buf, "headType", random.nextInt(5) == 0 ? "binary+l" : "text");
+			field(buf, "headTime", Long.toString(time));
+			field(buf, "headRev", Integer.toString(rev));
+			field(buf, "headChange", Integer.toString(100000 + random.nextInt(900000)));
+			field(buf, "headModTime", Long.toString(time - random.nextInt(10000)));
+			field(buf, "haveRev", Integer.toString(rev));
+			field(buf, "fileSize", Integer.toString(random.nextInt(1000000)));
+			field(buf, "digest", digest(random));
+			field(buf, RpcFunctionMapKey.FUNCTION, RpcFunctionSpec.CLIENT_FSTATINFO.getEncoding());
+			packet(out, buf);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * A server-to-client print stream: for each file, a client-OutputInfo
+	 * packet followed by its content in client-OutputText packets of up to
+	 * chunkSize bytes; or the capture named by the p4java.jmh.print property.
+	 */
+	public static byte[] printStream(int files, int fileSize, int chunkSize, long seed) throws IOException {
+		byte[] recorded = recorded("p4java.jmh.print");
+		if (recorded != null) {
+			return recorded;
+		}
+
+		Random random = new Random(seed);
+		String[] paths = depotPaths(files, files, seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer buf = ByteBuffer.allocate(chunkSize + 4096);
+		byte[] chunk = new byte[chunkSize];
+		for (int i = 0; i < files; i++) {
+			buf.clear();
+			field(buf, RpcFunctionMapKey.DEPOT_FILE, paths[i]);
+			field(buf, "rev", Integer.toString(1 + random.nextInt(40)));
+			field(buf, "change", Integer.toString(100000 + random.nextInt(900000)));
+			field(buf, "action", "edit");
+			field(buf, "type", "text");
+			field(buf, "time", Long.toString(1600000000L + random.nextInt(100000000)));
+			field(buf, "fileSize", Integer.toString(fileSize));
+			field(buf, RpcFunctionMapKey.FUNCTION, RpcFunctionSpec.CLIENT_OUTPUTINFO.getEncoding());
+			packet(out, buf);
+
+			for (int sent = 0; sent < fileSize; sent += chunkSize) {
+				int len = Math.min(chunkSize, fileSize - sent);
+				text(random, chunk, len);
+				buf.clear();
+				RpcPacketField.marshal(buf, RpcFunctionMapKey.DATA, Arrays.copyOf(chunk, len));
+				field(buf, RpcFunctionMapKey.FUNCTION, RpcFunctionSpec.CLIENT_OUTPUTTEXT.getEncoding());
+				packet(out, buf);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Bytes of source-like text, for digesting and print content.
+	 */
+	public static byte[] text(int size, long seed) {
+		byte[] bytes = new byte[size];
+		text(new Random(seed), bytes, size);
+		return bytes;
+	}
+
+	private static String project(int i) {
+		return TEAMS[i % TEAMS.length] + "/proj" + (i / TEAMS.length) + "/" + DIRS[(i * 7) % DIRS.length];
+	}
+
+	private static void text(Random random, byte[] bytes, int len) {
+		for (int i = 0; i < len; i++) {
+			int r = random.nextInt(64);
+			bytes[i] = (byte) (r == 0 ? '\n' : r < 10 ? ' ' : 'a' + (r % 26));
+		}
+	}
+
+	private static String digest(Random random) {
+		StringBuilder digest = new StringBuilder(32);
+		for (int i = 0; i < 32; i++) {
+			digest.append("0123456789ABCDEF".charAt(random.nextInt(16)));
+		}
+		return digest.toString();
+	}
+
+	private static void field(ByteBuffer buf, String name, String value) {
+		RpcPacketField.marshal(buf, name, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void packet(ByteArrayOutputStream out, ByteBuffer buf) throws IOException {
+		out.write(RpcPacketPreamble.constructPreamble(buf.position()).marshalAsBytes());
+		out.write(buf.array(), 0, buf.position());
+	}
+
+	private static byte[] recorded(String property) throws IOException {
+		String file = System.getProperty(property);
+		return file == null ? null : Files.readAllBytes(Paths.get(file));
+	}
+}
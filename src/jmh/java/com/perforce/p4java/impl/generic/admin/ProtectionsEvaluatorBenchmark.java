@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.generic.admin;
+
+import com.perforce.p4java.benchmark.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProtectionsEvaluator against a large synthetic protections table:
+ * compiling a user's protections, and filtering a batch of depot paths by
+ * read access with the compiled tables cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtectionsEvaluatorBenchmark {
+
+	@Param({"1000", "5000"})
+	public int protectionLines;
+
+	@Param({"1000", "100000"})
+	public int paths;
+
+	private ProtectionsTable table;
+	private ProtectionsEvaluator evaluator;
+	private List<String> depotPaths;
+	private List<String> groups;
+
+	@Setup
+	public void setup() {
+		table = Fixtures.protections(protectionLines, 9);
+		evaluator = new ProtectionsEvaluator(table);
+		depotPaths = Arrays.asList(Fixtures.depotPaths(paths, protectionLines, 10));
+		groups = Arrays.asList("group1", "group7", "group42");
+	}
+
+	@Benchmark
+	public boolean compile() {
+		return new ProtectionsEvaluator(table, 0, true)
+				.getProtections("user17", groups, "10.1.2.3").hasAccess("read", depotPaths.get(0));
+	}
+
+	@Benchmark
+	public List<String> filterReadable() {
+		return evaluator.filter("user17", groups, "10.1.2.3", "read", depotPaths);
+	}
+}
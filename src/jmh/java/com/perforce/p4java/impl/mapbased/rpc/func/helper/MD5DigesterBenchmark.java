@@ -0,0 +1,85 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import com.perforce.p4java.benchmark.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MD5Digester over in-memory buffers (heap and direct) and over a file,
+ * as digested for sync, reconcile and resolve, with and without charset
+ * and line ending conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MD5DigesterBenchmark {
+
+	@Param({"4096", "1048576"})
+	public int size;
+
+	private byte[] bytes;
+	private ByteBuffer direct;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		bytes = Fixtures.text(size, 8);
+		direct = ByteBuffer.allocateDirect(size);
+		direct.put(bytes);
+		file = File.createTempFile("p4java-jmh", ".txt");
+		Files.write(file.toPath(), bytes);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public String digestBytes() {
+		MD5Digester digester = new MD5Digester();
+		digester.update(bytes);
+		return digester.digestAs32ByteHex();
+	}
+
+	@Benchmark
+	public String digestDirectBuffer() {
+		MD5Digester digester = new MD5Digester();
+		direct.clear();
+		digester.update(direct);
+		return digester.digestAs32ByteHex();
+	}
+
+	@Benchmark
+	public String digestFile() {
+		return new MD5Digester().digestFileAs32ByteHex(file);
+	}
+
+	@Benchmark
+	public String digestFileConverted() {
+		return new MD5Digester().digestFileAs32ByteHex(file, StandardCharsets.UTF_8, true);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import com.perforce.p4java.benchmark.Fixtures;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding server-to-client packet streams (fstat and print output, either
+ * generated or recorded; see Fixtures) with RpcPacket and
+ * RpcPacketField.retrievePacketField(), eagerly and lazily from pooled
+ * buffers, and encoding fstat-sized packets with RpcPacketField.marshal().
+ * Scores are per stream (or per 1000 packets for encoding).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcPacketBenchmark {
+
+	private static final int PACKETS = 1000;
+
+	@Param({"fstat", "print"})
+	public String stream;
+
+	@Param({"false", "true"})
+	public boolean unicode;
+
+	private byte[] bytes;
+	private Charset charset;
+	private RpcPacketBufferPool pool;
+	private Map<String, String> fields;
+
+	@Setup
+	public void setup() throws IOException {
+		bytes = stream.equals("fstat")
+				? Fixtures.fstatStream(PACKETS, 7)
+				: Fixtures.printStream(PACKETS / 10, 64 * 1024, 16 * 1024, 7);
+		charset = unicode ? StandardCharsets.UTF_8 : null;
+		pool = new RpcPacketBufferPool(64);
+
+		fields = new LinkedHashMap<String, String>();
+		fields.put(RpcFunctionMapKey.DEPOT_FILE, "//depot/core/proj12/src/util/impl/file1234.java");
+		fields.put(RpcFunctionMapKey.CLIENT_FILE, "/home/build/ws/core/proj12/src/util/impl/file1234.java");
+		fields.put("headAction", "edit");
+		fields.put("headType", "text");
+		fields.put("headTime", "1650000000");
+		fields.put("headRev", "12");
+		fields.put("headChange", "765432");
+		fields.put("haveRev", "12");
+		fields.put("digest", "0123456789ABCDEF0123456789ABCDEF");
+		fields.put(RpcFunctionMapKey.FUNCTION, "client-FstatInfo");
+	}
+
+	@Benchmark
+	public void decodeEager(Blackhole bh) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(buf);
+			byte[] payload = new byte[preamble.getPayloadSize()];
+			buf.get(payload);
+			RpcPacket packet = RpcPacket.constructRpcPacket(preamble, payload, unicode, charset);
+			bh.consume(packet.getResultsMap().get(RpcFunctionMapKey.FUNCTION));
+		}
+	}
+
+	@Benchmark
+	public void decodeLazy(Blackhole bh) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(buf);
+			int size = preamble.getPayloadSize();
+			ByteBuffer payload = pool.acquire(size);
+			payload.put(bytes, buf.position(), size);
+			payload.flip();
+			buf.position(buf.position() + size);
+			RpcPacket packet = RpcPacket.constructRpcPacket(preamble, payload, pool, unicode, charset, null, null);
+			bh.consume(packet.getResultsMap().get(RpcFunctionMapKey.FUNCTION));
+			packet.release();
+		}
+	}
+
+	@Benchmark
+	public void retrievePacketFields(Blackhole bh) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(buf);
+			int end = buf.position() + preamble.getPayloadSize();
+			while (buf.position() < end) {
+				bh.consume(RpcPacketField.retrievePacketField(buf, unicode, charset));
+			}
+		}
+	}
+
+	@Benchmark
+	public void encodeFstat(Blackhole bh) throws UnsupportedEncodingException {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		for (int i = 0; i < PACKETS; i++) {
+			buf.clear();
+			for (Map.Entry<String, String> field : fields.entrySet()) {
+				RpcPacketField.marshal(buf, field.getKey(), field.getValue(), charset);
+			}
+			bh.consume(RpcPacketPreamble.constructPreamble(buf.position()).marshalAsBytes());
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.mapapi;
+
+import com.perforce.p4java.benchmark.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MapHalf::Match() of single patterns against depot paths: the inner loop
+ * of every MapTable lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapHalfBenchmark {
+
+	private static final int PATHS = 4096;
+
+	@Param({
+			"//depot/core/proj0/src/...",
+			"//depot/.../*.java",
+			"//depot/core/proj0/src/%%1/main/...",
+			"//depot/.../src/.../*.h"
+	})
+	public String pattern;
+
+	private MapHalf half;
+	private String[] paths;
+
+	@Setup
+	public void setup() {
+		half = new MapHalf(pattern);
+		paths = Fixtures.depotPaths(PATHS, 64, 3);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void match(Blackhole bh) {
+		for (String path : paths) {
+			bh.consume(half.match(path, new MapParams()));
+		}
+	}
+}
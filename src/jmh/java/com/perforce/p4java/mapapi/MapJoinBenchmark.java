@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.mapapi;
+
+import com.perforce.p4java.benchmark.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MapTable::Join() of a client view against a protections table (as an
+ * access audit does), Join2() of two views, and Disambiguate(), with the
+ * partitioned joins on and off. The protections table's MapJoinIndex is
+ * kept between invocations, as it would be between the joins of an audit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MapJoinBenchmark {
+
+	@Param({"200", "2000"})
+	public int viewLines;
+
+	@Param({"1000", "5000"})
+	public int protectionLines;
+
+	@Param({"true", "false"})
+	public boolean parallelJoin;
+
+	private MapTable view;
+	private MapTable otherView;
+	private MapTable protections;
+
+	@Setup
+	public void setup() {
+		view = Fixtures.clientView(viewLines, 4);
+		view.parallelJoin = parallelJoin;
+		otherView = Fixtures.clientView(viewLines, 5);
+		protections = Fixtures.protectionsMap(Fixtures.protections(protectionLines, 6));
+	}
+
+	@Benchmark
+	public MapTable joinProtections() {
+		return view.join(MapTableT.LHS, protections, MapTableT.LHS);
+	}
+
+	@Benchmark
+	public MapTable join2Views() {
+		return view.join2(MapTableT.RHS, otherView, MapTableT.RHS);
+	}
+
+	/**
+	 * Disambiguate() rewrites its table, so each invocation gets a copy.
+	 */
+	@State(Scope.Thread)
+	public static class DisambiguateState {
+		public MapTable table;
+
+		@Setup(Level.Invocation)
+		public void copy(MapJoinBenchmark benchmark) {
+			table = new MapTable().set(benchmark.view);
+			table.parallelJoin = benchmark.parallelJoin;
+		}
+	}
+
+	@Benchmark
+	public MapTable disambiguate(DisambiguateState state) {
+		state.table.disambiguate();
+		return state.table;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.mapapi;
+
+import com.perforce.p4java.benchmark.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MapTable lookups and sorting against a large synthetic client view:
+ * translate and check, with and without the MapIndex, and sort(), which
+ * makeTree() and strings() depend on.
+ * <p>
+ * Setup checks the index against the tree first, for the view's paths and
+ * the same paths with their case changed, and with a case folding index
+ * as well as the one the platform gets; a benchmark of wrong answers
+ * fails instead of running.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapTableBenchmark {
+
+	private static final int PATHS = 4096;
+
+	@Param({"100", "1000", "20000"})
+	public int viewLines;
+
+	@Param({"true", "false"})
+	public boolean useIndex;
+
+	private MapTable view;
+	private String[] depotPaths;
+	private String[] clientPaths;
+
+	@Setup
+	public void setup() {
+		view = Fixtures.clientView(viewLines, 1);
+		view.useIndex = useIndex;
+		view.compile();
+
+		depotPaths = Fixtures.depotPaths(PATHS, viewLines, 2);
+		clientPaths = new String[PATHS];
+		for (int i = 0; i < PATHS; i++) {
+			MapWrap mapped = view.translate(MapTableT.LHS, depotPaths[i]);
+			clientPaths[i] = mapped != null ? mapped.getTo() : depotPaths[i].replace("//depot/", "//ws/");
+		}
+
+		if (useIndex) {
+			checkIndex(MapTableT.LHS, depotPaths);
+			checkIndex(MapTableT.RHS, clientPaths);
+		}
+	}
+
+	private void checkIndex(MapTableT dir, String[] paths) {
+		MapIndex[] indexes = {
+				view.trees[dir.dir].index,
+				MapIndex.build(view, dir, true)
+		};
+		MapItem tree = view.trees[dir.dir].tree;
+
+		for (String path : paths) {
+			for (String p : new String[]{path, path.toUpperCase(), path.toLowerCase()}) {
+				MapItem expected = tree.match(dir, p, null);
+				if (expected != null && expected.flag() == MapFlag.MfUnmap)
+					expected = null;
+				for (MapIndex index : indexes) {
+					if (index != null && index.match(dir, p) != expected)
+						throw new IllegalStateException("MapIndex and tree disagree on " + p);
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void translateDepotToClient(Blackhole bh) {
+		for (String path : depotPaths) {
+			bh.consume(view.translate(MapTableT.LHS, path));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void translateClientToDepot(Blackhole bh) {
+		for (String path : clientPaths) {
+			bh.consume(view.translate(MapTableT.RHS, path));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void check(Blackhole bh) {
+		for (String path : depotPaths) {
+			bh.consume(view.check(MapTableT.LHS, path));
+		}
+	}
+
+	/**
+	 * sort() caches its result, so each invocation sorts a fresh copy.
+	 */
+	@State(Scope.Thread)
+	public static class SortState {
+		public MapTable table;
+
+		@Setup(Level.Invocation)
+		public void copy(MapTableBenchmark benchmark) {
+			table = new MapTable().set(benchmark.view);
+		}
+	}
+
+	@Benchmark
+	public ArrayList<MapItem> sort(SortState state) {
+		return state.table.sort(MapTableT.LHS);
+	}
+}
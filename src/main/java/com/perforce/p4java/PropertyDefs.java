@@ -520,4 +520,64 @@ public class PropertyDefs {
 	 */
 	public static final String CUSTOM_SPEC_KEY = Metadata.P4JAVA_PROPS_KEY_PREFIX + CUSTOM_SPEC_KEY_SHORT_FORM;
 
+	/**
+	 * If this property is set, use the associated value as the maximum number
+	 * of threads in the shared executor that runs IOptionsServer ...Async
+	 * methods when no executor has been set explicitly. Only consulted when
+	 * the shared executor is first created.
+	 *
+	 * @since 2023.2
+	 */
+	public static final String ASYNC_COMMAND_THREADS_KEY_SHORT_FORM = "asyncCommandThreads";
+
+	/**
+	 * If this property is set, use the associated value as the maximum number
+	 * of threads in the shared executor that runs IOptionsServer ...Async
+	 * methods when no executor has been set explicitly. Only consulted when
+	 * the shared executor is first created.
+	 *
+	 * @since 2023.2
+	 */
+	public static final String ASYNC_COMMAND_THREADS_KEY = Metadata.P4JAVA_PROPS_KEY_PREFIX + ASYNC_COMMAND_THREADS_KEY_SHORT_FORM;
+
+	/**
+	 * If this property is set, use the associated value as the maximum number
+	 * of threads in the shared executor that runs DefaultParallelSync's
+	 * transmit commands; transmits beyond that number wait their turn. Only
+	 * consulted when the shared executor is first created.
+	 *
+	 * @since 2023.2
+	 */
+	public static final String PARALLEL_SYNC_THREADS_KEY_SHORT_FORM = "parallelSyncThreads";
+
+	/**
+	 * If this property is set, use the associated value as the maximum number
+	 * of threads in the shared executor that runs DefaultParallelSync's
+	 * transmit commands; transmits beyond that number wait their turn. Only
+	 * consulted when the shared executor is first created.
+	 *
+	 * @since 2023.2
+	 */
+	public static final String PARALLEL_SYNC_THREADS_KEY = Metadata.P4JAVA_PROPS_KEY_PREFIX + PARALLEL_SYNC_THREADS_KEY_SHORT_FORM;
+
+	/**
+	 * If this property is set, use the associated value as the time in
+	 * milliseconds an idle parallel sync worker connection is kept for reuse;
+	 * older ones are disconnected instead. Only consulted when the shared
+	 * worker pool is first created.
+	 *
+	 * @since 2023.2
+	 */
+	public static final String PARALLEL_SYNC_WORKER_IDLE_TIME_KEY_SHORT_FORM = "parallelSyncWorkerIdleTime";
+
+	/**
+	 * If this property is set, use the associated value as the time in
+	 * milliseconds an idle parallel sync worker connection is kept for reuse;
+	 * older ones are disconnected instead. Only consulted when the shared
+	 * worker pool is first created.
+	 *
+	 * @since 2023.2
+	 */
+	public static final String PARALLEL_SYNC_WORKER_IDLE_TIME_KEY = Metadata.P4JAVA_PROPS_KEY_PREFIX + PARALLEL_SYNC_WORKER_IDLE_TIME_KEY_SHORT_FORM;
+
 }
@@ -25,6 +25,7 @@ import com.perforce.p4java.option.client.IntegrateFilesOptions;
 import com.perforce.p4java.option.client.LabelSyncOptions;
 import com.perforce.p4java.option.client.LockFilesOptions;
 import com.perforce.p4java.option.client.MergeFilesOptions;
+import com.perforce.p4java.option.client.ParallelShelveOptions;
 import com.perforce.p4java.option.client.ParallelSyncOptions;
 import com.perforce.p4java.option.client.PopulateFilesOptions;
 import com.perforce.p4java.option.client.ReconcileFilesOptions;
@@ -996,6 +997,25 @@ public interface IClient extends IClientSummary, IWhereDelegator {
 	 */
 	List<IFileSpec> shelveFiles(List<IFileSpec> fileSpecs, int changelistId, ShelveFilesOptions opts) throws P4JavaException;
 
+	/**
+	 * Shelve files in a changelist as with shelveFiles(fileSpecs, changelistId,
+	 * opts), transferring the files to the server in parallel over several
+	 * network connections (the p4 shelve --parallel option).
+	 *
+	 * @param fileSpecs     list of files to be shelved; if null or empty, shelve all files
+	 *                      in the changelist
+	 * @param changelistId  changelistId ID of the changelist containing the files to be shelved.
+	 * @param opts          possibly-null ShelveFilesOptions object specifying method options
+	 * @param pShelveOpts   possibly-null ParallelShelveOptions object specifying how the files
+	 *                      are to be sent in parallel; if null, the shelve isn't done in parallel
+	 * @return non-null but possibly empty list of file specs representing the
+	 * server's response
+	 * @throws P4JavaException if an error occurs processing this method and its parameters
+	 * @see com.perforce.p4java.option.client.ParallelShelveOptions
+	 * @since 2023.2
+	 */
+	List<IFileSpec> shelveFiles(List<IFileSpec> fileSpecs, int changelistId, ShelveFilesOptions opts, ParallelShelveOptions pShelveOpts) throws P4JavaException;
+
 	/**
 	 * Unshelve file(s) from a shelf.
 	 *
@@ -14,6 +14,7 @@ import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.option.changelist.ParallelSubmitOptions;
 import com.perforce.p4java.option.changelist.SubmitOptions;
 import com.perforce.p4java.option.server.GetChangelistDiffsOptions;
 import com.perforce.p4java.server.callback.IStreamingCallback;
@@ -368,4 +369,26 @@ public interface IChangelist extends IServerResource, IChangelistSummary {
 	 */
 	
 	void submit(SubmitOptions opts, IStreamingCallback callback, int key) throws P4JavaException;
+
+	/**
+	 * Submit this changelist as with submit(SubmitOptions), transferring the
+	 * changelist's files to the server in parallel over several network
+	 * connections (the p4 submit --parallel option).<p>
+	 *
+	 * The server decides whether the submit is large enough to be worth doing
+	 * in parallel (see the minimum settings in pSubmitOpts); if it isn't, or
+	 * the server doesn't support parallel submit, the files are sent over the
+	 * command's own connection as usual.
+	 *
+	 * @since 2023.2
+	 *
+	 * @param opts SubmitOptions object describing optional parameters; if null, no
+	 * 				options are set.
+	 * @param pSubmitOpts ParallelSubmitOptions object describing how the files are
+	 * 				to be sent in parallel; if null, the submit isn't done in parallel.
+	 * @return list of affected file specs and / or info / error messages from the Perforce server.
+	 * @throws P4JavaException if any error occurs in the processing of this method.
+	 */
+
+	List<IFileSpec> submit(SubmitOptions opts, ParallelSubmitOptions pSubmitOpts) throws P4JavaException;
 }
@@ -5,12 +5,14 @@ package com.perforce.p4java.core;
 
 import com.perforce.p4java.exception.NullPointerError;
 import com.perforce.p4java.exception.P4JavaError;
-import com.perforce.p4java.mapapi.MapFlag;
 import com.perforce.p4java.mapapi.MapTable;
+import com.perforce.p4java.mapapi.MapTableBuilder;
 import com.perforce.p4java.mapapi.MapTableT;
 import com.perforce.p4java.mapapi.MapWrap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -24,10 +26,12 @@ import java.util.List;
  * for the basic client view, but in summary, map entries can be inclusive,
  * exclusive, or overlays, and map entry order is (of course) deeply significant.<p>
  *
- * This implementation of view maps does not (yet) include advanced Perforce
- * functionality (such as translation or testing the map to see whether a
- * path is mapped or not), but future versions will; the emphasis here is on
- * setting up a common basis for P4Java view maps.
+ * Paths can be translated through the map with translate() and
+ * translateAll(); the map is compiled into a MapTable on first use and the
+ * compiled table kept (and shared between threads) until the map is next
+ * changed through one of its mutators. Changes made directly to the entries
+ * or to the list returned by getEntryList() aren't seen; call invalidate()
+ * after making any.
  */
 
 public class ViewMap<E extends IMapEntry> implements Iterable<E> {
@@ -39,6 +43,9 @@ public class ViewMap<E extends IMapEntry> implements Iterable<E> {
 
 	protected List<E> entryList = null;
 
+	// Compiled on demand from entryList; see getMapTable()
+	private volatile MapTable mapTable = null;
+
 	/**
 	 * Default constructor. Creates a new ViewMap with an
 	 * empty (but not null) entry list.
@@ -78,7 +85,9 @@ public class ViewMap<E extends IMapEntry> implements Iterable<E> {
 			throw new P4JavaError("Position out of range: "
 					+ position + "; list size: " + this.entryList.size());
 		}
+		this.entryList.remove(position).setOrder(E.ORDER_UNKNOWN);
 		updateEntryListPositions();
+		this.mapTable = null;
 	}
 
 	/**
@@ -126,6 +135,7 @@ public class ViewMap<E extends IMapEntry> implements Iterable<E> {
 		}
 		this.entryList.add(entry);
 		entry.setOrder(this.getSize() - 1);
+		this.mapTable = null;
 	}
 
 	/**
@@ -151,6 +161,7 @@ public class ViewMap<E extends IMapEntry> implements Iterable<E> {
 		this.entryList.get(position).setOrder(E.ORDER_UNKNOWN);
 		this.entryList.set(position, entry);
 		entry.setOrder(position);
+		this.mapTable = null;
 	}
 
 	/**
@@ -158,9 +169,40 @@ public class ViewMap<E extends IMapEntry> implements Iterable<E> {
 	 *
 	 * @param entryList non-null entry list
 	 */
-	public void setEntryList(List<E> entryList) {
+	public synchronized void setEntryList(List<E> entryList) {
 		checkEntryList(entryList);
 		this.entryList = entryList;
+		this.mapTable = null;
+	}
+
+	/**
+	 * Discard the compiled form of this map, so that the next translation
+	 * recompiles it. Only needed after changing entries directly rather than
+	 * through this map's mutators.
+	 */
+	public synchronized void invalidate() {
+		this.mapTable = null;
+	}
+
+	/**
+	 * Return this map compiled into a MapTable, compiling it if it hasn't
+	 * been since the map last changed. The returned table must not be
+	 * modified; it's shared by every caller until the map changes.
+	 *
+	 * @return non-null compiled map table
+	 */
+	public MapTable getMapTable() {
+		MapTable table = this.mapTable;
+		if (table == null) {
+			synchronized (this) {
+				table = this.mapTable;
+				if (table == null) {
+					table = MapTableBuilder.buildMapTable(this).compile();
+					this.mapTable = table;
+				}
+			}
+		}
+		return table;
 	}
 
 	/**
@@ -219,15 +261,29 @@ public class ViewMap<E extends IMapEntry> implements Iterable<E> {
 	 * @return the translated path or null
 	 */
 	public String translate(String from, MapDirection dir) {
-		MapTable mt = new MapTable();
-		for (E i : this) {
-			mt.insert(i.getLeft(), i.getRight(),
-					i.getType() == IMapEntry.EntryType.EXCLUDE ? MapFlag.MfUnmap :
-							i.getType() == IMapEntry.EntryType.OVERLAY ? MapFlag.MfRemap :
-									i.getType() == IMapEntry.EntryType.DITTO ? MapFlag.MfAndmap :
-											MapFlag.MfMap);
-		}
-		MapWrap mw = mt.translate(dir == MapDirection.MapLeftRight ? MapTableT.LHS : MapTableT.RHS, from);
+		return translate(getMapTable(), from, dir);
+	}
+
+	/**
+	 * Translate a number of paths, in parallel if there are enough of them
+	 * to make it worthwhile.
+	 *
+	 * @param from non-null paths to translate
+	 * @param dir  the translation direction
+	 * @return non-null list of the translated paths, in the same order as the
+	 * passed-in paths; null for any path the map doesn't map
+	 */
+	public List<String> translateAll(Collection<String> from, MapDirection dir) {
+		String[] paths = from.toArray(new String[from.size()]);
+		return Arrays.asList(getMapTable().translateAll(toMapTableT(dir), paths));
+	}
+
+	private static String translate(MapTable mt, String from, MapDirection dir) {
+		MapWrap mw = mt.translate(toMapTableT(dir), from);
 		return mw != null ? mw.getTo() : null;
 	}
+
+	private static MapTableT toMapTableT(MapDirection dir) {
+		return dir == MapDirection.MapLeftRight ? MapTableT.LHS : MapTableT.RHS;
+	}
 }
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.generic.admin;
+
+import com.perforce.p4java.admin.IProtectionEntry;
+import com.perforce.p4java.admin.IProtectionsTable;
+import com.perforce.p4java.mapapi.MapBulk;
+import com.perforce.p4java.mapapi.MapFlag;
+import com.perforce.p4java.mapapi.MapTable;
+import com.perforce.p4java.mapapi.MapTableT;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers access questions against a protections table locally, without
+ * asking the server; for filtering large numbers of depot paths by what a
+ * user can read or write.
+ * <p>
+ * The table's lines that apply to a user (directly or through one of the
+ * groups passed in) and host are compiled, per right, into a MapTable with
+ * a mapping for each line granting the right and an unmapping for each
+ * exclusion removing it, in table order, so later lines override earlier
+ * ones as they do on the server. As on the server, an exclusion removes
+ * all access unless its mode is a single right ("=read", etc.). Compiled
+ * tables are kept for the most recently used users in an LRU cache, and
+ * lists of paths are checked in parallel once there are enough of them.
+ * <p>
+ * Group membership isn't known to the table, so it's up to the caller to
+ * pass in each user's groups (from IOptionsServer.getUserGroups, say).
+ * Lines restricted to particular hosts only apply when a matching host is
+ * given.
+ */
+public class ProtectionsEvaluator {
+
+	/**
+	 * Default number of users' compiled protections kept.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
+	// Rights, in the order used to index UserProtections' tables
+	private static final int LIST = 0;
+	private static final int READ = 1;
+	private static final int BRANCH = 2;
+	private static final int OPEN = 3;
+	private static final int WRITE = 4;
+	private static final int ADMIN = 5;
+	private static final int OWNER = 6;
+	private static final int SUPER = 7;
+	private static final int REVIEW = 8;
+	private static final int RIGHTS = 9;
+
+	private static final int ALL = (1 << RIGHTS) - 1;
+
+	private static final Map<String, Integer> GRANTS = new HashMap<String, Integer>();
+	private static final Map<String, Integer> QUERIES = new HashMap<String, Integer>();
+
+	static {
+		int list = bit(LIST);
+		int read = list | bit(READ);
+		int open = read | bit(BRANCH) | bit(OPEN);
+		int write = open | bit(WRITE);
+		int admin = write | bit(ADMIN);
+
+		level("list", list, LIST);
+		level("read", read, READ);
+		level("open", open, OPEN);
+		level("write", write, WRITE);
+		level("admin", admin, ADMIN);
+		level("owner", write | bit(OWNER), OWNER);
+		level("super", ALL, SUPER);
+		level("review", read | bit(REVIEW), REVIEW);
+
+		level("=read", bit(READ), READ);
+		level("=branch", bit(BRANCH), BRANCH);
+		level("=open", bit(OPEN), OPEN);
+		level("=write", bit(WRITE), WRITE);
+	}
+
+	private final List<IProtectionEntry> entries;
+	private final boolean caseSensitive;
+	private final int cacheSize;
+
+	private final Map<String, UserProtections> cache;
+	private final ConcurrentHashMap<String, MapTable> patterns = new ConcurrentHashMap<String, MapTable>();
+
+	/**
+	 * Create an evaluator for a copy of the passed-in table's entries, with
+	 * a default size cache, for a case sensitive server.
+	 *
+	 * @param table non-null protections table
+	 */
+	public ProtectionsEvaluator(IProtectionsTable table) {
+		this(table, DEFAULT_CACHE_SIZE, true);
+	}
+
+	/**
+	 * Create an evaluator for a copy of the passed-in table's entries.
+	 *
+	 * @param table         non-null protections table
+	 * @param cacheSize     number of users' compiled protections to keep;
+	 *                      zero or less keeps none
+	 * @param caseSensitive whether names and paths are case sensitive, as
+	 *                      on the server the table came from
+	 */
+	public ProtectionsEvaluator(IProtectionsTable table, int cacheSize, boolean caseSensitive) {
+		Validate.notNull(table, "null protections table passed to ProtectionsEvaluator");
+		List<IProtectionEntry> tableEntries = table.getEntries();
+		this.entries = tableEntries == null ? Collections.<IProtectionEntry>emptyList()
+				: new ArrayList<IProtectionEntry>(tableEntries);
+		this.caseSensitive = caseSensitive;
+		this.cacheSize = cacheSize;
+		this.cache = new LinkedHashMap<String, UserProtections>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, UserProtections> eldest) {
+				return size() > ProtectionsEvaluator.this.cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Return a user's compiled protections, from the cache if they've been
+	 * compiled recently.
+	 *
+	 * @param user   non-null user name
+	 * @param groups possibly-null groups the user belongs to
+	 * @param host   possibly-null client host (address); null only matches
+	 *               lines for all hosts
+	 * @return non-null compiled protections
+	 */
+	public UserProtections getProtections(String user, Collection<String> groups, String host) {
+		Validate.notNull(user, "null user passed to ProtectionsEvaluator.getProtections");
+		List<String> groupList = groups == null ? new ArrayList<String>() : new ArrayList<String>(groups);
+		Collections.sort(groupList);
+		StringBuilder key = new StringBuilder(user).append('\n').append(host == null ? "" : host);
+		for (String group : groupList) {
+			key.append('\n').append(group);
+		}
+		String cacheKey = key.toString();
+
+		synchronized (this.cache) {
+			UserProtections protections = this.cache.get(cacheKey);
+			if (protections != null) {
+				return protections;
+			}
+		}
+
+		UserProtections protections = new UserProtections(applicableEntries(user, groupList, host));
+		if (this.cacheSize > 0) {
+			synchronized (this.cache) {
+				this.cache.put(cacheKey, protections);
+			}
+		}
+		return protections;
+	}
+
+	/**
+	 * Check a list of depot paths for a user's access.
+	 *
+	 * @param user   non-null user name
+	 * @param groups possibly-null groups the user belongs to
+	 * @param host   possibly-null client host
+	 * @param mode   non-null access level or right to check for ("read",
+	 *               "write", "=branch", etc.)
+	 * @param paths  non-null depot paths
+	 * @return whether the user has that access, for each path in order
+	 */
+	public boolean[] hasAccess(String user, Collection<String> groups, String host, String mode, List<String> paths) {
+		return getProtections(user, groups, host).hasAccess(mode, paths);
+	}
+
+	/**
+	 * Return just those depot paths a user has access to.
+	 *
+	 * @param user   non-null user name
+	 * @param groups possibly-null groups the user belongs to
+	 * @param host   possibly-null client host
+	 * @param mode   non-null access level or right to check for
+	 * @param paths  non-null depot paths
+	 * @return non-null list of the accessible paths, in the passed-in order
+	 */
+	public List<String> filter(String user, Collection<String> groups, String host, String mode, List<String> paths) {
+		return getProtections(user, groups, host).filter(mode, paths);
+	}
+
+	/**
+	 * Drop all compiled protections; they're compiled again when next used.
+	 */
+	public void clearCache() {
+		synchronized (this.cache) {
+			this.cache.clear();
+		}
+	}
+
+	/**
+	 * One user's protections, as a MapTable per right. The tables are
+	 * compiled as they're first needed, after which they're only read, so
+	 * may be checked from any number of threads.
+	 */
+	public class UserProtections {
+		private final List<IProtectionEntry> applicable;
+		private final MapTable[] tables = new MapTable[RIGHTS];
+
+		private UserProtections(List<IProtectionEntry> applicable) {
+			this.applicable = applicable;
+		}
+
+		/**
+		 * Check a depot path for an access level or right.
+		 *
+		 * @param mode non-null access level or right to check for
+		 * @param path non-null depot path
+		 * @return true if the user has that access to the path
+		 */
+		public boolean hasAccess(String mode, String path) {
+			return check(getTable(mode), path);
+		}
+
+		/**
+		 * Check a list of depot paths for an access level or right, in
+		 * parallel if there are enough of them to make it worthwhile.
+		 *
+		 * @param mode  non-null access level or right to check for
+		 * @param paths non-null depot paths
+		 * @return whether the user has that access, for each path in order
+		 */
+		public boolean[] hasAccess(String mode, List<String> paths) {
+			Validate.notNull(paths, "null paths passed to UserProtections.hasAccess");
+			final MapTable table = getTable(mode);
+			final String[] pathArray = paths.toArray(new String[paths.size()]);
+			final boolean[] results = new boolean[pathArray.length];
+			MapBulk.run(pathArray.length, new MapBulk.Range() {
+				@Override
+				public void run(int start, int end) {
+					for (int i = start; i < end; i++) {
+						results[i] = check(table, pathArray[i]);
+					}
+				}
+			});
+			return results;
+		}
+
+		/**
+		 * Return just those depot paths the user has an access level or
+		 * right to.
+		 *
+		 * @param mode  non-null access level or right to check for
+		 * @param paths non-null depot paths
+		 * @return non-null list of the accessible paths, in the passed-in order
+		 */
+		public List<String> filter(String mode, List<String> paths) {
+			boolean[] access = hasAccess(mode, paths);
+			List<String> accessible = new ArrayList<String>();
+			int i = 0;
+			for (String path : paths) {
+				if (access[i++]) {
+					accessible.add(path);
+				}
+			}
+			return accessible;
+		}
+
+		private synchronized MapTable getTable(String mode) {
+			Validate.notNull(mode, "null mode passed to UserProtections");
+			Integer right = QUERIES.get(mode.toLowerCase(Locale.ENGLISH));
+			if (right == null) {
+				throw new IllegalArgumentException("Unknown protection mode: " + mode);
+			}
+
+			MapTable table = this.tables[right];
+			if (table == null) {
+				table = new MapTable();
+				for (IProtectionEntry entry : this.applicable) {
+					Integer granted = GRANTS.get(entry.getMode().toLowerCase(Locale.ENGLISH));
+					String path = fold(unquote(entry.getLeft()));
+					if (entry.isPathExcluded()) {
+						// Levels exclude everything, rights just themselves
+						int excluded = entry.getMode().startsWith("=") ? (granted == null ? 0 : granted) : ALL;
+						if ((excluded & bit(right)) != 0) {
+							table.insert(path, path, MapFlag.MfUnmap);
+						}
+					} else if ((granted != null) && ((granted & bit(right)) != 0)) {
+						table.insert(path, path, MapFlag.MfMap);
+					}
+				}
+				this.tables[right] = table.compile();
+			}
+			return table;
+		}
+	}
+
+	private boolean check(MapTable table, String path) {
+		return (path != null) && (table.check(MapTableT.LHS, fold(path)) != null);
+	}
+
+	private List<IProtectionEntry> applicableEntries(String user, List<String> groups, String host) {
+		List<IProtectionEntry> applicable = new ArrayList<IProtectionEntry>();
+		for (IProtectionEntry entry : this.entries) {
+			if ((entry.getMode() == null) || (entry.getLeft() == null) || (entry.getName() == null)) {
+				continue;
+			}
+			if (!hostMatches(entry.getHost(), host)) {
+				continue;
+			}
+			boolean matches = false;
+			if (entry.isGroup()) {
+				for (String group : groups) {
+					if (nameMatches(entry.getName(), group)) {
+						matches = true;
+						break;
+					}
+				}
+			} else {
+				matches = nameMatches(entry.getName(), user);
+			}
+			if (matches) {
+				applicable.add(entry);
+			}
+		}
+		return applicable;
+	}
+
+	private boolean hostMatches(String pattern, String host) {
+		if ((pattern == null) || pattern.equals("*")) {
+			return true;
+		}
+		return (host != null) && wildMatches(pattern, host);
+	}
+
+	private boolean nameMatches(String pattern, String name) {
+		return pattern.equals("*") || wildMatches(fold(pattern), fold(name));
+	}
+
+	private boolean wildMatches(String pattern, String value) {
+		if ((pattern.indexOf('*') < 0) && !pattern.contains("...")) {
+			return pattern.equals(value);
+		}
+		MapTable table = this.patterns.get(pattern);
+		if (table == null) {
+			table = new MapTable();
+			table.insert(pattern, pattern, MapFlag.MfMap);
+			table.compile();
+			MapTable existing = this.patterns.putIfAbsent(pattern, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return table.check(MapTableT.LHS, value) != null;
+	}
+
+	private String fold(String str) {
+		return this.caseSensitive ? str : str.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static String unquote(String path) {
+		if ((path.length() >= 2) && path.startsWith("\"") && path.endsWith("\"")) {
+			return path.substring(1, path.length() - 1);
+		}
+		return path;
+	}
+
+	private static int bit(int right) {
+		return 1 << right;
+	}
+
+	private static void level(String mode, int grants, int query) {
+		GRANTS.put(mode, grants);
+		QUERIES.put(mode, query);
+	}
+}
@@ -23,11 +23,13 @@ import com.perforce.p4java.exception.UnimplementedError;
 import com.perforce.p4java.impl.generic.core.file.ExtendedFileSpec;
 import com.perforce.p4java.impl.generic.core.file.FileSpec;
 import com.perforce.p4java.impl.mapbased.MapKeys;
+import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientHelper;
 import com.perforce.p4java.impl.mapbased.server.Parameters;
 import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.impl.mapbased.server.cmd.ResultListBuilder;
 import com.perforce.p4java.impl.mapbased.server.cmd.ResultMapParser;
 import com.perforce.p4java.option.Options;
+import com.perforce.p4java.option.changelist.ParallelSubmitOptions;
 import com.perforce.p4java.option.changelist.SubmitOptions;
 import com.perforce.p4java.option.server.ChangelistOptions;
 import com.perforce.p4java.option.server.GetChangelistDiffsOptions;
@@ -35,6 +37,7 @@ import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.IOptionsServer;
 import com.perforce.p4java.server.IServer;
 import com.perforce.p4java.server.callback.IStreamingCallback;
+import org.apache.commons.lang3.ArrayUtils;
 
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -528,6 +531,31 @@ public class Changelist extends ChangelistSummary implements IChangelist {
 		Map<String, Object> inMap = getInMap(opts);
 		List<Map<String, Object>> retMaps = this.serverImpl.execMapCmdList(CmdSpec.SUBMIT, Parameters.processParameters(opts, null, "-i", this.serverImpl), inMap);
 
+		return handleSubmitResults(retMaps);
+	}
+
+	/**
+	 * @see com.perforce.p4java.core.IChangelist#submit(com.perforce.p4java.option.changelist.SubmitOptions,
+	 * com.perforce.p4java.option.changelist.ParallelSubmitOptions)
+	 */
+	public List<IFileSpec> submit(SubmitOptions opts, ParallelSubmitOptions pSubmitOpts) throws P4JavaException {
+
+		if (pSubmitOpts == null) {
+			return submit(opts);
+		}
+		if (this.serverImpl == null) {
+			throw new RequestException("Changelist not associated with a Perforce server");
+		}
+
+		Map<String, Object> inMap = getInMap(opts);
+		String[] submitOptions = ArrayUtils.addAll(new String[]{ClientHelper.buildParallelFlag(pSubmitOpts)},
+				Parameters.processParameters(opts, null, "-i", this.serverImpl));
+		List<Map<String, Object>> retMaps = this.serverImpl.execMapCmdList(CmdSpec.SUBMIT.toString(), submitOptions, inMap, null, pSubmitOpts.getCallback());
+
+		return handleSubmitResults(retMaps);
+	}
+
+	private List<IFileSpec> handleSubmitResults(List<Map<String, Object>> retMaps) throws ConnectionException, AccessException {
 		List<IFileSpec> fileList = new ArrayList<IFileSpec>();
 
 		// Note the special-casing going on below; this is an artefact of
@@ -1,34 +1,123 @@
 package com.perforce.p4java.impl.generic.core;
 
+import com.perforce.p4java.Log;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
 import com.perforce.p4java.server.IOptionsServer;
-import com.perforce.p4java.server.ServerFactory;
 import com.perforce.p4java.server.callback.IParallelCallback;
+import com.perforce.p4java.server.metrics.ICommandMetrics;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Provides capability to perform sync in parallel.
  * The actual functionality is implemented as a server callback.
+ * <p>
+ * The transmit commands are run on a ParallelSyncWorkerPool -- by default
+ * the JVM-wide shared one -- so successive parallel syncs reuse its threads
+ * and its connected, authenticated worker servers rather than setting up new
+ * ones each time. The throughput of each transmit thread in the most recent
+ * parallel sync is available from getLastThroughput(), and is also logged
+ * with Log.stats().
  */
 public class DefaultParallelSync implements IParallelCallback {
 
 	/**
-	 * Default constructor
+	 * Throughput of one transmit thread of a parallel sync.
+	 */
+	public static class TransmitThroughput {
+		private final int thread;
+		private final long nanos;
+		private final long bytesSent;
+		private final long bytesReceived;
+		private final int resultCount;
+
+		public TransmitThroughput(int thread, long nanos, long bytesSent, long bytesReceived, int resultCount) {
+			this.thread = thread;
+			this.nanos = nanos;
+			this.bytesSent = bytesSent;
+			this.bytesReceived = bytesReceived;
+			this.resultCount = resultCount;
+		}
+
+		/**
+		 * @return the thread's index within its parallel sync.
+		 */
+		public int getThread() {
+			return this.thread;
+		}
+
+		/**
+		 * @return time taken by the thread's transmit command, in nanoseconds.
+		 */
+		public long getNanos() {
+			return this.nanos;
+		}
+
+		public long getBytesSent() {
+			return this.bytesSent;
+		}
+
+		public long getBytesReceived() {
+			return this.bytesReceived;
+		}
+
+		/**
+		 * @return number of result maps the thread's transmit command returned.
+		 */
+		public int getResultCount() {
+			return this.resultCount;
+		}
+
+		/**
+		 * @return bytes sent and received per second.
+		 */
+		public double getBytesPerSecond() {
+			return this.nanos > 0 ? (this.bytesSent + this.bytesReceived) * 1e9 / this.nanos : 0.0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("thread %d: %d results, %d bytes sent, %d bytes received in %.3f ms (%.0f bytes/s)",
+					this.thread, this.resultCount, this.bytesSent, this.bytesReceived, this.nanos / 1e6, getBytesPerSecond());
+		}
+	}
+
+	private final ParallelSyncWorkerPool workerPool;
+	private volatile List<TransmitThroughput> lastThroughput = Collections.emptyList();
+
+	/**
+	 * Default constructor; transmits are run on the shared worker pool.
 	 */
 	public DefaultParallelSync() {
+		this(null);
+	}
 
+	/**
+	 * Create a parallel sync callback that runs its transmits on the
+	 * passed-in worker pool.
+	 *
+	 * @param workerPool possibly-null worker pool; if null, the shared worker
+	 *                   pool is used.
+	 */
+	public DefaultParallelSync(ParallelSyncWorkerPool workerPool) {
+		this.workerPool = workerPool;
 	}
 
 	/**
 	 * This function notifies the server that the sync can be done in parallel.
 	 * <p>
-	 * Invocation of this method spawns the threads required to support parallelism
+	 * Invocation of this method runs the transmit commands required to support
+	 * parallelism on the worker pool, and waits for them all to finish.
 	 *
 	 * @param cmdEnv  command env
 	 * @param threads threads
@@ -38,69 +127,93 @@ public class DefaultParallelSync implements IParallelCallback {
 	 */
 	@Override
 	public boolean transmit(CommandEnv cmdEnv, int threads, HashMap<String, String> flags, ArrayList<String> args) {
-		Thread[] parallelSyncThreads = new Thread[threads];
+		ParallelSyncWorkerPool pool = this.workerPool != null ? this.workerPool : ParallelSyncWorkerPool.getDefault(cmdEnv.getServer().getProperties());
+		List<Future<TransmitThroughput>> futures = new ArrayList<Future<TransmitThroughput>>(threads);
+		List<TransmitThroughput> throughput = new ArrayList<TransmitThroughput>(threads);
+		boolean ok = true;
 		try {
 			for (int x = 0; x < threads; x++) {
-				parallelSyncThreads[x] = new Thread(createRunnable(cmdEnv, x, flags, args));
-				parallelSyncThreads[x].start();
+				futures.add(pool.getExecutor().submit(createTask(pool, cmdEnv, x, flags, args)));
 			}
-			for (int x = 0; x < threads; x++) {
-				parallelSyncThreads[x].join();
+			for (Future<TransmitThroughput> future : futures) {
+				try {
+					throughput.add(future.get());
+				} catch (ExecutionException exc) {
+					Log.error("Parallel sync transmit failed: " + exc.getCause().getLocalizedMessage());
+					Log.exception(exc.getCause());
+					ok = false;
+				}
 			}
-		} catch (Exception ex) {
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			for (Future<TransmitThroughput> future : futures) {
+				future.cancel(true);
+			}
+			return false;
+		} catch (RejectedExecutionException exc) {
+			Log.exception(exc);
 			return false;
 		}
-		return true;
+
+		this.lastThroughput = Collections.unmodifiableList(throughput);
+		for (TransmitThroughput item : throughput) {
+			Log.stats("Parallel sync " + item);
+		}
+		return ok;
+	}
+
+	/**
+	 * @return the throughput of each transmit thread in the most recent
+	 * parallel sync run with this callback; if any of its threads failed,
+	 * only the others are included.
+	 */
+	public List<TransmitThroughput> getLastThroughput() {
+		return this.lastThroughput;
 	}
 
 	/**
-	 * Helper method which creates a Runnable that performs the sync
+	 * Helper method which creates a task that performs the sync
 	 *
+	 * @param pool   worker pool
 	 * @param cmdEnv command env
-	 * @param thread (not used)
+	 * @param thread thread index
 	 * @param flags  (not used)
 	 * @param args   list arguments
-	 * @return runnable thread
+	 * @return transmit task
 	 */
-	private Runnable createRunnable(final CommandEnv cmdEnv, int thread,
-									HashMap<String, String> flags, final List<String> args) {
+	private Callable<TransmitThroughput> createTask(final ParallelSyncWorkerPool pool, final CommandEnv cmdEnv, final int thread,
+	                                                HashMap<String, String> flags, final List<String> args) {
 
-		class RunnableSync implements Runnable {
+		return new Callable<TransmitThroughput>() {
 			@Override
-			public void run() {
-				IOptionsServer server = null;
+			public TransmitThroughput call() throws Exception {
+				RpcServer server = cmdEnv.getServer();
+				IOptionsServer worker = null;
+				boolean ok = false;
 				try {
-					Properties props = new Properties(cmdEnv.getServer().getProperties());
-					server = ServerFactory.getOptionsServer(cmdEnv.getServer().getServerAddressDetails().getUri(), props);
-
-					server.setCurrentServerInfo(cmdEnv.getServer().getCurrentServerInfo());
-					server.setUserName(cmdEnv.getServer().getUserName());
-					server.setCurrentClient(cmdEnv.getServer().getCurrentClient());
-					server.setWorkingDirectory(cmdEnv.getServer().getWorkingDirectory());
-					server.setTrustFilePath(cmdEnv.getServer().getTrustFilePath());
-					server.setTicketsFilePath(cmdEnv.getServer().getTicketsFilePath());
-					server.setCharsetName(cmdEnv.getServer().getCharsetName());
-					server.connect();
-					// P4JAVA-1264:  must call setAuthTicket() after connect() to properly cache the ticket.
-					server.setAuthTicket(cmdEnv.getServer().getAuthTicket());
+					worker = pool.acquire(server);
+					ICommandMetrics before = worker.getCommandMetrics().get("transmit");
+					long start = System.nanoTime();
 
 					//pass the result to the handle result
-					Map<String, Object>[] results = server.execMapCmd("transmit", args.toArray(new String[]{}), null);
+					Map<String, Object>[] results = worker.execMapCmd("transmit", args.toArray(new String[]{}), null);
+					long nanos = System.nanoTime() - start;
 					handleResults(results, cmdEnv);
-				} catch (Throwable e) {
-					throw new RuntimeException(e);
-				} finally {
-					if (server != null && server.isConnected()) {
-						try {
-							server.disconnect();
-						} catch (P4JavaException ex) {
-							throw new RuntimeException(ex);
-						}
+
+					ICommandMetrics after = worker.getCommandMetrics().get("transmit");
+					long bytesSent = 0;
+					long bytesReceived = 0;
+					if (after != null) {
+						bytesSent = after.getBytesSent() - (before != null ? before.getBytesSent() : 0);
+						bytesReceived = after.getBytesReceived() - (before != null ? before.getBytesReceived() : 0);
 					}
+					ok = true;
+					return new TransmitThroughput(thread, nanos, bytesSent, bytesReceived, results != null ? results.length : 0);
+				} finally {
+					pool.release(server, worker, ok);
 				}
 			}
-		}
-		return new RunnableSync();
+		};
 	}
 
 	/**
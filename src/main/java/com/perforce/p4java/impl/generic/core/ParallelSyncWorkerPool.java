@@ -0,0 +1,416 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.generic.core;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.PropertyDefs;
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.ServerFactory;
+import com.perforce.p4java.util.PropertiesHelper;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
+/**
+ * Threads and server connections for DefaultParallelSync's transmit commands.
+ * <p>
+ * Transmits run on a bounded pool of daemon threads whose idle threads time
+ * out. Each runs on a worker server connection that's already connected and
+ * authenticated as the originating server's user and client: workers are
+ * kept per server address, user, client, charset, trust and tickets files
+ * and connection properties, so a worker is only reused for a server
+ * configured exactly like the one it was created for, and handed back here
+ * when their transmit is done, so only the first parallel sync (or one that
+ * needs more workers than any before it) pays for creating them, reading
+ * the trust and tickets files, and so on. Workers keep their connection open
+ * between uses unless the originating server's properties configure a socket
+ * pool of their own; while there are idle workers, a background sweep
+ * disconnects those that have been idle for longer than the worker idle
+ * time, so they're gone within twice that time of their last use. Workers
+ * always gather command metrics, which their transmits' throughput is
+ * measured from.
+ */
+public class ParallelSyncWorkerPool {
+
+	/**
+	 * Default maximum number of threads running transmits at once.
+	 */
+	public static final int DEFAULT_PARALLEL_SYNC_THREADS = 16;
+
+	/**
+	 * Default time in milliseconds an idle worker is kept for reuse.
+	 */
+	public static final int DEFAULT_WORKER_IDLE_TIME = 60000;
+
+	/**
+	 * How long idle threads are kept, in seconds.
+	 */
+	public static final int IDLE_THREAD_TIMEOUT_SECS = 60;
+
+	private static volatile ParallelSyncWorkerPool defaultPool = null;
+
+	private static class Worker {
+		final IOptionsServer server;
+		final String key;
+		String authTicket;
+		long releaseTime;
+
+		Worker(IOptionsServer server, String key, String authTicket) {
+			this.server = server;
+			this.key = key;
+			this.authTicket = authTicket;
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor sweeper;
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+	private final long workerIdleTime;
+	private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Worker>> idle = new ConcurrentHashMap<String, ConcurrentLinkedDeque<Worker>>();
+	private final Map<IOptionsServer, Worker> leased = new ConcurrentHashMap<IOptionsServer, Worker>();
+
+	private final AtomicLong creates = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+
+	/**
+	 * Return the JVM-wide shared worker pool, creating it on first use with
+	 * the limits given by the PARALLEL_SYNC_THREADS_KEY and
+	 * PARALLEL_SYNC_WORKER_IDLE_TIME_KEY properties in the passed-in
+	 * properties (if any).
+	 *
+	 * @param props possibly-null properties
+	 * @return non-null shared worker pool
+	 */
+	public static ParallelSyncWorkerPool getDefault(Properties props) {
+		ParallelSyncWorkerPool pool = defaultPool;
+		if (pool == null) {
+			synchronized (ParallelSyncWorkerPool.class) {
+				pool = defaultPool;
+				if (pool == null) {
+					int threads = PropertiesHelper.getPropertyAsInt(props,
+							new String[]{PropertyDefs.PARALLEL_SYNC_THREADS_KEY_SHORT_FORM, PropertyDefs.PARALLEL_SYNC_THREADS_KEY},
+							DEFAULT_PARALLEL_SYNC_THREADS);
+					int idleTime = PropertiesHelper.getPropertyAsInt(props,
+							new String[]{PropertyDefs.PARALLEL_SYNC_WORKER_IDLE_TIME_KEY_SHORT_FORM, PropertyDefs.PARALLEL_SYNC_WORKER_IDLE_TIME_KEY},
+							DEFAULT_WORKER_IDLE_TIME);
+					pool = new ParallelSyncWorkerPool(threads, idleTime);
+					defaultPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Create a new worker pool.
+	 *
+	 * @param maxThreads     maximum number of transmits run at once
+	 * @param workerIdleTime time in milliseconds an idle worker is kept for
+	 *                       reuse
+	 */
+	public ParallelSyncWorkerPool(int maxThreads, long workerIdleTime) {
+		int threads = Math.max(1, maxThreads);
+		this.executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+		this.sweeper = new ScheduledThreadPoolExecutor(1, new WorkerThreadFactory("P4Java Parallel Sync Sweeper"));
+		this.sweeper.setKeepAliveTime(IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS);
+		this.sweeper.allowCoreThreadTimeOut(true);
+		this.workerIdleTime = Math.max(0, workerIdleTime);
+	}
+
+	/**
+	 * @return the executor transmits are run on.
+	 */
+	public ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * Get a connected worker server logged in as the passed-in server's
+	 * user and set to its client, reusing an idle one if possible. The
+	 * worker must be handed back with release() once it's been used.
+	 *
+	 * @param server non-null originating server
+	 * @return non-null connected worker server
+	 * @throws P4JavaException if a new worker couldn't be connected
+	 */
+	public IOptionsServer acquire(RpcServer server) throws P4JavaException {
+		String key = getKey(server);
+		String authTicket = server.getAuthTicket();
+		ConcurrentLinkedDeque<Worker> workers = this.idle.get(key);
+		if (workers != null) {
+			long now = System.currentTimeMillis();
+			Worker worker;
+			while ((worker = workers.pollFirst()) != null) {
+				if ((now - worker.releaseTime < this.workerIdleTime) && worker.server.isConnected()) {
+					// Cheap, and may have changed since the worker was last used
+					worker.server.setWorkingDirectory(server.getWorkingDirectory());
+					if (!defaultString(authTicket).equals(defaultString(worker.authTicket))) {
+						worker.server.setAuthTicket(authTicket);
+						worker.authTicket = authTicket;
+					}
+					this.reuses.getAndIncrement();
+					this.leased.put(worker.server, worker);
+					return worker.server;
+				}
+				discard(worker);
+			}
+		}
+
+		Worker worker = new Worker(createServer(server), key, authTicket);
+		this.creates.getAndIncrement();
+		this.leased.put(worker.server, worker);
+		return worker.server;
+	}
+
+	/**
+	 * Hand back a worker server got from acquire(). Workers that failed or
+	 * have lost their connection are disconnected rather than kept.
+	 *
+	 * @param server non-null originating server the worker was acquired for
+	 * @param worker possibly-null worker server
+	 * @param ok     false if the worker's transmit failed
+	 */
+	public void release(RpcServer server, IOptionsServer worker, boolean ok) {
+		if (worker == null) {
+			return;
+		}
+		Worker entry = this.leased.remove(worker);
+		if (entry == null) {
+			return;
+		}
+		if (!ok || (this.workerIdleTime == 0) || !worker.isConnected()) {
+			discard(entry);
+			return;
+		}
+		entry.releaseTime = System.currentTimeMillis();
+		// Filed under the configuration the worker was created for, even if
+		// the originating server's has changed since.
+		ConcurrentLinkedDeque<Worker> workers = this.idle.get(entry.key);
+		if (workers == null) {
+			ConcurrentLinkedDeque<Worker> newWorkers = new ConcurrentLinkedDeque<Worker>();
+			workers = this.idle.putIfAbsent(entry.key, newWorkers);
+			if (workers == null) {
+				workers = newWorkers;
+			}
+		}
+		workers.offerFirst(entry);
+		expire(workers);
+		scheduleSweep();
+	}
+
+	/**
+	 * Disconnect all idle workers. Workers in use are unaffected, and are
+	 * kept as usual when released.
+	 */
+	public void clear() {
+		for (ConcurrentLinkedDeque<Worker> workers : this.idle.values()) {
+			Worker worker;
+			while ((worker = workers.pollFirst()) != null) {
+				discard(worker);
+			}
+		}
+	}
+
+	/**
+	 * @return number of worker servers created.
+	 */
+	public long getWorkersCreated() {
+		return this.creates.get();
+	}
+
+	/**
+	 * @return number of times an idle worker server was reused.
+	 */
+	public long getWorkersReused() {
+		return this.reuses.get();
+	}
+
+	/**
+	 * @return number of worker servers disconnected for being idle too
+	 * long, having failed, or having lost their connection.
+	 */
+	public long getWorkersDiscarded() {
+		return this.discards.get();
+	}
+
+	/**
+	 * @return current number of idle worker servers.
+	 */
+	public int getIdleWorkerCount() {
+		int count = 0;
+		for (ConcurrentLinkedDeque<Worker> workers : this.idle.values()) {
+			count += workers.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Make sure a sweep is due within the worker idle time.
+	 */
+	private void scheduleSweep() {
+		if (this.sweepScheduled.compareAndSet(false, true)) {
+			this.sweeper.schedule(new Runnable() {
+				public void run() {
+					sweep();
+				}
+			}, this.workerIdleTime, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Disconnect all workers that have been idle for too long, and sweep
+	 * again later if any idle workers are left. The sweeper's thread times
+	 * out once there are none.
+	 */
+	private void sweep() {
+		this.sweepScheduled.set(false);
+		try {
+			for (ConcurrentLinkedDeque<Worker> workers : this.idle.values()) {
+				expire(workers);
+			}
+		} catch (Throwable thr) {
+			Log.error("Unexpected exception in parallel sync worker sweep: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+		}
+		if (getIdleWorkerCount() > 0) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * Disconnect workers at the (least recently used) tail of the passed-in
+	 * list that have been idle for too long.
+	 */
+	private void expire(ConcurrentLinkedDeque<Worker> workers) {
+		long now = System.currentTimeMillis();
+		Iterator<Worker> iter = workers.descendingIterator();
+		while (iter.hasNext()) {
+			Worker worker = iter.next();
+			if (now - worker.releaseTime < this.workerIdleTime) {
+				break;
+			}
+			if (workers.removeLastOccurrence(worker)) {
+				discard(worker);
+			}
+		}
+	}
+
+	private void discard(Worker worker) {
+		this.discards.getAndIncrement();
+		try {
+			if (worker.server.isConnected()) {
+				worker.server.disconnect();
+			}
+		} catch (Throwable thr) {
+			Log.warn("Unable to disconnect parallel sync worker: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+		}
+	}
+
+	private IOptionsServer createServer(RpcServer server) throws P4JavaException {
+		Properties props = new Properties(server.getProperties());
+		// Keep the worker's connection open between transmits unless the
+		// properties already say how its sockets should be pooled.
+		if (RpcPropertyDefs.getPropertyAsInt(props, RpcPropertyDefs.RPC_SOCKET_POOL_SIZE_NICK, RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_SIZE) <= 0) {
+			props.setProperty(RpcPropertyDefs.RPC_SOCKET_POOL_SIZE_NICK, "1");
+		}
+		// DefaultParallelSync reports each transmit's byte counts from the
+		// worker's command metrics, which are off by default.
+		props.setProperty(RpcPropertyDefs.RPC_COMMAND_METRICS_NICK, "true");
+
+		IOptionsServer worker;
+		try {
+			worker = ServerFactory.getOptionsServer(server.getServerAddressDetails().getUri(), props);
+		} catch (Exception exc) {
+			throw new P4JavaException("Unable to create parallel sync worker: " + exc.getLocalizedMessage(), exc);
+		}
+		boolean connected = false;
+		try {
+			worker.setCurrentServerInfo(server.getCurrentServerInfo());
+			worker.setUserName(server.getUserName());
+			worker.setCurrentClient(server.getCurrentClient());
+			worker.setWorkingDirectory(server.getWorkingDirectory());
+			worker.setTrustFilePath(server.getTrustFilePath());
+			worker.setTicketsFilePath(server.getTicketsFilePath());
+			worker.setCharsetName(server.getCharsetName());
+			worker.connect();
+			// P4JAVA-1264:  must call setAuthTicket() after connect() to properly cache the ticket.
+			worker.setAuthTicket(server.getAuthTicket());
+			connected = true;
+			return worker;
+		} finally {
+			if (!connected && worker.isConnected()) {
+				try {
+					worker.disconnect();
+				} catch (P4JavaException exc) {
+					Log.exception(exc);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the key for everything createServer() copies from the
+	 * originating server into a new worker: two servers with the same key
+	 * get interchangeable workers.
+	 */
+	private String getKey(RpcServer server) {
+		IClient client = server.getCurrentClient();
+		StringBuilder key = new StringBuilder(server.getServerAddressDetails().getUri())
+				.append('\n').append(defaultString(server.getUserName()))
+				.append('\n').append(client != null ? defaultString(client.getName()) : "")
+				.append('\n').append(defaultString(server.getCharsetName()))
+				.append('\n').append(defaultString(server.getTrustFilePath()))
+				.append('\n').append(defaultString(server.getTicketsFilePath()));
+		Properties props = server.getProperties();
+		if (props != null) {
+			for (String name : new TreeSet<String>(props.stringPropertyNames())) {
+				key.append('\n').append(name).append('=').append(props.getProperty(name));
+			}
+		}
+		return key.toString();
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		WorkerThreadFactory() {
+			this("P4Java Parallel Sync");
+		}
+
+		WorkerThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setName(name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
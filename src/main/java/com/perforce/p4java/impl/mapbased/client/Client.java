@@ -41,6 +41,7 @@ import com.perforce.p4java.option.client.IntegrateFilesOptions;
 import com.perforce.p4java.option.client.LabelSyncOptions;
 import com.perforce.p4java.option.client.LockFilesOptions;
 import com.perforce.p4java.option.client.MergeFilesOptions;
+import com.perforce.p4java.option.client.ParallelShelveOptions;
 import com.perforce.p4java.option.client.ParallelSyncOptions;
 import com.perforce.p4java.option.client.PopulateFilesOptions;
 import com.perforce.p4java.option.client.ReconcileFilesOptions;
@@ -59,6 +60,7 @@ import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.IOptionsServer;
 import com.perforce.p4java.server.IServer;
 import com.perforce.p4java.server.callback.IStreamingCallback;
+import org.apache.commons.lang3.ArrayUtils;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -1428,6 +1430,14 @@ public class Client extends ClientSummary implements IClient {
 	 */
 	@Override
 	public List<IFileSpec> shelveFiles(List<IFileSpec> fileSpecs, int changelistId, ShelveFilesOptions opts) throws P4JavaException {
+		return shelveFiles(fileSpecs, changelistId, opts, null);
+	}
+
+	/**
+	 * @see com.perforce.p4java.client.IClient#shelveFiles(java.util.List, int, com.perforce.p4java.option.client.ShelveFilesOptions, com.perforce.p4java.option.client.ParallelShelveOptions)
+	 */
+	@Override
+	public List<IFileSpec> shelveFiles(List<IFileSpec> fileSpecs, int changelistId, ShelveFilesOptions opts, ParallelShelveOptions pShelveOpts) throws P4JavaException {
 		List<IFileSpec> resultList = new ArrayList<IFileSpec>();
 
 		String changelistString = null;
@@ -1439,7 +1449,14 @@ public class Client extends ClientSummary implements IClient {
 		// Set the server's current client to this client
 		IClient currentClient = this.serverImpl.getCurrentClient();
 		this.serverImpl.setCurrentClient(this);
-		List<Map<String, Object>> resultMaps = this.serverImpl.execMapCmdList(CmdSpec.SHELVE, Parameters.processParameters(opts, fileSpecs, changelistString, serverImpl), null);
+		String[] shelveOptions = Parameters.processParameters(opts, fileSpecs, changelistString, serverImpl);
+		List<Map<String, Object>> resultMaps;
+		if (pShelveOpts != null) {
+			shelveOptions = ArrayUtils.addAll(new String[]{ClientHelper.buildParallelFlag(pShelveOpts)}, shelveOptions);
+			resultMaps = this.serverImpl.execMapCmdList(CmdSpec.SHELVE.toString(), shelveOptions, null, null, pShelveOpts.getCallback());
+		} else {
+			resultMaps = this.serverImpl.execMapCmdList(CmdSpec.SHELVE, shelveOptions, null);
+		}
 		if (resultMaps != null) {
 			for (Map<String, Object> result : resultMaps) {
 				resultList.add(handleFileReturn(result, serverImpl));
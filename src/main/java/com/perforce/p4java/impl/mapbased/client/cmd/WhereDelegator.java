@@ -2,14 +2,13 @@ package com.perforce.p4java.impl.mapbased.client.cmd;
 
 import com.perforce.p4java.client.IClient;
 import com.perforce.p4java.client.delegator.IWhereDelegator;
+import com.perforce.p4java.core.ViewMap.MapDirection;
 import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.impl.generic.client.ClientView;
 import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.impl.mapbased.server.cmd.ResultListBuilder;
-import com.perforce.p4java.mapapi.MapTable;
-import com.perforce.p4java.mapapi.MapTableBuilder;
-import com.perforce.p4java.mapapi.MapTableT;
 import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.IServer;
 
@@ -48,69 +47,86 @@ public class WhereDelegator implements IWhereDelegator {
 	}
 
 	/**
+	 * Maps the file specs through the client view without asking the server.
+	 * The specs' depot and client paths are translated in two batches through
+	 * the view's own compiled table (ClientView.translateAll()), which goes
+	 * parallel for large lists.
+	 *
 	 * @see com.perforce.p4java.client.delegator.IWhereDelegator#localWhere(java.util.List)
 	 */
 	@Override
 	public List<IFileSpec> localWhere(List<IFileSpec> fileSpecs) {
 
-		List<IFileSpec> resultList = new ArrayList<>();
+		ClientView clientView = client.getClientView();
 
+		// Work out which way each spec goes: specs with a local or client
+		// path are translated to a depot path, those with just a depot
+		// path to a client path.
+		List<IFileSpec> resultList = new ArrayList<>(fileSpecs.size());
+		List<IFileSpec> toDepot = new ArrayList<>();
+		List<String> clientPaths = new ArrayList<>();
+		List<IFileSpec> toClient = new ArrayList<>();
+		List<String> depotPaths = new ArrayList<>();
 		for (IFileSpec spec : fileSpecs) {
-			MapTable mt = MapTableBuilder.buildMapTable(client);
-			if (spec.getOriginalPath() != null) {
-				if (!spec.getOriginalPathString().startsWith("//")) {
-					if (spec.getLocalPath() == null) {
-						spec.setLocalPath(spec.getOriginalPathString());
-					}
-				} else if (spec.getOriginalPathString().contains(client.getName())) {
-					if (spec.getClientPath() == null) {
-						spec.setClientPath(spec.getOriginalPathString());
-					}
-				} else {
-					if (spec.getDepotPath() == null) {
-						spec.setDepotPath(spec.getOriginalPathString());
-					}
-				}
-			}
+			setOriginalPath(spec);
 			if (spec.getLocalPath() != null) {
-				spec = localPathToClientPath(spec, client);
-				String s = spec.getClientPathString();
-				for (int i = 0; i < mt.count; i++) {
-					if (mt.translate(mt.get(i), MapTableT.RHS, s) != null) {
-						String depotPath = mt.translate(mt.get(i), MapTableT.RHS, s);
-						spec.setDepotPath(depotPath);
-					}
-				}
-				resultList.add(spec);
+				localPathToClientPath(spec, client);
+				toDepot.add(spec);
+				clientPaths.add(spec.getClientPathString());
 			} else if (spec.getDepotPath() != null) {
-				String s = spec.getDepotPathString();
-				for (int i = 0; i < mt.count; i++) {
-					if (mt.translate(mt.get(i), MapTableT.LHS, s) != null) {
-						String clientPath = mt.translate(mt.get(i), MapTableT.LHS, s);
-						spec.setClientPath(clientPath);
-					}
-				}
-				spec = clientPathToLocalPath(spec, client);
-				resultList.add(spec);
+				toClient.add(spec);
+				depotPaths.add(spec.getDepotPathString());
 			} else if (spec.getClientPath() != null) {
-				String s = spec.getClientPathString();
-				for (int i = 0; i < mt.count; i++) {
-					if (mt.translate(mt.get(i), MapTableT.RHS, s) != null) {
-						String depotPath = mt.translate(mt.get(i), MapTableT.RHS, s);
-						spec.setDepotPath(depotPath);
-					}
-				}
-				spec = clientPathToLocalPath(spec, client);
-				resultList.add(spec);
+				clientPathToLocalPath(spec, client);
+				toDepot.add(spec);
+				clientPaths.add(spec.getClientPathString());
 			} else {
-				//add nothing
+				continue;
 			}
+			resultList.add(spec);
+		}
 
+		List<String> depotResults = clientView.translateAll(clientPaths, MapDirection.MapRightLeft);
+		for (int i = 0; i < toDepot.size(); i++) {
+			if (depotResults.get(i) != null) {
+				toDepot.get(i).setDepotPath(depotResults.get(i));
+			}
+		}
+
+		// Files outside the view are returned with no client (or local) path
+		List<String> clientResults = clientView.translateAll(depotPaths, MapDirection.MapLeftRight);
+		for (int i = 0; i < toClient.size(); i++) {
+			if (clientResults.get(i) != null) {
+				toClient.get(i).setClientPath(clientResults.get(i));
+				clientPathToLocalPath(toClient.get(i), client);
+			}
 		}
 
 		return resultList;
 	}
 
+	/**
+	 * Use a spec's original path as its local, client or depot path, unless
+	 * it already has that one.
+	 */
+	private void setOriginalPath(IFileSpec spec) {
+		if (spec.getOriginalPath() != null) {
+			if (!spec.getOriginalPathString().startsWith("//")) {
+				if (spec.getLocalPath() == null) {
+					spec.setLocalPath(spec.getOriginalPathString());
+				}
+			} else if (spec.getOriginalPathString().contains(client.getName())) {
+				if (spec.getClientPath() == null) {
+					spec.setClientPath(spec.getOriginalPathString());
+				}
+			} else {
+				if (spec.getDepotPath() == null) {
+					spec.setDepotPath(spec.getOriginalPathString());
+				}
+			}
+		}
+	}
+
 	private IFileSpec clientPathToLocalPath(IFileSpec spec, IClient client) {
 		String clientPath = spec.getClientPathString();
 		String localPath = clientPath.replace("//" + client.getName(), client.getRoot());
@@ -128,5 +144,4 @@ public class WhereDelegator implements IWhereDelegator {
 		spec.setClientPath(clientPath);
 		return spec;
 	}
-
 }
@@ -8,8 +8,10 @@ import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher.RpcPacketDispatcherMode;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
 import com.perforce.p4java.server.callback.IFilterCallback;
+import com.perforce.p4java.server.callback.IFlowControlledStreamingCallback;
 import com.perforce.p4java.server.callback.IParallelCallback;
 import com.perforce.p4java.server.callback.IProgressCallback;
 import com.perforce.p4java.server.callback.IStreamingCallback;
@@ -185,6 +187,8 @@ public class CommandEnv {
 
 	private boolean userCanceled = false; // true if the user tried to cancel the command
 
+	private RpcPacketDispatcherMode dispatchMode = RpcPacketDispatcherMode.PRIMAL;
+
 	public CommandEnv(RpcServer server, RpcCmdSpec cmdSpec, RpcConnection rpcConnection, ProtocolCommand protocolSpecs, Map<String, Object> serverProtocolSpecsMap, IProgressCallback progressCallback, int cmdCallBackKey, boolean syncInPlace, boolean nonCheckedSyncs) {
 		this.server = server;
 		this.cmdSpec = cmdSpec;
@@ -242,6 +246,24 @@ public class CommandEnv {
 		lastResultMap = null;
 	}
 
+	/**
+	 * If the streaming callback is flow-controlled, block until its consumer
+	 * wants more results. Called before the server's flush1 is acknowledged,
+	 * so the server stops sending once it has a window's worth outstanding.
+	 * An exception from the callback cancels the command.
+	 */
+	public void awaitStreamingDemand() {
+		if ((streamingCallback instanceof IFlowControlledStreamingCallback) && !userCanceled) {
+			try {
+				((IFlowControlledStreamingCallback) streamingCallback).awaitDemand(streamingCallbackKey);
+			} catch (P4JavaException exc) {
+				Log.error("caught exception from streaming callback demand wait (key: " + streamingCallbackKey + "): " + exc.getLocalizedMessage());
+				Log.exception(exc);
+				userCanceled = true;
+			}
+		}
+	}
+
 	/**
 	 * Handle a partial result by either adding it to the resultsMapVec
 	 * for later processing or passing it up to the streaming results
@@ -380,6 +402,14 @@ public class CommandEnv {
 		this.cmdCallBackKey = cmdCallBackKey;
 	}
 
+	public RpcPacketDispatcherMode getDispatchMode() {
+		return this.dispatchMode;
+	}
+
+	public void setDispatchMode(RpcPacketDispatcherMode dispatchMode) {
+		this.dispatchMode = dispatchMode;
+	}
+
 	public boolean isUserCanceled() {
 		return this.userCanceled;
 	}
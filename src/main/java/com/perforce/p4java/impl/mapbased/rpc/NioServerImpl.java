@@ -0,0 +1,329 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.ConfigException;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.ConnectionNotConnectedException;
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
+import com.perforce.p4java.impl.mapbased.rpc.nio.RpcNioConnection;
+import com.perforce.p4java.impl.mapbased.rpc.nio.RpcNioReactor;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
+import com.perforce.p4java.impl.mapbased.server.ServerAddressBuilder;
+import com.perforce.p4java.option.UsageOptions;
+import com.perforce.p4java.server.CmdSpec;
+import com.perforce.p4java.server.IServerAddress;
+import com.perforce.p4java.server.IServerAddress.Protocol;
+import com.perforce.p4java.server.ServerStatus;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+/**
+ * A one-shot (connection-per-command) RPC implementation that runs each
+ * command over a non-blocking NIO socket channel rather than over blocking
+ * socket streams.
+ * <p>
+ * Semantically this is identical to OneShotServerImpl and is just as
+ * thread-safe; the difference is in the transport. All channels are
+ * non-blocking and watched by the few selector threads of a shared
+ * RpcNioReactor. A synchronous command waiting on the Perforce server parks
+ * its own thread on a readiness future rather than blocking it in a socket
+ * read.
+ * <p>
+ * execMapCmdListAsync takes no thread at all: the command is connected,
+ * sent and dispatched from the reactor's callbacks, on its selector threads,
+ * a packet at a time as they arrive, so hundreds of commands can be in
+ * flight on a few I/O threads. Any command callback or progress callback
+ * set on the server then runs on a selector thread too, and must not block.
+ * The other ...Async methods still run their commands synchronously on the
+ * async executor.
+ * <p>
+ * SSL, 'rsh' mode and the socket pool are not supported by this
+ * implementation.
+ */
+public class NioServerImpl extends OneShotServerImpl {
+
+	/**
+	 * The short-form name (display name) of this implementation.
+	 */
+	public static final String SCREEN_NAME = "Native RPC (NIO)";
+
+	/**
+	 * Implementation-specific comments (dependencies, limitations, etc.).
+	 */
+	public static final String IMPL_COMMENTS = "Java-native RPC standalone P4Java implementation"
+			+ " over non-blocking NIO channels. Does not support SSL or rsh connections.";
+
+	/**
+	 * The specific protocol name to be used in URIs for this implementation.
+	 */
+	public static final String PROTOCOL_NAME = Protocol.P4JRPCNIO.toString();
+
+	/**
+	 * True IFF this is the default implementation. There must be only one of
+	 * these...
+	 */
+	public static final boolean DEFAULT_STATUS = false;
+
+	/**
+	 * The minimum Perforce server level required by this implementation.
+	 */
+	public static final int MINIMUM_SUPPORTED_SERVER_LEVEL = 20052;
+
+	/**
+	 * What we use as a P4JTracer trace prefix for methods here.
+	 */
+	public static final String TRACE_PREFIX = "NioServerImpl";
+
+	protected RpcNioReactor reactor = null;
+
+	/**
+	 * Initialize the server and attach it to the shared NIO reactor. Any
+	 * socket pool set up by the superclass is discarded, as pooled sockets
+	 * are stream-based.
+	 *
+	 * @see com.perforce.p4java.impl.mapbased.rpc.OneShotServerImpl#init(java.lang.String, int, java.util.Properties, com.perforce.p4java.option.UsageOptions, boolean, java.lang.String)
+	 */
+	@Override
+	public ServerStatus init(String host, int port, Properties props, UsageOptions opts, boolean secure, String rsh) throws ConfigException, ConnectionException {
+		if (secure) {
+			throw new ConfigException("SSL connections are not supported by the " + PROTOCOL_NAME + " protocol");
+		}
+		super.init(host, port, props, opts, secure, rsh);
+		if (this.socketPool != null) {
+			Log.warn("socket pooling is not supported by the " + PROTOCOL_NAME + " protocol; ignoring "
+					+ RpcPropertyDefs.RPC_SOCKET_POOL_SIZE_NICK);
+			this.socketPool.disconnect();
+			this.socketPool = null;
+		}
+		try {
+			this.reactor = RpcNioReactor.getDefault(this.props);
+		} catch (IOException exc) {
+			throw new ConnectionException("Unable to start NIO reactor: " + exc.getLocalizedMessage(), exc);
+		}
+		return status;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.OneShotServerImpl#createRpcConnection()
+	 */
+	@Override
+	protected RpcConnection createRpcConnection() throws ConnectionException {
+		return new RpcNioConnection(serverHost, serverPort, props, this.serverStats, this.p4Charset, this.reactor);
+	}
+
+	/**
+	 * Run the command on the NIO reactor rather than on the async executor;
+	 * see the class comment.
+	 *
+	 * @see com.perforce.p4java.impl.mapbased.server.Server#execMapCmdListAsync(java.lang.String, java.lang.String[], java.util.Map)
+	 */
+	@Override
+	public CompletableFuture<List<Map<String, Object>>> execMapCmdListAsync(String cmdName, String[] cmdArgs, Map<String, Object> inMap) {
+		return new AsyncMapCommand(cmdName, cmdArgs, inMap).start();
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.OneShotServerImpl#getServerAddressDetails()
+	 */
+	@Override
+	public IServerAddress getServerAddressDetails() {
+		ServerAddressBuilder builder = new ServerAddressBuilder();
+		builder.setHost(serverHost);
+		builder.setPort(serverPort);
+		builder.setProtocol(Protocol.P4JRPCNIO);
+		return builder.build();
+	}
+
+	/**
+	 * One execMapCmdListAsync command: the steps of execMapCmdList, each run
+	 * from the completion of the reactor wait before it. Everything after
+	 * start() runs on the connection's selector thread.
+	 */
+	private class AsyncMapCommand {
+		private final String cmdName;
+		private final String[] cmdArgs;
+		private final Map<String, Object> inMap;
+		private final CompletableFuture<List<Map<String, Object>>> future = new CompletableFuture<>();
+
+		private CommandSample sample = null;
+		private RpcNioConnection rpcConnection = null;
+		private RpcPacketDispatcher dispatcher = null;
+		private CommandEnv cmdEnv = null;
+		private int cmdCallBackKey = 0;
+		private long startTime = 0;
+
+		AsyncMapCommand(String cmdName, String[] cmdArgs, Map<String, Object> inMap) {
+			this.cmdName = cmdName;
+			this.cmdArgs = cmdArgs;
+			this.inMap = inMap;
+		}
+
+		CompletableFuture<List<Map<String, Object>>> start() {
+			if (cmdName == null) {
+				future.completeExceptionally(new NullPointerError("Null command name passed to execMapCmdListAsync"));
+				return future;
+			}
+			if (!connected) {
+				future.completeExceptionally(new ConnectionNotConnectedException("Not currently connected to a Perforce server"));
+				return future;
+			}
+
+			try {
+				cmdCallBackKey = nextCmdCallBackKey.incrementAndGet();
+				startTime = System.currentTimeMillis();
+				sample = startCommandSample(cmdName);
+				rpcConnection = new RpcNioConnection(serverHost, serverPort, props, serverStats, p4Charset, reactor, true);
+			} catch (Throwable thr) {
+				fail(thr);
+				return future;
+			}
+
+			future.whenComplete(new BiConsumer<List<Map<String, Object>>, Throwable>() {
+				public void accept(List<Map<String, Object>> result, Throwable thr) {
+					if (future.isCancelled()) {
+						rpcConnection.cancel();
+					}
+				}
+			});
+			rpcConnection.whenConnected().whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void result, Throwable thr) {
+					if (thr != null) {
+						fail(thr);
+					} else {
+						send();
+					}
+				}
+			});
+			return future;
+		}
+
+		private void send() {
+			try {
+				if (sample != null) {
+					sample.connected();
+					rpcConnection.setCommandSample(sample);
+				}
+				dispatcher = getDispatcher(rpcConnection);
+				ProtocolCommand protocolSpecs = new ProtocolCommand();
+
+				if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
+					ClientLineEnding.convertMap(inMap);
+				}
+
+				String name = cmdName.toLowerCase(Locale.ENGLISH);
+				ExternalEnv env = setupCmd(dispatcher, rpcConnection, protocolSpecs, name, cmdArgs, inMap, false, cmdCallBackKey, false);
+				cmdEnv = new CommandEnv(NioServerImpl.this, new RpcCmdSpec(name, cmdArgs, getAuthTicket(), inMap, null, env), rpcConnection, protocolSpecs, serverProtocolMap, progressCallback, cmdCallBackKey, writeInPlace(cmdName), isNonCheckedSyncs());
+				cmdEnv.setDontWriteTicket(isDontWriteTicket(name, cmdArgs));
+				cmdEnv.setFieldRule(getRpcPacketFieldRule(inMap, CmdSpec.getValidP4JCmdSpec(cmdName)));
+				dispatcher.startDispatch(cmdEnv);
+			} catch (Throwable thr) {
+				fail(thr);
+				return;
+			}
+			dispatch();
+		}
+
+		/**
+		 * Dispatch whatever whole packets have arrived, then wait for more.
+		 */
+		private void dispatch() {
+			try {
+				while (!future.isDone() && rpcConnection.isPacketBuffered()) {
+					if (!dispatcher.dispatchNext(cmdEnv)) {
+						finish();
+						return;
+					}
+				}
+			} catch (Throwable thr) {
+				fail(thr);
+				return;
+			}
+			if (future.isDone()) {
+				fail(new CancellationException());
+				return;
+			}
+			rpcConnection.awaitPacket().whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void result, Throwable thr) {
+					if (thr != null) {
+						fail(thr);
+					} else {
+						dispatch();
+					}
+				}
+			});
+		}
+
+		private void finish() {
+			List<Map<String, Object>> retMapList = cmdEnv.getResultMaps();
+			try {
+				long endTime = System.currentTimeMillis();
+
+				// As in execMapCmdList
+				if (caseSensitive && cmdEnv.getServerProtocolSpecsMap().containsKey(RpcFunctionMapKey.NOCASE)) {
+					caseSensitive = false;
+				}
+
+				if (commandCallback != null) {
+					processCmdCallbacks(cmdCallBackKey, endTime - startTime, retMapList);
+				}
+
+				RpcOutputStream outStream = (RpcOutputStream) cmdEnv.getStateMap().get(RpcServer.RPC_TMP_OUTFILE_STREAM_KEY);
+				if (outStream != null) {
+					outStream.close();
+				}
+
+				rpcConnection.disconnect(dispatcher);
+			} catch (Throwable thr) {
+				fail(thr);
+				return;
+			}
+			completeCommandSample(sample, rpcConnection, retMapList, false);
+			future.complete(retMapList);
+		}
+
+		private void fail(Throwable thr) {
+			Throwable cause = (thr instanceof CompletionException) && (thr.getCause() != null) ? thr.getCause() : thr;
+			if (cause instanceof BufferOverflowException) {
+				Log.error("RPC Buffer overflow: " + cause.getLocalizedMessage());
+				Log.exception(cause);
+				cause = new P4JavaError("RPC Buffer overflow: " + cause.getLocalizedMessage());
+			} else if (cause instanceof ConnectionNotConnectedException) {
+				connected = false;
+				status = ServerStatus.ERROR;
+			} else if (cause instanceof IOException) {
+				Log.error("RPC I/O error: " + cause.getLocalizedMessage());
+				Log.exception(cause);
+				cause = new RequestException("I/O error encountered in stream command: " + cause.getLocalizedMessage(), cause);
+			}
+			if (rpcConnection != null) {
+				try {
+					rpcConnection.disconnect(dispatcher);
+				} catch (Throwable exc) {
+					Log.exception(exc);
+				}
+			}
+			completeCommandSample(sample, rpcConnection, null, true);
+			future.completeExceptionally(cause);
+		}
+	}
+}
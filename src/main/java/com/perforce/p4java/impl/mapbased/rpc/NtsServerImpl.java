@@ -18,11 +18,14 @@ import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
 import com.perforce.p4java.impl.mapbased.rpc.stream.RpcStreamConnection;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcByteBufferOutput;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
+import com.perforce.p4java.impl.mapbased.server.AsyncCommandExecutors;
+import com.perforce.p4java.impl.mapbased.server.AsyncCommandExecutors.SerialExecutor;
 import com.perforce.p4java.impl.mapbased.server.ServerAddressBuilder;
 import com.perforce.p4java.impl.mapbased.server.cmd.ResultMapParser;
 import com.perforce.p4java.option.UsageOptions;
@@ -44,6 +47,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * NTS (non-thread-safe) version of the P4Java RPC implementation.
@@ -104,6 +109,8 @@ public class NtsServerImpl extends RpcServer {
 	protected RpcPacketDispatcher dispatcher = null;
 	protected RpcConnection rpcConnection = null;
 
+	private final AtomicReference<SerialExecutor> asyncSerialExecutor = new AtomicReference<>();
+
 	/**
 	 * Initialize the server. Basically defers to the superclass after setting
 	 * up the required server version.
@@ -118,6 +125,27 @@ public class NtsServerImpl extends RpcServer {
 		return status;
 	}
 
+	/**
+	 * This implementation can only run one command at a time, so async
+	 * commands are queued and run one after another on the async executor.
+	 *
+	 * @see com.perforce.p4java.impl.mapbased.server.Server#getAsyncCommandExecutor()
+	 */
+	@Override
+	protected Executor getAsyncCommandExecutor() {
+		Executor executor = getAsyncExecutor();
+		SerialExecutor serial = asyncSerialExecutor.get();
+		while (serial == null || serial.getDelegate() != executor) {
+			SerialExecutor newSerial = AsyncCommandExecutors.serial(executor);
+			if (asyncSerialExecutor.compareAndSet(serial, newSerial)) {
+				serial = newSerial;
+			} else {
+				serial = asyncSerialExecutor.get();
+			}
+		}
+		return serial;
+	}
+
 	/**
 	 * Shorthand for the options-based init() above, but with a fasle secure arg.
 	 *
@@ -259,6 +287,11 @@ public class NtsServerImpl extends RpcServer {
 		return this.execMapCmdList(cmdName, cmdArgs, null, null, true, null, 0, filterCallback, parallelCallback);
 	}
 
+	@Override
+	public List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap, IFilterCallback filterCallback, IParallelCallback parallelCallback) throws P4JavaException {
+		return this.execMapCmdList(cmdName, cmdArgs, inMap, null, false, null, 0, filterCallback, parallelCallback);
+	}
+
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.server.Server#execInputStringStreamingMapComd(java.lang.String, java.lang.String[], java.lang.String, com.perforce.p4java.server.callback.IStreamingCallback, int)
 	 * @deprecated As of release 2013.1, replaced by {@link #execInputStringStreamingMapCmd(java.lang.String, java.lang.String[], java.lang.String, com.perforce.p4java.server.callback.IStreamingCallback, int)}
@@ -288,10 +321,16 @@ public class NtsServerImpl extends RpcServer {
 	protected List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap, String inString, boolean ignoreCallbacks, IStreamingCallback callback, int callbackKey, IFilterCallback filterCallback, IParallelCallback parallelCallback) throws ConnectionException, AccessException, RequestException {
 
 		CommandEnv cmdEnv = null;
+		CommandSample sample = null;
+		List<Map<String, Object>> resultMaps = null;
 
 		try {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
+			sample = startCommandSample(cmdName);
+			if (this.rpcConnection != null) {
+				this.rpcConnection.setCommandSample(sample);
+			}
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
 				ClientLineEnding.convertMap(inMap);
 			}
@@ -311,7 +350,7 @@ public class NtsServerImpl extends RpcServer {
 					Log.exception(exc);
 				}
 			}
-			List<Map<String, Object>> resultMaps = this.dispatcher.dispatch(cmdEnv);
+			resultMaps = this.dispatcher.dispatch(cmdEnv);
 			long endTime = System.currentTimeMillis();
 			if (callback != null) {
 				try {
@@ -355,6 +394,7 @@ public class NtsServerImpl extends RpcServer {
 			Log.exception(ioexc);
 			throw new RequestException("I/O error encountered in stream command: " + ioexc.getLocalizedMessage(), ioexc);
 		} finally {
+			completeCommandSample(sample, this.rpcConnection, resultMaps, resultMaps == null);
 			// Handle user cancelled command
 			if (cmdEnv != null && cmdEnv.isUserCanceled()) {
 				if (rpcConnection != null) {
@@ -453,10 +493,16 @@ public class NtsServerImpl extends RpcServer {
 		}
 
 		CommandEnv cmdEnv = null;
+		CommandSample sample = null;
+		List<Map<String, Object>> resultMaps = null;
 
 		try {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
+			sample = startCommandSample(cmdName);
+			if (this.rpcConnection != null) {
+				this.rpcConnection.setCommandSample(sample);
+			}
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
 				ClientLineEnding.convertMap(inMap);
 			}
@@ -466,7 +512,7 @@ public class NtsServerImpl extends RpcServer {
 			cmdEnv.setFieldRule(getRpcPacketFieldRule(inMap, CmdSpec.getValidP4JCmdSpec(cmdName)));
 			cmdEnv.setStreamCmd(true);
 
-			List<Map<String, Object>> resultMaps = this.dispatcher.dispatch(cmdEnv);
+			resultMaps = this.dispatcher.dispatch(cmdEnv);
 
 			long endTime = System.currentTimeMillis();
 
@@ -504,6 +550,7 @@ public class NtsServerImpl extends RpcServer {
 			Log.exception(ioexc);
 			throw new RequestException("I/O error encountered in stream command: " + ioexc.getLocalizedMessage(), ioexc);
 		} finally {
+			completeCommandSample(sample, this.rpcConnection, resultMaps, resultMaps == null);
 			// Handle user cancelled command
 			if (cmdEnv != null && cmdEnv.isUserCanceled()) {
 				if (rpcConnection != null) {
@@ -545,10 +592,16 @@ public class NtsServerImpl extends RpcServer {
 		}
 
 		CommandEnv cmdEnv = null;
+		CommandSample sample = null;
+		List<Map<String, Object>> resultMaps = null;
 
 		try {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
+			sample = startCommandSample(cmdName);
+			if (this.rpcConnection != null) {
+				this.rpcConnection.setCommandSample(sample);
+			}
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
 				ClientLineEnding.convertMap(inMap);
 			}
@@ -560,6 +613,7 @@ public class NtsServerImpl extends RpcServer {
 			cmdEnv.setBufferOutput(true);
 
 			List<Map<String, Object>> retMapList = dispatcher.dispatch(cmdEnv);
+			resultMaps = retMapList;
 
 			long endTime = System.currentTimeMillis();
 
@@ -591,6 +645,7 @@ public class NtsServerImpl extends RpcServer {
 			this.status = ServerStatus.ERROR;
 			throw cnce;
 		} finally {
+			completeCommandSample(sample, this.rpcConnection, resultMaps, resultMaps == null);
 			// Handle user cancelled command
 			if (cmdEnv != null && cmdEnv.isUserCanceled()) {
 				if (rpcConnection != null) {
@@ -15,9 +15,11 @@ import com.perforce.p4java.exception.RequestException;
 import com.perforce.p4java.impl.generic.client.ClientLineEnding;
 import com.perforce.p4java.impl.generic.core.TempFileInputStream;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnectionSession;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
 import com.perforce.p4java.impl.mapbased.rpc.stream.RpcSocketPool;
@@ -46,6 +48,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A one-shot (connection-per-command) version of the RPC protocol
@@ -234,6 +237,11 @@ public class OneShotServerImpl extends RpcServer {
 		return this.execMapCmdList(cmdName, cmdArgs, null, null, true, null, 0, filterCallback, parallelCallback);
 	}
 
+	@Override
+	public List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap, IFilterCallback filterCallback, IParallelCallback parallelCallback) throws P4JavaException {
+		return this.execMapCmdList(cmdName, cmdArgs, inMap, null, false, null, 0, filterCallback, parallelCallback);
+	}
+
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.server.Server#execInputStringStreamingMapComd(java.lang.String, java.lang.String[], java.lang.String, com.perforce.p4java.server.callback.IStreamingCallback, int)
 	 * @deprecated As of release 2013.1, replaced by {@link #execInputStringStreamingMapCmd(java.lang.String, java.lang.String[], java.lang.String, com.perforce.p4java.server.callback.IStreamingCallback, int)}
@@ -264,6 +272,8 @@ public class OneShotServerImpl extends RpcServer {
 	protected List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap, String inString, boolean ignoreCallbacks, IStreamingCallback callback, int callbackKey, IFilterCallback filterCallback, IParallelCallback parallelCallback) throws ConnectionException, AccessException, RequestException {
 		RpcPacketDispatcher dispatcher = null;
 		RpcConnection rpcConnection = null;
+		CommandSample sample = null;
+		List<Map<String, Object>> retMapList = null;
 
 		if (cmdName == null) {
 			throw new NullPointerError("Null command name passed to execMapCmd");
@@ -276,8 +286,9 @@ public class OneShotServerImpl extends RpcServer {
 		try {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
-			dispatcher = new RpcPacketDispatcher(props, this);
-			rpcConnection = new RpcStreamConnection(serverHost, serverPort, props, this.serverStats, this.p4Charset, null, this.socketPool, this.secure, this.rsh);
+			sample = startCommandSample(cmdName);
+			rpcConnection = createRpcConnection(sample);
+			dispatcher = getDispatcher(rpcConnection);
 			ProtocolCommand protocolSpecs = new ProtocolCommand();
 
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
@@ -300,7 +311,7 @@ public class OneShotServerImpl extends RpcServer {
 					Log.exception(exc);
 				}
 			}
-			List<Map<String, Object>> retMapList = dispatcher.dispatch(cmdEnv);
+			retMapList = dispatcher.dispatch(cmdEnv);
 			long endTime = System.currentTimeMillis();
 			if (callback != null) {
 				try {
@@ -347,6 +358,7 @@ public class OneShotServerImpl extends RpcServer {
 			if (rpcConnection != null) {
 				rpcConnection.disconnect(dispatcher);
 			}
+			completeCommandSample(sample, rpcConnection, retMapList, retMapList == null);
 		}
 	}
 
@@ -427,6 +439,8 @@ public class OneShotServerImpl extends RpcServer {
 	protected InputStream execStreamCmd(String cmdName, String[] cmdArgs, Map<String, Object> inMap, String inString, boolean ignoreCallbacks) throws ConnectionException, RequestException, AccessException {
 		RpcPacketDispatcher dispatcher = null;
 		RpcConnection rpcConnection = null;
+		CommandSample sample = null;
+		List<Map<String, Object>> retMapList = null;
 		if (cmdName == null) {
 			throw new NullPointerError("Null command name passed to execStreamCmd");
 		}
@@ -438,8 +452,9 @@ public class OneShotServerImpl extends RpcServer {
 		try {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
-			dispatcher = new RpcPacketDispatcher(props, this);
-			rpcConnection = new RpcStreamConnection(serverHost, serverPort, props, this.serverStats, this.p4Charset, null, this.socketPool, this.secure, this.rsh);
+			sample = startCommandSample(cmdName);
+			rpcConnection = createRpcConnection(sample);
+			dispatcher = getDispatcher(rpcConnection);
 			ProtocolCommand protocolSpecs = new ProtocolCommand();
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
 				ClientLineEnding.convertMap(inMap);
@@ -450,21 +465,31 @@ public class OneShotServerImpl extends RpcServer {
 			cmdEnv.setFieldRule(getRpcPacketFieldRule(inMap, CmdSpec.getValidP4JCmdSpec(cmdName)));
 			cmdEnv.setStreamCmd(true);
 
-			List<Map<String, Object>> retMapList = dispatcher.dispatch(cmdEnv);
-
-			long endTime = System.currentTimeMillis();
-
-			if (!ignoreCallbacks && (this.commandCallback != null)) {
-				this.processCmdCallbacks(cmdCallBackKey, endTime - startTime, retMapList);
-			}
-
-			if ((retMapList != null) && (retMapList.size() != 0)) {
-				for (Map<String, Object> map : retMapList) {
-					ResultMapParser.handleErrorStr(map);
-					ResultMapParser.handleWarningStr(map);
+			if (RpcPropertyDefs.getPropertyAsBoolean(this.props, RpcPropertyDefs.RPC_DIRECT_STREAM_CMDS_NICK, RpcPropertyDefs.RPC_DEFAULT_DIRECT_STREAM_CMDS)) {
+				RpcStreamCmdInputStream.CompletionHandler handler = newStreamCmdCompletionHandler(cmdCallBackKey, startTime, ignoreCallbacks, sample);
+				RpcStreamCmdInputStream inStream = new RpcStreamCmdInputStream(dispatcher, cmdEnv, handler);
+				dispatcher.startDispatch(cmdEnv);
+				// From here on the stream owns (and eventually disconnects) the
+				// connection, and the handler completes the command sample
+				rpcConnection = null;
+				sample = null;
+				boolean awaited = false;
+				try {
+					boolean hasOutput = inStream.awaitOutput();
+					awaited = true;
+					return hasOutput ? inStream : null;
+				} finally {
+					if (!awaited) {
+						// A no-op if the command got as far as completing
+						handler.commandAborted(true);
+					}
 				}
 			}
 
+			retMapList = dispatcher.dispatch(cmdEnv);
+
+			newStreamCmdCompletionHandler(cmdCallBackKey, startTime, ignoreCallbacks, null).commandCompleted(retMapList);
+
 			RpcOutputStream outStream = (RpcOutputStream) cmdEnv.getStateMap().get(RpcServer.RPC_TMP_OUTFILE_STREAM_KEY);
 
 			if (outStream != null) {
@@ -491,9 +516,47 @@ public class OneShotServerImpl extends RpcServer {
 			if (rpcConnection != null) {
 				rpcConnection.disconnect(dispatcher);
 			}
+			completeCommandSample(sample, rpcConnection, retMapList, retMapList == null);
 		}
 	}
 
+	/**
+	 * Return the handler for the end of a stream command: completes the
+	 * (possibly-null) command sample, once, however the command ends; and if
+	 * it ends normally, runs any command callbacks and throws the first error
+	 * or warning in the results.
+	 */
+	private RpcStreamCmdInputStream.CompletionHandler newStreamCmdCompletionHandler(final int cmdCallBackKey, final long startTime, final boolean ignoreCallbacks, final CommandSample sample) {
+		return new RpcStreamCmdInputStream.CompletionHandler() {
+			private final AtomicBoolean sampled = new AtomicBoolean(false);
+
+			public void commandAborted(boolean failed) {
+				if (sampled.compareAndSet(false, true)) {
+					completeCommandSample(sample, null, null, failed);
+				}
+			}
+
+			public void commandCompleted(List<Map<String, Object>> retMapList) throws ConnectionException, RequestException, AccessException {
+				long endTime = System.currentTimeMillis();
+
+				if (sampled.compareAndSet(false, true)) {
+					completeCommandSample(sample, null, retMapList, retMapList == null);
+				}
+
+				if (!ignoreCallbacks && (OneShotServerImpl.this.commandCallback != null)) {
+					OneShotServerImpl.this.processCmdCallbacks(cmdCallBackKey, endTime - startTime, retMapList);
+				}
+
+				if ((retMapList != null) && (retMapList.size() != 0)) {
+					for (Map<String, Object> map : retMapList) {
+						ResultMapParser.handleErrorStr(map);
+						ResultMapParser.handleWarningStr(map);
+					}
+				}
+			}
+		};
+	}
+
 	/**
 	 * Note that this method does the access / request exception processing here rather
 	 * than passing things up the stack; we may introduce an extended version of this
@@ -512,6 +575,8 @@ public class OneShotServerImpl extends RpcServer {
 	protected ByteBuffer execStreamCmdForBuffer(String cmdName, String[] cmdArgs, Map<String, Object> inMap, String inString, boolean ignoreCallbacks) throws ConnectionException, RequestException, AccessException {
 	  	RpcPacketDispatcher dispatcher = null;
 		RpcConnection rpcConnection = null;
+		CommandSample sample = null;
+		List<Map<String, Object>> retMapList = null;
 		if (cmdName == null) {
 			throw new NullPointerError("Null command name passed to execStreamCmdForBuffer");
 		}
@@ -523,8 +588,9 @@ public class OneShotServerImpl extends RpcServer {
 		try {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
-			dispatcher = new RpcPacketDispatcher(props, this);
-			rpcConnection = new RpcStreamConnection(serverHost, serverPort, props, this.serverStats, this.p4Charset, null, this.socketPool, this.secure, this.rsh);
+			sample = startCommandSample(cmdName);
+			rpcConnection = createRpcConnection(sample);
+			dispatcher = getDispatcher(rpcConnection);
 			ProtocolCommand protocolSpecs = new ProtocolCommand();
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
 				ClientLineEnding.convertMap(inMap);
@@ -536,7 +602,7 @@ public class OneShotServerImpl extends RpcServer {
 			cmdEnv.setStreamCmd(true);
 			cmdEnv.setBufferOutput(true);
 
-			List<Map<String, Object>> retMapList = dispatcher.dispatch(cmdEnv);
+			retMapList = dispatcher.dispatch(cmdEnv);
 
 			long endTime = System.currentTimeMillis();
 
@@ -571,7 +637,60 @@ public class OneShotServerImpl extends RpcServer {
 			if (rpcConnection != null) {
 				rpcConnection.disconnect(dispatcher);
 			}
+			completeCommandSample(sample, rpcConnection, retMapList, retMapList == null);
+		}
+	}
+
+	/**
+	 * Create the RPC connection used to run a single command. The default
+	 * implementation uses a socket-stream connection, taken from the socket
+	 * pool if one is configured; subclasses may supply an alternative
+	 * transport.
+	 *
+	 * @return non-null connected RPC connection
+	 * @throws ConnectionException on error
+	 */
+	protected RpcConnection createRpcConnection() throws ConnectionException {
+		return new RpcStreamConnection(serverHost, serverPort, props, this.serverStats, this.p4Charset, null, this.socketPool, this.secure, this.rsh);
+	}
+
+	/**
+	 * Create a command's RPC connection with createRpcConnection(), timing
+	 * it as the connect phase of the passed-in command sample, and attach
+	 * the sample to the new connection.
+	 *
+	 * @param sample possibly-null command sample
+	 * @return non-null connected RPC connection
+	 * @throws ConnectionException on error
+	 */
+	private RpcConnection createRpcConnection(CommandSample sample) throws ConnectionException {
+		RpcConnection rpcConnection = createRpcConnection();
+		if (sample != null) {
+			sample.connected();
+			rpcConnection.setCommandSample(sample);
 		}
+		return rpcConnection;
+	}
+
+	/**
+	 * Get the packet dispatcher for a command on the passed-in connection:
+	 * the one shared by commands on the connection's pooled socket if the
+	 * socket pool is in session mode, otherwise a new one.
+	 *
+	 * @param rpcConnection non-null RPC connection
+	 * @return non-null dispatcher
+	 */
+	protected RpcPacketDispatcher getDispatcher(RpcConnection rpcConnection) {
+		RpcConnectionSession session = rpcConnection.getSession();
+		if (session == null) {
+			return new RpcPacketDispatcher(props, this);
+		}
+		RpcPacketDispatcher dispatcher = session.getDispatcher();
+		if (dispatcher == null) {
+			dispatcher = new RpcPacketDispatcher(props, this);
+			session.setDispatcher(dispatcher);
+		}
+		return dispatcher;
 	}
 
 	/**
@@ -647,7 +766,15 @@ public class OneShotServerImpl extends RpcServer {
 			protocolSpecs.setIpAddr(props.getProperty(RpcFunctionMapKey.IPADDR));
 		}
 
-		protPacket = RpcPacket.constructRpcPacket(RpcFunctionSpec.PROTOCOL_PROTOCOL, protocolSpecs.asMap(), null);
+		// With a socket pool session, the server already has the protocol
+		// settings from an earlier command on this socket unless they've
+		// changed since (e.g. the tag mode); as with the NTS implementation,
+		// don't send them again.
+		Map<String, Object> protocolMap = protocolSpecs.asMap();
+		RpcConnectionSession session = rpcConnection.getSession();
+		if ((session == null) || session.startCommand(protocolMap)) {
+			protPacket = RpcPacket.constructRpcPacket(RpcFunctionSpec.PROTOCOL_PROTOCOL, protocolMap, null);
+		}
 
 		RpcFunctionSpec name = RpcFunctionSpec.decodeFromEndUserCmd(cmdName, this.isRelaxCmdNameValidationChecks());
 
@@ -172,6 +172,311 @@ public class RpcPropertyDefs {
 	 */
 	public static final int RPC_SOCKET_POOL_DEFAULT_SIZE = 0;
 
+	/**
+	 * If this property is set to a positive value, a socket pool (see
+	 * RPC_SOCKET_POOL_SIZE_NICK) never has more than this many sockets open,
+	 * idle and in use together; callers beyond that wait for a socket to be
+	 * released.
+	 */
+	public static final String RPC_SOCKET_POOL_MAX_TOTAL_NICK = "socketPoolMaxTotal";
+
+	/**
+	 * Default maximum number of open sockets per pool; unbounded.
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_MAX_TOTAL = 0;
+
+	/**
+	 * Number of idle sockets a socket pool keeps open however long they've
+	 * been idle.
+	 */
+	public static final String RPC_SOCKET_POOL_MIN_IDLE_NICK = "socketPoolMinIdle";
+
+	/**
+	 * Default minimum number of idle sockets per pool.
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_MIN_IDLE = 0;
+
+	/**
+	 * Maximum time in milliseconds to wait for a socket from a pool that has
+	 * reached its maximum total; the connection attempt fails after that.
+	 */
+	public static final String RPC_SOCKET_POOL_MAX_WAIT_NICK = "socketPoolMaxWait";
+
+	/**
+	 * Default socket pool wait time -- 30 seconds.
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_MAX_WAIT = 30000;
+
+	/**
+	 * Time in milliseconds after which idle pooled sockets are closed; also
+	 * the interval between a pool's eviction runs. If not set, the
+	 * com.perforce.p4java.RPC_SOCKET_IDLE_TIME system property is used.
+	 */
+	public static final String RPC_SOCKET_POOL_IDLE_TIME_NICK = "socketPoolIdleTime";
+
+	/**
+	 * Default socket pool idle time -- 30 seconds.
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_IDLE_TIME = 30000;
+
+	/**
+	 * If this property is set to "false", a socket pool's eviction runs don't
+	 * check that idle sockets are still usable (e.g. not closed by the server).
+	 */
+	public static final String RPC_SOCKET_POOL_VALIDATE_IDLE_NICK = "socketPoolValidateIdle";
+
+	/**
+	 * Default idle socket validation mode; on.
+	 */
+	public static final boolean RPC_SOCKET_POOL_DEFAULT_VALIDATE_IDLE = true;
+
+	/**
+	 * If this property is set to "true", a socket pool keeps session state
+	 * with each of its sockets: commands after the first on a socket don't
+	 * resend the protocol settings unless they've changed, and share one
+	 * packet dispatcher. See RpcConnectionSession.
+	 */
+	public static final String RPC_SOCKET_POOL_SESSIONS_NICK = "socketPoolSessions";
+
+	/**
+	 * Default socket pool session mode; off.
+	 */
+	public static final boolean RPC_SOCKET_POOL_DEFAULT_SESSIONS = false;
+
+	/**
+	 * If this property is set, use the associated value as the number of
+	 * selector (I/O) threads shared by all NIO ("p4jrpcnio") connections
+	 * in this JVM. Only consulted when the shared reactor is first created.
+	 */
+	public static final String RPC_NIO_IO_THREADS_NICK = "nioIoThreads";
+
+	/**
+	 * Default number of NIO selector threads; a couple of selectors are
+	 * plenty for hundreds of concurrent connections.
+	 */
+	public static final int RPC_NIO_IO_THREADS_DEFAULT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+	/**
+	 * If this property is set to "true", incoming RPC packets are read into
+	 * pooled buffers and their field values are only decoded into strings or
+	 * byte arrays when a caller actually asks for them.
+	 */
+	public static final String RPC_LAZY_PACKET_FIELDS_NICK = "lazyPacketFields";
+
+	/**
+	 * Default lazy packet field decoding mode; off, i.e. fields are decoded
+	 * eagerly as they come off the wire.
+	 */
+	public static final boolean RPC_DEFAULT_LAZY_PACKET_FIELDS = false;
+
+	/**
+	 * If this property is set, use the associated value as the maximum number
+	 * of packet buffers retained per size class by the shared packet buffer
+	 * pool used in lazy packet field mode. Only consulted when the shared pool
+	 * is first created.
+	 */
+	public static final String RPC_PACKET_BUFFER_POOL_SIZE_NICK = "packetBufferPoolSize";
+
+	/**
+	 * Default number of packet buffers retained per size class.
+	 */
+	public static final int RPC_PACKET_BUFFER_POOL_DEFAULT_SIZE = 8;
+
+	/**
+	 * If this property is set to "true", execStreamCmd and friends (as used
+	 * by getFileContents, getChangelistDiffsStream, etc.) return a stream that
+	 * reads the command's output off the connection as it's consumed, rather
+	 * than spooling all of it to a temp file first. Such streams hold their
+	 * connection until they're read to the end or closed, so they must always
+	 * be closed.
+	 */
+	public static final String RPC_DIRECT_STREAM_CMDS_NICK = "directStreamCmds";
+
+	/**
+	 * Default direct stream command mode; off, i.e. output is spooled.
+	 */
+	public static final boolean RPC_DEFAULT_DIRECT_STREAM_CMDS = false;
+
+	/**
+	 * If this property is set to "true", gather per-command metrics (counts,
+	 * bytes, packets and phase latencies) for IOptionsServer.getCommandMetrics
+	 * and any registered metrics reporter.
+	 */
+	public static final String RPC_COMMAND_METRICS_NICK = "commandMetrics";
+
+	/**
+	 * Default per-command metrics mode; off.
+	 */
+	public static final boolean RPC_DEFAULT_COMMAND_METRICS = false;
+
+	/**
+	 * If this property is set to "true", the output of execStreamCmdForBuffer
+	 * and friends is collected in direct rather than heap buffers, and the
+	 * resulting buffer is direct too; it then has no accessible backing array.
+	 */
+	public static final String RPC_BUFFER_OUTPUT_DIRECT_NICK = "bufferOutputDirect";
+
+	/**
+	 * Default buffer output mode; heap buffers.
+	 */
+	public static final boolean RPC_DEFAULT_BUFFER_OUTPUT_DIRECT = false;
+
+	/**
+	 * If this property is set, use the associated value as the size in bytes
+	 * above which the output of execStreamCmdForBuffer and friends is spilled
+	 * to a temp file in the P4Java temp directory and returned as a read-only
+	 * memory-mapped buffer over that file. Zero or less never spills.
+	 */
+	public static final String RPC_BUFFER_OUTPUT_SPILL_THRESHOLD_NICK = "bufferOutputSpillThreshold";
+
+	/**
+	 * Default buffer output spill threshold; never spill.
+	 */
+	public static final int RPC_DEFAULT_BUFFER_OUTPUT_SPILL_THRESHOLD = 0;
+
+	/**
+	 * If this property is set, use the associated value as the number of
+	 * threads (shared JVM-wide) that write synced files to disk while the
+	 * command goes on reading the server's output. Zero or less writes each
+	 * file on the command's own thread as it's read. See ClientFileWritePipeline.
+	 */
+	public static final String RPC_SYNC_WRITER_THREADS_NICK = "syncWriterThreads";
+
+	/**
+	 * Default number of sync writer threads; none.
+	 */
+	public static final int RPC_DEFAULT_SYNC_WRITER_THREADS = 0;
+
+	/**
+	 * If this property is set, use the associated value as the maximum number
+	 * of bytes of synced file data a command may have read but not yet
+	 * written to disk when sync writer threads are used; reading stops until
+	 * the writers catch up.
+	 */
+	public static final String RPC_SYNC_WRITER_QUEUE_BYTES_NICK = "syncWriterQueueBytes";
+
+	/**
+	 * Default maximum sync writer queue size; 16MB.
+	 */
+	public static final int RPC_DEFAULT_SYNC_WRITER_QUEUE_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * If this property is set, use the associated value as the size in bytes
+	 * at or above which synced files that are written as-is (binary types
+	 * without client-side decompression) have their final length set before
+	 * any content is written, so the filesystem can allocate them in one go.
+	 * Zero or less never does so.
+	 */
+	public static final String RPC_SYNC_PREALLOCATE_SIZE_NICK = "syncPreallocateSize";
+
+	/**
+	 * Default sync preallocation size; never preallocate.
+	 */
+	public static final long RPC_DEFAULT_SYNC_PREALLOCATE_SIZE = 0;
+
+	/**
+	 * If this property is set, use the associated value as the size in bytes
+	 * of the DATA chunks files are sent to the server in (by add, edit,
+	 * submit, shelve, etc.). Zero or less sizes chunks to the connection's
+	 * socket send buffer, within RPC_DEFAULT_SEND_FILE_CHUNK_SIZE and
+	 * RPC_MAX_SEND_FILE_CHUNK_SIZE. See ClientSendFile.
+	 */
+	public static final String RPC_SEND_FILE_CHUNK_SIZE_NICK = "sendFileChunkSize";
+
+	/**
+	 * Smallest (and default) send file chunk size; 64KB.
+	 */
+	public static final int RPC_DEFAULT_SEND_FILE_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Largest send file chunk size; 1MB.
+	 */
+	public static final int RPC_MAX_SEND_FILE_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * If this property is set and equals "true", read files sent to the
+	 * server into a direct (off-heap) buffer. This saves a copy when the
+	 * NIO connection is used without compression, and costs one otherwise.
+	 */
+	public static final String RPC_SEND_FILE_DIRECT_BUFFERS_NICK = "sendFileDirectBuffers";
+
+	/**
+	 * Default for using direct buffers when sending files; false.
+	 */
+	public static final boolean RPC_DEFAULT_SEND_FILE_DIRECT_BUFFERS = false;
+
+	/**
+	 * If this property is set, use the associated value as the number of
+	 * threads (shared JVM-wide) that digest the files found by reconcile
+	 * and status when the server asks for their digests. Only consulted when
+	 * the shared pool is first created; one or less digests files one at a
+	 * time on the command's own thread. See FileDigester.
+	 */
+	public static final String RPC_DIGEST_THREADS_NICK = "digestThreads";
+
+	/**
+	 * Default number of digest threads; one per available processor.
+	 */
+	public static final int RPC_DEFAULT_DIGEST_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * If this property is set, use the associated value as the path of a
+	 * file that local file digests are cached in, keyed by path, size,
+	 * modification time and the way the file was digested. Files that
+	 * haven't changed since they were last digested aren't read again, in
+	 * this or any later run. No cache is kept if this isn't set. See
+	 * FileDigestCache.
+	 */
+	public static final String RPC_DIGEST_CACHE_FILE_NICK = "digestCacheFile";
+
+	/**
+	 * If this property is set, use the associated value as the number of
+	 * threads (shared JVM-wide) that scan the client's directories for
+	 * reconcile, add and clean. Only consulted when the shared pool is first
+	 * created; one or less scans on the command's own thread. Directory
+	 * scans are mostly spent waiting on the filesystem, so this may usefully
+	 * be larger than the number of processors, particularly on network
+	 * filesystems.
+	 */
+	public static final String RPC_SCAN_THREADS_NICK = "scanThreads";
+
+	/**
+	 * Default number of directory scan threads.
+	 */
+	public static final int RPC_DEFAULT_SCAN_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * If this property is set, use the associated value as the zlib
+	 * compression level (0 to 9, or -1 for zlib's default) for connection
+	 * compression. Lower levels trade compression ratio for client CPU time.
+	 */
+	public static final String RPC_COMPRESSION_LEVEL_NICK = "compressionLevel";
+
+	/**
+	 * Default connection compression level; zlib's default (currently 6).
+	 */
+	public static final int RPC_DEFAULT_COMPRESSION_LEVEL = -1;
+
+	/**
+	 * If this property is set, use the associated value as the zlib
+	 * compression strategy for connection compression: "default", "filtered"
+	 * or "huffman". Unrecognized values are treated as "default".
+	 */
+	public static final String RPC_COMPRESSION_STRATEGY_NICK = "compressionStrategy";
+
+	/**
+	 * Default connection compression strategy.
+	 */
+	public static final String RPC_DEFAULT_COMPRESSION_STRATEGY = "default";
+
+	/**
+	 * If this property is set and equals "true", stream-based connections
+	 * compress with the pure Java JZlib library rather than the JDK's native
+	 * zlib. Only meant as a fallback; the NIO connection always uses the
+	 * JDK's zlib.
+	 */
+	public static final String RPC_COMPRESSION_USE_JZLIB_NICK = "compressionUseJZlib";
+
 	/**
 	 * If this property is set and equals "false", do not trust all certificates.
 	 */
@@ -356,6 +661,37 @@ public class RpcPropertyDefs {
 		return retVal;
 	}
 
+	/**
+	 * Return a named property as a long, if possible. Defaults to defaultValue
+	 * if the property wasn't found under first its short form, then its long form,
+	 * or if the resulting attempt to convert to a long was unsuccessful.
+	 * <p>
+	 * Will log to P4JLog any conversion error as a warning.
+	 * <p>
+	 * Note: this method is null safe, i.e. if either or both props or nick is null,
+	 * it simply returns defaultValue.
+	 *
+	 * @param props        props
+	 * @param nick         nick
+	 * @param defaultValue defaultValue
+	 * @return value
+	 */
+	public static long getPropertyAsLong(Properties props, String nick, long defaultValue) {
+		String propStr = getProperty(props, nick, null);
+		long retVal = defaultValue;
+
+		if (propStr != null) {
+			try {
+				retVal = Long.parseLong(propStr.trim());
+			} catch (Exception exc) {
+				Log.warn("Long property conversion error; prop name: '" + nick + "'; prop value: " + propStr);
+				Log.exception(exc);
+			}
+		}
+
+		return retVal;
+	}
+
 	/**
 	 * Return a named property as an int array, if possible. The property value
 	 * is split into values by a specified delimiter (if null, a default delimiter
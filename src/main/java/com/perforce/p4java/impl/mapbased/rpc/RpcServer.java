@@ -13,7 +13,10 @@ import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
 import com.perforce.p4java.exception.TrustException;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientTrust;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
+import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.PerformanceMonitor;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
 import com.perforce.p4java.impl.mapbased.rpc.helper.RpcUserAuthCounter;
@@ -34,6 +37,8 @@ import com.perforce.p4java.server.IServerImplMetadata;
 import com.perforce.p4java.server.IServerInfo;
 import com.perforce.p4java.server.P4Charset;
 import com.perforce.p4java.server.ServerStatus;
+import com.perforce.p4java.server.metrics.ICommandMetrics;
+import com.perforce.p4java.server.metrics.IMetricsReporter;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.Validate;
 
@@ -97,6 +102,7 @@ import static com.perforce.p4java.server.CmdSpec.getValidP4JCmdSpec;
 import static com.perforce.p4java.util.PropertiesHelper.getPropertyAsInt;
 import static com.perforce.p4java.util.PropertiesHelper.getPropertyAsLong;
 import static com.perforce.p4java.util.PropertiesHelper.getPropertyByKeys;
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 import static org.apache.commons.lang3.StringUtils.EMPTY;
 import static org.apache.commons.lang3.StringUtils.contains;
@@ -224,6 +230,12 @@ public abstract class RpcServer extends Server {
 
     public static final String RPC_BYTE_BUFFER_OUTPUT_KEY = "";
 
+	/**
+	 * Used to key the output stream a direct (unspooled) execStreamCmd
+	 * command writes its output to in the command environment's state map.
+	 */
+	public static final String RPC_DIRECT_OUTPUT_STREAM_KEY = "RPC_DIRECT_OUTPUT_STREAM_KEY";
+
 	/**
 	 * Use to key converter to use out of state map
 	 */
@@ -322,6 +334,11 @@ public abstract class RpcServer extends Server {
 	 */
 	protected boolean relaxCmdNameValidationChecks = false;
 
+	/**
+	 * If true, gather per-command metrics; see RpcPropertyDefs.RPC_COMMAND_METRICS_NICK.
+	 */
+	protected boolean commandMetricsEnabled = RpcPropertyDefs.RPC_DEFAULT_COMMAND_METRICS;
+
 	private PerformanceMonitor perfMonitor = new PerformanceMonitor();
 
 	public String getApplicationName() {
@@ -827,6 +844,7 @@ public abstract class RpcServer extends Server {
 			cmdMapArgs = new HashMap<>();
 			cmdMapArgs.put(ProtocolCommand.RPC_ARGNAME_PROTOCOL_ZTAGS, EMPTY);
 			relaxCmdNameValidationChecks = getPropertyAsBoolean(properties, RPC_RELAX_CMD_NAME_CHECKS_NICK, false);
+			commandMetricsEnabled = getPropertyAsBoolean(properties, RpcPropertyDefs.RPC_COMMAND_METRICS_NICK, RpcPropertyDefs.RPC_DEFAULT_COMMAND_METRICS);
 			applicationName = RpcPropertyDefs.getProperty(properties, RPC_APPLICATION_NAME_NICK);
 			if (isNotBlank(getUsageOptions().getHostName())) {
 				localHostName = getUsageOptions().getHostName();
@@ -1300,6 +1318,70 @@ public abstract class RpcServer extends Server {
 		return ticketValue;
 	}
 
+	@Override
+	public Map<String, ICommandMetrics> getCommandMetrics() {
+		if (isNull(serverStats)) {
+			return Collections.emptyMap();
+		}
+		return serverStats.getCommandMetrics();
+	}
+
+	/**
+	 * Start measuring a command for the per-command metrics. The sample must
+	 * be set on the command's connection before the command is sent, and
+	 * passed to completeCommandSample once the command has finished.
+	 *
+	 * @param cmdName command name
+	 * @return new sample, or null if command metrics are disabled.
+	 */
+	protected CommandSample startCommandSample(final String cmdName) {
+		if (!commandMetricsEnabled || isNull(cmdName) || isNull(serverStats)) {
+			return null;
+		}
+		return new CommandSample(cmdName.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Finish measuring a command, add its measurements to the per-command
+	 * metrics, and pass them on to any registered metrics reporter. The
+	 * command counts as failed if it threw, or if any of its result maps
+	 * holds an error message.
+	 *
+	 * @param sample        possibly-null sample from startCommandSample
+	 * @param rpcConnection possibly-null connection the command ran on
+	 * @param resultMaps    possibly-null command results
+	 * @param failed        true if the command threw
+	 */
+	protected void completeCommandSample(final CommandSample sample, final RpcConnection rpcConnection, final List<Map<String, Object>> resultMaps, final boolean failed) {
+		if (isNull(sample)) {
+			return;
+		}
+		if (nonNull(rpcConnection) && (rpcConnection.getCommandSample() == sample)) {
+			rpcConnection.setCommandSample(null);
+		}
+		boolean error = failed;
+		if (!error && nonNull(resultMaps)) {
+			for (Map<String, Object> map : resultMaps) {
+				if (nonNull(map) && (RpcMessage.getSeverity((String) map.get(RpcFunctionMapKey.CODE + 0)) >= E_FAILED)) {
+					error = true;
+					break;
+				}
+			}
+		}
+		sample.finish(error);
+		serverStats.recordCommand(sample);
+
+		IMetricsReporter reporter = metricsReporter;
+		if (nonNull(reporter)) {
+			try {
+				reporter.commandCompleted(sample);
+			} catch (Throwable thr) {
+				Log.error("Unexpected exception in metrics reporter: " + thr.getLocalizedMessage());
+				Log.exception(thr);
+			}
+		}
+	}
+
 	protected void processCmdCallbacks(final int cmdCallBackKey, final long timeTaken, final List<Map<String, Object>> resultMaps) {
 
 		commandCallback.completedServerCommand(cmdCallBackKey, timeTaken);
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.AccessException;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Input stream over the output of a running stream command (p4 print, etc.),
+ * used for direct (unspooled) execStreamCmd results.
+ * <p>
+ * Rather than dispatching the whole command into a temp file up front, the
+ * command is dispatched a packet at a time as the caller reads: the output
+ * the client functions write for each packet is held here until it's been
+ * read, and the next packet is only read off the connection once it has.
+ * So memory use is bounded by a packet's worth of output, nothing goes to
+ * disk, and the server is held back by ordinary TCP / flow control
+ * backpressure while the caller isn't reading.
+ * <p>
+ * The stream owns the command's connection. When the command finishes the
+ * connection is shut down normally and the completion handler is run; any
+ * error it reports is thrown (wrapped in an IOException) once the output
+ * preceding it has been read. Closing the stream before the command has
+ * finished cancels the command and aborts the connection.
+ * <p>
+ * Not thread-safe, as with input streams in general.
+ */
+public class RpcStreamCmdInputStream extends InputStream {
+
+	/**
+	 * Called once the command's last packet has been dispatched, typically to
+	 * run command callbacks and to check the results for errors.
+	 */
+	public interface CompletionHandler {
+		void commandCompleted(List<Map<String, Object>> resultMaps) throws ConnectionException, RequestException, AccessException;
+
+		/**
+		 * Called instead of commandCompleted if the command ends early: when
+		 * dispatching it fails (failed is true), or when the stream is closed
+		 * before it has finished (failed is false).
+		 */
+		void commandAborted(boolean failed);
+	}
+
+	private final RpcPacketDispatcher dispatcher;
+	private final CommandEnv cmdEnv;
+	private final CompletionHandler completionHandler;
+
+	private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+	private byte[] current = null;
+	private int currentPos = 0;
+	private boolean outputWritten = false;
+	private boolean running = true;
+	private boolean closed = false;
+	private P4JavaException failure = null;
+
+	/**
+	 * Create a stream over the output of the command in the passed-in command
+	 * environment, and register it as the command's output; the command must
+	 * then be started with the dispatcher's startDispatch method.
+	 *
+	 * @param dispatcher        non-null dispatcher
+	 * @param cmdEnv            non-null command environment
+	 * @param completionHandler possibly-null completion handler
+	 */
+	public RpcStreamCmdInputStream(RpcPacketDispatcher dispatcher, CommandEnv cmdEnv, CompletionHandler completionHandler) {
+		this.dispatcher = dispatcher;
+		this.cmdEnv = cmdEnv;
+		this.completionHandler = completionHandler;
+		cmdEnv.getStateMap().put(RpcServer.RPC_DIRECT_OUTPUT_STREAM_KEY, new Output());
+	}
+
+	/**
+	 * Dispatch the command until it has produced some output or finished, so
+	 * errors reported before any output (no such file, etc.) are thrown here
+	 * just as the spooling execStreamCmd would throw them.
+	 *
+	 * @return true if the command produced any output; false if it finished
+	 * without doing so, in which case there's nothing to read.
+	 * @throws ConnectionException on error
+	 * @throws RequestException    on error
+	 * @throws AccessException     on error
+	 */
+	public boolean awaitOutput() throws ConnectionException, RequestException, AccessException {
+		while (!outputWritten && running) {
+			step();
+		}
+		if (!running && (failure != null)) {
+			if (failure instanceof RequestException) {
+				throw (RequestException) failure;
+			} else if (failure instanceof AccessException) {
+				throw (AccessException) failure;
+			}
+			throw (ConnectionException) failure;
+		}
+		return outputWritten;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if ((off < 0) || (len < 0) || (len > b.length - off)) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = 0;
+		while ((count < len) && (current != null)) {
+			int n = Math.min(len - count, current.length - currentPos);
+			System.arraycopy(current, currentPos, b, off + count, n);
+			count += n;
+			currentPos += n;
+			if (currentPos == current.length) {
+				current = chunks.poll();
+				currentPos = 0;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (closed || (current == null)) {
+			return 0;
+		}
+		int available = current.length - currentPos;
+		for (byte[] chunk : chunks) {
+			available += chunk.length;
+		}
+		return available;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			current = null;
+			chunks.clear();
+			if (running) {
+				running = false;
+				cmdEnv.setUserCanceled(true);
+				cmdEnv.getRpcConnection().abort();
+				aborted(false);
+			}
+		}
+	}
+
+	/**
+	 * Dispatch until there's something to read or the command has finished.
+	 *
+	 * @return true if there's something to read
+	 */
+	private boolean fill() throws IOException {
+		while ((current == null) && running) {
+			try {
+				step();
+			} catch (ConnectionException exc) {
+				throw new IOException("Error reading stream command output: " + exc.getLocalizedMessage(), exc);
+			}
+		}
+		if (current == null) {
+			if (failure != null) {
+				throw new IOException(failure.getLocalizedMessage(), failure);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private void step() throws ConnectionException {
+		boolean more;
+		try {
+			more = dispatcher.dispatchNext(cmdEnv);
+		} catch (ConnectionException | RuntimeException exc) {
+			running = false;
+			cmdEnv.getRpcConnection().abort();
+			aborted(true);
+			throw exc;
+		}
+		if (!more) {
+			running = false;
+			finish();
+		}
+	}
+
+	private void finish() {
+		RpcConnection rpcConnection = cmdEnv.getRpcConnection();
+		try {
+			if (cmdEnv.isUserCanceled()) {
+				rpcConnection.abort();
+			} else {
+				rpcConnection.disconnect(dispatcher);
+			}
+		} catch (ConnectionException exc) {
+			Log.exception(exc);
+		}
+		if (completionHandler != null) {
+			try {
+				completionHandler.commandCompleted(cmdEnv.getResultMaps());
+			} catch (ConnectionException | RequestException | AccessException exc) {
+				failure = exc;
+			}
+		}
+	}
+
+	private void aborted(boolean failed) {
+		if (completionHandler != null) {
+			completionHandler.commandAborted(failed);
+		}
+	}
+
+	/**
+	 * Where the client functions write the command's output.
+	 */
+	private class Output extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			outputWritten = true;
+			if (closed || (len <= 0)) {
+				return;
+			}
+			byte[] chunk = Arrays.copyOfRange(b, off, off + len);
+			if (current == null) {
+				current = chunk;
+				currentPos = 0;
+			} else {
+				chunks.add(chunk);
+			}
+		}
+	}
+}
@@ -3,9 +3,17 @@
  */
 package com.perforce.p4java.impl.mapbased.rpc;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandMetrics;
+import com.perforce.p4java.server.metrics.ICommandMetrics;
+import com.perforce.p4java.server.metrics.ICommandSample;
 
 /**
  * Simple class to centralize statistics gathering and reporting for
@@ -13,6 +21,10 @@ import com.perforce.p4java.Log;
  * thread-safe because we're using the Atomic series of classes,
  * but in any case the stats gathered here aren't intended to be
  * exact or precise....
+ * <p>
+ * Besides the global counters, per-command metrics (counts, errors,
+ * bytes, packets and phase latency histograms) are kept by command
+ * name; see recordCommand().
  */
 
 public class ServerStats {
@@ -36,6 +48,44 @@ public class ServerStats {
 	public AtomicLong sendBufSize = new AtomicLong();
 	public AtomicLong recvBufSize = new AtomicLong();
 	public AtomicLong incompleteReads = new AtomicLong();
+
+	private final ConcurrentMap<String, CommandMetrics> commandMetrics = new ConcurrentHashMap<String, CommandMetrics>();
+
+	/**
+	 * Add a completed command's measurements to the metrics for its command.
+	 *
+	 * @param sample non-null command sample
+	 */
+	public void recordCommand(ICommandSample sample) {
+		String cmdName = sample.getCommandName();
+		CommandMetrics metrics = this.commandMetrics.get(cmdName);
+		if (metrics == null) {
+			CommandMetrics newMetrics = new CommandMetrics(cmdName);
+			metrics = this.commandMetrics.putIfAbsent(cmdName, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+		metrics.record(sample);
+	}
+
+	/**
+	 * @param cmdName command name
+	 * @return the metrics for the named command, or null if it hasn't
+	 * completed since the stats were last cleared.
+	 */
+	public ICommandMetrics getCommandMetrics(String cmdName) {
+		return this.commandMetrics.get(cmdName);
+	}
+
+	/**
+	 * @return non-null unmodifiable map of command name to the live metrics
+	 * for each command completed since the stats were last cleared, sorted
+	 * by command name.
+	 */
+	public Map<String, ICommandMetrics> getCommandMetrics() {
+		return Collections.unmodifiableMap(new TreeMap<String, ICommandMetrics>(this.commandMetrics));
+	}
 	
 	public void clear() {
 		this.serverConnections.set(0);
@@ -54,6 +104,7 @@ public class ServerStats {
 		this.sendBufSize.set(0);
 		this.recvBufSize.set(0);
 		this.incompleteReads.set(0);
+		this.commandMetrics.clear();
 	}
 	
 	public void logStats() {
@@ -72,5 +123,8 @@ public class ServerStats {
 				+ "; largest socket recv (bytes): " + this.largestRecv);
 		Log.stats("RPC put buffer resizes: " + this.bufferCompacts);
 		Log.stats("RPC read buffer incomplete reads: " + this.incompleteReads);
+		for (ICommandMetrics metrics : getCommandMetrics().values()) {
+			Log.stats("command " + metrics);
+		}
 	}
 }
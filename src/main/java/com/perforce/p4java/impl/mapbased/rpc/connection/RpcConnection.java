@@ -9,14 +9,19 @@ import com.perforce.p4java.PropertyDefs;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.NullPointerError;
 import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.impl.mapbased.rpc.ExternalEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
-import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.FileDigester;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketBufferPool;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceDigestType;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFileType;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcZlibPool;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SymbolicLinkHelper;
 import com.perforce.p4java.server.P4Charset;
 import com.perforce.p4java.server.callback.IFilterCallback;
@@ -36,6 +41,7 @@ import java.util.Map;
 import java.util.Properties;
 
 import static org.apache.commons.lang3.ObjectUtils.firstNonNull;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 /**
  * Main abstract class for sending and receiving packets (etc.) to and from the
@@ -100,10 +106,17 @@ public abstract class RpcConnection {
 	protected static final int UNKNOWN_SERVER_PORT = -1;
 
 	protected Properties props = null;
+	private FileDigester fileDigester = null;
 	protected RpcConnectionFlowControl flowController = new RpcConnectionFlowControl();
 
 	protected ServerStats stats = null;
 
+	/**
+	 * Measurements for the command currently using this connection, if any;
+	 * updated by the subclasses as packets are sent and received.
+	 */
+	protected CommandSample commandSample = null;
+
 	protected P4Charset p4Charset = null;
 
 	protected String hostIp = UNKNOWN_SERVER_HOST;
@@ -115,6 +128,12 @@ public abstract class RpcConnection {
 
 	protected boolean unicodeServer = false;
 
+	/**
+	 * Non-null IFF incoming packets are to be read into pooled buffers and
+	 * decoded lazily (see RpcPropertyDefs.RPC_LAZY_PACKET_FIELDS_NICK).
+	 */
+	protected RpcPacketBufferPool packetBufferPool = null;
+
 	protected boolean secure = false;
 	protected String fingerprint = null;
 	protected boolean trusted = false;
@@ -191,6 +210,9 @@ public abstract class RpcConnection {
 		this.props = firstNonNull(props, new Properties());
 		this.stats.serverConnections.incrementAndGet();
 		this.unicodeServer = P4Charset.isUnicodeServer(p4Charset); // Note: NOT this.p4Charset.getCharset()....
+		if (RpcPropertyDefs.getPropertyAsBoolean(this.props, RpcPropertyDefs.RPC_LAZY_PACKET_FIELDS_NICK, RpcPropertyDefs.RPC_DEFAULT_LAZY_PACKET_FIELDS)) {
+			this.packetBufferPool = RpcPacketBufferPool.getDefault(this.props);
+		}
 	}
 
 	/**
@@ -220,6 +242,14 @@ public abstract class RpcConnection {
 	 */
 	public abstract void disconnect(RpcPacketDispatcher dispatcher) throws ConnectionException;
 
+	/**
+	 * Close this connection abruptly, without the normal shutdown exchange.
+	 * Used when a command is abandoned part-way through, so the connection is
+	 * not quiescent and must never be reused (in particular it's not returned
+	 * to any socket pool). Errors are logged rather than thrown.
+	 */
+	public abstract void abort();
+
 	/**
 	 * Put a Perforce RPC packet onto the output stream. The implementing method
 	 * must make the appropriate charset translations and any other client- or
@@ -269,6 +299,17 @@ public abstract class RpcConnection {
 	 */
 	public abstract RpcPacket getRpcPacket(RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) throws ConnectionException;
 
+	/**
+	 * Return true if the server has already sent something that can be read
+	 * from this connection, so that reading the next packet won't wait on the
+	 * server. A false return is always safe; this implementation never knows.
+	 *
+	 * @return true if input is known to be available
+	 */
+	public boolean isInputAvailable() {
+		return false;
+	}
+
 	/**
 	 * Return the system (i.e. underlying implementation) send buffer size.
 	 *
@@ -341,6 +382,69 @@ public abstract class RpcConnection {
 		return retBytes;
 	}
 
+	/**
+	 * Marshal a complete outgoing packet's fields onto the passed-in send
+	 * buffer in the fixed order the server expects (named args, string args,
+	 * environment, function name), ready for the preamble to be filled in.
+	 *
+	 * @param packet  non-null outgoing packet
+	 * @param sendBuf non-null send buffer, reset by the caller
+	 */
+	protected void marshalPacket(RpcPacket packet, RpcPacketSendBuffer sendBuf) {
+		Map<String, Object> mapArgs = packet.getMapArgs();
+		if (mapArgs != null) {
+			for (Map.Entry<String, Object> entry : mapArgs.entrySet()) {
+				marshalPacketField(entry.getKey(), entry.getValue(), sendBuf);
+			}
+		}
+		String[] strArgs = packet.getStrArgs();
+		if (strArgs != null) {
+			for (String arg : strArgs) {
+				if (isNotBlank(arg)) {
+					marshalPacketField(null, arg, sendBuf);
+				}
+			}
+		}
+		ExternalEnv externalEnv = packet.getEnv();
+		if (externalEnv != null) {
+			sendBuf.put(externalEnv.marshal());
+		}
+		marshalPacketField(RpcFunctionMapKey.FUNCTION, packet.getFuncNameString(), sendBuf);
+	}
+
+	/**
+	 * Marshal a packet field straight onto the passed-in send buffer; the
+	 * wire format is the same as for marshalPacketField(key, value), but
+	 * without the intermediate field byte array. Large byte array and
+	 * ByteBuffer values are referenced rather than copied (see
+	 * RpcPacketSendBuffer); a ByteBuffer value's remaining bytes are sent.
+	 *
+	 * @param key     possibly-null key
+	 * @param value   possibly-null value
+	 * @param sendBuf non-null send buffer
+	 */
+	protected void marshalPacketField(String key, Object value, RpcPacketSendBuffer sendBuf) {
+		if (key != null) {
+			sendBuf.put(getNormalizedBytes(key));
+		}
+		sendBuf.put((byte) 0);
+
+		if ((value instanceof byte[]) && (((byte[]) value).length >= RpcPacketSendBuffer.DIRECT_VALUE_THRESHOLD)) {
+			sendBuf.putInt4(((byte[]) value).length);
+			sendBuf.putDirect((byte[]) value);
+		} else if ((value instanceof ByteBuffer) && (((ByteBuffer) value).remaining() >= RpcPacketSendBuffer.DIRECT_VALUE_THRESHOLD)) {
+			sendBuf.putInt4(((ByteBuffer) value).remaining());
+			sendBuf.putDirect((ByteBuffer) value);
+		} else {
+			byte[] valBytes = marshalPacketValue(value);
+			sendBuf.putInt4(valBytes == null ? 0 : valBytes.length);
+			if (valBytes != null) {
+				sendBuf.put(valBytes);
+			}
+		}
+		sendBuf.put((byte) 0);
+	}
+
 	/**
 	 * Marshal a packet field value onto a byte array and return that array.
 	 * <p>
@@ -402,6 +506,29 @@ public abstract class RpcConnection {
 		}
 	}
 
+	/**
+	 * @return the zlib compression level to use for connection compression,
+	 * as given by the compressionLevel property.
+	 */
+	protected int getCompressionLevel() {
+		int level = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_COMPRESSION_LEVEL_NICK, RpcPropertyDefs.RPC_DEFAULT_COMPRESSION_LEVEL);
+		if ((level < -1) || (level > 9)) {
+			Log.warn("Ignoring out of range connection compression level " + level);
+			level = RpcPropertyDefs.RPC_DEFAULT_COMPRESSION_LEVEL;
+		}
+		return level;
+	}
+
+	/**
+	 * @return the zlib compression strategy to use for connection
+	 * compression, as given by the compressionStrategy property.
+	 */
+	protected int getCompressionStrategy() {
+		return RpcZlibPool.getStrategy(RpcPropertyDefs.getProperty(this.props,
+				RpcPropertyDefs.RPC_COMPRESSION_STRATEGY_NICK, RpcPropertyDefs.RPC_DEFAULT_COMPRESSION_STRATEGY));
+	}
+
 	/**
 	 * Encode the passed-in string properly for the server. If the server is
 	 * Unicode-enabled, this usually means converting to UTF-8 encoding for the
@@ -499,6 +626,32 @@ public abstract class RpcConnection {
 		this.stats = stats;
 	}
 
+	public CommandSample getCommandSample() {
+		return this.commandSample;
+	}
+
+	public void setCommandSample(CommandSample commandSample) {
+		this.commandSample = commandSample;
+	}
+
+	/**
+	 * Return System.nanoTime() if a command sample is being taken, or zero if
+	 * not, so timings for the sample cost nothing when metrics are off.
+	 */
+	public long sampleNanoTime() {
+		return (this.commandSample != null) ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Get the session state kept with this connection's underlying socket
+	 * between commands, if any. The default implementation has none.
+	 *
+	 * @return possibly-null session
+	 */
+	public RpcConnectionSession getSession() {
+		return null;
+	}
+
 	public String getHostIp() {
 		return this.hostIp;
 	}
@@ -607,8 +760,6 @@ public abstract class RpcConnection {
 
 	public String getDigest(RpcPerforceFileType fileType, File file, RpcPerforceDigestType digest) {
 
-		MD5Digester digester = new MD5Digester();
-
 		if (digest == null) {
 			digest = RpcPerforceDigestType.MD5;
 		}
@@ -642,11 +793,22 @@ public abstract class RpcConnection {
 		// charset. A null digestCharset specified will cause the
 		// file to be read as raw byte stream directly off disk.
 		//TODO: Digester might be SHA* variant
-		String digestStr = digester.digestFileAs32ByteHex(file, digestCharset, convertLineEndings);
+		String digestStr = getFileDigester().digest(file, fileType, digestCharset, convertLineEndings);
 
 		return digestStr;
 	}
 
+	/**
+	 * @return the digester (and with it any digest cache) used for this
+	 * connection's local file digests.
+	 */
+	public FileDigester getFileDigester() {
+		if (fileDigester == null) {
+			fileDigester = new FileDigester(props);
+		}
+		return fileDigester;
+	}
+
 	private String getSymlinkMD5Digest(File file) {
 		String targetPath = SymbolicLinkHelper.readSymbolicLink(file.getAbsolutePath());
 		String md5 = DigestUtils.md5Hex(targetPath + "\n").toUpperCase();
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.connection;
+
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable send buffer for marshaling outgoing RPC packets.
+ * <p>
+ * Each connection keeps one of these and reuses it for every packet it
+ * sends, so in the steady state marshaling a packet allocates nothing. The
+ * buffer starts with room reserved for the preamble, grows geometrically
+ * (doubling) when a packet doesn't fit, and drops back to its initial size
+ * after a packet bigger than MAX_RETAINED_SIZE so one huge packet doesn't pin
+ * memory for the life of the connection.
+ * <p>
+ * Large byte array and ByteBuffer values (at least DIRECT_VALUE_THRESHOLD
+ * bytes -- in practice file content in DATA fields) are not copied into the
+ * buffer at all; the buffer just remembers where they go, and they're written
+ * in place between the surrounding buffer segments, either as a single
+ * gathering channel write or, on streams, a write of their own straight from
+ * their backing array, with the segments around them coalesced. Such values
+ * must therefore not be changed until the packet has been sent. Direct
+ * ByteBuffer values only avoid a copy on channel writes; stream writes have
+ * to go through a heap array.
+ * <p>
+ * Not thread-safe; a connection only ever sends one packet at a time.
+ */
+public class RpcPacketSendBuffer {
+
+	/**
+	 * Byte array values of at least this many bytes are referenced rather
+	 * than copied into the send buffer.
+	 */
+	public static final int DIRECT_VALUE_THRESHOLD = 8192;
+
+	/**
+	 * Buffers that have grown beyond this size are discarded once the packet
+	 * that needed them has been sent.
+	 */
+	public static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+	private final int initialSize;
+	private final ServerStats stats;
+	private byte[] bytes;
+	private int pos;
+
+	/**
+	 * Size of the heap array packets are coalesced in when written to a
+	 * stream.
+	 */
+	private static final int STAGING_SIZE = 64 * 1024;
+
+	private ByteBuffer[] directValues = new ByteBuffer[4];
+	private int[] directMarks = new int[4];
+	private int directCount = 0;
+	private int directLength = 0;
+	private byte[] staging = null;
+	private int staged = 0;
+
+	/**
+	 * Create a send buffer with the given initial size.
+	 *
+	 * @param initialSize initial buffer size in bytes; must be bigger than
+	 *                    the preamble size
+	 * @param stats       possibly-null stats; buffer growth is counted in
+	 *                    its bufferCompacts counter, as before
+	 */
+	public RpcPacketSendBuffer(int initialSize, ServerStats stats) {
+		this.initialSize = Math.max(initialSize, RpcPacketPreamble.RPC_PREAMBLE_SIZE + 1);
+		this.stats = stats;
+		this.bytes = new byte[this.initialSize];
+		reset();
+	}
+
+	/**
+	 * Start a new packet, leaving room for its preamble.
+	 */
+	public void reset() {
+		if (bytes.length > MAX_RETAINED_SIZE) {
+			bytes = new byte[initialSize];
+		}
+		Arrays.fill(directValues, 0, directCount, null);
+		pos = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
+		directCount = 0;
+		directLength = 0;
+	}
+
+	public void put(byte b) {
+		ensureCapacity(1);
+		bytes[pos++] = b;
+	}
+
+	public void put(byte[] src) {
+		put(src, 0, src.length);
+	}
+
+	public void put(byte[] src, int offset, int len) {
+		ensureCapacity(len);
+		System.arraycopy(src, offset, bytes, pos, len);
+		pos += len;
+	}
+
+	/**
+	 * Append a four byte Perforce-encoded integer (see RpcPacket.encodeInt4).
+	 *
+	 * @param i value to append
+	 */
+	public void putInt4(int i) {
+		ensureCapacity(4);
+		bytes[pos++] = (byte) i;
+		bytes[pos++] = (byte) (i >>> 8);
+		bytes[pos++] = (byte) (i >>> 16);
+		bytes[pos++] = (byte) (i >>> 24);
+	}
+
+	/**
+	 * Append a value by reference; it will be written in place when the
+	 * packet is sent.
+	 *
+	 * @param value non-null value; must not be changed until the packet is sent
+	 */
+	public void putDirect(byte[] value) {
+		putDirect(ByteBuffer.wrap(value));
+	}
+
+	/**
+	 * Append a buffer's remaining bytes by reference; they will be written in
+	 * place when the packet is sent. The buffer's position and limit are left
+	 * alone.
+	 *
+	 * @param value non-null value; must not be changed until the packet is sent
+	 */
+	public void putDirect(ByteBuffer value) {
+		if (directCount == directMarks.length) {
+			directMarks = Arrays.copyOf(directMarks, directCount * 2);
+			directValues = Arrays.copyOf(directValues, directCount * 2);
+		}
+		directMarks[directCount] = pos;
+		directValues[directCount] = value;
+		directCount++;
+		directLength += value.remaining();
+	}
+
+	/**
+	 * @return total packet length so far, preamble included.
+	 */
+	public int getPacketLength() {
+		return pos + directLength;
+	}
+
+	/**
+	 * Fill in the preamble now that the packet's payload length is known.
+	 * Must be called after the last put and before the packet is written.
+	 */
+	public void finishPacket() {
+		byte[] preambleBytes = RpcPacketPreamble.constructPreamble(getPacketLength() - RpcPacketPreamble.RPC_PREAMBLE_SIZE).marshalAsBytes();
+		System.arraycopy(preambleBytes, 0, bytes, 0, preambleBytes.length);
+	}
+
+	/**
+	 * Write the finished packet to the passed-in stream without flushing it.
+	 * <p>
+	 * Array-backed values are written straight from their arrays, never
+	 * copied. The stream is usually the socket's own, unbuffered, so the
+	 * buffer segments between them (field names, lengths and small values)
+	 * are coalesced in a staging array rather than written one by one, and
+	 * go out together just before the next value.
+	 *
+	 * @param out non-null output stream
+	 * @return number of write calls made
+	 * @throws IOException on error
+	 */
+	public int writeTo(OutputStream out) throws IOException {
+		if (directCount == 0) {
+			out.write(bytes, 0, pos);
+			return 1;
+		}
+		if (staging == null) {
+			staging = new byte[STAGING_SIZE];
+		}
+		int writes = 0;
+		int start = 0;
+		for (int i = 0; i < directCount; i++) {
+			writes += stage(bytes, start, directMarks[i] - start, out);
+			ByteBuffer value = directValues[i];
+			if (value.hasArray()) {
+				writes += flushStaging(out);
+				out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+				writes++;
+			} else {
+				writes += stage(value.duplicate(), out);
+			}
+			start = directMarks[i];
+		}
+		writes += stage(bytes, start, pos - start, out);
+		writes += flushStaging(out);
+		return writes;
+	}
+
+	/**
+	 * Return the finished packet as a sequence of buffers suitable for a
+	 * gathering write; no bytes are copied.
+	 *
+	 * @return non-null, non-empty array of buffers
+	 */
+	public ByteBuffer[] toByteBuffers() {
+		ByteBuffer[] buffers = new ByteBuffer[directCount * 2 + 1];
+		int count = 0;
+		int start = 0;
+		for (int i = 0; i < directCount; i++) {
+			buffers[count++] = ByteBuffer.wrap(bytes, start, directMarks[i] - start);
+			buffers[count++] = directValues[i].duplicate();
+			start = directMarks[i];
+		}
+		buffers[count] = ByteBuffer.wrap(bytes, start, pos - start);
+		return buffers;
+	}
+
+	private int stage(byte[] src, int offset, int len, OutputStream out) throws IOException {
+		int writes = 0;
+		while (len > 0) {
+			if ((staged == 0) && (len > staging.length)) {
+				int direct = len - staging.length / 2;
+				out.write(src, offset, direct);
+				writes++;
+				offset += direct;
+				len -= direct;
+				continue;
+			}
+			int n = Math.min(len, staging.length - staged);
+			System.arraycopy(src, offset, staging, staged, n);
+			staged += n;
+			offset += n;
+			len -= n;
+			writes += flushStagingIfFull(out);
+		}
+		return writes;
+	}
+
+	private int stage(ByteBuffer source, OutputStream out) throws IOException {
+		int writes = 0;
+		while (source.hasRemaining()) {
+			int n = Math.min(source.remaining(), staging.length - staged);
+			source.get(staging, staged, n);
+			staged += n;
+			writes += flushStagingIfFull(out);
+		}
+		return writes;
+	}
+
+	private int flushStagingIfFull(OutputStream out) throws IOException {
+		if (staged < staging.length) {
+			return 0;
+		}
+		return flushStaging(out);
+	}
+
+	private int flushStaging(OutputStream out) throws IOException {
+		if (staged == 0) {
+			return 0;
+		}
+		out.write(staging, 0, staged);
+		staged = 0;
+		return 1;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (bytes.length - pos < needed) {
+			if (stats != null) {
+				stats.bufferCompacts.getAndIncrement(); // overloaded meaning, as before
+			}
+			int newLength = Math.max(bytes.length * 2, pos + needed);
+			bytes = Arrays.copyOf(bytes, newLength);
+		}
+	}
+}
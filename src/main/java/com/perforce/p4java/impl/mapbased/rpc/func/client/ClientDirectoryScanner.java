@@ -0,0 +1,247 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.mapapi.MapTable;
+import com.perforce.p4java.mapapi.MapTableT;
+import com.perforce.p4java.mapapi.MapWrap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a directory tree for reconcile / add / clean (the non-summary case
+ * of ClientSystemFileMatchCommands.reconcileAdd).
+ * <p>
+ * Each directory is listed with a DirectoryStream and each entry's
+ * attributes read once, without following links; only symlinks cost a
+ * second stat, to see whether they point at a directory. Subdirectories are
+ * scanned as separate tasks on a shared work-stealing pool, which is what
+ * matters on network filesystems where each stat is a round trip. Each
+ * task's results are merged in directory order, so the files (and the
+ * ignored paths, whose messages the caller reports afterwards on its own
+ * thread) come out in the same order as a serial depth-first scan.
+ * <p>
+ * The client map and ignore checks are applied to each entry as it's
+ * found; both must be safe for concurrent use when more than one thread is
+ * used.
+ */
+class ClientDirectoryScanner {
+
+	/**
+	 * Decides whether a file or directory is ignored.
+	 */
+	interface IgnoreFilter {
+		boolean isIgnored(File file);
+	}
+
+	/**
+	 * The files found by a scan, with their sizes, and the paths ignored
+	 * along the way.
+	 */
+	static class Result {
+		final List<String> files = new ArrayList<String>();
+		final List<Long> sizes = new ArrayList<Long>();
+		final List<String> ignored = new ArrayList<String>();
+
+		void add(Result other) {
+			files.addAll(other.files);
+			sizes.addAll(other.sizes);
+			ignored.addAll(other.ignored);
+		}
+	}
+
+	private static volatile ForkJoinPool pool = null;
+
+	private final int threads;
+	private final boolean traverse;
+	private final MapTable map;
+	private final IgnoreFilter ignoreFilter;
+	private final List<String> skipFiles;
+
+	/**
+	 * @param threads      number of threads to scan with (shared JVM-wide;
+	 *                     only the first scanner's count is used); one or
+	 *                     less scans on the caller's thread
+	 * @param traverse     whether to descend into subdirectories
+	 * @param map          non-null client map files must be in
+	 * @param ignoreFilter possibly-null ignore check; null ignores nothing
+	 * @param skipFiles    possibly-null sorted list of paths already known
+	 *                     to the server, which are skipped without a stat
+	 */
+	ClientDirectoryScanner(int threads, boolean traverse, MapTable map, IgnoreFilter ignoreFilter, List<String> skipFiles) {
+		this.threads = threads;
+		this.traverse = traverse;
+		this.map = map;
+		this.ignoreFilter = ignoreFilter;
+		this.skipFiles = skipFiles;
+	}
+
+	/**
+	 * Scan a directory. The directory itself is assumed to have already been
+	 * checked against the ignore files.
+	 *
+	 * @param dir      non-null directory
+	 * @param hasIndex starting index into the skip files
+	 * @return non-null scan result
+	 */
+	Result scan(File dir, int hasIndex) {
+		Path path = dir.getAbsoluteFile().toPath();
+		if (threads <= 1) {
+			return new ScanTask(path, hasIndex, true, false).compute();
+		}
+		// Build the map's lookup tree before the workers share it
+		map.translate(MapTableT.LHS, path.toString());
+		return getPool(threads).invoke(new ScanTask(path, hasIndex, true, true));
+	}
+
+	/**
+	 * Return a file's attributes without following links, or null if it
+	 * doesn't exist (any more) or can't be read.
+	 */
+	static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException exc) {
+			return null;
+		}
+	}
+
+	private boolean isMapped(String path) {
+		// TODO: protocol case mode
+		MapWrap mw = map.translate(MapTableT.LHS, path);
+		return (mw != null) && (mw.getTo() != null);
+	}
+
+	private boolean isIgnored(Path path) {
+		return (ignoreFilter != null) && ignoreFilter.isIgnored(path.toFile());
+	}
+
+	private class ScanTask extends RecursiveTask<Result> {
+		private final Path dir;
+		private final int hasIndex;
+		private final boolean top;
+		private final boolean parallel;
+
+		ScanTask(Path dir, int hasIndex, boolean top, boolean parallel) {
+			this.dir = dir;
+			this.hasIndex = hasIndex;
+			this.top = top;
+			this.parallel = parallel;
+		}
+
+		@Override
+		protected Result compute() {
+			Result result = new Result();
+
+			// Directory might be ignored, bail
+			if (!top && isIgnored(dir)) {
+				result.ignored.add(dir.toString());
+				return result;
+			}
+
+			// Entries are kept in order, with subdirectory tasks standing
+			// in for their results until they're joined.
+			List<Object> entries = new ArrayList<Object>();
+			int index = hasIndex;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path path : stream) {
+					String fileName = path.toString();
+
+					// Do compare with array list (skip files if possible)
+					int cmp = -1;
+					while (skipFiles != null && index < skipFiles.size()) {
+						cmp = fileName.compareTo(skipFiles.get(index));
+						if (cmp < 0) break;
+						index++;
+						if (cmp == 0) break;
+					}
+
+					// Don't stat if we matched a file from the edit list
+					if (cmp == 0) continue;
+
+					BasicFileAttributes attrs = readAttributes(path);
+					boolean symlink = (attrs != null) && attrs.isSymbolicLink();
+					boolean isDir = (attrs != null) && (attrs.isDirectory() || (symlink && Files.isDirectory(path)));
+					long size = (attrs == null) ? 0 : attrs.size();
+
+					if (isDir && !symlink) {
+						if (traverse) {
+							ScanTask task = new ScanTask(path, index, false, parallel);
+							if (parallel) {
+								task.fork();
+								entries.add(task);
+							} else {
+								entries.add(task.compute());
+							}
+						}
+						continue;
+					}
+
+					// Files, and symlinks (to directories or not) are sent
+					// back as files
+					if (!isMapped(isDir ? fileName + "/" : fileName)) {
+						continue;
+					}
+					Result entry = new Result();
+					if (isIgnored(path)) {
+						entry.ignored.add(fileName);
+					} else {
+						entry.files.add(fileName);
+						entry.sizes.add(size);
+					}
+					entries.add(entry);
+				}
+			} catch (IOException exc) {
+				Log.error("Unable to scan directory " + dir + ": " + exc.getLocalizedMessage());
+			}
+
+			for (Object entry : entries) {
+				if (entry instanceof ScanTask) {
+					result.add(((ScanTask) entry).join());
+				} else {
+					result.add((Result) entry);
+				}
+			}
+			return result;
+		}
+	}
+
+	private static ForkJoinPool getPool(int threads) {
+		ForkJoinPool forkJoinPool = pool;
+		if (forkJoinPool == null) {
+			synchronized (ClientDirectoryScanner.class) {
+				forkJoinPool = pool;
+				if (forkJoinPool == null) {
+					forkJoinPool = new ForkJoinPool(threads, new ScanThreadFactory(), null, false);
+					pool = forkJoinPool;
+				}
+			}
+		}
+		return forkJoinPool;
+	}
+
+	private static class ScanThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("P4Java Directory Scan " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv.RpcHandler;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.handles.ClientFile;
+import com.perforce.p4java.impl.mapbased.server.AsyncCommandExecutors;
+import com.perforce.p4java.impl.mapbased.server.AsyncCommandExecutors.SerialExecutor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a command's synced files to disk on a shared pool of writer threads,
+ * so the command can go on reading the server's output while earlier files
+ * are still being written, closed, digest-checked and renamed into place.
+ * Used only when the RPC_SYNC_WRITER_THREADS_NICK property is positive.
+ * <p>
+ * Each file's writes and its close run in order on a serial queue of its
+ * own, and different files' queues run side by side, so a slow file holds
+ * up neither reading nor the files after it. The file data read but not yet
+ * written is bounded by RPC_SYNC_WRITER_QUEUE_BYTES_NICK; the command's
+ * thread blocks in writeFile (and so stops reading) while it's exceeded.
+ * <p>
+ * A file's close runs against a detached copy of its handler, as the
+ * command's handler is reused by the next file opened. Results and progress
+ * reported by the writers are queued and handed to the command environment
+ * on the command's own thread. The server's acknowledgement of a closed file
+ * (client-Ack) is answered once the file is done, with that file's error
+ * state and sync time, and before any other reply that might depend on the
+ * workspace; everything still outstanding is finished before the command
+ * blocks waiting on the server with an acknowledgement unanswered, and when
+ * the command ends.
+ * <p>
+ * Apart from the writer tasks themselves, a pipeline is used only by the
+ * command's dispatch thread and needs no synchronization of its own.
+ */
+public class ClientFileWritePipeline {
+
+	/**
+	 * Key of a command's pipeline in the command environment's state map.
+	 */
+	public static final String STATE_MAP_KEY = "ClientFileWritePipeline";
+
+	/**
+	 * How long idle writer threads are kept, in seconds.
+	 */
+	public static final int IDLE_THREAD_TIMEOUT_SECS = 60;
+
+	private static volatile Executor defaultWriters = null;
+
+	/**
+	 * Where a file's results go: the command environment when the file is
+	 * written on the command's thread, or the pipeline's result queue when
+	 * it's written here.
+	 */
+	interface ResultSink {
+		void handleResult(Map<String, Object> resultMap);
+
+		void setSyncTime(long syncTime);
+	}
+
+	/**
+	 * A client-Ack reply waiting on a closed file.
+	 */
+	interface DeferredAck {
+		void send(boolean error, long syncTime) throws ConnectionException;
+	}
+
+	/**
+	 * A file being written on the pipeline.
+	 */
+	class FileWriter implements ResultSink {
+		private final RpcHandler handler;
+		private final ClientFile cfile;
+		private final String path;
+		private final long fileSize;
+		private final SerialExecutor serial;
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private long currentSize = 0;
+		private volatile long syncTime = 0;
+		private boolean completed = false;
+
+		FileWriter(RpcHandler handler, long fileSize) {
+			this.handler = handler;
+			this.cfile = new ClientFile(handler);
+			// The open's results map may still be backed by its packet's
+			// buffer; the close reads a copy on the writer thread.
+			Map<String, Object> args = new HashMap<String, Object>(cfile.getArgs());
+			cfile.setArgs(args);
+			this.path = (String) args.get(RpcFunctionMapKey.PATH);
+			this.fileSize = fileSize;
+			this.serial = AsyncCommandExecutors.serial(writers);
+		}
+
+		ClientFile getClientFile() {
+			return this.cfile;
+		}
+
+		String getPath() {
+			return this.path;
+		}
+
+		public void handleResult(Map<String, Object> resultMap) {
+			results.add(resultMap);
+		}
+
+		public void setSyncTime(long syncTime) {
+			this.syncTime = syncTime;
+		}
+
+		/**
+		 * Report bytes written for the progress indicator; writer thread only.
+		 */
+		void written(long bytesWritten) {
+			if (enableProgress && (fileSize > 0) && (bytesWritten > 0)) {
+				currentSize += bytesWritten;
+				Map<String, Object> dataSizeMap = new HashMap<String, Object>();
+				dataSizeMap.put("path", path);
+				dataSizeMap.put("fileSize", fileSize);
+				dataSizeMap.put("currentSize", currentSize);
+				results.add(dataSizeMap);
+			}
+		}
+	}
+
+	private static class PendingAck {
+		final FileWriter writer;
+		final DeferredAck ack;
+
+		PendingAck(FileWriter writer, DeferredAck ack) {
+			this.writer = writer;
+			this.ack = ack;
+		}
+	}
+
+	private final CommandEnv cmdEnv;
+	private final Executor writers;
+	private final int maxQueueBytes;
+	private final Semaphore queueBytes;
+	private final boolean enableProgress;
+	private final ConcurrentLinkedQueue<Map<String, Object>> results = new ConcurrentLinkedQueue<Map<String, Object>>();
+	private final Map<String, FileWriter> openFiles = new HashMap<String, FileWriter>();
+	private final Map<String, FileWriter> lastClosed = new HashMap<String, FileWriter>();
+	private final ArrayDeque<FileWriter> closing = new ArrayDeque<FileWriter>();
+	private final ArrayDeque<PendingAck> acks = new ArrayDeque<PendingAck>();
+
+	/**
+	 * Return a sink that hands results straight to the passed-in command
+	 * environment, for files written on the command's own thread.
+	 *
+	 * @param cmdEnv non-null command environment
+	 * @return non-null sink
+	 */
+	static ResultSink sinkFor(final CommandEnv cmdEnv) {
+		return new ResultSink() {
+			public void handleResult(Map<String, Object> resultMap) {
+				cmdEnv.handleResult(resultMap);
+			}
+
+			public void setSyncTime(long syncTime) {
+				cmdEnv.setSyncTime(syncTime);
+			}
+		};
+	}
+
+	/**
+	 * Return the passed-in command's pipeline, if it has one.
+	 *
+	 * @param cmdEnv non-null command environment
+	 * @return possibly-null pipeline
+	 */
+	public static ClientFileWritePipeline get(CommandEnv cmdEnv) {
+		Map<String, Object> stateMap = cmdEnv.getStateMap();
+		return stateMap == null ? null : (ClientFileWritePipeline) stateMap.get(STATE_MAP_KEY);
+	}
+
+	/**
+	 * Return the passed-in command's pipeline, creating it if need be.
+	 *
+	 * @param threads       number of writer threads, used only if the shared
+	 *                      writers haven't been created yet
+	 * @param maxQueueBytes maximum file data bytes read but not yet written
+	 * @return possibly-null pipeline; null if the command has no state map.
+	 */
+	static ClientFileWritePipeline start(CommandEnv cmdEnv, int threads, int maxQueueBytes) {
+		ClientFileWritePipeline pipeline = get(cmdEnv);
+		if ((pipeline == null) && (cmdEnv.getStateMap() != null)) {
+			pipeline = new ClientFileWritePipeline(cmdEnv, getWriters(threads), maxQueueBytes);
+			cmdEnv.getStateMap().put(STATE_MAP_KEY, pipeline);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Finish everything still outstanding on the passed-in command's
+	 * pipeline (if any) and detach it from the command; called once the
+	 * command's dispatch has ended, normally or otherwise. Acknowledgements
+	 * not yet answered are dropped, and files opened but never closed are
+	 * closed and their temp files deleted.
+	 *
+	 * @param cmdEnv non-null command environment
+	 */
+	public static void finish(CommandEnv cmdEnv) {
+		ClientFileWritePipeline pipeline = get(cmdEnv);
+		if (pipeline != null) {
+			cmdEnv.getStateMap().remove(STATE_MAP_KEY);
+			pipeline.finish();
+		}
+	}
+
+	private ClientFileWritePipeline(CommandEnv cmdEnv, Executor writers, int maxQueueBytes) {
+		this.cmdEnv = cmdEnv;
+		this.writers = writers;
+		this.maxQueueBytes = Math.max(1, maxQueueBytes);
+		this.queueBytes = new Semaphore(this.maxQueueBytes);
+		this.enableProgress = (cmdEnv.getProtocolSpecs() != null) && cmdEnv.getProtocolSpecs().isEnableProgress();
+	}
+
+	/**
+	 * Note that a file is about to be opened on the passed-in handle. Any
+	 * earlier file with the same path is finished first.
+	 */
+	void opening(String handle, String path) throws ConnectionException {
+		this.lastClosed.remove(handle);
+		FileWriter abandoned = this.openFiles.remove(handle);
+		if (abandoned != null) {
+			abandon(abandoned);
+		}
+		poll();
+		if (path != null) {
+			FileWriter last = null;
+			for (FileWriter writer : this.closing) {
+				if (path.equals(writer.getPath())) {
+					last = writer;
+				}
+			}
+			if (last != null) {
+				while (!last.completed) {
+					complete(this.closing.peekFirst());
+				}
+				sendAcks();
+			}
+		}
+	}
+
+	/**
+	 * Hand the file just opened on the passed-in handler over to the
+	 * pipeline; its writes and close then go through submit() and close().
+	 *
+	 * @param handler  non-null handler the file was opened on
+	 * @param fileSize file size, for the progress indicator
+	 * @return non-null writer for the file
+	 */
+	FileWriter open(RpcHandler handler, long fileSize) {
+		RpcHandler detached = cmdEnv.new RpcHandler(handler.getName(), handler.isError(), handler.getFile());
+		detached.setType(handler.getType());
+		detached.getMap().putAll(handler.getMap());
+		FileWriter writer = new FileWriter(detached, fileSize);
+		FileWriter abandoned = this.openFiles.put(handler.getName(), writer);
+		if (abandoned != null) {
+			abandon(abandoned);
+		}
+		return writer;
+	}
+
+	/**
+	 * @return the file open on the pipeline on the passed-in handle, or null.
+	 */
+	FileWriter getOpenFile(String handle) {
+		return this.openFiles.get(handle);
+	}
+
+	/**
+	 * Queue a write of the passed-in number of data bytes to the passed-in
+	 * file, blocking while the queue's full.
+	 */
+	void submit(final FileWriter writer, int bytes, final Runnable task) {
+		final int permits = Math.max(0, Math.min(bytes, this.maxQueueBytes));
+		this.queueBytes.acquireUninterruptibly(permits);
+		try {
+			writer.serial.execute(new Runnable() {
+				public void run() {
+					try {
+						if (!writer.handler.isError()) {
+							task.run();
+						}
+					} catch (Throwable thr) {
+						writer.handler.setError(true);
+						Log.error("Unexpected exception writing file " + writer.getPath() + ": " + thr.getLocalizedMessage());
+						Log.exception(thr);
+					} finally {
+						queueBytes.release(permits);
+					}
+				}
+			});
+		} catch (RuntimeException exc) {
+			this.queueBytes.release(permits);
+			throw exc;
+		}
+	}
+
+	/**
+	 * Queue the close of the passed-in file after its writes.
+	 */
+	void close(final FileWriter writer, final Runnable task) {
+		String handle = writer.handler.getName();
+		if (this.openFiles.get(handle) == writer) {
+			this.openFiles.remove(handle);
+		}
+		this.lastClosed.put(handle, writer);
+		this.closing.add(writer);
+		execute(writer, task);
+	}
+
+	/**
+	 * Answer a client-Ack for the passed-in handle once the file last closed
+	 * on it is done, if that file was written on the pipeline. Otherwise
+	 * finish everything outstanding and return false, in which case the
+	 * caller answers it as usual.
+	 *
+	 * @return true if the ack will be (or has been) answered here
+	 */
+	boolean deferAck(String handle, DeferredAck ack) throws ConnectionException {
+		FileWriter writer = (handle == null) ? null : this.lastClosed.get(handle);
+		if (writer == null) {
+			awaitAll();
+			return false;
+		}
+		// Acks are answered in the order they came in
+		this.acks.add(new PendingAck(writer, ack));
+		poll();
+		return true;
+	}
+
+	/**
+	 * Hand over the results of whatever's finished so far, and answer the
+	 * acknowledgements waiting on it; doesn't block.
+	 *
+	 * @throws ConnectionException if an acknowledgement couldn't be sent
+	 */
+	public void poll() throws ConnectionException {
+		FileWriter writer;
+		while (((writer = this.closing.peekFirst()) != null) && (writer.closed.getCount() == 0)) {
+			complete(writer);
+		}
+		drainResults();
+		sendAcks();
+	}
+
+	/**
+	 * Called before the command blocks reading from the server: if an
+	 * acknowledgement is waiting on an unfinished file and the server hasn't
+	 * already sent more, the server may be waiting on it, so finish
+	 * everything outstanding first.
+	 *
+	 * @param rpcConnection non-null command connection
+	 * @throws ConnectionException if an acknowledgement couldn't be sent
+	 */
+	public void beforeRead(RpcConnection rpcConnection) throws ConnectionException {
+		poll();
+		if (!this.acks.isEmpty() && !rpcConnection.isInputAvailable()) {
+			awaitAll();
+		}
+	}
+
+	/**
+	 * Finish every file closed so far, handing over its results and
+	 * answering the acknowledgements waiting on it.
+	 *
+	 * @throws ConnectionException if an acknowledgement couldn't be sent
+	 */
+	public void awaitAll() throws ConnectionException {
+		FileWriter writer;
+		while ((writer = this.closing.peekFirst()) != null) {
+			complete(writer);
+		}
+		drainResults();
+		sendAcks();
+	}
+
+	private void finish() {
+		for (FileWriter writer : this.openFiles.values()) {
+			abandon(writer);
+		}
+		this.openFiles.clear();
+		this.lastClosed.clear();
+		this.acks.clear();
+		FileWriter writer;
+		while ((writer = this.closing.peekFirst()) != null) {
+			complete(writer);
+		}
+		drainResults();
+	}
+
+	/**
+	 * Wait for the passed-in file (the head of the closing queue) to be done,
+	 * then hand over its results.
+	 */
+	private void complete(FileWriter writer) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				writer.closed.await();
+				break;
+			} catch (InterruptedException exc) {
+				// The file must be finished whatever happens; put the
+				// interrupt back once it is.
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		this.closing.pollFirst();
+		writer.completed = true;
+		drainResults();
+	}
+
+	/**
+	 * Answer the acks at the head of the queue whose files are done.
+	 */
+	private void sendAcks() throws ConnectionException {
+		PendingAck pending;
+		while (((pending = this.acks.peekFirst()) != null) && pending.writer.completed) {
+			this.acks.pollFirst();
+			pending.ack.send(pending.writer.handler.isError(), pending.writer.syncTime);
+		}
+	}
+
+	/**
+	 * Close a file that was opened but will never be closed by the server,
+	 * deleting any temp file, as part of the closing queue.
+	 */
+	private void abandon(final FileWriter writer) {
+		this.closing.add(writer);
+		execute(writer, new Runnable() {
+			public void run() {
+				ClientFile cfile = writer.getClientFile();
+				try {
+					if (cfile.getTmpStream() != null) {
+						cfile.getTmpStream().close();
+					}
+					if (cfile.getStream() != null) {
+						cfile.getStream().close();
+					}
+				} catch (IOException ioexc) {
+					Log.warn("file close error in ClientFileWritePipeline: " + ioexc.getLocalizedMessage());
+				}
+				if ((cfile.getTmpFile() != null) && cfile.getTmpFile().exists() && !cfile.getTmpFile().delete()) {
+					Log.warn("Unable to delete tmp file '" + cfile.getTmpFile().getPath() + "' in ClientFileWritePipeline");
+				}
+			}
+		});
+	}
+
+	private void execute(final FileWriter writer, final Runnable task) {
+		try {
+			writer.serial.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} catch (Throwable thr) {
+						writer.handler.setError(true);
+						Log.error("Unexpected exception closing file " + writer.getPath() + ": " + thr.getLocalizedMessage());
+						Log.exception(thr);
+					} finally {
+						writer.closed.countDown();
+					}
+				}
+			});
+		} catch (RuntimeException exc) {
+			writer.handler.setError(true);
+			writer.closed.countDown();
+			throw exc;
+		}
+	}
+
+	private void drainResults() {
+		Map<String, Object> resultMap;
+		while ((resultMap = this.results.poll()) != null) {
+			this.cmdEnv.handleResult(resultMap);
+		}
+	}
+
+	private static Executor getWriters(int threads) {
+		Executor executor = defaultWriters;
+		if (executor == null) {
+			synchronized (ClientFileWritePipeline.class) {
+				executor = defaultWriters;
+				if (executor == null) {
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(), new WriterThreadFactory());
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+					defaultWriters = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private static class WriterThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setName("P4Java Sync Writer " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -18,12 +18,13 @@ import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher.RpcPacketDispatcherMode;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher.RpcPacketDispatcherResult;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcByteBufferOutput;
-import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
 import com.perforce.p4java.impl.mapbased.server.cmd.ResultMapParser;
 import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.callback.IProgressCallback;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumSet;
 import java.util.Map;
 import java.util.Properties;
 
@@ -39,6 +40,23 @@ public class ClientFunctionDispatcher {
 
 	public static final String TRACE_PREFIX = "ClientFunctionDispatcher";
 
+	/**
+	 * Functions that can be dispatched while files are still being written
+	 * on the sync writer pipeline; anything else waits for them first, as it
+	 * may depend on (or change) what they write.
+	 */
+	private static final EnumSet<RpcFunctionSpec> SYNC_WRITER_PIPELINED_FUNCS = EnumSet.of(
+			RpcFunctionSpec.CLIENT_OPENFILE,
+			RpcFunctionSpec.CLIENT_WRITEFILE,
+			RpcFunctionSpec.CLIENT_CLOSEFILE,
+			RpcFunctionSpec.CLIENT_ACK,
+			RpcFunctionSpec.CLIENT_MESSAGE,
+			RpcFunctionSpec.CLIENT_PROGRESS,
+			RpcFunctionSpec.CLIENT_FSTATINFO,
+			RpcFunctionSpec.CLIENT_FSTATPARTIAL,
+			RpcFunctionSpec.CLIENT_OUTPUTINFO,
+			RpcFunctionSpec.CLIENT_OUTPUTERROR);
+
 	@SuppressWarnings("unused")
 	private RpcPacketDispatcher mainDispatcher = null;
 
@@ -78,7 +96,16 @@ public class ClientFunctionDispatcher {
 		}
 
 		RpcPacketDispatcherResult result = RpcPacketDispatcherResult.NONE;
-		RpcConnection rpcConnection = cmdEnv.getRpcConnection();
+		final RpcConnection rpcConnection = cmdEnv.getRpcConnection();
+
+		ClientFileWritePipeline pipeline = ClientFileWritePipeline.get(cmdEnv);
+		if (pipeline != null) {
+			if (SYNC_WRITER_PIPELINED_FUNCS.contains(funcSpec)) {
+				pipeline.poll();
+			} else {
+				pipeline.awaitAll();
+			}
+		}
 
 		int cmdCallBackKey = cmdEnv.getCmdCallBackKey();
 		IProgressCallback progressCallback = cmdEnv.getProgressCallback();
@@ -141,7 +168,7 @@ public class ClientFunctionDispatcher {
 					if(infoMsg != null) {
 						if (cmdEnv.isBufferOutput()) {
 							RpcByteBufferOutput outStream = this.fileCommands.getBufferOutputStream(cmdEnv);
-							if (outStream != null && outStream.getByteBuffer() != null) {
+							if (outStream != null) {
 								String charsetName = (rpcConnection.getClientCharset() == null ? CharsetDefs.DEFAULT_NAME : rpcConnection.getClientCharset().name());
 								try {
 									infoMsg += CommandEnv.LINE_SEPARATOR;
@@ -155,7 +182,7 @@ public class ClientFunctionDispatcher {
 							}
 						}
 						else {
-							RpcOutputStream outStream = this.fileCommands.getTempOutputStream(cmdEnv);
+							OutputStream outStream = this.fileCommands.getStreamCmdOutputStream(cmdEnv);
 							if (outStream != null) {
 								String charsetName = (rpcConnection.getClientCharset() == null ? CharsetDefs.DEFAULT_NAME : rpcConnection.getClientCharset().name());
 								try {
@@ -250,6 +277,16 @@ public class ClientFunctionDispatcher {
 				break;
 
 			case CLIENT_ACK:
+				// An ack for a file still being written is answered once it's done
+				final Map<String, Object> ackMap = resultsMap;
+				if ((pipeline != null) && pipeline.deferAck((String) resultsMap.get(RpcFunctionMapKey.HANDLE), new ClientFileWritePipeline.DeferredAck() {
+					public void send(boolean error, long syncTime) throws ConnectionException {
+						userInteractor.clientAck(rpcConnection, ackMap, error, syncTime);
+					}
+				})) {
+					result = RpcPacketDispatcherResult.CONTINUE_LOOP;
+					break;
+				}
 				// 2016/10/05 npoole
 				result = this.userInteractor.clientAck(rpcConnection, cmdEnv, resultsMap);
 				break;
@@ -310,7 +347,7 @@ public class ClientFunctionDispatcher {
 				cmdEnv.clearLastResultMap();
 				resultsMap = this.fileCommands.convertFileDataMap(resultsMap, cmdEnv.getRpcConnection().getClientCharset(), cmdEnv.getRpcConnection().isUnicodeServer());
 
-				RpcOutputStream dataOutStream = this.fileCommands.getTempOutputStream(cmdEnv);
+				OutputStream dataOutStream = this.fileCommands.getStreamCmdOutputStream(cmdEnv);
 				if (dataOutStream != null) {
 					try {
 						String dataString = (String) resultsMap.get(RpcFunctionMapKey.DATA);
@@ -328,7 +365,7 @@ public class ClientFunctionDispatcher {
 			case CLIENT_PROGRESS:
 
 				cmdEnv.clearLastResultMap();
-				RpcOutputStream progressOutStream = this.fileCommands.getTempOutputStream(cmdEnv);
+				OutputStream progressOutStream = this.fileCommands.getStreamCmdOutputStream(cmdEnv);
 				if (progressOutStream != null) {
 					// Compose the progress indicator message
 					StringBuilder sb = new StringBuilder();
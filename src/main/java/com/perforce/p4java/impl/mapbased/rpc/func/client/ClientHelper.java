@@ -59,31 +59,42 @@ public class ClientHelper {
 	 */
 	public static String[] buildParallelOptions(IServer serverImpl, List<IFileSpec> fileSpecs, SyncOptions syncOpts, ParallelSyncOptions pSyncOpts) throws P4JavaException {
 
+		String[] syncOptions = Parameters.processParameters(syncOpts, fileSpecs, serverImpl);
+		String[] po = {buildParallelFlag(pSyncOpts)};
+
+		String[] mergedOptions = ArrayUtils.addAll(po, syncOptions);
+
+		return mergedOptions;
+	}
+
+	/**
+	 * Helper method that builds the --parallel flag for a parallel sync,
+	 * submit or shelve
+	 *
+	 * @param pOpts parallel options
+	 * @return the --parallel flag
+	 */
+	public static String buildParallelFlag(ParallelSyncOptions pOpts) {
+
 		StringBuilder parallelOptionsBuilder = new StringBuilder();
 		parallelOptionsBuilder.append("--parallel=");
-		if (pSyncOpts.getNumberOfThreads() > 0) {
-			parallelOptionsBuilder.append("threads=" + pSyncOpts.getNumberOfThreads());
+		if (pOpts.getNumberOfThreads() > 0) {
+			parallelOptionsBuilder.append("threads=" + pOpts.getNumberOfThreads());
 		} else {
 			parallelOptionsBuilder.append("threads=0");
 		}
-		if (pSyncOpts.getMinimum() > 0) {
-			parallelOptionsBuilder.append(",min=" + pSyncOpts.getMinimum());
+		if (pOpts.getMinimum() > 0) {
+			parallelOptionsBuilder.append(",min=" + pOpts.getMinimum());
 		}
-		if (pSyncOpts.getMinumumSize() > 0) {
-			parallelOptionsBuilder.append(",minsize=" + pSyncOpts.getMinumumSize());
+		if (pOpts.getMinumumSize() > 0) {
+			parallelOptionsBuilder.append(",minsize=" + pOpts.getMinumumSize());
 		}
-		if (pSyncOpts.getBatch() > 0) {
-			parallelOptionsBuilder.append(",batch=" + pSyncOpts.getBatch());
+		if (pOpts.getBatch() > 0) {
+			parallelOptionsBuilder.append(",batch=" + pOpts.getBatch());
 		}
-		if (pSyncOpts.getBatchSize() > 0) {
-			parallelOptionsBuilder.append(",batchsize=" + pSyncOpts.getBatchSize());
+		if (pOpts.getBatchSize() > 0) {
+			parallelOptionsBuilder.append(",batchsize=" + pOpts.getBatchSize());
 		}
-
-		String[] syncOptions = Parameters.processParameters(syncOpts, fileSpecs, serverImpl);
-		String[] po = {parallelOptionsBuilder.toString()};
-
-		String[] mergedOptions = ArrayUtils.addAll(po, syncOptions);
-
-		return mergedOptions;
+		return parallelOptionsBuilder.toString();
 	}
 }
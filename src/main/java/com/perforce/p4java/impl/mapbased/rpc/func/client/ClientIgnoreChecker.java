@@ -13,10 +13,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handle the checking of patterns in ignore files.
+ * <p>
+ * Each ignore file is read and its patterns compiled only once, and kept
+ * until the file's modification time or size changes; the ignore files
+ * that apply to a directory (its own, its parent's, and so on up to the
+ * client root) are resolved once per directory into a chain of compiled
+ * rule levels, so checking a file is a hash lookup plus the pattern
+ * matches. Ignore files are only looked at again (at most once per
+ * directory) after refresh() is called. Checkers are safe for use by
+ * several threads at once.
  */
 public class ClientIgnoreChecker {
 
@@ -28,6 +38,18 @@ public class ClientIgnoreChecker {
 
 	/** The charset. */
 	private Charset charset = null;
+
+	/** The client root as a file, for comparison with parent directories. */
+	private File clientRootDir = null;
+
+	/** Resolved rule chains, by absolute directory path. */
+	private final ConcurrentHashMap<String, Level> levels = new ConcurrentHashMap<String, Level>();
+
+	/** Compiled ignore files, by absolute directory path. */
+	private final ConcurrentHashMap<String, IgnoreRules> rules = new ConcurrentHashMap<String, IgnoreRules>();
+
+	/** Bumped by refresh(); levels resolved in an earlier generation are stale. */
+	private volatile int generation = 0;
 	
 	/**
 	 * Instantiates a new ignore file checker.
@@ -55,6 +77,26 @@ public class ClientIgnoreChecker {
 		this.clientRoot = clientRoot;
 		this.ignoreFileName = ignoreFileName;
 		this.charset = charset;
+		this.clientRootDir = new File(clientRoot);
+	}
+
+	/**
+	 * Return whether this checker was created for the client root, ignore
+	 * file name and charset.
+	 */
+	public boolean isFor(String clientRoot, String ignoreFileName, Charset charset) {
+		return this.clientRoot.equals(clientRoot)
+				&& this.ignoreFileName.equals(ignoreFileName)
+				&& this.charset.equals(charset);
+	}
+
+	/**
+	 * Make the next check of each directory look at its ignore file again,
+	 * rereading it if it's changed. Called at the start of each command and
+	 * each traversal.
+	 */
+	public synchronized void refresh() {
+		this.generation++;
 	}
 
 	/**
@@ -78,7 +120,9 @@ public class ClientIgnoreChecker {
 	}
 
 	/**
-	 * Check all ignore files up to the client root directory.
+	 * Check all ignore files up to the client root directory. The nearest
+	 * ignore file with a matching pattern decides; within a file, the last
+	 * matching pattern does.
 	 * 
 	 * @param file
 	 *            the file
@@ -88,65 +132,94 @@ public class ClientIgnoreChecker {
 	 */
 	private boolean checkIgnoreFiles(File file) throws IOException {
 		if (file != null) {
-			// Signal for inverse match
-			Negate negate = this.new Negate();
-	
-			File clientRootDir = new File(clientRoot);
-			File fileDir = file;
-			do {
-				fileDir = fileDir.getParentFile();
-				if (fileDir != null) {
-					File ignoreFile = new File(fileDir, ignoreFileName);
-					if (ignoreFile.exists()) {
-						if (checkIgnoreFile(ignoreFile, fileDir, file, negate)) {
-							// Inverse match
-							if (negate.isMatch()) {
-								return false;
-							}
-							return true;
-						}
-					}
+			File fileDir = file.getParentFile();
+			if (fileDir == null) {
+				return false;
+			}
+			String path = null;
+			for (Level level = getLevel(fileDir); level != null; level = level.parent) {
+				if (level.rules == null) {
+					continue;
+				}
+				if (path == null) {
+					path = file.getAbsolutePath();
+				}
+				Boolean match = level.rules.match(path, level.dirPath);
+				if (match != null) {
+					return match;
 				}
-			} while (fileDir != null && !fileDir.getAbsoluteFile().equals(clientRootDir));
+			}
 		}
 
 		return false;
 	}
 
 	/**
-	 * Inversely loop through patterns in an ignore file and check for a match.
+	 * Return the (current) rule chain for a directory, resolving it and any
+	 * of its parents' that aren't already known.
+	 */
+	private Level getLevel(File dir) throws IOException {
+		String dirPath = dir.getAbsolutePath();
+		int currentGeneration = this.generation;
+		Level level = this.levels.get(dirPath);
+		if ((level != null) && (level.generation == currentGeneration)) {
+			return level;
+		}
+
+		Level parent = null;
+		if (!dir.getAbsoluteFile().equals(this.clientRootDir)) {
+			File parentDir = dir.getParentFile();
+			if (parentDir != null) {
+				parent = getLevel(parentDir);
+			}
+		}
+		level = new Level(dirPath, getRules(dir, dirPath), parent, currentGeneration);
+		this.levels.put(dirPath, level);
+		return level;
+	}
+
+	/**
+	 * Return the compiled rules of the directory's ignore file, or null if
+	 * it has none (or none that do anything); only reads the file if it's
+	 * new or has changed since it was last read.
+	 */
+	private IgnoreRules getRules(File dir, String dirPath) throws IOException {
+		File ignoreFile = new File(dir, ignoreFileName);
+		long modTime = ignoreFile.lastModified();
+		if ((modTime == 0) && !ignoreFile.exists()) {
+			this.rules.remove(dirPath);
+			return null;
+		}
+		long length = ignoreFile.length();
+		IgnoreRules ignoreRules = this.rules.get(dirPath);
+		if ((ignoreRules == null) || (ignoreRules.modTime != modTime) || (ignoreRules.length != length)) {
+			ignoreRules = new IgnoreRules(modTime, length, readRules(ignoreFile));
+			this.rules.put(dirPath, ignoreRules);
+		}
+		return ignoreRules.rules.length == 0 ? null : ignoreRules;
+	}
+
+	/**
+	 * Read and compile the patterns in an ignore file, last line first.
 	 * 
 	 * @param ignoreFile
 	 *            the ignore file
-	 * @param currentDir
-	 *            the current directory
-	 * @param file
-	 *            the file
-	 * @param negate
-	 *            the negate
-	 * @return true, if successful
+	 * @return the compiled patterns
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	private boolean checkIgnoreFile(File ignoreFile, File currentDir, File file, Negate negate)
-			throws IOException {
+	private Rule[] readRules(File ignoreFile) throws IOException {
 
+		List<Rule> list = new ArrayList<Rule>();
 		BufferedReader br = null;
 		try {
 			br = new BufferedReader(new InputStreamReader(new FileInputStream(
 					ignoreFile), this.charset));
-			ArrayList<String> list = new ArrayList<String>();
 			String line;
 			while ((line = br.readLine()) != null) {
-				list.add(line);
-			}
-
-			// Reverse the lines
-			Collections.reverse(list);
-
-			for (String entry : list) {
-				if (checkIgnorePattern(entry, currentDir, file, negate)) {
-					return true;
+				Rule rule = Rule.compile(line);
+				if (rule != null) {
+					list.add(rule);
 				}
 			}
 		} finally {
@@ -155,130 +228,149 @@ public class ClientIgnoreChecker {
 			}
 		}
 
-		return false;
+		// Reverse the lines
+		Rule[] reversed = new Rule[list.size()];
+		for (int i = 0; i < reversed.length; i++) {
+			reversed[i] = list.get(reversed.length - 1 - i);
+		}
+		return reversed;
 	}
 
 	/**
-	 * Check for a pattern match.
-	 * 
-	 * @param pattern
-	 *            the pattern
-	 * @param currentDir
-	 *            the current directory
-	 * @param file
-	 *            the file
-	 * @param negate
-	 *            the negate
-	 * @return true, if successful
+	 * A directory's place in the chain of ignore files that apply to it.
 	 */
-	private boolean checkIgnorePattern(String pattern, File currentDir, File file, Negate negate) {
-
-		boolean wildcard = false;
-		boolean ellipsis = false;
-		boolean negation = false;
-		boolean onlyDir = false;
-		boolean isRel = false;
-
-		if (file == null) {
-			return false;
+	private static class Level {
+		final String dirPath;
+		final IgnoreRules rules;
+		final Level parent;
+		final int generation;
+
+		Level(String dirPath, IgnoreRules rules, Level parent, int generation) {
+			this.dirPath = dirPath;
+			this.rules = rules;
+			this.parent = parent;
+			this.generation = generation;
 		}
+	}
 
-		if (pattern == null) {
-			return false;
+	/**
+	 * The compiled patterns of one ignore file, last line first.
+	 */
+	private static class IgnoreRules {
+		final long modTime;
+		final long length;
+		final Rule[] rules;
+
+		IgnoreRules(long modTime, long length, Rule[] rules) {
+			this.modTime = modTime;
+			this.length = length;
+			this.rules = rules;
 		}
 
-		pattern = pattern.trim();
-
-        // Replacing windows slashes with linux
-        pattern = pattern.replaceAll("\\\\", "/");
-
-        if (pattern.startsWith("#")) {
-			return false;
+		/**
+		 * Return whether the last matching pattern ignores the file (false
+		 * if it's a negated pattern), or null if no pattern matches.
+		 */
+		Boolean match(String path, String dirPath) {
+			MapHalf namePath = null;
+			MapHalf dirRelPath = null;
+			for (Rule rule : rules) {
+				MapHalf mapPath;
+				if (rule.fromDir) {
+					if (dirRelPath == null) {
+						dirRelPath = new MapHalf(path.substring(dirPath.length()).replace('\\', '/'));
+					}
+					mapPath = dirRelPath;
+				} else {
+					if (namePath == null) {
+						namePath = new MapHalf(path.substring(dirPath.length() + 1).replace('\\', '/'));
+					}
+					mapPath = namePath;
+				}
+				if (rule.pattern.match(mapPath)) {
+					return !rule.negation;
+				}
+			}
+			return null;
 		}
+	}
 
-		// Check for negation
-		if (pattern.startsWith("!")) {
-			negation = true;
-			pattern = pattern.substring(1);
+	/**
+	 * A compiled ignore pattern.
+	 */
+	private static class Rule {
+		final MapHalf pattern;
+		final boolean negation;
+		// Matched against the path from the ignore file's directory
+		// (including the leading slash) rather than below it.
+		final boolean fromDir;
+
+		Rule(MapHalf pattern, boolean negation, boolean fromDir) {
+			this.pattern = pattern;
+			this.negation = negation;
+			this.fromDir = fromDir;
 		}
 
-		if (pattern.length() == 0) {
-			return false;
-		}
+		/**
+		 * Compile an ignore file line; returns null for comments and
+		 * blank lines.
+		 */
+		static Rule compile(String pattern) {
 
-		// Check for wildcard
-		if (pattern.contains("*")) {
-			wildcard = true;
-		}
+			boolean wildcard = false;
+			boolean ellipsis = false;
+			boolean negation = false;
+			boolean onlyDir = false;
+			boolean isRel = false;
 
-		// Check for ellipsis
-		if (pattern.contains("**") || pattern.contains("...")) {
-			ellipsis = true;
-			pattern = pattern.replace("**", "...");
-		}
+			if (pattern == null) {
+				return null;
+			}
 
-		// Check if pattern is dir
-		if (pattern.endsWith("/")) {
-			onlyDir = true;
-		}
-        if (pattern.startsWith("/")) {
-			isRel = true;
-		}
+			pattern = pattern.trim();
 
-		// Match file name or path
-		if (!wildcard  && !ellipsis) {
-			pattern = "..." + pattern + "...";
-		}
+			// Replacing windows slashes with linux
+			pattern = pattern.replace('\\', '/');
 
-		String path = file.getAbsolutePath();
-		if (!isRel && !onlyDir) {
-			path = path.substring(currentDir.getAbsolutePath().length()+1);
-		} else {
-			path = path.substring(currentDir.getAbsolutePath().length());
-		}
-        path = path.replaceAll("\\\\", "/");
+			if (pattern.startsWith("#")) {
+				return null;
+			}
 
-		MapHalf mapPattern = new MapHalf(pattern);
-		MapHalf mapPath = new MapHalf(path);
-		boolean match = mapPattern.match(mapPath);
+			// Check for negation
+			if (pattern.startsWith("!")) {
+				negation = true;
+				pattern = pattern.substring(1);
+			}
 
-		// Match pattern
-		if (match) {
-			if (negation) {
-				negate.setMatch(true);
+			if (pattern.length() == 0) {
+				return null;
 			}
 
-			return true;
-		}
+			// Check for wildcard
+			if (pattern.contains("*")) {
+				wildcard = true;
+			}
 
-		return false;
-	}
+			// Check for ellipsis
+			if (pattern.contains("**") || pattern.contains("...")) {
+				ellipsis = true;
+				pattern = pattern.replace("**", "...");
+			}
 
-	/**
-	 * Signal for negate pattern.
-	 */
-	private class Negate {
-		
-		/** The match. */
-		private boolean match = false;
+			// Check if pattern is dir
+			if (pattern.endsWith("/")) {
+				onlyDir = true;
+			}
+			if (pattern.startsWith("/")) {
+				isRel = true;
+			}
 
-		/**
-		 * Checks if is match.
-		 * 
-		 * @return true, if is match
-		 */
-		public boolean isMatch() {
-			return match;
-		}
+			// Match file name or path
+			if (!wildcard && !ellipsis) {
+				pattern = "..." + pattern + "...";
+			}
 
-		/**
-		 * Sets the match.
-		 * 
-		 * @param match
-		 *            the new match
-		 */
-		public void setMatch(boolean match) {
-			this.match = match;
+			return new Rule(new MapHalf(pattern), negation, isRel || onlyDir);
 		}
 	}
-}
\ No newline at end of file
+}
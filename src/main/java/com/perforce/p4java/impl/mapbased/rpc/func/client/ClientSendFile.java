@@ -11,6 +11,7 @@ import com.perforce.p4java.exception.MessageSeverityCode;
 import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
 import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
 import com.perforce.p4java.impl.mapbased.rpc.CommandEnv.RpcHandler;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
@@ -28,6 +29,8 @@ import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SysFileHelperBridge;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
@@ -54,6 +57,13 @@ public class ClientSendFile {
 	private long fileSize = 0;
 	private long currentSize = 0;
 
+	// Chunk size for sendChannel(); zero or less means size to the connection.
+	private final int chunkSize;
+	private final boolean directBuffers;
+	// Reused across files and commands; only ever used by the thread running
+	// this sender's dispatcher.
+	private ByteBuffer chunkBuffer = null;
+
 	/**
 	 * Create a new rpc file sender
 	 *
@@ -61,9 +71,17 @@ public class ClientSendFile {
 	 */
 	protected ClientSendFile(Properties props) {
 		this.props = props;
+		this.chunkSize = RpcPropertyDefs.getPropertyAsInt(props,
+				RpcPropertyDefs.RPC_SEND_FILE_CHUNK_SIZE_NICK, 0);
+		this.directBuffers = RpcPropertyDefs.getPropertyAsBoolean(props,
+				RpcPropertyDefs.RPC_SEND_FILE_DIRECT_BUFFERS_NICK, RpcPropertyDefs.RPC_DEFAULT_SEND_FILE_DIRECT_BUFFERS);
 	}
 
 	private long sendStream(InputStream stream, RpcConnection connection, String handle, String write, MD5Digester digester, CommandEnv cmdEnv) throws ConnectionException, IOException {
+		if ((stream instanceof RpcInputStream) && ((RpcInputStream) stream).isRaw()) {
+			return sendChannel(((RpcInputStream) stream).getChannel(), connection, handle, write, digester, cmdEnv);
+		}
+
 		long fileLength = 0;
 
 		Map<String, Object> sendMap = new HashMap<String, Object>();
@@ -88,6 +106,65 @@ public class ClientSendFile {
 		return fileLength;
 	}
 
+	/**
+	 * Send an untranslated file's contents straight from its channel: each
+	 * chunk is read into the reusable chunk buffer, digested in place, and
+	 * sent as the DATA value without being copied into a byte array first.
+	 * Chunks are filled before they're sent, so all but the last are full.
+	 */
+	private long sendChannel(FileChannel channel, RpcConnection connection, String handle, String write, MD5Digester digester, CommandEnv cmdEnv) throws ConnectionException, IOException {
+		long fileLength = 0;
+
+		ByteBuffer buffer = getChunkBuffer(connection);
+		Map<String, Object> sendMap = new HashMap<String, Object>();
+		boolean eof = false;
+		while (!eof) {
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					eof = true;
+					break;
+				}
+			}
+			buffer.flip();
+			int bytesRead = buffer.remaining();
+			if (bytesRead == 0) {
+				break;
+			}
+
+			fileLength += bytesRead;
+			digester.update(buffer);
+			sendMap.clear();
+			sendMap.put(RpcFunctionMapKey.DATA, buffer);
+			sendMap.put(RpcFunctionMapKey.HANDLE, handle);
+
+			RpcPacket sendPacket = RpcPacket.constructRpcPacket(write, sendMap, null);
+
+			connection.putRpcPacket(sendPacket);
+
+			currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, bytesRead);
+		}
+		return fileLength;
+	}
+
+	/**
+	 * Return the chunk buffer, (re)allocating it if there isn't one of the
+	 * right size yet. Unless set explicitly, the chunk size follows the
+	 * connection's socket send buffer, so that a chunk goes out in as few
+	 * writes as the socket allows.
+	 */
+	private ByteBuffer getChunkBuffer(RpcConnection connection) {
+		int size = this.chunkSize;
+		if (size <= 0) {
+			size = Math.min(RpcPropertyDefs.RPC_MAX_SEND_FILE_CHUNK_SIZE,
+					Math.max(RpcPropertyDefs.RPC_DEFAULT_SEND_FILE_CHUNK_SIZE, connection.getSystemSendBufferSize()));
+		}
+		if ((this.chunkBuffer == null) || (this.chunkBuffer.capacity() != size)) {
+			this.chunkBuffer = this.directBuffers ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		return this.chunkBuffer;
+	}
+
 	/**
 	 * Send a file's contents back to the Perforce server. Notably assumes a
 	 * late model server...
@@ -51,6 +51,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.UnmappableCharacterException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -92,6 +93,13 @@ public class ClientSystemFileCommands {
 
 	private ClientSystemFileMatchCommands fileMatchCommands;
 
+	// Sync writer pipeline settings; see ClientFileWritePipeline
+	private int syncWriterThreads = 0;
+	private int syncWriterQueueBytes = 0;
+
+	// Size from which as-is sync targets are preallocated; zero or less never
+	private long syncPreallocateSize = 0;
+
 	protected ClientSystemFileCommands(Properties props, RpcServer server, ClientSystemFileMatchCommands fileMatchCommands) {
 		this.props = props;
 		this.server = server;
@@ -108,6 +116,13 @@ public class ClientSystemFileCommands {
 
 			Log.warn("Unable to get tmp name from P4 props or System; using " + tmpDirName + " instead");
 		}
+
+		this.syncWriterThreads = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_SYNC_WRITER_THREADS_NICK, RpcPropertyDefs.RPC_DEFAULT_SYNC_WRITER_THREADS);
+		this.syncWriterQueueBytes = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_SYNC_WRITER_QUEUE_BYTES_NICK, RpcPropertyDefs.RPC_DEFAULT_SYNC_WRITER_QUEUE_BYTES);
+		this.syncPreallocateSize = RpcPropertyDefs.getPropertyAsLong(this.props,
+				RpcPropertyDefs.RPC_SYNC_PREALLOCATE_SIZE_NICK, RpcPropertyDefs.RPC_DEFAULT_SYNC_PREALLOCATE_SIZE);
 	}
 
 	/**
@@ -239,6 +254,13 @@ public class ClientSystemFileCommands {
 		RpcPerforceFileType fileType = RpcPerforceFileType.decodeFromServerString(fileTypeStr);
 		boolean fstSymlink = (fileType == RpcPerforceFileType.FST_SYMLINK);
 
+		// Any file still being written on this handle is on its own now,
+		// and an earlier write of the same file must finish first.
+		ClientFileWritePipeline pipeline = ClientFileWritePipeline.get(cmdEnv);
+		if (pipeline != null) {
+			pipeline.opening(clientHandle, clientPath);
+		}
+
 		// clear syncTime
 		cmdEnv.setSyncTime(0);
 
@@ -423,6 +445,21 @@ public class ClientSystemFileCommands {
 			}
 
 			cfile.createStream(useLocalDigester, rpcConnection, digest);
+
+			if ((syncPreallocateSize > 0) && (fileSize >= syncPreallocateSize)) {
+				RpcOutputStream stream = (cfile.getTmpStream() != null) ? cfile.getTmpStream() : cfile.getStream();
+				if (stream != null) {
+					stream.preallocate(fileSize);
+				}
+			}
+
+			// Plain sync writes can be handed over to the writer threads
+			if ((syncWriterThreads > 0) && clientHandle.equals("sync") && f.equals(RpcFunctionSpec.CLIENT_OPENFILE) && !cfile.isSymlink()) {
+				pipeline = ClientFileWritePipeline.start(cmdEnv, syncWriterThreads, syncWriterQueueBytes);
+				if (pipeline != null) {
+					pipeline.open(handler, fileSize);
+				}
+			}
 		} catch (P4JavaError p4je) {
 			throw p4je;
 		} catch (Exception exc) {
@@ -460,6 +497,21 @@ public class ClientSystemFileCommands {
 		RpcHandler handler = cmdEnv.getHandler(clientHandle);
 		Map<String, Object> stateMap = cmdEnv.getStateMap();
 
+		ClientFileWritePipeline pipeline = ClientFileWritePipeline.get(cmdEnv);
+		final ClientFileWritePipeline.FileWriter writer = (pipeline != null) ? pipeline.getOpenFile(clientHandle) : null;
+		if (writer != null) {
+			// Take the data out now; the results map may still be backed
+			// by the packet's buffer, which is reused once we return.
+			byte[] data = (byte[]) resultsMap.get(RpcFunctionMapKey.DATA);
+			final Map<String, Object> dataMap = Collections.<String, Object>singletonMap(RpcFunctionMapKey.DATA, data);
+			pipeline.submit(writer, data == null ? 0 : data.length, new Runnable() {
+				public void run() {
+					writer.written(writeData(writer, writer.getClientFile(), writer.getPath(), dataMap));
+				}
+			});
+			return RpcPacketDispatcherResult.CONTINUE_LOOP;
+		}
+
 		if (handler == null) {
 			throw new NullPointerError("Null client handler in writeFile().");
 		}
@@ -521,6 +573,21 @@ public class ClientSystemFileCommands {
 			}
 		}
 
+		// Send back the data bytes written (accumulated)
+		// This is for the progress indicator
+		long bytesWritten = writeData(ClientFileWritePipeline.sinkFor(cmdEnv), cfile, path, resultsMap);
+		currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, bytesWritten);
+
+		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+	}
+
+	/**
+	 * Write the data in the passed-in results map to the passed-in open file,
+	 * reporting any errors to the passed-in sink.
+	 *
+	 * @return number of bytes written, after any translation.
+	 */
+	private long writeData(ClientFileWritePipeline.ResultSink sink, ClientFile cfile, String path, Map<String, Object> resultsMap) {
 		RpcOutputStream outStream = cfile.getTmpStream();
 
 		if (outStream == null) {
@@ -531,25 +598,22 @@ public class ClientSystemFileCommands {
 			throw new P4JavaError("No open file stream in ClientSystemFileCommands.writeFile()");
 		}
 
+		long bytesWritten = 0;
 		try {
 			if ((outStream.getFD() != null) && outStream.getFD().valid()) {
-				long bytesWritten = outStream.write(resultsMap);
-
-				// Send back the data bytes written (accumulated)
-				// This is for the progress indicator
-				currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, bytesWritten);
+				bytesWritten = outStream.write(resultsMap);
 			} else {
 				Log.error("output stream unexpectedly closed in writeFile");
-				handler.setError(true);
+				cfile.setError(true);
 			}
 		} catch (FileDecoderException e) {
-			handler.setError(true);
-			cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_DECODER_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{path == null ? "<unknown>" : path}).toMap());
+			cfile.setError(true);
+			sink.handleResult(new RpcMessage(ClientMessageId.FILE_DECODER_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{path == null ? "<unknown>" : path}).toMap());
 			Log.error("failed to decode file " + (path == null ? "<unknown>" : path) + "; exception follows...");
 			Log.exception(e);
 		} catch (FileEncoderException e) {
-			handler.setError(true);
-			cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_ENCODER_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{path == null ? "<unknown>" : path}).toMap());
+			cfile.setError(true);
+			sink.handleResult(new RpcMessage(ClientMessageId.FILE_ENCODER_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{path == null ? "<unknown>" : path}).toMap());
 			Log.error("failed to encode file " + (path == null ? "<unknown>" : path) + "; exception follows...");
 			Log.exception(e);
 			if (ExceptionUtils.getRootCause(e) instanceof UnmappableCharacterException) {
@@ -563,13 +627,13 @@ public class ClientSystemFileCommands {
 				}
 			}
 		} catch (IOException e) {
-			handler.setError(true);
-			cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{path == null ? "<unknown>" : path, e.getLocalizedMessage()}).toMap());
+			cfile.setError(true);
+			sink.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{path == null ? "<unknown>" : path, e.getLocalizedMessage()}).toMap());
 			Log.error("failed write for file " + (path == null ? "<unknown>" : path) + "; exception follows...");
 			Log.exception(e);
 		}
 
-		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+		return bytesWritten;
 	}
 
 	private void writeToStream(byte[] sourceBytes, int start, int length, OutputStream stream) throws IOException {
@@ -587,10 +651,6 @@ public class ClientSystemFileCommands {
 	}
 
 	private void writeToStream(byte[] sourceBytes, int start, int length, RpcByteBufferOutput stream) throws IOException {
-		int remainingBytes = stream.getCapacity() - stream.getPosition();
-		if( remainingBytes < length ) {
-			length = remainingBytes;
-		}
 		if (ClientLineEnding.CONVERT_TEXT) {
 			for (int i = start; i < length; i++) {
 				if (sourceBytes[i] == ClientLineEnding.FST_L_LF_BYTES[0]) {
@@ -759,13 +819,24 @@ public class ClientSystemFileCommands {
 				}
 			}
 			else {
-				RpcOutputStream outStream = getTempOutputStream(cmdEnv);
+				OutputStream outStream = getDirectOutputStream(cmdEnv);
 
 				if (outStream == null) {
-					throw new NullPointerError("Null output stream in writeText state map");
+					RpcOutputStream tmpStream = getTempOutputStream(cmdEnv);
+
+					if (tmpStream == null) {
+						throw new NullPointerError("Null output stream in writeText state map");
+					}
+
+					if ((tmpStream.getFD() != null) && tmpStream.getFD().valid()) {
+						outStream = tmpStream;
+					} else {
+						Log.error("output stream unexpectedly closed in writeText");
+						handler.setError(true);
+					}
 				}
 
-				if ((outStream.getFD() != null) && outStream.getFD().valid()) {
+				if (outStream != null) {
 					if (trans == null) {
 						if (converter != null) {
 							translate(sourceBytes, converter, len, outStream);
@@ -775,9 +846,6 @@ public class ClientSystemFileCommands {
 					} else if (len > 0) {
 						writeToStream(sourceBytes, start, len, outStream);
 					}
-				} else {
-					Log.error("output stream unexpectedly closed in writeText");
-					handler.setError(true);
 				}
 			}
 		} catch (IOException | FileDecoderException | FileEncoderException ioexc) {
@@ -838,6 +906,12 @@ public class ClientSystemFileCommands {
 				}
 
 				outBuffer.write(resultsMap);
+			} else if (getDirectOutputStream(cmdEnv) != null) {
+				byte[] dataBytes = (byte[]) resultsMap.get(RpcFunctionMapKey.DATA);
+
+				if (dataBytes != null) {
+					getDirectOutputStream(cmdEnv).write(dataBytes);
+				}
 			} else {
 				RpcOutputStream outStream = getTempOutputStream(cmdEnv);
 
@@ -873,7 +947,7 @@ public class ClientSystemFileCommands {
 	 * @return RpcPacketDispatcherResult
 	 * @throws ConnectionException on error
 	 */
-	protected RpcPacketDispatcherResult closeFile(RpcConnection rpcConnection, CommandEnv cmdEnv, Map<String, Object> resultsMap) throws ConnectionException {
+	protected RpcPacketDispatcherResult closeFile(final RpcConnection rpcConnection, final CommandEnv cmdEnv, Map<String, Object> resultsMap) throws ConnectionException {
 
 		//FIXME(S): permissions, cleanup -- HR.
 
@@ -891,20 +965,37 @@ public class ClientSystemFileCommands {
 			return RpcPacketDispatcherResult.CONTINUE_LOOP;
 		}
 
-		String function = (String) resultsMap.get(RpcFunctionMapKey.FUNCTION);
-		String commit = (String) resultsMap.get(RpcFunctionMapKey.COMMIT);
+		final String function = (String) resultsMap.get(RpcFunctionMapKey.FUNCTION);
+		final String commit = (String) resultsMap.get(RpcFunctionMapKey.COMMIT);
 		String clientHandle = (String) resultsMap.get(RpcFunctionMapKey.HANDLE);
 
 		RpcHandler handler = cmdEnv.getHandler(clientHandle);
 
-		String serverDigest = null;
-		String localDigest = null;
-
 		// Clear data file info for progress indicator
 		filePath = null;
 		fileSize = 0;
 		currentSize = 0;
 
+		ClientFileWritePipeline pipeline = ClientFileWritePipeline.get(cmdEnv);
+		final ClientFileWritePipeline.FileWriter writer = (pipeline != null) ? pipeline.getOpenFile(clientHandle) : null;
+		if (writer != null) {
+			final boolean nonCheckedSyncs = cmdEnv.isNonCheckedSyncs();
+			pipeline.close(writer, new Runnable() {
+				public void run() {
+					// Never a diff, so the results map (which belongs to the
+					// command's thread) isn't needed.
+					if (!writer.getClientFile().isError()) {
+						try {
+							closeFile(rpcConnection, cmdEnv, writer, writer.getClientFile(), function, commit, nonCheckedSyncs, null);
+						} catch (ConnectionException exc) {
+							throw new P4JavaError("Unexpected exception in ClientSystemFileCommands.closeFile: " + exc.getLocalizedMessage(), exc);
+						}
+					}
+				}
+			});
+			return RpcPacketDispatcherResult.CONTINUE_LOOP;
+		}
+
 		if (handler == null) {
 			throw new NullPointerError("Null client handler in closeFile().");
 		}
@@ -913,14 +1004,27 @@ public class ClientSystemFileCommands {
 			return RpcPacketDispatcherResult.CONTINUE_LOOP;
 		}
 
-		ClientFile cfile = new ClientFile(handler);
+		closeFile(rpcConnection, cmdEnv, ClientFileWritePipeline.sinkFor(cmdEnv), new ClientFile(handler), function, commit, cmdEnv.isNonCheckedSyncs(), resultsMap);
+
+		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+	}
+
+	/**
+	 * The work of closeFile() once the file's handler is known; run on the
+	 * command's thread, or for a file written on the sync writer pipeline,
+	 * on the file's writer thread with the file's detached handler.
+	 */
+	private void closeFile(RpcConnection rpcConnection, CommandEnv cmdEnv, ClientFileWritePipeline.ResultSink sink, ClientFile cfile, String function, String commit, boolean nonCheckedSyncs, Map<String, Object> resultsMap) throws ConnectionException {
+
+		String serverDigest = null;
+		String localDigest = null;
 
 		// Check for illegal symlinks
 		//
 		// Block symlinks outside the workspace if filesys.restictsymlinks=1
 		// and P4CLIENTROOT or DVCS are in use.
 
-		validatePath(rpcConnection, cmdEnv, cfile);
+		validatePath(rpcConnection, sink, cfile);
 
 		// Close file, and then diff/rename as appropriate.
 
@@ -933,16 +1037,16 @@ public class ClientSystemFileCommands {
 		if (cfile.hasFile()) {
 			long modTime = cfile.getModTime();
 			if (modTime != 0) {
-				cmdEnv.setSyncTime(modTime);
+				sink.setSyncTime(modTime);
 			} else {
-				cmdEnv.setSyncTime(cfile.statModTime());
+				sink.setSyncTime(cfile.statModTime());
 			}
 		}
 
 		if (!cfile.isError() && cfile.getServerDigest() != null && commit != null) {
 			if (!cfile.getDigest().equals(cfile.getServerDigest())) {
-				cmdEnv.handleResult(new RpcMessage(ClientMessageId.DIGEST_MISMATCH, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), cfile.getDigest(), cfile.getServerDigest()}).toMap());
-				return RpcPacketDispatcherResult.CONTINUE_LOOP;
+				sink.handleResult(new RpcMessage(ClientMessageId.DIGEST_MISMATCH, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), cfile.getDigest(), cfile.getServerDigest()}).toMap());
+				return;
 			}
 		}
 
@@ -951,7 +1055,7 @@ public class ClientSystemFileCommands {
 		}
 
 		if (cfile.isError()) {
-			return RpcPacketDispatcherResult.CONTINUE_LOOP;
+			return;
 		} else if (cfile.isDiff()) {
 			RpcFunctionSpec f = RpcFunctionSpec.decode(function);
 			if (f.equals(RpcFunctionSpec.CLIENT_CLOSEMATCH)) {
@@ -959,7 +1063,7 @@ public class ClientSystemFileCommands {
 				// Don't delete handle yet, clientAckMatch needs it.
 
 				fileMatchCommands.closeMatch(rpcConnection, cmdEnv, resultsMap, cfile);
-				return RpcPacketDispatcherResult.CONTINUE_LOOP;
+				return;
 			}
 			//TODO: Still need to port this
 			//FileSys *f2 = client->GetUi()->File( f->file->GetType() );
@@ -967,9 +1071,9 @@ public class ClientSystemFileCommands {
 			//f2->Set( f->diffName );
 			//client->GetUi()->Diff( f->file, f2, 0, f->diffFlags.Text(), e );
 			//delete f2;
-			return RpcPacketDispatcherResult.CONTINUE_LOOP;
+			return;
 		} else if (commit == null) {
-			return RpcPacketDispatcherResult.CONTINUE_LOOP;
+			return;
 		} else {
 			//TODO npoole: Move the logic for direct/indirect file handling into ClientFile
 			Map<String, Object> origArgs = cfile.getArgs();
@@ -1015,10 +1119,10 @@ public class ClientSystemFileCommands {
 						// Total failure occurred - was unable to rename
 						// or even copy the file to its target.
 						Log.error("Rename/copy failed completely in closeFile(); tmp file: " + cfile.getFile().getName() + "; target file: " + cfile.getFile().getName());
-						handler.setError(true);
-						cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
+						cfile.setError(true);
+						sink.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
 
-						return RpcPacketDispatcherResult.CONTINUE_LOOP;
+						return;
 					}
 				} else {
 					// Was written in-place; nothing to do here...
@@ -1027,10 +1131,10 @@ public class ClientSystemFileCommands {
 							cfile.getStream().flush();
 						} catch (IOException e) {
 							Log.error("Flushing stream failed in closeFile(); tmp file: " + cfile.getFile().getName());
-							handler.setError(true);
-							cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
+							cfile.setError(true);
+							sink.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
 
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
+							return;
 						}
 					}
 				}
@@ -1042,10 +1146,10 @@ public class ClientSystemFileCommands {
 							cfile.getTmpStream().flush();
 						} catch (IOException e) {
 							Log.error("Flushing stream failed in closeFile(); tmp file: " + cfile.getFile().getName());
-							handler.setError(true);
-							cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
+							cfile.setError(true);
+							sink.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
 
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
+							return;
 						}
 						localDigest = cfile.getDigest();
 					}
@@ -1056,10 +1160,10 @@ public class ClientSystemFileCommands {
 							cfile.getStream().flush();
 						} catch (IOException e) {
 							Log.error("Flushing stream failed in closeFile(); target file: " + cfile.getFile().getName());
-							handler.setError(true);
-							cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
+							cfile.setError(true);
+							sink.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
 
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
+							return;
 						}
 						localDigest = cfile.getDigest();
 
@@ -1068,19 +1172,19 @@ public class ClientSystemFileCommands {
 							cfile.getStream().close();
 						} catch (IOException e) {
 							Log.warn("target file close error in ClientSystemFileCommands.closeFile(): " + e.getLocalizedMessage());
-							handler.setError(true);
-							cmdEnv.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
+							cfile.setError(true);
+							sink.handleResult(new RpcMessage(ClientMessageId.FILE_WRITE_ERROR, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getName(), e.getLocalizedMessage()}).toMap());
 
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
+							return;
 						}
 					}
 				}
 
-				if ((serverDigest != null) && !cmdEnv.isNonCheckedSyncs()) {
+				if ((serverDigest != null) && !nonCheckedSyncs) {
 					if (!serverDigest.equals(localDigest)) {
-						handler.setError(true);
-						cmdEnv.handleResult(new RpcMessage(ClientMessageId.DIGEST_MISMATCH, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getPath(), serverDigest, localDigest}).toMap());
-						return RpcPacketDispatcherResult.CONTINUE_LOOP;
+						cfile.setError(true);
+						sink.handleResult(new RpcMessage(ClientMessageId.DIGEST_MISMATCH, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{cfile.getFile().getPath(), serverDigest, localDigest}).toMap());
+						return;
 					}
 				}
 
@@ -1142,8 +1246,6 @@ public class ClientSystemFileCommands {
 				}
 			}
 		}
-
-		return RpcPacketDispatcherResult.CONTINUE_LOOP;
 	}
 
 	/**
@@ -1881,6 +1983,34 @@ public class ClientSystemFileCommands {
 		return outStream;
 	}
 
+	/**
+	 * Return the output stream a direct (unspooled) stream command writes its
+	 * output to, or null if the command isn't one.
+	 *
+	 * @param cmdEnv cmdEnv
+	 * @return possibly-null output stream
+	 */
+	public OutputStream getDirectOutputStream(CommandEnv cmdEnv) {
+		if ((cmdEnv == null) || (cmdEnv.getStateMap() == null)) {
+			return null;
+		}
+		return (OutputStream) cmdEnv.getStateMap().get(RpcServer.RPC_DIRECT_OUTPUT_STREAM_KEY);
+	}
+
+	/**
+	 * Return the stream a stream command's output should be written to: the
+	 * direct output stream if there is one, otherwise the temp RPC output
+	 * stream as returned by getTempOutputStream().
+	 *
+	 * @param cmdEnv cmdEnv
+	 * @return possibly-null output stream
+	 * @throws ConnectionException on error
+	 */
+	public OutputStream getStreamCmdOutputStream(CommandEnv cmdEnv) throws ConnectionException {
+		OutputStream outStream = getDirectOutputStream(cmdEnv);
+		return outStream != null ? outStream : getTempOutputStream(cmdEnv);
+	}
+
 	/**
 	 * Return the temp RPC Byte Buffer output. If it doesn't exist, try to create a
 	 * new one only if the command is run from a "streamCmd" method or tracking
@@ -1906,7 +2036,7 @@ public class ClientSystemFileCommands {
 		if (outStream == null) {
 			if (cmdEnv.isStreamCmd() || cmdEnv.getProtocolSpecs().isEnableTracking()) {
 				try {
-					outStream = RpcByteBufferOutput.getBufferOutputStream(cmdEnv.getCmdSpec().getCmdArgs());
+					outStream = RpcByteBufferOutput.getBufferOutputStream(cmdEnv.getCmdSpec().getCmdArgs(), this.server.getProperties());
 					// Set the new temp RPC byte buffer output stream to the command env state map
 					cmdEnv.getStateMap().put(RpcServer.RPC_BYTE_BUFFER_OUTPUT_KEY, outStream);
 				} catch (IOException ioexc) {
@@ -1945,7 +2075,7 @@ public class ClientSystemFileCommands {
 		return map;
 	}
 
-	private boolean validatePath(RpcConnection rpcConnection, CommandEnv cmdEnv, ClientFile cfile) {
+	private boolean validatePath(RpcConnection rpcConnection, ClientFileWritePipeline.ResultSink sink, ClientFile cfile) {
 
 		if (cfile == null) {
 			// cfile is null - something bad happened - return false
@@ -1965,7 +2095,7 @@ public class ClientSystemFileCommands {
 		if (cfile.isSymlink() && rpcConnection.getFilesysRestrictedSymlinks() == 1) {
 			if (!SymbolicLinkHelper.isSymbolicLinkCapable()) {
 				cfile.setError(true);
-				cmdEnv.handleResult(new RpcMessage(ClientMessageId.CANT_CREATE_FILE_TYPE, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{"symlink", cfile.getFile().getAbsolutePath()}).toMap());
+				sink.handleResult(new RpcMessage(ClientMessageId.CANT_CREATE_FILE_TYPE, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{"symlink", cfile.getFile().getAbsolutePath()}).toMap());
 				// Symlink not supported - return false
 				return false;
 			}
@@ -1985,7 +2115,7 @@ public class ClientSystemFileCommands {
 		}
 
 		cfile.setError(true);
-		cmdEnv.handleResult(new RpcMessage(ClientMessageId.NOT_UNDER_CLIENT_PATH, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{file, clientPath}).toMap());
+		sink.handleResult(new RpcMessage(ClientMessageId.NOT_UNDER_CLIENT_PATH, MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT, new String[]{file, clientPath}).toMap());
 		// Symlink or File is outside P4CLIENTPATH - return false
 		return false;
 	}
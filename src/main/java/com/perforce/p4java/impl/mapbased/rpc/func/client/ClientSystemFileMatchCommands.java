@@ -16,6 +16,7 @@ import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.FileDigester;
 import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
 import com.perforce.p4java.impl.mapbased.rpc.handles.ClientFile;
 import com.perforce.p4java.impl.mapbased.rpc.handles.ReconcileHandle;
@@ -36,6 +37,7 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -67,7 +69,11 @@ public class ClientSystemFileMatchCommands {
 	private RpcServer server = null;
 	private ClientIgnoreChecker checker = null;
 
+	// Command state map key marking a command the checker has been refreshed for
+	private static final String IGNORE_REFRESHED_KEY = "ClientIgnoreCheckerRefreshed";
+
 	private String tmpDirName = null;
+	private int scanThreads = 0;
 
 	protected ClientSystemFileMatchCommands(Properties props, RpcServer server) {
 		this.props = props;
@@ -85,6 +91,9 @@ public class ClientSystemFileMatchCommands {
 			Log.warn("Unable to get tmp name from P4 props or System; using " + tmpDirName + " instead");
 
 		}
+
+		this.scanThreads = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_SCAN_THREADS_NICK, RpcPropertyDefs.RPC_DEFAULT_SCAN_THREADS);
 	}
 
 	void openMatch(RpcConnection rpcConnection, CommandEnv cmdEnv, Map<String, Object> resultsMap, ClientFile cfile) throws ConnectionException {
@@ -569,12 +578,27 @@ public class ClientSystemFileMatchCommands {
 		//TODO: still to translate
 		//const char *config = client->GetEnviro()->Get( "P4CONFIG" );
 
+		// Pick up any ignore files changed since the last traversal
+		if (!isSkipIgnore && (getChecker(rpcConnection.getClientCharset(), cmdEnv) != null)) {
+			checker.refresh();
+		}
+
 		if (isSummary) {
 			AtomicInteger idx = new AtomicInteger(0);
 			AtomicInteger ddx = new AtomicInteger(0);
 			traverseShort(resultsMap, new File(dir), new File(dir), isTraverse, isSkipIgnore, true, false, isSkipCurrent, map, files, dirs, idx, depotFiles, ddx, rpcConnection.isUnicodeServer(), rpcConnection.getClientCharset(), cmdEnv);
 		} else {
-			traverseDirs(new File(dir), isTraverse, isSkipIgnore, isSendDigest, map, files, sizes, digests, hasIndex, recHandle != null ? recHandle.getSkipFiles() : null, rpcConnection.isUnicodeServer(), rpcConnection.getClientCharset(), cmdEnv);
+			traverseDirs(new File(dir), isTraverse, isSkipIgnore, map, files, sizes, hasIndex, recHandle != null ? recHandle.getSkipFiles() : null, rpcConnection.isUnicodeServer(), rpcConnection.getClientCharset(), cmdEnv);
+
+			// Digest everything found in one go, so the files can be read
+			// in parallel (and unchanged ones looked up in the cache).
+			// Digest the files using the configured local file content
+			// charset; a null charset reads them as raw bytes off disk.
+			if (isSendDigest) {
+				FileDigester digester = rpcConnection.getFileDigester();
+				digests = digester.digestAll(files, RpcPerforceFileType.FST_BINARY, rpcConnection.getClientCharset(), false);
+				digester.saveCache();
+			}
 		}
 
 		// Compare list of files on client with list of files in the depot
@@ -643,6 +667,9 @@ public class ClientSystemFileMatchCommands {
 			recHandle.getSkipFiles().clear();
 		}
 
+		// The edit pass is done; keep what it digested for next time.
+		rpcConnection.getFileDigester().saveCache();
+
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
 	}
 
@@ -654,18 +681,16 @@ public class ClientSystemFileMatchCommands {
 	 * @param file        file
 	 * @param traverse    traverse
 	 * @param skipIgnore  skipIgnore
-	 * @param sendDigest  sendDigest
 	 * @param map         map
 	 * @param addFilesMap addFilesMap
 	 * @param sizes       sizes
-	 * @param digests     digests
 	 * @param hasIndex    hasIndex
 	 * @param skipFiles   skipFiles
 	 * @param unicode     unicode
 	 * @param charset     charset
 	 * @param cmdEnv      cmdEnv
 	 */
-	private void traverseDirs(File file, boolean traverse, boolean skipIgnore, boolean sendDigest, MapTable map, List<String> addFilesMap, Map<String, Long> sizes, Map<String, String> digests, int hasIndex, List<String> skipFiles, boolean unicode, Charset charset, CommandEnv cmdEnv) {
+	private void traverseDirs(File file, boolean traverse, boolean skipIgnore, MapTable map, List<String> addFilesMap, Map<String, Long> sizes, int hasIndex, List<String> skipFiles, boolean unicode, Charset charset, CommandEnv cmdEnv) {
 
 		if (addFilesMap == null) {
 			throw new IllegalArgumentException("Must pass in a non-null 'files' list as a parameter.");
@@ -687,12 +712,6 @@ public class ClientSystemFileMatchCommands {
 			if (skipIgnore || !isIgnore(file, charset, cmdEnv)) {
 				addFilesMap.add(file.getAbsolutePath());
 				sizes.put(file.getAbsolutePath(), file.length());
-				if (sendDigest) {
-					String digestStr = digestFile(file, RpcPerforceFileType.FST_BINARY, charset);
-					if (digestStr != null) {
-						digests.put(file.getAbsolutePath(), digestStr);
-					}
-				}
 			}
 			return;
 		}
@@ -704,12 +723,6 @@ public class ClientSystemFileMatchCommands {
 			if (skipIgnore || !isIgnore(file, charset, cmdEnv)) {
 				addFilesMap.add(file.getAbsolutePath());
 				sizes.put(file.getAbsolutePath(), file.length());
-				if (sendDigest) {
-					String digestStr = digestFile(file, RpcPerforceFileType.FST_BINARY, charset);
-					if (digestStr != null) {
-						digests.put(file.getAbsolutePath(), digestStr);
-					}
-				}
 			}
 			return;
 		}
@@ -724,98 +737,26 @@ public class ClientSystemFileMatchCommands {
 			return;
 		}
 
-		// This is a directory to be scanned.
-		File[] files = file.listFiles();
-		if (files == null) {
-			return;
-		}
-
-		for (File f : files) {
-			// Check mapping, ignore files before sending file or symlink back
-			// Java paths are unicode: no translation needed
-
-			String fileName = f.getAbsolutePath();
-
-			// Do compare with array list (skip files if possible)
-			int cmp = -1;
-
-			while (skipFiles != null && hasIndex < skipFiles.size()) {
-				//XXX: uncertain that the correct portion of the file is being compared
-				cmp = fileName.compareTo(skipFiles.get(hasIndex));
-
-				if (cmp < 0) break;
-
-				hasIndex++;
-
-				if (cmp == 0) break;
-			}
-
-			// Don't stat if we matched a file from the edit list
-
-			if (cmp == 0) continue;
-
-			if (f.isDirectory()) { // Directory
-				if (RpcPerforceFileType.isProbablySymLink(f)) {
-					String from = fileName + "/";
-					String matched = null;
-
-					// TODO: protocol case mode
-					//if( client->protocolNocase != StrBuf::CaseUsage() ) {
-					//    from.SetCaseFolding( client->protocolNocase );
-					//    matched = map->Translate( from, to, MapLeftRight );
-					//    from.SetCaseFolding( !client->protocolNocase );
-					//} else {
-					MapWrap mw = map.translate(MapTableT.LHS, from);
-					matched = mw == null ? null : mw.getTo();
-					//}
-
-					if (matched == null) {
-						continue;
-					}
-
-					if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
-						addFilesMap.add(fileName);
-						sizes.put(fileName, file.length());
-						if (sendDigest) {
-							String digestStr = digestFile(f, RpcPerforceFileType.FST_BINARY, charset);
-							if (digestStr != null) {
-								digests.put(fileName, digestStr);
-							}
-						}
-					}
-				} else if (traverse) {
-					// Recursive call
-					traverseDirs(f, traverse, skipIgnore, sendDigest, map, addFilesMap, sizes, digests, hasIndex, skipFiles, unicode, charset, cmdEnv);
-				}
-			} else { // File
-				String from = fileName;
-				String matched = null;
-
-				// TODO: protocol case mode
-				//if( client->protocolNocase != StrBuf::CaseUsage() ) {
-				//    from.SetCaseFolding( client->protocolNocase );
-				//    matched = map->Translate( from, to, MapLeftRight );
-				//    from.SetCaseFolding( !client->protocolNocase );
-				//} else {
-				MapWrap mw = map.translate(MapTableT.LHS, from);
-				matched = mw == null ? null : mw.getTo();
-				//}
-
-				if (matched == null) {
-					continue;
+		// This is a directory to be scanned; check mapping and ignore files
+		// before sending each file or symlink back. Java paths are unicode:
+		// no translation needed.
+		ClientDirectoryScanner.IgnoreFilter ignoreFilter = null;
+		if (!skipIgnore && (getChecker(charset, cmdEnv) != null)) {
+			ignoreFilter = new ClientDirectoryScanner.IgnoreFilter() {
+				public boolean isIgnored(File f) {
+					return matchIgnore(f);
 				}
+			};
+		}
+		ClientDirectoryScanner scanner = new ClientDirectoryScanner(this.scanThreads, traverse, map, ignoreFilter, skipFiles);
+		ClientDirectoryScanner.Result result = scanner.scan(file, hasIndex);
 
-				if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
-					addFilesMap.add(fileName);
-					sizes.put(fileName, file.length());
-					if (sendDigest) {
-						String digestStr = digestFile(f, RpcPerforceFileType.FST_BINARY, charset);
-						if (digestStr != null) {
-							digests.put(fileName, digestStr);
-						}
-					}
-				}
-			}
+		for (int i = 0; i < result.files.size(); i++) {
+			addFilesMap.add(result.files.get(i));
+			sizes.put(result.files.get(i), result.sizes.get(i));
+		}
+		for (String ignored : result.ignored) {
+			cmdEnv.handleResult(new RpcMessage(ClientMessageId.CANT_ADD_FILE_TYPE, MessageSeverityCode.E_INFO, MessageGenericCode.EV_CLIENT, new String[]{ignored, "ignored"}).toMap());
 		}
 	}
 
@@ -912,15 +853,17 @@ public class ClientSystemFileMatchCommands {
 			String fileName = f.getAbsolutePath();
 
 			// Attach path delimiter to dirs so Sort() works correctly, and also to
-			// save relevant Stat() information.
+			// save relevant Stat() information. One stat (without following
+			// links) per entry; only symlinks need a second.
 
-			if (f.isDirectory() && !RpcPerforceFileType.isProbablySymLink(f)) {
+			BasicFileAttributes attrs = ClientDirectoryScanner.readAttributes(f.toPath());
+			if (attrs == null) {
+				continue;
+			} else if (attrs.isDirectory()) {
 				isDir = true;
-			} else if (f.isDirectory() && RpcPerforceFileType.isProbablySymLink(f)) {
+			} else if (attrs.isSymbolicLink() && f.isDirectory()) {
 				isDir = true;
 				isSymDir = true;
-			} else if (!f.exists() && !RpcPerforceFileType.isProbablySymLink(f)) {
-				continue;
 			}
 
 
@@ -1109,12 +1052,26 @@ public class ClientSystemFileMatchCommands {
 		return false;
 	}
 
+	/**
+	 * Check the file against the ignore files without reporting it; the
+	 * checker must already have been created. Safe to call from several
+	 * threads at once.
+	 */
+	private boolean matchIgnore(File file) {
+		try {
+			return checker.match(file);
+		} catch (IOException e) {
+			Log.error("Exception occurred during ignore files checking: " + e);
+		}
+		return false;
+	}
+
 	/**
 	 * Check if the file should be ignored.
 	 */
 	boolean isIgnore(File file, Charset charset, CommandEnv cmdEnv) {
 		// Do ignore checking, reject file matching ignore patterns
-		if (getChecker(charset) != null) {
+		if (getChecker(charset, cmdEnv) != null) {
 			try {
 				if (checker.match(file)) {
 					cmdEnv.handleResult(new RpcMessage(ClientMessageId.CANT_ADD_FILE_TYPE, MessageSeverityCode.E_INFO, MessageGenericCode.EV_CLIENT, new String[]{file.getAbsolutePath(), "ignored"}).toMap());
@@ -1135,7 +1092,7 @@ public class ClientSystemFileMatchCommands {
 	 */
 	boolean isIgnoreDir(File file, Charset charset, CommandEnv cmdEnv) {
 		// Do ignore checking, reject file matching ignore patterns
-		if (getChecker(charset) != null) {
+		if (getChecker(charset, cmdEnv) != null) {
 			try {
 				if (checker.match(file)) {
 					cmdEnv.handleResult(new RpcMessage(ClientMessageId.CANT_ADD_FILE_TYPE, MessageSeverityCode.E_INFO, MessageGenericCode.EV_CLIENT, new String[]{file.getAbsolutePath(), "ignored"}).toMap());
@@ -1187,18 +1144,32 @@ public class ClientSystemFileMatchCommands {
 	}
 
 	/**
-	 * Return the client ignore checker; create a new one if it doesn't exist.
+	 * Return the client ignore checker; create a new one if it doesn't exist
+	 * or the client root or ignore file name has changed. The checker keeps
+	 * the ignore files it's read between checks, so it's refreshed once for
+	 * each new command: a long-lived server (or session) would otherwise go
+	 * on using ignore files as they were when first read. Which commands
+	 * it's been refreshed for is kept in their own state maps, so nothing
+	 * here holds on to a finished command.
 	 *
 	 * @param charset charset
+	 * @param cmdEnv  the current command's environment
 	 * @return ClientIgnoreChecker
 	 */
-	private ClientIgnoreChecker getChecker(Charset charset) {
-		if (this.checker == null) {
-			if (this.server != null) {
-				if (this.server.getCurrentClient() != null && this.server.getIgnoreFileName() != null) {
-					this.checker = new ClientIgnoreChecker(this.server.getCurrentClient().getRoot(), this.server.getIgnoreFileName(), charset);
-				}
-			}
+	private synchronized ClientIgnoreChecker getChecker(Charset charset, CommandEnv cmdEnv) {
+		if (this.server == null || this.server.getCurrentClient() == null || this.server.getIgnoreFileName() == null) {
+			return this.checker;
+		}
+		String root = this.server.getCurrentClient().getRoot();
+		String ignoreFileName = this.server.getIgnoreFileName();
+		boolean refreshed = (cmdEnv == null) || cmdEnv.getStateMap().containsKey(IGNORE_REFRESHED_KEY);
+		if (this.checker == null || !this.checker.isFor(root, ignoreFileName, charset)) {
+			this.checker = new ClientIgnoreChecker(root, ignoreFileName, charset);
+		} else if (!refreshed) {
+			this.checker.refresh();
+		}
+		if (!refreshed) {
+			cmdEnv.getStateMap().put(IGNORE_REFRESHED_KEY, Boolean.TRUE);
 		}
 		return this.checker;
 	}
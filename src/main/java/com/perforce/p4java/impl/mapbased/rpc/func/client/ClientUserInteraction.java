@@ -555,26 +555,46 @@ public class ClientUserInteraction {
 			throw new NullPointerError("Null resultsMap in clientAck().");
 		}
 
-		String confirm = (String) resultsMap.get(RpcFunctionMapKey.CONFIRM);
-		String decline = (String) resultsMap.get(RpcFunctionMapKey.DECLINE);
 		String handle = (String) resultsMap.get(RpcFunctionMapKey.HANDLE);
 
 		RpcHandler handler = cmdEnv.getHandler(handle);
+		long syncTime = cmdEnv.getSyncTime();
+
+		// clear syncTime
+
+		cmdEnv.setSyncTime(0);
 
 		if (handler != null) {
-			if (handler.isError()) {
-				confirm = decline;
-			} else {
-				// no errors, if syncTime is set, send it
-				if (cmdEnv.getSyncTime() != 0) {
-					resultsMap.put(RpcFunctionMapKey.SYNCTIME, String.valueOf(cmdEnv.getSyncTime()));
-				}
-			}
+			return clientAck(rpcConnection, resultsMap, handler.isError(), syncTime);
 		}
+		return clientAck(rpcConnection, resultsMap, false, 0);
+	}
 
-		// clear syncTime
+	/**
+	 * Respond to a client-Ack given the error state and sync time of the
+	 * file (or whatever) it's acknowledging; used directly for acks answered
+	 * by the sync writer pipeline once their file is done.
+	 *
+	 * @param rpcConnection rpcConnection
+	 * @param resultsMap    resultsMap
+	 * @param error         true to decline
+	 * @param syncTime      sync time to send back if non-zero
+	 * @return RpcPacketDispatcherResult
+	 * @throws ConnectionException on error
+	 */
+	protected RpcPacketDispatcherResult clientAck(RpcConnection rpcConnection, Map<String, Object> resultsMap, boolean error, long syncTime) throws ConnectionException {
 
-		cmdEnv.setSyncTime(0);
+		String confirm = (String) resultsMap.get(RpcFunctionMapKey.CONFIRM);
+		String decline = (String) resultsMap.get(RpcFunctionMapKey.DECLINE);
+
+		if (error) {
+			confirm = decline;
+		} else {
+			// no errors, if syncTime is set, send it
+			if (syncTime != 0) {
+				resultsMap.put(RpcFunctionMapKey.SYNCTIME, String.valueOf(syncTime));
+			}
+		}
 
 		rpcConnection.clientConfirm(confirm, resultsMap);
 
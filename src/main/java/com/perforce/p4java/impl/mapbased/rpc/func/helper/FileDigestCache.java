@@ -0,0 +1,225 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import com.perforce.p4java.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A file-backed cache of local file digests, shared by everything in the
+ * JVM that uses the same cache file.
+ * <p>
+ * Entries are keyed by the file's absolute path, and only match while the
+ * file's size and modification time are still those it had when it was
+ * digested, and it's being digested the same way (the "mode": file type,
+ * charset, line ending conversion). Files modified within RACY_MARGIN of
+ * being digested aren't cached, since a later change in the same
+ * timestamp tick would go unnoticed.
+ * <p>
+ * The cache file is loaded on first use and written back (atomically, via
+ * a temporary file) by save(); entries for files that have gone away are
+ * dropped then, unless they were used this session.
+ */
+public class FileDigestCache {
+
+	/**
+	 * How recently (in milliseconds) before being digested a file may have
+	 * been modified and still have its digest cached.
+	 */
+	public static final long RACY_MARGIN = 2000;
+
+	private static final int MAGIC = 0x50344443; // "P4DC"
+	private static final int VERSION = 1;
+
+	private static final ConcurrentHashMap<String, FileDigestCache> caches = new ConcurrentHashMap<String, FileDigestCache>();
+
+	private static class Entry {
+		final long size;
+		final long modTime;
+		final String mode;
+		final String digest;
+		volatile boolean used;
+
+		Entry(long size, long modTime, String mode, String digest, boolean used) {
+			this.size = size;
+			this.modTime = modTime;
+			this.mode = mode;
+			this.digest = digest;
+			this.used = used;
+		}
+	}
+
+	private final File cacheFile;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicBoolean dirty = new AtomicBoolean(false);
+	private volatile boolean loaded = false;
+
+	/**
+	 * Return the cache kept in the passed-in file, creating it if this is
+	 * the first use of the file in this JVM.
+	 *
+	 * @param path non-null cache file path
+	 * @return non-null cache
+	 */
+	public static FileDigestCache forFile(String path) {
+		File file = new File(path).getAbsoluteFile();
+		String key = file.getPath();
+		FileDigestCache cache = caches.get(key);
+		if (cache == null) {
+			FileDigestCache newCache = new FileDigestCache(file);
+			cache = caches.putIfAbsent(key, newCache);
+			if (cache == null) {
+				cache = newCache;
+			}
+		}
+		return cache;
+	}
+
+	private FileDigestCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Return the cached digest for the passed-in file, or null if there
+	 * isn't one for it as it is now.
+	 *
+	 * @param path    non-null absolute file path
+	 * @param size    file's current size
+	 * @param modTime file's current modification time
+	 * @param mode    non-null description of how the file is digested
+	 * @return possibly-null digest
+	 */
+	public String get(String path, long size, long modTime, String mode) {
+		load();
+		Entry entry = this.entries.get(path);
+		if ((entry != null) && (entry.size == size) && (entry.modTime == modTime) && entry.mode.equals(mode)) {
+			entry.used = true;
+			return entry.digest;
+		}
+		return null;
+	}
+
+	/**
+	 * Cache a file's digest, unless the file was modified too close to when
+	 * it was digested for the digest to be trusted later.
+	 *
+	 * @param path        non-null absolute file path
+	 * @param size        file's size when digested
+	 * @param modTime     file's modification time when digested
+	 * @param mode        non-null description of how the file was digested
+	 * @param digest      non-null digest
+	 * @param digestStart time the file started being read
+	 */
+	public void put(String path, long size, long modTime, String mode, String digest, long digestStart) {
+		if (modTime + RACY_MARGIN > digestStart) {
+			return;
+		}
+		load();
+		this.entries.put(path, new Entry(size, modTime, mode, digest, true));
+		this.dirty.set(true);
+	}
+
+	/**
+	 * @return the number of cached digests.
+	 */
+	public int size() {
+		load();
+		return this.entries.size();
+	}
+
+	/**
+	 * Write the cache back to its file if it's changed since it was loaded
+	 * or last saved. Failures are logged, not thrown; the cache is only an
+	 * optimization.
+	 */
+	public synchronized void save() {
+		if (!this.dirty.getAndSet(false)) {
+			return;
+		}
+		File tmpFile = null;
+		try {
+			File dir = this.cacheFile.getParentFile();
+			if ((dir != null) && !dir.exists()) {
+				dir.mkdirs();
+			}
+			tmpFile = File.createTempFile(this.cacheFile.getName(), ".tmp", dir);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				for (Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+					Entry entry = mapEntry.getValue();
+					if (!entry.used && !new File(mapEntry.getKey()).isFile()) {
+						this.entries.remove(mapEntry.getKey(), entry);
+						continue;
+					}
+					out.writeBoolean(true);
+					out.writeUTF(mapEntry.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.modTime);
+					out.writeUTF(entry.mode);
+					out.writeUTF(entry.digest);
+				}
+				out.writeBoolean(false);
+			}
+			try {
+				Files.move(tmpFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException exc) {
+				Files.move(tmpFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmpFile = null;
+		} catch (IOException exc) {
+			this.dirty.set(true);
+			Log.warn("Unable to save digest cache " + this.cacheFile.getPath() + ": " + exc.getLocalizedMessage());
+			Log.exception(exc);
+		} finally {
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
+		}
+	}
+
+	private void load() {
+		if (this.loaded) {
+			return;
+		}
+		synchronized (this) {
+			if (this.loaded) {
+				return;
+			}
+			if (this.cacheFile.isFile()) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.cacheFile)))) {
+					if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+						Log.warn("Ignoring digest cache " + this.cacheFile.getPath() + " in an unknown format");
+					} else {
+						while (in.readBoolean()) {
+							String path = in.readUTF();
+							long size = in.readLong();
+							long modTime = in.readLong();
+							String mode = in.readUTF();
+							String digest = in.readUTF();
+							this.entries.putIfAbsent(path, new Entry(size, modTime, mode, digest, false));
+						}
+					}
+				} catch (IOException exc) {
+					// A truncated cache is still good as far as it goes
+					Log.warn("Unable to read digest cache " + this.cacheFile.getPath() + ": " + exc.getLocalizedMessage());
+				}
+			}
+			this.loaded = true;
+		}
+	}
+}
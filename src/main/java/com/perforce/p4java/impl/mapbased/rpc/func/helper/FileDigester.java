@@ -0,0 +1,209 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFileType;
+import com.perforce.p4java.mapapi.MapBulk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Digests local files for reconcile, status and the digest checks done by
+ * sync, resolve, etc., optionally through a FileDigestCache.
+ * <p>
+ * Files that are digested as they are on disk (no charset or line ending
+ * translation) are read through their channel into a per-thread direct
+ * buffer; anything else goes through MD5Digester as before. Lists of files
+ * are digested on a shared work-stealing pool, so that a few big files
+ * don't hold up the rest.
+ */
+public class FileDigester {
+
+	/**
+	 * Size of each thread's read buffer.
+	 */
+	public static final int BUFFER_SIZE = 128 * 1024;
+
+	// Files per task below which a list isn't split any further
+	private static final int MIN_BATCH = 4;
+
+	private static volatile ForkJoinPool pool = null;
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final int threads;
+	private final FileDigestCache cache;
+
+	/**
+	 * Create a digester using the digest thread count and cache file given
+	 * by the passed-in properties (if any).
+	 *
+	 * @param props possibly-null properties
+	 */
+	public FileDigester(Properties props) {
+		this.threads = RpcPropertyDefs.getPropertyAsInt(props,
+				RpcPropertyDefs.RPC_DIGEST_THREADS_NICK, RpcPropertyDefs.RPC_DEFAULT_DIGEST_THREADS);
+		String cacheFile = RpcPropertyDefs.getProperty(props, RpcPropertyDefs.RPC_DIGEST_CACHE_FILE_NICK);
+		this.cache = (cacheFile == null) ? null : FileDigestCache.forFile(cacheFile);
+	}
+
+	/**
+	 * @return the digest cache in use, or null if there isn't one.
+	 */
+	public FileDigestCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Return the digest of a file as a 32 byte hex string, or null if it
+	 * couldn't be read.
+	 *
+	 * @param file               non-null file
+	 * @param fileType           file type the file is digested as; only
+	 *                           used to key the cache
+	 * @param charset            possibly-null charset to convert the file
+	 *                           from (to UTF-8) before digesting it
+	 * @param convertLineEndings whether to convert local line endings
+	 * @return possibly-null digest
+	 */
+	public String digest(File file, RpcPerforceFileType fileType, Charset charset, boolean convertLineEndings) {
+		if ((this.cache == null) || !file.isFile()) {
+			return compute(file, charset, convertLineEndings);
+		}
+
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long modTime = file.lastModified();
+		String mode = fileType + ":" + (charset == null ? "" : charset.name()) + ":" + convertLineEndings;
+		String digest = this.cache.get(path, size, modTime, mode);
+		if (digest != null) {
+			return digest;
+		}
+
+		long digestStart = System.currentTimeMillis();
+		digest = compute(file, charset, convertLineEndings);
+		if ((digest != null) && (file.length() == size) && (file.lastModified() == modTime)) {
+			this.cache.put(path, size, modTime, mode, digest, digestStart);
+		}
+		return digest;
+	}
+
+	/**
+	 * Digest a list of files, in parallel if there's more than a handful of
+	 * them and more than one digest thread.
+	 *
+	 * @param paths              non-null list of file paths
+	 * @param fileType           file type the files are digested as
+	 * @param charset            possibly-null charset to convert from
+	 * @param convertLineEndings whether to convert local line endings
+	 * @return non-null map of path to (possibly-null) digest
+	 */
+	public Map<String, String> digestAll(List<String> paths, final RpcPerforceFileType fileType, final Charset charset, final boolean convertLineEndings) {
+		final String[] pathArray = paths.toArray(new String[paths.size()]);
+		final String[] digests = new String[pathArray.length];
+
+		MapBulk.Range range = new MapBulk.Range() {
+			@Override
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					digests[i] = digest(new File(pathArray[i]), fileType, charset, convertLineEndings);
+				}
+			}
+		};
+		if (this.threads <= 1) {
+			range.run(0, pathArray.length);
+		} else {
+			MapBulk.run(getPool(this.threads), pathArray.length, MIN_BATCH + 1, MIN_BATCH, range);
+		}
+
+		Map<String, String> results = new HashMap<String, String>();
+		for (int i = 0; i < pathArray.length; i++) {
+			results.put(pathArray[i], digests[i]);
+		}
+		return results;
+	}
+
+	/**
+	 * Save the digest cache, if there is one.
+	 */
+	public void saveCache() {
+		if (this.cache != null) {
+			this.cache.save();
+		}
+	}
+
+	private String compute(File file, Charset charset, boolean convertLineEndings) {
+		// Without a charset, line endings are the only translation, and
+		// MD5Digester only translates them if local ones aren't LF.
+		if ((charset == null) && (!convertLineEndings || !ClientLineEnding.CONVERT_TEXT) && file.isFile()) {
+			return computeRaw(file);
+		}
+		return new MD5Digester().digestFileAs32ByteHex(file, charset, convertLineEndings);
+	}
+
+	private String computeRaw(File file) {
+		MD5Digester digester = new MD5Digester();
+		ByteBuffer buffer = buffers.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (true) {
+				buffer.clear();
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+				buffer.flip();
+				digester.update(buffer);
+			}
+			return digester.digestAs32ByteHex();
+		} catch (IOException ioexc) {
+			Log.error("error digesting file: " + file.getPath() + "; exception follows...");
+			Log.exception(ioexc);
+		}
+		return null;
+	}
+
+	private static ForkJoinPool getPool(int threads) {
+		ForkJoinPool forkJoinPool = pool;
+		if (forkJoinPool == null) {
+			synchronized (FileDigester.class) {
+				forkJoinPool = pool;
+				if (forkJoinPool == null) {
+					forkJoinPool = new ForkJoinPool(threads, new DigestThreadFactory(), null, false);
+					pool = forkJoinPool;
+				}
+			}
+		}
+		return forkJoinPool;
+	}
+
+	private static class DigestThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("P4Java Digest " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
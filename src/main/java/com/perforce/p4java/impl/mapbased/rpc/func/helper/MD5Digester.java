@@ -352,4 +352,16 @@ public class MD5Digester {
 			messageDigest.update(bytes);
 		}
 	}
+
+	/**
+	 * Update the digest with the buffer's remaining bytes, in place; the
+	 * buffer's position is left where it was.
+	 */
+	public void update(ByteBuffer buffer) {
+		if (nonNull(buffer)) {
+			int position = buffer.position();
+			messageDigest.update(buffer);
+			buffer.position(position);
+		}
+	}
 }
@@ -81,7 +81,20 @@ public class ProtocolFunctionDispatcher {
 
 				// Basically all we're supposed to do is send out a corresponding flush2
 				// packet, post haste. This may not always be possible, but we do our best...
-				
+				// The one deliberate exception is a flow-controlled streaming callback
+				// with no outstanding demand: holding back the flush2 makes the server
+				// stop sending at its high water mark until the consumer catches up.
+
+				cmdEnv.awaitStreamingDemand();
+				if (cmdEnv.isUserCanceled()) {
+					// Nothing more wanted; the server is waiting on us for the flush2,
+					// with unread output behind it, so the connection can't be used
+					// again (or go back to a socket pool): abort it and stop here.
+					rpcConnection.abort();
+					result = RpcPacketDispatcherResult.STOP_NORMAL;
+					break;
+				}
+
 				RpcPacket flush2Packet = rpcConnection.getFlowController().respondToFlush1(resultsMap);
 				rpcConnection.putRpcPacket(flush2Packet);
 				result = RpcPacketDispatcherResult.CONTINUE;
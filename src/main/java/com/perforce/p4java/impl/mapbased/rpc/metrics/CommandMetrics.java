@@ -0,0 +1,131 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.metrics;
+
+import com.perforce.p4java.server.metrics.CommandPhase;
+import com.perforce.p4java.server.metrics.ICommandMetrics;
+import com.perforce.p4java.server.metrics.ICommandSample;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics accumulated across all runs of one command. Thread-safe; counters
+ * are LongAdders so concurrent commands don't contend on them.
+ */
+public class CommandMetrics implements ICommandMetrics {
+
+	private static final CommandPhase[] PHASES = CommandPhase.values();
+
+	private final String commandName;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errorCount = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder packetsReceived = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LatencyHistogram[] latencies = new LatencyHistogram[PHASES.length];
+
+	public CommandMetrics(String commandName) {
+		this.commandName = commandName;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Add a completed command's measurements.
+	 */
+	public void record(ICommandSample sample) {
+		count.increment();
+		if (sample.isFailed()) {
+			errorCount.increment();
+		}
+		bytesSent.add(sample.getBytesSent());
+		bytesReceived.add(sample.getBytesReceived());
+		packetsSent.add(sample.getPacketsSent());
+		packetsReceived.add(sample.getPacketsReceived());
+		uncompressedBytes.add(sample.getUncompressedBytes());
+		compressedBytes.add(sample.getCompressedBytes());
+		for (CommandPhase phase : PHASES) {
+			if (sample.isMeasured(phase)) {
+				latencies[phase.ordinal()].record(sample.getNanos(phase));
+			}
+		}
+	}
+
+	public String getCommandName() {
+		return commandName;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.sum();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	public double getCompressionRatio() {
+		long compressed = getCompressedBytes();
+		return (compressed == 0) ? 0.0 : (double) getUncompressedBytes() / compressed;
+	}
+
+	public long getCount(CommandPhase phase) {
+		return latencies[phase.ordinal()].getCount();
+	}
+
+	public long getTotalNanos(CommandPhase phase) {
+		return latencies[phase.ordinal()].getTotalNanos();
+	}
+
+	public long getMaxNanos(CommandPhase phase) {
+		return latencies[phase.ordinal()].getMaxNanos();
+	}
+
+	public long getPercentileNanos(CommandPhase phase, double percentile) {
+		return latencies[phase.ordinal()].getPercentileNanos(percentile);
+	}
+
+	@Override
+	public String toString() {
+		String compression = "";
+		if (getCompressedBytes() > 0) {
+			compression = "; compression ratio " + String.format("%.2f", getCompressionRatio())
+					+ " cpu ms " + (getTotalNanos(CommandPhase.COMPRESSION) / 1000000);
+		}
+		return commandName + ": count " + getCount() + "; errors " + getErrorCount()
+				+ "; bytes sent " + getBytesSent() + "; bytes received " + getBytesReceived()
+				+ "; packets sent " + getPacketsSent() + "; packets received " + getPacketsReceived()
+				+ compression
+				+ "; total ms p50 " + (getPercentileNanos(CommandPhase.TOTAL, 50.0) / 1000000)
+				+ " p99 " + (getPercentileNanos(CommandPhase.TOTAL, 99.0) / 1000000)
+				+ " max " + (getMaxNanos(CommandPhase.TOTAL) / 1000000);
+	}
+}
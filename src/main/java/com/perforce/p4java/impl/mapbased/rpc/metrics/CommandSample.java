@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.metrics;
+
+import com.perforce.p4java.server.metrics.CommandPhase;
+import com.perforce.p4java.server.metrics.ICommandSample;
+
+/**
+ * Measurements for a single command while it runs. Updated on the hot path
+ * by the command's connection and dispatcher, so it's deliberately plain:
+ * not thread-safe, and only ever touched by the thread running the command.
+ */
+public class CommandSample implements ICommandSample {
+
+	private static final CommandPhase[] PHASES = CommandPhase.values();
+
+	private final String commandName;
+	private final long startNanos;
+	private final long[] nanos = new long[PHASES.length];
+	private final boolean[] measured = new boolean[PHASES.length];
+	private long bytesSent = 0;
+	private long bytesReceived = 0;
+	private long packetsSent = 0;
+	private long packetsReceived = 0;
+	private long uncompressedBytes = 0;
+	private long compressedBytes = 0;
+	private boolean failed = false;
+
+	public CommandSample(String commandName) {
+		this.commandName = commandName;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Add time spent in a phase.
+	 */
+	public void addNanos(CommandPhase phase, long elapsed) {
+		nanos[phase.ordinal()] += elapsed;
+		measured[phase.ordinal()] = true;
+	}
+
+	/**
+	 * Mark the command's connection as open; the time since the sample was
+	 * started is the connect phase.
+	 */
+	public void connected() {
+		addNanos(CommandPhase.CONNECT, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Record a packet sent.
+	 *
+	 * @param startNanos   System.nanoTime() when sending started
+	 * @param packetLength bytes sent
+	 */
+	public void packetSent(long startNanos, long packetLength) {
+		addNanos(CommandPhase.SEND, System.nanoTime() - startNanos);
+		bytesSent += packetLength;
+		packetsSent++;
+	}
+
+	/**
+	 * Record a packet received.
+	 *
+	 * @param waitStartNanos    System.nanoTime() when we started waiting for it
+	 * @param receiveStartNanos System.nanoTime() when it started arriving
+	 * @param packetLength      bytes received
+	 */
+	public void packetReceived(long waitStartNanos, long receiveStartNanos, long packetLength) {
+		addNanos(CommandPhase.SERVER_WAIT, receiveStartNanos - waitStartNanos);
+		addNanos(CommandPhase.RECEIVE, System.nanoTime() - receiveStartNanos);
+		bytesReceived += packetLength;
+		packetsReceived++;
+	}
+
+	/**
+	 * Record bytes compressed or decompressed for connection compression.
+	 *
+	 * @param plainBytes      bytes before compression / after decompression
+	 * @param compressedBytes bytes on the wire
+	 * @param elapsed         nanoseconds spent in zlib
+	 */
+	public void compressed(long plainBytes, long compressedBytes, long elapsed) {
+		addNanos(CommandPhase.COMPRESSION, elapsed);
+		this.uncompressedBytes += plainBytes;
+		this.compressedBytes += compressedBytes;
+	}
+
+	/**
+	 * Finish the sample, setting the total phase.
+	 *
+	 * @param failed whether the command failed
+	 */
+	public void finish(boolean failed) {
+		this.failed = failed;
+		nanos[CommandPhase.TOTAL.ordinal()] = System.nanoTime() - startNanos;
+		measured[CommandPhase.TOTAL.ordinal()] = true;
+	}
+
+	public String getCommandName() {
+		return commandName;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public boolean isMeasured(CommandPhase phase) {
+		return measured[phase.ordinal()];
+	}
+
+	public long getNanos(CommandPhase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes;
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+}
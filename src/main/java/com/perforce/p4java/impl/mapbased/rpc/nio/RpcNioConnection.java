@@ -0,0 +1,898 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.nio;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcPacketSendBuffer;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
+import com.perforce.p4java.impl.mapbased.rpc.stream.helper.RpcSocketHelper;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcZlibPool;
+import com.perforce.p4java.server.P4Charset;
+import com.perforce.p4java.server.callback.IFilterCallback;
+import org.apache.commons.lang3.Validate;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.perforce.p4java.common.base.P4JavaExceptions.throwConnectionException;
+import static com.perforce.p4java.common.base.P4JavaExceptions.throwConnectionExceptionIfConditionFails;
+import static com.perforce.p4java.common.base.P4JavaExceptions.throwP4JavaError;
+import static com.perforce.p4java.common.base.P4JavaExceptions.throwP4JavaErrorIfConditionFails;
+import static com.perforce.p4java.common.base.P4JavaExceptions.throwProtocolErrorIfConditionFails;
+import static java.util.Objects.nonNull;
+
+/**
+ * Non-blocking NIO implementation of the RpcConnection class.
+ * <p>
+ * The connection sits on a non-blocking SocketChannel registered with a
+ * shared RpcNioReactor. Reads and writes are attempted directly on the
+ * calling thread; only when the channel can't make progress does the caller
+ * park on a readiness future completed by one of the reactor's selector
+ * threads. Packet dispatch still runs on the command's own thread, so an
+ * in-flight command still has one thread waiting on it, parked on the
+ * future rather than blocked in a socket read. What the reactor saves is
+ * the socket side: readiness for every channel is watched by a handful of
+ * selector threads, and a parked command can be timed out or interrupted.
+ * <p>
+ * An async connection (see NioServerImpl.execMapCmdListAsync) has no thread
+ * of its own at all: its owner asks for awaitPacket() and dispatches the
+ * buffered packets from the future's callbacks, which run on the selector
+ * thread. Such a connection never parks; writes that the channel won't take
+ * at once are queued and sent as it becomes writable.
+ * <p>
+ * Incoming bytes are accumulated in a single growable ByteBuffer and RPC
+ * packets are framed incrementally from it (preamble first, then payload),
+ * so partial reads never block the framing logic. Reads are demand-driven:
+ * nothing is read from the channel until a caller asks for the next packet
+ * and the buffer doesn't already hold one, which keeps the buffered
+ * read-ahead exactly at a packet boundary when connection compression is
+ * switched on.
+ * <p>
+ * Connection compression is implemented with the JDK's native zlib
+ * Inflater / Deflater in raw ("nowrap") mode with a full flush at each
+ * packet boundary, which is wire-compatible with the jzlib streams used by
+ * RpcStreamConnection. SSL and 'rsh' mode are not supported by this
+ * connection; use the stream-based protocols for those.
+ */
+public class RpcNioConnection extends RpcConnection {
+
+	public static final String TRACE_PREFIX = "RpcNioConnection";
+
+	/**
+	 * Initial size of the send buffer used to marshal outgoing packets.
+	 */
+	protected static final int INITIAL_SENDBUF_SIZE = 2048;
+
+	/**
+	 * Size of the scratch buffer used for connection (de)compression.
+	 */
+	protected static final int ZBUF_SIZE = 10240;
+
+	/**
+	 * Most bytes an async connection queues for sending before it waits for
+	 * the channel to take some of them.
+	 */
+	protected static final int MAX_QUEUED_SEND_BYTES = 1024 * 1024;
+
+	private final RpcNioReactor reactor;
+	private SocketChannel channel = null;
+	private RpcNioReactor.Registration registration = null;
+
+	// Plain (decompressed) incoming bytes, always kept in "read" mode
+	// between calls: position is the first unconsumed byte, limit the end
+	// of valid data.
+	private ByteBuffer readBuf = null;
+
+	// Compressed incoming bytes; only used after useConnectionCompression().
+	private ByteBuffer zReadBuf = null;
+	private Inflater inflater = null;
+	private Deflater deflater = null;
+	private byte[] zBytes = null;
+	private byte[] zStageBytes = null;
+	private long deflatedBytes = 0;
+	private long deflateNanos = 0;
+
+	private final RpcPacketSendBuffer sendBuf;
+
+	private final long timeoutMillis;
+
+	private final boolean async;
+	private final CompletableFuture<Void> connected = new CompletableFuture<>();
+	// Bytes an async connection has yet to send, oldest first
+	private final ArrayDeque<ByteBuffer> queuedSends = new ArrayDeque<>();
+	private int queuedSendBytes = 0;
+
+	/**
+	 * Construct a new non-blocking NIO connection to the named Perforce server
+	 * and connect to it.
+	 *
+	 * @param serverHost non-null server host name or IP address
+	 * @param serverPort server port
+	 * @param props      possibly-null properties
+	 * @param stats      possibly-null stats
+	 * @param p4Charset  possibly-null client charset
+	 * @param reactor    non-null reactor to register the channel with
+	 * @throws ConnectionException on connection error
+	 */
+	public RpcNioConnection(String serverHost, int serverPort, Properties props, ServerStats stats, P4Charset p4Charset, @Nonnull RpcNioReactor reactor) throws ConnectionException {
+		this(serverHost, serverPort, props, stats, p4Charset, reactor, false);
+	}
+
+	/**
+	 * Construct a new non-blocking NIO connection to the named Perforce
+	 * server. A synchronous connection is connected before this returns; an
+	 * async one is connected on the reactor, and whenConnected() says when.
+	 *
+	 * @param serverHost non-null server host name or IP address
+	 * @param serverPort server port
+	 * @param props      possibly-null properties
+	 * @param stats      possibly-null stats
+	 * @param p4Charset  possibly-null client charset
+	 * @param reactor    non-null reactor to register the channel with
+	 * @param async      if true, the connection is only ever used from its
+	 *                   reactor callbacks and must never park
+	 * @throws ConnectionException on connection error
+	 */
+	public RpcNioConnection(String serverHost, int serverPort, Properties props, ServerStats stats, P4Charset p4Charset, @Nonnull RpcNioReactor reactor, boolean async) throws ConnectionException {
+		super(serverHost, serverPort, props, stats, p4Charset, false);
+		this.reactor = Validate.notNull(reactor);
+		this.async = async;
+		this.timeoutMillis = RpcPropertyDefs.getPropertyAsInt(this.props, RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_NICK, RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_DEFAULT);
+		int recvBufSize = RpcPropertyDefs.getPropertyAsInt(this.props, RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK, RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE);
+		this.readBuf = ByteBuffer.allocate(Math.max(recvBufSize, RpcPacketPreamble.RPC_PREAMBLE_SIZE));
+		this.readBuf.flip();
+		this.sendBuf = new RpcPacketSendBuffer(INITIAL_SENDBUF_SIZE, this.stats);
+		init();
+	}
+
+	/**
+	 * Open the channel and start connecting it, without blocking; the
+	 * connect itself is waited for through the reactor, for no longer than
+	 * the socket timeout.
+	 */
+	private void init() throws ConnectionException {
+		boolean connectedNow = false;
+		try {
+			InetSocketAddress address = new InetSocketAddress(hostName, hostPort);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(hostName);
+			}
+			channel = SocketChannel.open();
+			RpcSocketHelper.configureSocket(channel.socket(), props);
+			channel.configureBlocking(false);
+			registration = reactor.register(channel);
+			connectedNow = channel.connect(address);
+			if (!async) {
+				while (!connectedNow) {
+					awaitReady(SelectionKey.OP_CONNECT);
+					connectedNow = channel.finishConnect();
+				}
+			}
+		} catch (UnknownHostException exc) {
+			closeChannelQuietly();
+			throwConnectionException(exc, "Unable to resolve Perforce server host name '%s' for RPC connection", hostName);
+		} catch (IOException exc) {
+			closeChannelQuietly();
+			throwConnectionException(exc, "Unable to connect to Perforce server at %s:%s", hostName, hostPort);
+		} catch (ConnectionException exc) {
+			closeChannelQuietly();
+			throw exc;
+		} catch (Throwable thr) {
+			closeChannelQuietly();
+			Log.error("Unexpected exception: %s", thr.getLocalizedMessage());
+			Log.exception(thr);
+			throwConnectionException(thr);
+		}
+
+		if (connectedNow) {
+			getIpAddressFromSocketConnection();
+			connected.complete(null);
+		} else {
+			finishConnect();
+		}
+	}
+
+	/**
+	 * Finish an async connection's connect on the reactor.
+	 */
+	private void finishConnect() {
+		try {
+			if (channel.finishConnect()) {
+				getIpAddressFromSocketConnection();
+				connected.complete(null);
+				return;
+			}
+			registration.awaitReady(SelectionKey.OP_CONNECT, timeoutMillis).whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void result, Throwable thr) {
+					if (thr != null) {
+						connected.completeExceptionally(waitFailed(thr));
+					} else {
+						finishConnect();
+					}
+				}
+			});
+		} catch (IOException exc) {
+			connected.completeExceptionally(new ConnectionException(String.format("Unable to connect to Perforce server at %s:%s", hostName, hostPort), exc));
+		}
+	}
+
+	/**
+	 * Return a future completed (on a selector thread) once the connection
+	 * is connected, or exceptionally with a ConnectionException if it
+	 * couldn't be. Synchronous connections are connected once constructed.
+	 *
+	 * @return non-null future
+	 */
+	public CompletableFuture<Void> whenConnected() {
+		return this.connected;
+	}
+
+	private void getIpAddressFromSocketConnection() {
+		Socket socket = channel.socket();
+		InetAddress inetAddress = socket.getInetAddress();
+		if (nonNull(inetAddress)) {
+			String hostAddress = inetAddress.getHostAddress();
+			if (inetAddress instanceof Inet6Address) {
+				hostIp = "[" + hostAddress + "]";
+			} else {
+				hostIp = hostAddress;
+			}
+		}
+		if (socket.isBound()) {
+			InetAddress address = socket.getLocalAddress();
+			if (address instanceof Inet6Address) {
+				this.ourIp = "[" + address.getHostAddress() + "]";
+			} else {
+				this.ourIp = address.getHostAddress();
+			}
+			this.ourPort = socket.getLocalPort();
+		}
+	}
+
+	public String getServerIpPort() {
+		String serverIpPort = null;
+		if (hostIp != UNKNOWN_SERVER_HOST) {
+			serverIpPort = hostIp;
+			if (hostPort != UNKNOWN_SERVER_PORT) {
+				serverIpPort += ":" + hostPort;
+			}
+		} else if (hostPort != UNKNOWN_SERVER_PORT) {
+			serverIpPort = Integer.toString(hostPort);
+		}
+		return serverIpPort;
+	}
+
+	public String getServerHostNamePort() {
+		return hostName + ":" + hostPort;
+	}
+
+	public String getClientIpPort() {
+		String clientIpPort = null;
+		if (this.ourIp != UNKNOWN_SERVER_HOST) {
+			clientIpPort = this.ourIp;
+			if (this.ourPort != UNKNOWN_SERVER_PORT) {
+				clientIpPort += ":" + this.ourPort;
+			}
+		} else if (this.ourPort != UNKNOWN_SERVER_PORT) {
+			clientIpPort = Integer.toString(this.ourPort);
+		}
+		return clientIpPort;
+	}
+
+	public void disconnect(RpcPacketDispatcher dispatcher) throws ConnectionException {
+		if (nonNull(dispatcher) && nonNull(channel) && channel.isOpen()) {
+			try {
+				dispatcher.shutdown(this);
+				// An async connection may still have the release queued
+				sendQueued(true);
+			} catch (ConnectionException | IOException e) {
+				Log.exception(e);
+			}
+		}
+		if (nonNull(registration)) {
+			registration.cancel();
+		}
+		if (nonNull(inflater)) {
+			RpcZlibPool.release(inflater);
+			inflater = null;
+		}
+		if (nonNull(deflater)) {
+			RpcZlibPool.release(deflater);
+			deflater = null;
+		}
+		try {
+			if (nonNull(channel)) {
+				channel.close();
+			}
+		} catch (IOException exc) {
+			throwConnectionException(exc, "RPC disconnection error: %s", exc.getLocalizedMessage());
+		}
+	}
+
+	public void abort() {
+		try {
+			disconnect(null);
+		} catch (ConnectionException exc) {
+			Log.exception(exc);
+		}
+	}
+
+	public RpcPacket getRpcPacket() throws ConnectionException {
+		return getRpcPacket(null, null);
+	}
+
+	/**
+	 * Frame the next RPC packet from the incoming byte buffer, reading more
+	 * bytes off the channel only when the buffer doesn't yet hold a complete
+	 * packet.
+	 */
+	public RpcPacket getRpcPacket(final RpcPacketFieldRule fieldRule, final IFilterCallback filterCallback) throws ConnectionException {
+		RpcPacket packet = null;
+		long waitStart = sampleNanoTime();
+
+		try {
+			while (readBuf.remaining() < RpcPacketPreamble.RPC_PREAMBLE_SIZE) {
+				fillReadBuffer(RpcPacketPreamble.RPC_PREAMBLE_SIZE, true);
+			}
+			long receiveStart = sampleNanoTime();
+
+			RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(readBuf);
+			throwProtocolErrorIfConditionFails(preamble.isValidChecksum(), "Bad checksum in RPC preamble");
+
+			int payloadLength = preamble.getPayloadSize();
+			throwProtocolErrorIfConditionFails(payloadLength > 0, "Bad payload size in RPC preamble: %s", payloadLength);
+
+			if (readBuf.remaining() < payloadLength) {
+				stats.incompleteReads.incrementAndGet();
+				while (readBuf.remaining() < payloadLength) {
+					fillReadBuffer(payloadLength, true);
+				}
+			}
+
+			if (packetBufferPool != null) {
+				// Lazy field mode: the read buffer is reused for the next
+				// packet, so move the payload into a pooled buffer the packet
+				// can own until it's released.
+				ByteBuffer payloadBuf = packetBufferPool.acquire(payloadLength);
+				payloadBuf.put(readBuf.array(), readBuf.arrayOffset() + readBuf.position(), payloadLength);
+				readBuf.position(readBuf.position() + payloadLength);
+				payloadBuf.flip();
+				packet = RpcPacket.constructRpcPacket(preamble, payloadBuf, packetBufferPool, unicodeServer, p4Charset.getCharset(), fieldRule, filterCallback);
+			} else {
+				byte[] packetBytes = new byte[payloadLength];
+				readBuf.get(packetBytes);
+				packet = RpcPacket.constructRpcPacket(preamble, packetBytes, unicodeServer, p4Charset.getCharset(), fieldRule, filterCallback);
+			}
+			stats.packetsRecv.incrementAndGet();
+			stats.largestRpcPacketRecv.set(Math.max(stats.largestRpcPacketRecv.get(), packet.getPacketLength()));
+			if (commandSample != null) {
+				commandSample.packetReceived(waitStart, receiveStart, RpcPacketPreamble.RPC_PREAMBLE_SIZE + payloadLength);
+			}
+		} catch (IOException exc) {
+			throwConnectionException(exc);
+		} catch (ConnectionException | P4JavaError p4jexc) {
+			throw p4jexc;
+		} catch (Throwable thr) {
+			Log.error("Unexpected exception: %s", thr.getLocalizedMessage());
+			Log.exception(thr);
+			throwP4JavaError(thr, thr.getLocalizedMessage());
+		}
+
+		return packet;
+	}
+
+	/**
+	 * Anything already buffered counts; otherwise try one non-blocking read
+	 * off the channel, keeping whatever it gets for the next packet.
+	 */
+	@Override
+	public boolean isInputAvailable() {
+		if (readBuf.hasRemaining() || ((zReadBuf != null) && zReadBuf.hasRemaining())) {
+			return true;
+		}
+		ByteBuffer buffer = (inflater == null) ? readBuf : zReadBuf;
+		buffer.compact();
+		try {
+			int bytesRead = channel.read(buffer);
+			if (bytesRead > 0) {
+				stats.streamRecvs.incrementAndGet();
+				stats.totalBytesRecv.getAndAdd(bytesRead);
+				if (stats.largestRecv.get() < bytesRead) {
+					stats.largestRecv.set(bytesRead);
+				}
+				return true;
+			}
+		} catch (IOException exc) {
+			// Left for the next read to report
+		} finally {
+			buffer.flip();
+		}
+		return false;
+	}
+
+	/**
+	 * Return true if the read buffer holds at least one whole packet (or
+	 * the start of one getRpcPacket() will reject), first reading whatever
+	 * the channel has without waiting for more.
+	 *
+	 * @return true if getRpcPacket() would not have to wait
+	 * @throws ConnectionException if the connection failed or was closed
+	 */
+	public boolean isPacketBuffered() throws ConnectionException {
+		try {
+			while (true) {
+				int needed = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
+				if (readBuf.remaining() >= needed) {
+					RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(readBuf.duplicate());
+					if (!preamble.isValidChecksum() || (preamble.getPayloadSize() <= 0)) {
+						return true;
+					}
+					needed += preamble.getPayloadSize();
+					if (readBuf.remaining() >= needed) {
+						return true;
+					}
+				}
+				if (!fillReadBuffer(needed, false)) {
+					return false;
+				}
+			}
+		} catch (IOException exc) {
+			throw new ConnectionException(exc);
+		}
+	}
+
+	/**
+	 * Return a future completed on the connection's selector thread once
+	 * a whole packet is buffered (see isPacketBuffered()), sending any queued
+	 * bytes meanwhile; it fails with a ConnectionException if the
+	 * connection fails, is cancelled, or the server has sent nothing for
+	 * longer than the socket timeout. For async connections only.
+	 *
+	 * @return non-null future
+	 */
+	public CompletableFuture<Void> awaitPacket() {
+		CompletableFuture<Void> packet = new CompletableFuture<>();
+		awaitPacket(packet);
+		return packet;
+	}
+
+	private void awaitPacket(final CompletableFuture<Void> packet) {
+		try {
+			boolean sent = sendQueued(false);
+			if (isPacketBuffered()) {
+				packet.complete(null);
+				return;
+			}
+			int ops = SelectionKey.OP_READ | (sent ? 0 : SelectionKey.OP_WRITE);
+			registration.awaitReady(ops, timeoutMillis).whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void result, Throwable thr) {
+					if (thr != null) {
+						packet.completeExceptionally(waitFailed(thr));
+					} else {
+						awaitPacket(packet);
+					}
+				}
+			});
+		} catch (IOException exc) {
+			packet.completeExceptionally(new ConnectionException(exc));
+		} catch (Throwable thr) {
+			packet.completeExceptionally(thr);
+		}
+	}
+
+	/**
+	 * Stop an async connection: its current or next wait fails, and the
+	 * owner can then disconnect it from the selector thread. Safe to call
+	 * from any thread.
+	 */
+	public void cancel() {
+		if (nonNull(registration)) {
+			registration.cancel();
+		}
+	}
+
+	/**
+	 * Add at least one byte of (plain) data to the read buffer, making sure
+	 * the buffer can eventually hold at least minFree unconsumed bytes. If
+	 * wait is false and the channel has nothing yet, return false instead
+	 * of parking.
+	 */
+	private boolean fillReadBuffer(int minFree, boolean wait) throws IOException, ConnectionException {
+		ensureReadCapacity(readBuf, minFree);
+		if (inflater == null) {
+			readBuf.compact();
+			try {
+				return readFromChannel(readBuf, wait);
+			} finally {
+				readBuf.flip();
+			}
+		} else {
+			// A partial deflate block may inflate to nothing, in which case
+			// we need more compressed bytes before trying again.
+			boolean needInput = !zReadBuf.hasRemaining();
+			while (true) {
+				if (needInput) {
+					zReadBuf.compact();
+					try {
+						if (!readFromChannel(zReadBuf, wait)) {
+							return false;
+						}
+					} finally {
+						zReadBuf.flip();
+					}
+				}
+				if (inflateInto(readBuf) > 0) {
+					return true;
+				}
+				needInput = true;
+			}
+		}
+	}
+
+	/**
+	 * Read whatever is available from the channel into the (fill-mode)
+	 * buffer, parking on the reactor until at least one byte arrives if
+	 * wait is true; otherwise return false if nothing has.
+	 */
+	private boolean readFromChannel(ByteBuffer buffer, boolean wait) throws IOException, ConnectionException {
+		while (true) {
+			int bytesRead = channel.read(buffer);
+			throwConnectionExceptionIfConditionFails(bytesRead >= 0, "server connection unexpectedly closed");
+			if (bytesRead > 0) {
+				stats.streamRecvs.incrementAndGet();
+				stats.totalBytesRecv.getAndAdd(bytesRead);
+				if (stats.largestRecv.get() < bytesRead) {
+					stats.largestRecv.set(bytesRead);
+				}
+				return true;
+			}
+			if (!wait) {
+				return false;
+			}
+			awaitReady(SelectionKey.OP_READ);
+		}
+	}
+
+	private int inflateInto(ByteBuffer target) throws IOException {
+		if (zReadBuf.hasRemaining()) {
+			inflater.setInput(zReadBuf.array(), zReadBuf.arrayOffset() + zReadBuf.position(), zReadBuf.remaining());
+		}
+		target.compact();
+		int inflated = 0;
+		int zStart = zReadBuf.position();
+		long start = sampleNanoTime();
+		try {
+			int count = inflater.inflate(target.array(), target.arrayOffset() + target.position(), target.remaining());
+			target.position(target.position() + count);
+			inflated = count;
+		} catch (DataFormatException exc) {
+			throw new IOException("connection decompression error: " + exc.getLocalizedMessage(), exc);
+		} finally {
+			target.flip();
+			zReadBuf.position(zReadBuf.limit() - inflater.getRemaining());
+		}
+		if (commandSample != null) {
+			commandSample.compressed(inflated, zReadBuf.position() - zStart, sampleNanoTime() - start);
+		}
+		return inflated;
+	}
+
+	private ByteBuffer ensureReadCapacity(ByteBuffer buffer, int minFree) {
+		if (buffer.capacity() < minFree) {
+			ByteBuffer newBuf = ByteBuffer.allocate(Math.max(minFree, buffer.capacity() * 2));
+			newBuf.put(buffer);
+			newBuf.flip();
+			stats.bufferCompacts.incrementAndGet();
+			if (buffer == readBuf) {
+				readBuf = newBuf;
+			}
+			return newBuf;
+		}
+		return buffer;
+	}
+
+	private void awaitReady(int ops) throws ConnectionException {
+		// Parking an async connection would park its selector thread, which
+		// is the thread that has to wake it.
+		throwP4JavaErrorIfConditionFails(!async, "Blocking wait on an async NIO connection");
+		CompletableFuture<Void> ready = registration.awaitReady(ops, timeoutMillis);
+		try {
+			ready.get();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throwConnectionException(exc, "Interrupted while waiting for Perforce server at %s:%s", hostName, hostPort);
+		} catch (ExecutionException exc) {
+			throw waitFailed(exc.getCause());
+		}
+	}
+
+	/**
+	 * Turn the failure of a readiness wait into the ConnectionException to
+	 * report.
+	 */
+	private ConnectionException waitFailed(Throwable thr) {
+		Throwable cause = (thr instanceof CompletionException) && (thr.getCause() != null) ? thr.getCause() : thr;
+		if (cause instanceof ConnectionException) {
+			return (ConnectionException) cause;
+		}
+		if (cause instanceof SocketTimeoutException) {
+			return new ConnectionException(String.format("Timed out after %sms waiting for Perforce server at %s:%s", timeoutMillis, hostName, hostPort), cause);
+		}
+		return new ConnectionException(String.format("Perforce server connection closed: %s", cause.getLocalizedMessage()), cause);
+	}
+
+	public int getSystemRecvBufferSize() {
+		try {
+			return channel.socket().getReceiveBufferSize();
+		} catch (SocketException exc) {
+			Log.error("unexpected exception: %s", exc.getLocalizedMessage());
+			Log.exception(exc);
+		}
+		return 0;
+	}
+
+	public int getSystemSendBufferSize() {
+		try {
+			return channel.socket().getSendBufferSize();
+		} catch (SocketException exc) {
+			Log.error("unexpected exception: %s", exc.getLocalizedMessage());
+			Log.exception(exc);
+		}
+		return 0;
+	}
+
+	public long putRpcPackets(@Nonnull RpcPacket[] packets) throws ConnectionException {
+		Validate.notNull(packets);
+		long retVal = 0;
+		for (RpcPacket packet : packets) {
+			if (nonNull(packet)) {
+				retVal += putRpcPacket(packet);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Marshal the packet (in the same fixed field order as RpcStreamConnection)
+	 * into the connection's reusable send buffer and write it to the channel
+	 * with a single gathering write, compressing it first if connection
+	 * compression is on. Large byte array and ByteBuffer values are never
+	 * copied into the send buffer.
+	 */
+	public long putRpcPacket(@Nonnull RpcPacket packet) throws ConnectionException {
+		Validate.notNull(packet);
+		throwP4JavaErrorIfConditionFails(nonNull(packet.getFuncNameString()), "Unmapped / unmappable function in RpcPacket.put()");
+
+		sendBuf.reset();
+		try {
+			marshalPacket(packet, sendBuf);
+			sendBuf.finishPacket();
+			int packetLength = sendBuf.getPacketLength();
+			ByteBuffer[] buffers = sendBuf.toByteBuffers();
+			long sendStart = sampleNanoTime();
+			if (deflater == null) {
+				writeToChannel(buffers);
+			} else {
+				deflateAndWrite(buffers, packetLength);
+			}
+			if (commandSample != null) {
+				commandSample.packetSent(sendStart, packetLength);
+			}
+			stats.packetsSent.incrementAndGet();
+			if (stats.largestRpcPacketSent.get() < packetLength) {
+				stats.largestRpcPacketSent.set(packetLength);
+			}
+		} catch (IOException exc) {
+			Log.exception(exc);
+			throwConnectionException(exc, "Unable to send command to Perforce server: %s", exc.getMessage());
+		} finally {
+			sendBuf.reset();
+		}
+		return 0;
+	}
+
+	private void deflateAndWrite(ByteBuffer[] buffers, int packetLength) throws IOException, ConnectionException {
+		deflatedBytes = 0;
+		deflateNanos = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = buffers[i];
+			boolean last = (i == buffers.length - 1);
+			if (buffer.hasArray()) {
+				deflate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), last);
+			} else {
+				// Direct buffers (file content) have to be staged through a
+				// heap array for the deflater.
+				if (zStageBytes == null) {
+					zStageBytes = new byte[zBytes.length];
+				}
+				do {
+					int len = Math.min(buffer.remaining(), zStageBytes.length);
+					buffer.get(zStageBytes, 0, len);
+					deflate(zStageBytes, 0, len, last && !buffer.hasRemaining());
+				} while (buffer.hasRemaining());
+			}
+		}
+		if (commandSample != null) {
+			commandSample.compressed(packetLength, deflatedBytes, deflateNanos);
+		}
+	}
+
+	private void deflate(byte[] bytes, int offset, int length, boolean flush) throws IOException, ConnectionException {
+		deflater.setInput(bytes, offset, length);
+		while (true) {
+			long start = sampleNanoTime();
+			int count = deflater.deflate(zBytes, 0, zBytes.length, flush ? Deflater.FULL_FLUSH : Deflater.NO_FLUSH);
+			deflateNanos += sampleNanoTime() - start;
+			if (count > 0) {
+				deflatedBytes += count;
+				writeToChannel(ByteBuffer.wrap(zBytes, 0, count));
+			}
+			if (count < zBytes.length && deflater.needsInput()) {
+				break;
+			}
+		}
+	}
+
+	private void writeToChannel(ByteBuffer buffer) throws IOException, ConnectionException {
+		writeToChannel(new ByteBuffer[]{buffer});
+	}
+
+	private void writeToChannel(ByteBuffer[] buffers) throws IOException, ConnectionException {
+		if (async) {
+			queueSend(buffers);
+			return;
+		}
+		int first = 0;
+		while (first < buffers.length) {
+			if (!buffers[first].hasRemaining()) {
+				first++;
+				continue;
+			}
+			long written = channel.write(buffers, first, buffers.length - first);
+			if (written > 0) {
+				countSend(written);
+			} else {
+				awaitReady(SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * Send as much of the buffers as the channel takes now and queue a copy
+	 * of the rest (the buffers are reused once this returns). If the queue
+	 * grows past MAX_QUEUED_SEND_BYTES, wait for the channel to take it.
+	 */
+	private void queueSend(ByteBuffer[] buffers) throws IOException, ConnectionException {
+		if (sendQueued(false)) {
+			long written;
+			do {
+				written = channel.write(buffers);
+				if (written > 0) {
+					countSend(written);
+				}
+			} while (written > 0);
+		}
+		int remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		if (remaining > 0) {
+			ByteBuffer copy = ByteBuffer.allocate(remaining);
+			for (ByteBuffer buffer : buffers) {
+				copy.put(buffer);
+			}
+			copy.flip();
+			queuedSends.add(copy);
+			queuedSendBytes += remaining;
+			if (queuedSendBytes > MAX_QUEUED_SEND_BYTES) {
+				sendQueued(true);
+			}
+		}
+	}
+
+	/**
+	 * Send queued bytes; return true if none are left. If wait is true, wait
+	 * (for no longer than the socket timeout each time the channel stalls)
+	 * until they've all gone. An async connection can't wait on the reactor
+	 * for this, as it runs on the selector thread, so it waits on a private
+	 * selector.
+	 */
+	private boolean sendQueued(boolean wait) throws IOException, ConnectionException {
+		while (!queuedSends.isEmpty()) {
+			ByteBuffer head = queuedSends.peek();
+			int written = channel.write(head);
+			if (written > 0) {
+				countSend(written);
+				queuedSendBytes -= written;
+			}
+			if (!head.hasRemaining()) {
+				queuedSends.poll();
+			} else if (written == 0) {
+				if (!wait) {
+					return false;
+				}
+				Selector selector = Selector.open();
+				try {
+					channel.register(selector, SelectionKey.OP_WRITE);
+					if (selector.select(timeoutMillis) == 0) {
+						throwConnectionException(new SocketTimeoutException(), "Timed out after %sms sending to Perforce server at %s:%s", timeoutMillis, hostName, hostPort);
+					}
+				} finally {
+					selector.close();
+				}
+			}
+		}
+		return true;
+	}
+
+	private void countSend(long written) {
+		stats.streamSends.incrementAndGet();
+		stats.totalBytesSent.getAndAdd(written);
+		if (stats.largestSend.get() < written) {
+			stats.largestSend.set(written);
+		}
+	}
+
+	/**
+	 * Switch the connection to zlib compression. The compress2 reply is
+	 * sent uncompressed; everything after it is compressed in both
+	 * directions. Any bytes already read past the compress1 packet are by
+	 * definition compressed and are moved over to the compressed buffer.
+	 */
+	@Override
+	public void useConnectionCompression() throws ConnectionException {
+		if (!usingCompression) {
+			super.useConnectionCompression();
+			putRpcPacket(RpcPacket.constructRpcPacket(RpcFunctionSpec.PROTOCOL_COMPRESS2, "compress2", null, null));
+
+			zBytes = new byte[ZBUF_SIZE];
+			deflater = RpcZlibPool.getDeflater(getCompressionLevel(), getCompressionStrategy());
+			inflater = RpcZlibPool.getInflater();
+			zReadBuf = ByteBuffer.allocate(Math.max(ZBUF_SIZE, readBuf.remaining()));
+			zReadBuf.put(readBuf);
+			zReadBuf.flip();
+			readBuf.clear();
+			readBuf.flip();
+		}
+	}
+
+	private void closeChannelQuietly() {
+		if (nonNull(channel)) {
+			try {
+				channel.close();
+			} catch (IOException exc) {
+				Log.exception(exc);
+			}
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.nio;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small selector-based reactor shared by all NIO RPC connections.
+ * <p>
+ * The reactor owns a fixed number of selector threads; each channel is
+ * pinned to one of them round-robin at registration time. The reactor only
+ * deals with readiness: a connection that can't make progress on a
+ * non-blocking read or write asks for a readiness future, and the selector
+ * thread completes that future once the channel is ready, or fails it once
+ * the wait's timeout has passed. Anything chained onto the future with the
+ * non-async CompletableFuture methods runs on the selector thread; this is
+ * how async commands are dispatched without a thread of their own.
+ * <p>
+ * All selector threads are daemon threads and live for the lifetime of the
+ * JVM (or until shutdown() is called on a non-default reactor).
+ */
+public class RpcNioReactor {
+
+	public static final String TRACE_PREFIX = "RpcNioReactor";
+
+	private static volatile RpcNioReactor defaultReactor = null;
+
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Return the JVM-wide shared reactor, creating it on first use with the
+	 * number of selector threads given by the RPC_NIO_IO_THREADS_NICK property
+	 * in the passed-in properties (if any).
+	 *
+	 * @param props possibly-null properties
+	 * @return non-null shared reactor
+	 * @throws IOException if the selectors could not be opened
+	 */
+	public static RpcNioReactor getDefault(Properties props) throws IOException {
+		RpcNioReactor reactor = defaultReactor;
+		if (reactor == null) {
+			synchronized (RpcNioReactor.class) {
+				reactor = defaultReactor;
+				if (reactor == null) {
+					int threads = RpcPropertyDefs.getPropertyAsInt(props, RpcPropertyDefs.RPC_NIO_IO_THREADS_NICK, RpcPropertyDefs.RPC_NIO_IO_THREADS_DEFAULT);
+					reactor = new RpcNioReactor(threads);
+					defaultReactor = reactor;
+				}
+			}
+		}
+		return reactor;
+	}
+
+	/**
+	 * Create a reactor with the given number of selector threads.
+	 *
+	 * @param ioThreads number of selector threads; values less than one are treated as one
+	 * @throws IOException if a selector could not be opened
+	 */
+	public RpcNioReactor(int ioThreads) throws IOException {
+		int count = Math.max(1, ioThreads);
+		this.loops = new SelectorLoop[count];
+		for (int i = 0; i < count; i++) {
+			this.loops[i] = new SelectorLoop(Selector.open(), i);
+		}
+		for (SelectorLoop loop : this.loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Register a (non-blocking) channel with one of the selector threads. The
+	 * channel is registered with no interest ops; use the returned handle to
+	 * wait for readiness.
+	 *
+	 * @param channel non-null channel already in non-blocking mode
+	 * @return non-null registration handle
+	 */
+	public Registration register(SelectableChannel channel) {
+		int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		return new Registration(loops[index], channel);
+	}
+
+	/**
+	 * Stop all selector threads. Registered channels are not closed, but
+	 * outstanding readiness waits fail, as do any asked for afterwards.
+	 */
+	public void shutdown() {
+		for (SelectorLoop loop : loops) {
+			loop.stop();
+		}
+	}
+
+	/**
+	 * @return the number of selector threads in this reactor.
+	 */
+	public int getIoThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Per-channel registration with a selector thread. Only one readiness
+	 * wait may be outstanding per registration at a time, which matches the
+	 * strictly request / response usage of an RPC connection.
+	 */
+	public static class Registration {
+		private final SelectorLoop loop;
+		private final SelectableChannel channel;
+		private volatile SelectionKey key = null;
+		private volatile CompletableFuture<Void> pending = null;
+		private volatile boolean cancelled = false;
+		// Only touched on the selector thread
+		private long deadline = 0;
+		private boolean timed = false;
+
+		Registration(SelectorLoop loop, SelectableChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		/**
+		 * Ask the selector thread to complete the returned future once the
+		 * channel is ready for the given operations (SelectionKey.OP_READ,
+		 * OP_WRITE and / or OP_CONNECT).
+		 *
+		 * @param ops           interest ops
+		 * @param timeoutMillis time to wait in milliseconds; zero waits for
+		 *                      ever
+		 * @return non-null future completed on readiness, or exceptionally
+		 * with a SocketTimeoutException once the timeout has passed, or with
+		 * a ClosedChannelException if the channel was closed, the
+		 * registration cancelled or the reactor stopped.
+		 */
+		public CompletableFuture<Void> awaitReady(final int ops, final long timeoutMillis) {
+			final CompletableFuture<Void> future = new CompletableFuture<>();
+			if (this.cancelled) {
+				future.completeExceptionally(new ClosedChannelException());
+				return future;
+			}
+			this.pending = future;
+			boolean queued = loop.execute(new Runnable() {
+				public void run() {
+					try {
+						if (key == null) {
+							key = channel.register(loop.selector, ops, Registration.this);
+						} else {
+							key.interestOps(ops);
+						}
+						if (timeoutMillis > 0) {
+							deadline = System.currentTimeMillis() + timeoutMillis;
+							if (!timed) {
+								timed = true;
+								loop.timed.add(Registration.this);
+							}
+						}
+					} catch (ClosedChannelException | CancelledKeyException exc) {
+						future.completeExceptionally(exc);
+					}
+				}
+			});
+			if (!queued) {
+				future.completeExceptionally(new ClosedChannelException());
+			}
+			return future;
+		}
+
+		/**
+		 * Cancel the registration and fail any outstanding readiness wait,
+		 * along with any asked for later. Does not close the channel.
+		 */
+		public void cancel() {
+			this.cancelled = true;
+			boolean queued = loop.execute(new Runnable() {
+				public void run() {
+					if (key != null) {
+						key.cancel();
+					}
+					failPending(new ClosedChannelException());
+				}
+			});
+			if (!queued) {
+				failPending(new ClosedChannelException());
+			}
+		}
+
+		void ready() {
+			// Called on the selector thread only.
+			if (key != null && key.isValid()) {
+				key.interestOps(0);
+			}
+			this.deadline = 0;
+			CompletableFuture<Void> future = this.pending;
+			this.pending = null;
+			if (future != null) {
+				future.complete(null);
+			}
+		}
+
+		void failPending(Throwable thr) {
+			CompletableFuture<Void> future = this.pending;
+			this.pending = null;
+			if (future != null) {
+				future.completeExceptionally(thr);
+			}
+		}
+
+		void timeOut() {
+			// Called on the selector thread only.
+			if (key != null && key.isValid()) {
+				key.interestOps(0);
+			}
+			this.deadline = 0;
+			failPending(new SocketTimeoutException("timed out waiting for channel readiness"));
+		}
+	}
+
+	/**
+	 * One selector plus the thread that spins it.
+	 */
+	static class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		// Registrations waiting with a timeout; only touched on the selector thread
+		private final List<Registration> timed = new ArrayList<>();
+		private final Thread thread;
+		private volatile boolean running = true;
+
+		SelectorLoop(Selector selector, int index) {
+			this.selector = selector;
+			this.thread = new Thread(this);
+			this.thread.setName("P4Java NIO Selector " + index);
+			this.thread.setDaemon(true);
+		}
+
+		void start() {
+			this.thread.start();
+		}
+
+		void stop() {
+			this.running = false;
+			this.selector.wakeup();
+		}
+
+		/**
+		 * Run the task on the selector thread: at once if called on it,
+		 * otherwise before the next select. Returns false if the loop has
+		 * stopped, in which case the task may never run.
+		 */
+		boolean execute(Runnable task) {
+			if (Thread.currentThread() == this.thread) {
+				if (!this.running) {
+					return false;
+				}
+				task.run();
+				return true;
+			}
+			this.tasks.add(task);
+			this.selector.wakeup();
+			// A task added after the loop's last look at the queue sees the
+			// loop stopped here; one added before it gets run then.
+			return this.running;
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		/**
+		 * Time out any expired waits; return the time to the next deadline,
+		 * or zero if there's none.
+		 */
+		private long expireWaits() {
+			long now = System.currentTimeMillis();
+			long next = 0;
+			List<Registration> expired = null;
+			Iterator<Registration> iter = timed.iterator();
+			while (iter.hasNext()) {
+				Registration registration = iter.next();
+				if ((registration.pending == null) || (registration.deadline == 0)) {
+					registration.timed = false;
+					iter.remove();
+				} else if (registration.deadline <= now) {
+					registration.timed = false;
+					iter.remove();
+					if (expired == null) {
+						expired = new ArrayList<>();
+					}
+					expired.add(registration);
+				} else if ((next == 0) || (registration.deadline - now < next)) {
+					next = registration.deadline - now;
+				}
+			}
+			if (expired != null) {
+				// Outside the iteration, as failing a wait may start another
+				for (Registration registration : expired) {
+					registration.timeOut();
+				}
+				return expireWaits();
+			}
+			return next;
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					runTasks();
+
+					selector.select(expireWaits());
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Registration registration = (Registration) key.attachment();
+						if (!key.isValid()) {
+							registration.failPending(new ClosedChannelException());
+						} else {
+							registration.ready();
+						}
+					}
+				} catch (CancelledKeyException exc) {
+					// Channel closed under us; the owning connection will notice.
+				} catch (Throwable thr) {
+					Log.error("Unexpected exception in " + TRACE_PREFIX + " selector loop: " + thr.getLocalizedMessage());
+					Log.exception(thr);
+				}
+			}
+
+			// Let any queued registrations happen so they're failed below
+			try {
+				runTasks();
+			} catch (Throwable thr) {
+				Log.exception(thr);
+			}
+			for (Registration registration : new ArrayList<>(timed)) {
+				registration.failPending(new ClosedChannelException());
+			}
+			for (SelectionKey key : selector.keys()) {
+				((Registration) key.attachment()).failPending(new ClosedChannelException());
+			}
+			try {
+				selector.close();
+			} catch (IOException exc) {
+				Log.exception(exc);
+			}
+		}
+	}
+}
@@ -3,11 +3,13 @@
  */
 package com.perforce.p4java.impl.mapbased.rpc.packet;
 
+import com.perforce.p4java.CharsetDefs;
 import com.perforce.p4java.Log;
 import com.perforce.p4java.exception.NullPointerError;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.ProtocolError;
 import com.perforce.p4java.impl.mapbased.rpc.ExternalEnv;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
@@ -88,6 +90,8 @@ public class RpcPacket {
 	private Map<String, Object> mapArgs = null; // for named args going to the wire
 	private Map<String, Object> resultsMap = null;    // for results off the wire
 	private int packetLength = 0;
+	private ByteBuffer payloadBuffer = null;    // pooled payload backing a lazy results map
+	private RpcPacketBufferPool bufferPool = null;
 
 	/**
 	 * Return a four byte array ready for sending across the wire that
@@ -200,6 +204,41 @@ public class RpcPacket {
 		return new RpcPacket(preamble, bytes, isUnicodeServer, charset, fieldRule, filterCallback);
 	}
 
+	/**
+	 * Construct an RPC packet from the passed-in preamble and payload buffer
+	 * without decoding the field values; the packet's results map is an
+	 * RpcPacketFieldMap whose values are materialised on first access.
+	 * <p>
+	 * The packet takes ownership of the payload buffer (whose position and
+	 * limit must delimit the payload, and which must be array-backed); the
+	 * buffer is handed back to the passed-in pool, if any, when release() is
+	 * called. Filter callbacks need to see every value as it's decoded, so
+	 * if one is given this falls back to the eager constructor.
+	 *
+	 * @param preamble        preamble
+	 * @param payload         non-null array-backed payload buffer
+	 * @param pool            possibly-null pool the payload buffer came from
+	 * @param isUnicodeServer isUnicodeServer
+	 * @param charset         charset
+	 * @param fieldRule       fieldRule
+	 * @param filterCallback  filterCallback
+	 * @return RpcPacket
+	 */
+	public static RpcPacket constructRpcPacket(RpcPacketPreamble preamble, ByteBuffer payload, RpcPacketBufferPool pool, boolean isUnicodeServer, Charset charset, RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) {
+		if (payload == null) {
+			throw new NullPointerError("null payload buffer passed to RpcPacket constructor");
+		}
+		if (filterCallback != null) {
+			byte[] payloadBytes = new byte[payload.remaining()];
+			payload.get(payloadBytes);
+			if (pool != null) {
+				pool.release(payload);
+			}
+			return new RpcPacket(preamble, payloadBytes, isUnicodeServer, charset, fieldRule, filterCallback);
+		}
+		return new RpcPacket(preamble, payload, pool, isUnicodeServer, charset, fieldRule);
+	}
+
 	private RpcPacket(RpcFunctionSpec funcName, String realName, String[] args, ExternalEnv env) {
 		if (funcName == null) {
 			throw new NullPointerError("Null function name passed to RpcPacket constructor");
@@ -347,6 +386,66 @@ public class RpcPacket {
 		}
 	}
 
+	private RpcPacket(RpcPacketPreamble preamble, ByteBuffer payload, RpcPacketBufferPool pool, boolean isUnicodeServer, Charset charset, RpcPacketFieldRule fieldRule) {
+		if (preamble == null) {
+			throw new NullPointerError("null RPC preamble passed to RpcPacket constructor");
+		}
+		if (!preamble.isValidChecksum()) {
+			throw new ProtocolError("Bad checksum in RPC preamble passed to RpcPacket constructor");
+		}
+		if (!payload.hasArray()) {
+			throw new P4JavaError("non-array-backed payload buffer passed to RpcPacket constructor");
+		}
+
+		int payloadLength = preamble.getPayloadSize();
+		if (payloadLength != payload.remaining()) {
+			throw new P4JavaError("bad payload buffer size in RpcPacket constructor; buffer remaining: " + payload.remaining() + "; from preamble: " + payloadLength);
+		}
+
+		// Same charset choice as RpcPacketField.retrievePacketField, but
+		// resolved once per packet rather than looked up by name per field.
+		Charset fieldCharset = charset == null ? RpcConnection.NON_UNICODE_SERVER_CHARSET : (isUnicodeServer ? CharsetDefs.UTF8 : charset);
+
+		try {
+			this.resultsMap = new RpcPacketFieldMap(payload.array(), payload.arrayOffset() + payload.position(), payloadLength, fieldCharset, fieldRule);
+			this.packetLength = payloadLength;
+			this.funcNameString = (String) resultsMap.get(RpcFunctionMapKey.FUNCTION);
+			this.payloadBuffer = payload;
+			this.bufferPool = pool;
+		} catch (ProtocolError pe) {
+			if (pool != null) {
+				pool.release(payload);
+			}
+			throw pe;
+		} catch (Throwable thr) {
+			if (pool != null) {
+				pool.release(payload);
+			}
+			Log.error("Unexpected exception: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+			throw new ProtocolError(thr.getLocalizedMessage(), thr);
+		}
+	}
+
+	/**
+	 * Release any payload buffer held by this packet back to its pool. A
+	 * lazily decoded results map is first detached from the buffer, so it
+	 * remains fully usable afterwards. Does nothing for eagerly decoded or
+	 * outgoing packets; safe to call more than once.
+	 */
+	public void release() {
+		ByteBuffer payload = this.payloadBuffer;
+		if (payload != null) {
+			this.payloadBuffer = null;
+			if (this.resultsMap instanceof RpcPacketFieldMap) {
+				((RpcPacketFieldMap) this.resultsMap).detach();
+			}
+			if (this.bufferPool != null) {
+				this.bufferPool.release(payload);
+			}
+		}
+	}
+
 	public Map<String, Object> getResultsMap() {
 		return this.resultsMap;
 	}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte buffers used to hold incoming RPC packet payloads
+ * in lazy field decoding mode, and the segments of buffered stream command
+ * output (see RpcByteBufferOutput).
+ * <p>
+ * Buffers are pooled in power-of-two size classes from MIN_POOLED_SIZE up to
+ * MAX_POOLED_SIZE; requests larger than that are satisfied with a fresh,
+ * unpooled buffer, as are requests made while a size class is empty. At most
+ * maxPerClass buffers are retained per size class, so the pool can never hold
+ * more than a few megabytes no matter how many connections use it.
+ * <p>
+ * A pool hands out either heap or direct buffers, never both. The pool is
+ * thread-safe and lock-free; a single JVM-wide instance of each kind is
+ * normally shared by all connections (see getDefault() and getDefaultDirect()).
+ */
+public class RpcPacketBufferPool {
+
+	/**
+	 * Smallest pooled buffer size, in bytes.
+	 */
+	public static final int MIN_POOLED_SIZE = 4096;
+
+	/**
+	 * Largest pooled buffer size, in bytes; anything bigger is allocated
+	 * (and dropped) on demand.
+	 */
+	public static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+	private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1;
+
+	private static volatile RpcPacketBufferPool defaultPool = null;
+	private static volatile RpcPacketBufferPool defaultDirectPool = null;
+
+	private final Queue<ByteBuffer>[] classes;
+	private final AtomicInteger[] counts;
+	private final int maxPerClass;
+	private final boolean direct;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Return the JVM-wide shared pool, creating it on first use with the
+	 * per-size-class bound given by the RPC_PACKET_BUFFER_POOL_SIZE_NICK
+	 * property in the passed-in properties (if any).
+	 *
+	 * @param props possibly-null properties
+	 * @return non-null shared pool
+	 */
+	public static RpcPacketBufferPool getDefault(Properties props) {
+		RpcPacketBufferPool pool = defaultPool;
+		if (pool == null) {
+			synchronized (RpcPacketBufferPool.class) {
+				pool = defaultPool;
+				if (pool == null) {
+					pool = new RpcPacketBufferPool(RpcPropertyDefs.getPropertyAsInt(props,
+							RpcPropertyDefs.RPC_PACKET_BUFFER_POOL_SIZE_NICK,
+							RpcPropertyDefs.RPC_PACKET_BUFFER_POOL_DEFAULT_SIZE));
+					defaultPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Return the JVM-wide shared pool of direct buffers, creating it on first
+	 * use as for getDefault().
+	 *
+	 * @param props possibly-null properties
+	 * @return non-null shared direct buffer pool
+	 */
+	public static RpcPacketBufferPool getDefaultDirect(Properties props) {
+		RpcPacketBufferPool pool = defaultDirectPool;
+		if (pool == null) {
+			synchronized (RpcPacketBufferPool.class) {
+				pool = defaultDirectPool;
+				if (pool == null) {
+					pool = new RpcPacketBufferPool(RpcPropertyDefs.getPropertyAsInt(props,
+							RpcPropertyDefs.RPC_PACKET_BUFFER_POOL_SIZE_NICK,
+							RpcPropertyDefs.RPC_PACKET_BUFFER_POOL_DEFAULT_SIZE), true);
+					defaultDirectPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Create a heap buffer pool retaining at most maxPerClass buffers per
+	 * size class.
+	 *
+	 * @param maxPerClass per-size-class bound; zero disables pooling.
+	 */
+	public RpcPacketBufferPool(int maxPerClass) {
+		this(maxPerClass, false);
+	}
+
+	/**
+	 * Create a pool retaining at most maxPerClass buffers per size class.
+	 *
+	 * @param maxPerClass per-size-class bound; zero disables pooling.
+	 * @param direct      if true, pool direct rather than heap buffers.
+	 */
+	@SuppressWarnings("unchecked")
+	public RpcPacketBufferPool(int maxPerClass, boolean direct) {
+		this.maxPerClass = Math.max(0, maxPerClass);
+		this.direct = direct;
+		this.classes = new Queue[NUM_CLASSES];
+		this.counts = new AtomicInteger[NUM_CLASSES];
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			this.classes[i] = new ConcurrentLinkedQueue<>();
+			this.counts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Acquire a cleared buffer whose limit is exactly the requested size.
+	 * The buffer's capacity may be larger.
+	 *
+	 * @param size required size in bytes
+	 * @return non-null buffer with position zero and limit size
+	 */
+	public ByteBuffer acquire(int size) {
+		int index = sizeClass(size);
+		ByteBuffer buffer = null;
+		if (index >= 0) {
+			buffer = classes[index].poll();
+			if (buffer != null) {
+				counts[index].decrementAndGet();
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				buffer = allocate(MIN_POOLED_SIZE << index);
+			}
+		} else {
+			misses.incrementAndGet();
+			buffer = allocate(size);
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers that were not handed out by a pool,
+	 * or that would push their size class over the bound, are simply dropped.
+	 *
+	 * @param buffer possibly-null buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isReadOnly() || buffer.isDirect() != direct) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		int index = sizeClass(capacity);
+		if (index >= 0 && (MIN_POOLED_SIZE << index) == capacity) {
+			if (counts[index].incrementAndGet() <= maxPerClass) {
+				classes[index].offer(buffer);
+			} else {
+				counts[index].decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return number of acquisitions satisfied from the pool.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of acquisitions that had to allocate.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return true if this pool hands out direct buffers.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private static int sizeClass(int size) {
+		if (size > MAX_POOLED_SIZE) {
+			return -1;
+		}
+		if (size <= MIN_POOLED_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
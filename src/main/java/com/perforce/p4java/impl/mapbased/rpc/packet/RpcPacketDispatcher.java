@@ -14,10 +14,14 @@ import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
 import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
+import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientFileWritePipeline;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientFunctionDispatcher;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.FlowControl;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolFunctionDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
+import com.perforce.p4java.server.metrics.CommandPhase;
 
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +74,22 @@ public class RpcPacketDispatcher {
 	;
 
 	public static final String TRACE_PREFIX = "RpcPacketDispatcher";
+
+	/**
+	 * Client functions whose handling counts as the client file write phase
+	 * in command metrics.
+	 */
+	private static final EnumSet<RpcFunctionSpec> CLIENT_FILE_WRITE_FUNCS = EnumSet.of(
+			RpcFunctionSpec.CLIENT_OPENFILE,
+			RpcFunctionSpec.CLIENT_WRITEFILE,
+			RpcFunctionSpec.CLIENT_CLOSEFILE,
+			RpcFunctionSpec.CLIENT_CHMODFILE,
+			RpcFunctionSpec.CLIENT_DELETEFILE,
+			RpcFunctionSpec.CLIENT_MOVEFILE,
+			RpcFunctionSpec.CLIENT_WRITEDIFF,
+			RpcFunctionSpec.CLIENT_WRITEMERGE,
+			RpcFunctionSpec.CLIENT_OUTPUTTEXT,
+			RpcFunctionSpec.CLIENT_OUTPUTBINARY);
 	private FlowControl flowController = null;
 
 	private ProtocolFunctionDispatcher protocolDispatcher = null;
@@ -106,6 +126,22 @@ public class RpcPacketDispatcher {
 		// Basic idea is to sit in the receive loop processing commands until we see
 		// a release command come back from the Perforce server.
 
+		startDispatch(cmdEnv);
+		while (dispatchNext(cmdEnv)) {
+		}
+		return cmdEnv.getResultMaps();
+	}
+
+	/**
+	 * Set up the passed-in command environment for dispatch; the first half of
+	 * dispatch(), for callers that want to dispatch incoming packets one at a
+	 * time with dispatchNext() (e.g. to stream a command's output as it's
+	 * consumed rather than gathering it all first).
+	 *
+	 * @param cmdEnv cmdEnv
+	 * @throws ConnectionException on error
+	 */
+	public void startDispatch(CommandEnv cmdEnv) throws ConnectionException {
 		if (cmdEnv == null) {
 			throw new NullPointerError("Null command environment passed to main dispatcher");
 		}
@@ -114,25 +150,64 @@ public class RpcPacketDispatcher {
 			throw new NullPointerError("Null rpc connection passed to main dispatcher");
 		}
 
-		int cmdCallBackKey = cmdEnv.getCmdCallBackKey();
-		RpcConnection rpcConnection = cmdEnv.getRpcConnection();
-
 		List<Map<String, Object>> resultMaps = new CopyOnWriteArrayList<>(new LinkedList<Map<String, Object>>());
 		cmdEnv.setResultMaps(resultMaps);
+		cmdEnv.setDispatchMode(RpcPacketDispatcherMode.PRIMAL);
 
 		try {
-			RpcPacketDispatcherMode dispatchMode = RpcPacketDispatcherMode.PRIMAL;
-			RpcPacket packet = null;
-
 			if (cmdEnv.getProgressCallback() != null) {
-				cmdEnv.getProgressCallback().start(cmdCallBackKey);
+				cmdEnv.getProgressCallback().start(cmdEnv.getCmdCallBackKey());
+			}
+		} catch (Throwable thr) {
+			Log.error("Unexpected exception: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+			throw new ConnectionException(thr.getLocalizedMessage(), thr);
+		}
+	}
+
+	/**
+	 * Receive and dispatch the next packet sent by the server for a command
+	 * set up with startDispatch().
+	 *
+	 * @param cmdEnv cmdEnv
+	 * @return true if the command is still running; false if it's finished
+	 * (or was cancelled), in which case its results are in the command
+	 * environment's result maps.
+	 * @throws ConnectionException on error
+	 */
+	public boolean dispatchNext(CommandEnv cmdEnv) throws ConnectionException {
+		boolean more = false;
+		try {
+			more = dispatchPacket(cmdEnv);
+			return more;
+		} finally {
+			if (!more) {
+				// Finish any synced files still being written
+				ClientFileWritePipeline.finish(cmdEnv);
 			}
+		}
+	}
 
-			while ((packet = rpcConnection.getRpcPacket(cmdEnv.getFieldRule(), cmdEnv.getFilterCallback())) != null) {
+	private boolean dispatchPacket(CommandEnv cmdEnv) throws ConnectionException {
+		RpcConnection rpcConnection = cmdEnv.getRpcConnection();
+		ClientFileWritePipeline pipeline = ClientFileWritePipeline.get(cmdEnv);
 
+		try {
+			if (pipeline != null) {
+				pipeline.beforeRead(rpcConnection);
+			}
+			RpcPacket packet = rpcConnection.getRpcPacket(cmdEnv.getFieldRule(), cmdEnv.getFilterCallback());
+
+			if (packet == null) {
+				// A non-positive return from the recv almost always means the other
+				// end unexpectedly shut down the connection (timed out or whatever).
+				throw new ConnectionNotConnectedException("Perforce server disconnected at server end; unknown cause.");
+			}
+
+			try {
 				// User cancelled command
 				if (cmdEnv.isUserCanceled()) {
-					return resultMaps;
+					return false;
 				}
 
 				Map<String, Object> paramMap = null;    // contains the incoming packet's parameter map,
@@ -160,15 +235,28 @@ public class RpcPacketDispatcher {
 				switch (func.getType()) {
 
 					case CLIENT:
-						switch (clientDispatcher.dispatch(dispatchMode, func, cmdEnv, paramMap)) {
+						RpcPacketDispatcherResult clientResult;
+						CommandSample sample = rpcConnection.getCommandSample();
+						if ((sample != null) && CLIENT_FILE_WRITE_FUNCS.contains(func)) {
+							// Don't count any reply sent while handling the
+							// function twice; it's already in the send phase.
+							long start = System.nanoTime();
+							long sendNanos = sample.getNanos(CommandPhase.SEND);
+							clientResult = clientDispatcher.dispatch(cmdEnv.getDispatchMode(), func, cmdEnv, paramMap);
+							sample.addNanos(CommandPhase.CLIENT_FILE_WRITE,
+									System.nanoTime() - start - (sample.getNanos(CommandPhase.SEND) - sendNanos));
+						} else {
+							clientResult = clientDispatcher.dispatch(cmdEnv.getDispatchMode(), func, cmdEnv, paramMap);
+						}
+						switch (clientResult) {
 							case CONTINUE:
 								break;
 							case CONTINUE_LOOP:
 								// We're in (or starting) an interactive exchange...
-								dispatchMode = RpcPacketDispatcherMode.LOOP;
+								cmdEnv.setDispatchMode(RpcPacketDispatcherMode.LOOP);
 								break;
 							case STOP_NORMAL:
-								return resultMaps;
+								return false;
 							default:
 								break;
 						}
@@ -182,15 +270,20 @@ public class RpcPacketDispatcher {
 						throw new UnimplementedError("Unexpected server function '" + funcNameStr + "' encountered in RPC dispatch");
 
 					case PROTOCOL:
-						switch (protocolDispatcher.dispatch(dispatchMode, func, cmdEnv, paramMap)) {
+						// Flow control aside, the server may expect replies
+						// that depend on files still being written
+						if ((pipeline != null) && (func != RpcFunctionSpec.PROTOCOL_FLUSH1)) {
+							pipeline.awaitAll();
+						}
+						switch (protocolDispatcher.dispatch(cmdEnv.getDispatchMode(), func, cmdEnv, paramMap)) {
 							case CONTINUE:
 								break;
 							case CONTINUE_LOOP:
 								// We're in (or starting) an interactive exchange...
-								dispatchMode = RpcPacketDispatcherMode.LOOP;
+								cmdEnv.setDispatchMode(RpcPacketDispatcherMode.LOOP);
 								break;
 							case STOP_NORMAL:
-								return resultMaps;
+								return false;
 							default:
 								break;
 						}
@@ -201,14 +294,12 @@ public class RpcPacketDispatcher {
 						throw new ProtocolError("Unrecognized function string type in RPC packet: '" + funcNameStr + "'");
 				}
 
+				return true;
+			} finally {
+				// Hand any pooled payload buffer back; a lazily decoded
+				// results map survives this intact.
+				packet.release();
 			}
-
-			// If we get here, we got a non-positive return from the recv, which almost
-			// always means the other end unexpectedly shut down the connection (timed out or
-			// whatever).
-
-			throw new ConnectionNotConnectedException("Perforce server disconnected at server end; unknown cause.");
-
 		} catch (ConnectionNotConnectedException cnce) {
 			throw cnce;
 		} catch (Throwable thr) {
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.ProtocolError;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A results map for incoming RPC packets whose values are decoded lazily.
+ * <p>
+ * The field names are decoded up front (they're needed as keys, and the
+ * field rule and field type logic needs them in wire order), but each value is
+ * kept as an offset / length view into the packet's payload bytes until a
+ * caller actually asks for it, at which point it is materialised into a
+ * String or byte array exactly as RpcPacketField.retrievePacketField would
+ * have done, and cached in place. Fields nobody looks at (and for fstat and
+ * friends that's most of them) never cost a String or byte array.
+ * <p>
+ * The payload is normally a pooled buffer that will be reused once the
+ * packet has been dispatched; RpcPacket.release() calls detach() first, which
+ * copies any still-undecoded values into a single compact array owned by this
+ * map, so the map stays valid for as long as callers hold on to it.
+ * <p>
+ * Like HashMap this class is not thread-safe for concurrent modification;
+ * concurrent readers are fine, as materialising a value only replaces the
+ * value of an existing entry with an equal one.
+ */
+public class RpcPacketFieldMap extends AbstractMap<String, Object> {
+
+	private final Map<String, Object> fields = new HashMap<>();
+	private final Charset charset;
+	private byte[] bytes;
+
+	/**
+	 * An undecoded value: a view of length bytes at offset in the current
+	 * byte array.
+	 */
+	private static final class Slice {
+		final int offset;
+		final int length;
+		final boolean text;
+
+		Slice(int offset, int length, boolean text) {
+			this.offset = offset;
+			this.length = length;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Index the RPC fields in bytes[offset, offset + length) without decoding
+	 * their values. Duplicate field names and func2 fields are handled exactly
+	 * as in the eager RpcPacket constructor.
+	 *
+	 * @param bytes     non-null array holding the packet payload
+	 * @param offset    offset of the payload within bytes
+	 * @param length    payload length
+	 * @param charset   non-null charset for field names and text values
+	 * @param fieldRule possibly-null field rule
+	 */
+	public RpcPacketFieldMap(byte[] bytes, int offset, int length, Charset charset, RpcPacketFieldRule fieldRule) {
+		if (bytes == null) {
+			throw new NullPointerError("Null byte array passed to RpcPacketFieldMap constructor");
+		}
+		if (charset == null) {
+			throw new NullPointerError("Null charset passed to RpcPacketFieldMap constructor");
+		}
+		this.bytes = bytes;
+		this.charset = charset;
+
+		int pos = offset;
+		final int end = offset + length;
+		while (pos < end) {
+			int nameStart = pos;
+			while (pos < end && bytes[pos] != 0) {
+				pos++;
+			}
+			if (pos >= end) {
+				throw new ProtocolError("Unterminated field name in RPC packet");
+			}
+			String fieldName = pos > nameStart ? new String(bytes, nameStart, pos - nameStart, charset) : null;
+			pos++; // Step over the name's terminating null
+
+			if (end - pos < RpcPacket.RPC_LENGTH_FIELD_LENGTH) {
+				throw new ProtocolError("Insufficient bytes in buffer to retrieve text value field length");
+			}
+			int valLength = (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8) | ((bytes[pos + 2] & 0xFF) << 16) | ((bytes[pos + 3] & 0xFF) << 24);
+			pos += RpcPacket.RPC_LENGTH_FIELD_LENGTH;
+			if (valLength < 0) {
+				throw new ProtocolError("Negative text field value length in RPC packet: " + valLength);
+			}
+			// The value is followed by a terminating null too:
+			if (end - pos < valLength + 1) {
+				throw new ProtocolError("Insufficient bytes in buffer to retrieve text value field");
+			}
+
+			boolean skipConversion = false;
+			if (fieldRule != null) {
+				fieldRule.update(fieldName);
+				skipConversion = fieldRule.isSkipConversion();
+			}
+			boolean text = !skipConversion && RpcPacketFieldType.getFieldType(fieldName) == RpcPacketFieldType.TEXT;
+
+			putField(fieldName, new Slice(pos, valLength, text));
+			pos += valLength + 1;
+		}
+	}
+
+	private void putField(String fieldName, Object value) {
+		if (fieldName == null) {
+			fields.put(null, value);
+		} else if (fieldName.equalsIgnoreCase(RpcFunctionMapKey.FUNC2)) {
+			// See job037970 in RpcPacket: only the first func2 is correct.
+			if (!fields.containsKey(fieldName)) {
+				fields.put(fieldName, value);
+			}
+		} else if (fields.containsKey(fieldName)) {
+			int suffixCounter = 0;
+			while (fields.containsKey(fieldName + suffixCounter)) {
+				suffixCounter++;
+			}
+			fields.put(fieldName + suffixCounter, value);
+		} else {
+			fields.put(fieldName, value);
+		}
+	}
+
+	private Object materialise(Slice slice) {
+		if (slice.text) {
+			return new String(bytes, slice.offset, slice.length, charset);
+		}
+		byte[] value = new byte[slice.length];
+		System.arraycopy(bytes, slice.offset, value, 0, slice.length);
+		return value;
+	}
+
+	/**
+	 * Copy all still-undecoded values into a compact array owned by this map
+	 * and drop the reference to the original payload bytes. Must be called
+	 * before the payload's buffer is reused; calling it more than once is
+	 * harmless.
+	 */
+	public void detach() {
+		int total = 0;
+		for (Object value : fields.values()) {
+			if (value instanceof Slice) {
+				total += ((Slice) value).length;
+			}
+		}
+		byte[] compact = new byte[total];
+		int pos = 0;
+		for (Map.Entry<String, Object> entry : fields.entrySet()) {
+			if (entry.getValue() instanceof Slice) {
+				Slice slice = (Slice) entry.getValue();
+				System.arraycopy(bytes, slice.offset, compact, pos, slice.length);
+				entry.setValue(new Slice(pos, slice.length, slice.text));
+				pos += slice.length;
+			}
+		}
+		this.bytes = compact;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = fields.get(key);
+		if (value instanceof Slice) {
+			value = materialise((Slice) value);
+			fields.put((String) key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return fields.containsKey(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object previous = fields.put(key, value);
+		return previous instanceof Slice ? materialise((Slice) previous) : previous;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		Object previous = fields.remove(key);
+		return previous instanceof Slice ? materialise((Slice) previous) : previous;
+	}
+
+	@Override
+	public int size() {
+		return fields.size();
+	}
+
+	@Override
+	public void clear() {
+		fields.clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return fields.keySet();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				final Iterator<Map.Entry<String, Object>> iter = fields.entrySet().iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					public boolean hasNext() {
+						return iter.hasNext();
+					}
+
+					public Map.Entry<String, Object> next() {
+						return new LazyEntry(iter.next());
+					}
+
+					public void remove() {
+						iter.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return fields.size();
+			}
+		};
+	}
+
+	/**
+	 * Entry wrapper that materialises (and caches) the underlying value on
+	 * first access.
+	 */
+	private final class LazyEntry implements Map.Entry<String, Object> {
+		private final Map.Entry<String, Object> entry;
+
+		LazyEntry(Map.Entry<String, Object> entry) {
+			this.entry = entry;
+		}
+
+		public String getKey() {
+			return entry.getKey();
+		}
+
+		public Object getValue() {
+			Object value = entry.getValue();
+			if (value instanceof Slice) {
+				value = materialise((Slice) value);
+				entry.setValue(value);
+			}
+			return value;
+		}
+
+		public Object setValue(Object value) {
+			Object previous = getValue();
+			entry.setValue(value);
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? other.getKey() == null : key.equals(other.getKey()))
+					&& (value == null ? other.getValue() == null : value.equals(other.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+}
@@ -50,9 +50,23 @@ public class RpcGZIPOutputStream extends FilterOutputStream {
 	private byte[] jzBytes = null;
 	
 	public RpcGZIPOutputStream(OutputStream out) throws IOException {
+		this(out, JZlib.Z_DEFAULT_COMPRESSION, java.util.zip.Deflater.DEFAULT_STRATEGY);
+	}
+
+	/**
+	 * @param out      non-null stream to write compressed bytes to
+	 * @param level    zlib compression level
+	 * @param strategy zlib compression strategy (the values are zlib's own,
+	 *                 and so the same as java.util.zip.Deflater's)
+	 * @throws IOException on error
+	 */
+	public RpcGZIPOutputStream(OutputStream out, int level, int strategy) throws IOException {
 		super(out);
 		this.jzOutputSream = new Deflater();
-		this.jzOutputSream.deflateInit(JZlib.Z_DEFAULT_COMPRESSION, ZBITS, true);
+		this.jzOutputSream.deflateInit(level, ZBITS, true);
+		if (strategy != java.util.zip.Deflater.DEFAULT_STRATEGY) {
+			this.jzOutputSream.params(level, strategy);
+		}
 		this.jzBytes = new byte[ZBUF_SIZE];
 		this.jzOutputSream.next_out = this.jzBytes;
 		this.jzOutputSream.next_out_index = 0;
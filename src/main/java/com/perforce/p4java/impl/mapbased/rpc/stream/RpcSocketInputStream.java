@@ -56,6 +56,15 @@ public class RpcSocketInputStream extends InputStream {
 		}
 	}
 	
+	@Override
+	public int available() throws IOException {
+		if (this.socketStream == null) {
+			throw new NullPointerError(
+					"null socket stream in RpcSocketInputStream.available()");
+		}
+		return this.socketStream.available();
+	}
+
 	@Override
 	public int read() throws IOException {
 		if (this.socketStream == null) {
@@ -4,17 +4,52 @@
 package com.perforce.p4java.impl.mapbased.rpc.stream;
 
 import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnectionSession;
 import com.perforce.p4java.impl.mapbased.rpc.stream.helper.RpcSocketHelper;
 
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Properties;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Pool of sockets to a single Perforce server address.
+ * <p>
+ * Idle sockets are kept on a lock-free deque, most recently released first,
+ * so the warmest socket is reused and the longest-idle ones collect at the
+ * tail for eviction. The pool retains at most poolSize idle sockets and, if
+ * a maximum total is configured (RpcPropertyDefs.RPC_SOCKET_POOL_MAX_TOTAL_NICK),
+ * never has more than that many sockets open at once: callers beyond the
+ * bound queue (fairly) for up to the configured maximum wait time.
+ * <p>
+ * Each pool schedules its own eviction run on a shared daemon thread while
+ * it has idle sockets. An eviction run closes sockets idle for longer than
+ * the idle time (keeping at least the configured minimum idle) and checks
+ * that the rest are still usable, so sockets the server has dropped are
+ * found in the background rather than by the next command.
+ * <p>
+ * If session mode is on (RpcPropertyDefs.RPC_SOCKET_POOL_SESSIONS_NICK), the
+ * pool also keeps an RpcConnectionSession with each open socket, so commands
+ * after the first on a socket can skip resending unchanged protocol settings
+ * and share a dispatcher. A socket's session goes when the socket is closed.
+ *
  * @author Kevin Sawicki (ksawicki@perforce.com)
  */
 public class RpcSocketPool {
@@ -35,109 +70,39 @@ public class RpcSocketPool {
 	}
 
 	/**
-	 * Pool manager that closes sockets that have been left open for more than
-	 * the idle time allowed.
+	 * Socket idle time system property in milliseconds; used if the pool's
+	 * properties don't set RpcPropertyDefs.RPC_SOCKET_POOL_IDLE_TIME_NICK.
 	 */
-	private static class PoolManager implements Runnable {
+	private static final String RPC_SOCKET_IDLE_TIME = "com.perforce.p4java.RPC_SOCKET_IDLE_TIME";
 
-		/**
-		 * Socket idle time system property in milliseconds
-		 */
-		private static final String RPC_SOCKET_IDLE_TIME = "com.perforce.p4java.RPC_SOCKET_IDLE_TIME";
-
-		/**
-		 * Default idle time to close sockets - 30 seconds
-		 */
-		private static final int DEFAULT_SOCKET_IDLE_TIME = 30000;
-
-		private int idleTime;
-		private List<RpcSocketPool> pools;
-		private boolean started = false;
-
-		/**
-		 * Create a new pool manager
-		 */
-		public PoolManager() {
-			this.pools = new ArrayList<RpcSocketPool>();
-			int time = DEFAULT_SOCKET_IDLE_TIME;
-			String configuredTime = System.getProperty(RPC_SOCKET_IDLE_TIME);
-			if (configuredTime != null) {
-				try {
-					time = Integer.parseInt(configuredTime);
-				} catch (NumberFormatException nfe) {
-					time = DEFAULT_SOCKET_IDLE_TIME;
-				}
-			}
-			this.idleTime = time;
-		}
-
-		public void register(RpcSocketPool pool) {
-			if (pool != null) {
-				synchronized (this) {
-					pools.add(pool);
-				}
-				if (started) {
-					synchronized (this.pools) {
-						this.pools.notify();
-					}
-				} else {
-					start();
-				}
-			}
-		}
-
-		public void start() {
-			started = true;
-			Thread thread = new Thread(this);
-			thread.setName("P4Java Socket Pool Manager");
-			thread.setPriority(Thread.MIN_PRIORITY);
-			thread.setDaemon(true);
-			thread.start();
-		}
+	/**
+	 * Shortest interval between a pool's eviction runs, in milliseconds.
+	 */
+	private static final int MIN_EVICTION_INTERVAL = 1000;
 
-		public void unregister(RpcSocketPool pool) {
-			if (pool != null) {
-				synchronized (this) {
-					pools.remove(pool);
-				}
-			}
-		}
+	/**
+	 * Shared eviction thread; pools only have a task scheduled on it while
+	 * they have idle sockets, so otherwise unreferenced pools can be collected.
+	 */
+	private static final ScheduledThreadPoolExecutor EVICTOR = createEvictor();
 
-		/**
-		 * @see java.lang.Runnable#run()
-		 */
-		public void run() {
-			while (true) {
-				while (this.pools.isEmpty()) {
-					synchronized (this.pools) {
-						try {
-							this.pools.wait();
-						} catch (InterruptedException e) {
-							break;
-						}
-					}
-				}
-				RpcSocketPool[] pools = null;
-				synchronized (this) {
-					pools = this.pools.toArray(new RpcSocketPool[this.pools.size()]);
-				}
-				for (RpcSocketPool pool : pools) {
-					pool.timeout(this.idleTime);
-				}
-				try {
-					Thread.sleep(this.idleTime);
-				} catch (InterruptedException e) {
-					break;
-				}
+	private static ScheduledThreadPoolExecutor createEvictor() {
+		ScheduledThreadPoolExecutor evictor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName("P4Java Socket Pool Evictor");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
 			}
-		}
+		});
+		evictor.setRemoveOnCancelPolicy(true);
+		return evictor;
 	}
 
-	private static PoolManager MANAGER = new PoolManager();
-
-	private class SocketEntry {
-		Socket socket;
-		long releaseTime;
+	private static class SocketEntry {
+		final Socket socket;
+		final long releaseTime;
 
 		/**
 		 * Create a new socket entry with the specified socket with a release
@@ -151,14 +116,32 @@ public class RpcSocketPool {
 		}
 	}
 
-	private Properties socketProperties;
-	private String host;
-	private int port;
-	private int size;
-	private ShutdownHandler shutdownHandler;
-	private Queue<SocketEntry> pool;
+	private final Properties socketProperties;
+	private final String host;
+	private final int port;
+	private final int size;
+	private final int minIdle;
+	private final int maxWait;
+	private final int idleTime;
+	private final boolean validateIdle;
+	private final boolean sessions;
+	private final ShutdownHandler shutdownHandler;
 	private boolean secure = false;
 
+	private final ConcurrentLinkedDeque<SocketEntry> idle = new ConcurrentLinkedDeque<SocketEntry>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final Set<Socket> leased = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private final ConcurrentHashMap<Socket, RpcConnectionSession> sessionMap = new ConcurrentHashMap<Socket, RpcConnectionSession>();
+	private final Semaphore permits;
+	private final AtomicReference<ScheduledFuture<?>> evictionTask = new AtomicReference<ScheduledFuture<?>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong creates = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitTimeNanos = new AtomicLong();
+
 	/**
 	 * Create a new socket pool indicating whether it is secure (SSL) or not.
 	 *
@@ -176,7 +159,8 @@ public class RpcSocketPool {
 
 	/**
 	 * Create a new socket pool with a max pool size, host, port, and socket
-	 * properties, and an optional shutdown handler
+	 * properties, and an optional shutdown handler. The pool's other limits
+	 * are taken from the socket properties.
 	 *
 	 * @param poolSize         poolSize
 	 * @param host             host
@@ -189,34 +173,89 @@ public class RpcSocketPool {
 		this.host = host;
 		this.port = port;
 		this.socketProperties = socketProperties;
-		this.pool = new LinkedList<SocketEntry>();
 		this.shutdownHandler = shutdownHandler;
-		MANAGER.register(this);
+
+		int maxTotal = RpcPropertyDefs.getPropertyAsInt(socketProperties, RpcPropertyDefs.RPC_SOCKET_POOL_MAX_TOTAL_NICK, RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_MAX_TOTAL);
+		this.permits = maxTotal > 0 ? new Semaphore(maxTotal, true) : null;
+		this.minIdle = Math.max(0, RpcPropertyDefs.getPropertyAsInt(socketProperties, RpcPropertyDefs.RPC_SOCKET_POOL_MIN_IDLE_NICK, RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_MIN_IDLE));
+		this.maxWait = Math.max(0, RpcPropertyDefs.getPropertyAsInt(socketProperties, RpcPropertyDefs.RPC_SOCKET_POOL_MAX_WAIT_NICK, RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_MAX_WAIT));
+		this.validateIdle = RpcPropertyDefs.getPropertyAsBoolean(socketProperties, RpcPropertyDefs.RPC_SOCKET_POOL_VALIDATE_IDLE_NICK, RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_VALIDATE_IDLE);
+		this.sessions = RpcPropertyDefs.getPropertyAsBoolean(socketProperties, RpcPropertyDefs.RPC_SOCKET_POOL_SESSIONS_NICK, RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_SESSIONS);
+
+		int time = RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_IDLE_TIME;
+		String configuredTime = System.getProperty(RPC_SOCKET_IDLE_TIME);
+		if (configuredTime != null) {
+			try {
+				time = Integer.parseInt(configuredTime);
+			} catch (NumberFormatException nfe) {
+				time = RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_IDLE_TIME;
+			}
+		}
+		this.idleTime = RpcPropertyDefs.getPropertyAsInt(socketProperties, RpcPropertyDefs.RPC_SOCKET_POOL_IDLE_TIME_NICK, time);
 	}
 
 	/**
-	 * Acquire a socket to the configured server address
+	 * Acquire a socket to the configured server address, reusing an idle
+	 * one if possible. If the pool is at its maximum total, wait up to the
+	 * configured maximum wait time for a socket to be released.
 	 *
 	 * @return - socket
-	 * @throws IOException on error
+	 * @throws IOException on error, including a timed out or interrupted wait
 	 */
 	public Socket acquire() throws IOException {
-		Socket socket = null;
-		synchronized (this.pool) {
-			SocketEntry entry = this.pool.poll();
-			if (entry != null) {
-				socket = entry.socket;
+		if (this.permits != null && !this.permits.tryAcquire()) {
+			waitForPermit();
+		}
+
+		boolean acquired = false;
+		try {
+			Socket socket = null;
+			SocketEntry entry;
+			while ((entry = this.idle.pollFirst()) != null) {
+				this.idleCount.decrementAndGet();
+				if (isAlive(entry.socket)) {
+					socket = entry.socket;
+					this.hits.getAndIncrement();
+					break;
+				}
+				this.evictions.getAndIncrement();
+				quietClose(entry.socket);
+			}
+			if (socket == null) {
+				this.misses.getAndIncrement();
+				socket = RpcSocketHelper.createSocket(this.host, this.port, this.socketProperties, this.secure);
+				this.creates.getAndIncrement();
+			}
+			this.leased.add(socket);
+			acquired = true;
+			return socket;
+		} finally {
+			if (!acquired && this.permits != null) {
+				this.permits.release();
 			}
 		}
-		if (!isAlive(socket)) {
-			quietClose(socket);
-			socket = RpcSocketHelper.createSocket(this.host, this.port, this.socketProperties, this.secure);
+	}
+
+	private void waitForPermit() throws IOException {
+		this.waits.getAndIncrement();
+		long start = System.nanoTime();
+		boolean ok;
+		try {
+			ok = this.permits.tryAcquire(this.maxWait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a pooled connection to " + this.host + ":" + this.port);
+		} finally {
+			this.waitTimeNanos.getAndAdd(System.nanoTime() - start);
+		}
+		if (!ok) {
+			throw new IOException("Timed out after " + this.maxWait + "ms waiting for a pooled connection to " + this.host + ":" + this.port);
 		}
-		return socket;
 	}
 
 	private void quietClose(Socket socket) {
 		if (socket != null) {
+			this.sessionMap.remove(socket);
 			try {
 				socket.getInputStream().close();
 			} catch (IOException e) {
@@ -236,6 +275,44 @@ public class RpcSocketPool {
 		return socket != null && socket.isBound() && !socket.isClosed() && socket.isConnected() && !socket.isInputShutdown() && !socket.isOutputShutdown();
 	}
 
+	/**
+	 * Check that an idle socket is still usable: an idle socket should have
+	 * nothing to read, so end of stream (the server hung up) or unexpected
+	 * data both mean it must be discarded. SSL sockets are only given the
+	 * basic checks, as a timed-out read there isn't guaranteed to be harmless.
+	 */
+	private boolean isValid(Socket socket) {
+		if (!isAlive(socket)) {
+			return false;
+		}
+		if (socket instanceof SSLSocket) {
+			return true;
+		}
+		int soTimeout = -1;
+		try {
+			InputStream in = socket.getInputStream();
+			if (in.available() > 0) {
+				return false;
+			}
+			soTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(1);
+			in.read(); // either end of stream or unexpected data
+			return false;
+		} catch (SocketTimeoutException ste) {
+			return true; // nothing to read; as it should be
+		} catch (IOException ioe) {
+			return false;
+		} finally {
+			if (soTimeout >= 0) {
+				try {
+					socket.setSoTimeout(soTimeout);
+				} catch (IOException ioe) {
+					// it'll fail at next use instead
+				}
+			}
+		}
+	}
+
 	/**
 	 * Release a socket back to the pool as no longer using
 	 *
@@ -244,32 +321,52 @@ public class RpcSocketPool {
 	 * @throws IOException on error
 	 */
 	public void release(Socket socket, ShutdownHandler shutdownHandler) throws IOException {
-		if (isAlive(socket)) {
-			boolean close = false;
-			synchronized (this.pool) {
-				if (this.pool.size() < size) {
-					this.pool.add(new SocketEntry(socket));
-				} else {
-					close = true;
+		if (socket == null) {
+			return;
+		}
+		boolean wasLeased = this.leased.remove(socket);
+		try {
+			if (isAlive(socket)) {
+				if (this.idleCount.incrementAndGet() <= this.size) {
+					this.idle.offerFirst(new SocketEntry(socket));
+					scheduleEviction();
+					return;
 				}
-			}
-			if (close) {
+				this.idleCount.decrementAndGet();
 				if (shutdownHandler != null) {
 					shutdownHandler.shutdown(socket);
 				}
-				if (!socket.isClosed()) {
-					socket.getInputStream().close();
-				}
-				if (!socket.isClosed()) {
-					socket.getOutputStream().close();
-				}
-				socket.close();
+				close(socket);
+			} else {
+				// Dead (or half shut down); just free its descriptor
+				quietClose(socket);
+			}
+		} finally {
+			if (wasLeased && this.permits != null) {
+				this.permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Close a socket acquired from this pool that can't be released normally
+	 * (e.g. its connection failed to initialize) and give its place in the
+	 * pool back.
+	 *
+	 * @param socket possibly-null socket
+	 */
+	public void invalidate(Socket socket) {
+		if (socket != null) {
+			quietClose(socket);
+			if (this.leased.remove(socket) && this.permits != null) {
+				this.permits.release();
 			}
 		}
 	}
 
 	private void close(Socket socket) throws IOException {
 		if (socket != null) {
+			this.sessionMap.remove(socket);
 			if (!socket.isClosed()) {
 				socket.getInputStream().close();
 			}
@@ -280,57 +377,184 @@ public class RpcSocketPool {
 		}
 	}
 
+	/**
+	 * Get the session kept with a socket currently leased from this pool,
+	 * creating it if this is the socket's first command.
+	 *
+	 * @param socket possibly-null socket
+	 * @return the socket's session, or null if session mode is off or the
+	 * socket isn't leased from this pool.
+	 */
+	public RpcConnectionSession getSession(Socket socket) {
+		if (!this.sessions || (socket == null) || !this.leased.contains(socket)) {
+			return null;
+		}
+		RpcConnectionSession session = this.sessionMap.get(socket);
+		if (session == null) {
+			session = new RpcConnectionSession();
+			this.sessionMap.put(socket, session);
+		}
+		return session;
+	}
+
+	/**
+	 * @return true if this pool keeps a session with each socket.
+	 */
+	public boolean isSessions() {
+		return this.sessions;
+	}
+
 	/**
 	 * Disconnect all sockets from the specified host and port
 	 */
 	public void disconnect() {
-		Socket[] sockets = null;
-		try {
-			synchronized (this.pool) {
-				sockets = new Socket[this.pool.size()];
-				int count = 0;
-				for (SocketEntry entry : this.pool) {
-					sockets[count] = entry.socket;
-					count++;
-				}
-				this.pool.clear();
+		ScheduledFuture<?> task = this.evictionTask.getAndSet(null);
+		if (task != null) {
+			task.cancel(false);
+		}
+		SocketEntry entry;
+		while ((entry = this.idle.pollFirst()) != null) {
+			this.idleCount.decrementAndGet();
+			if (this.shutdownHandler != null) {
+				this.shutdownHandler.shutdown(entry.socket);
 			}
-			for (Socket socket : sockets) {
-				if (this.shutdownHandler != null) {
-					this.shutdownHandler.shutdown(socket);
-				}
-				try {
-					close(socket);
-				} catch (IOException e) {
-					Log.exception(e);
-				}
+			try {
+				close(entry.socket);
+			} catch (IOException e) {
+				Log.exception(e);
 			}
-		} finally {
-			MANAGER.unregister(this);
 		}
 	}
 
 	/**
 	 * Timeout any sockets idle for greater than or equal to the milliseconds
-	 * value specified
+	 * value specified, keeping at least the configured minimum number of idle
+	 * sockets, and (if so configured) close any remaining idle sockets that
+	 * are no longer usable.
 	 *
 	 * @param idleDuration idleDuration
 	 */
 	public void timeout(int idleDuration) {
-		synchronized (this.pool) {
-			long openTime;
-			List<SocketEntry> closed = new ArrayList<SocketEntry>();
-			for (SocketEntry entry : this.pool) {
-				openTime = System.currentTimeMillis() - entry.releaseTime;
-				if (openTime >= idleDuration) {
-					if (this.shutdownHandler != null) {
-						this.shutdownHandler.shutdown(entry.socket);
-					}
-					quietClose(entry.socket);
-					closed.add(entry);
+		long now = System.currentTimeMillis();
+		// Oldest first. Entries are claimed by removing them, so a concurrent
+		// acquire can never get a socket that's being closed or validated;
+		// the shutdown handler and close do socket I/O and hold no locks.
+		Iterator<SocketEntry> entries = this.idle.descendingIterator();
+		while (entries.hasNext()) {
+			SocketEntry entry = entries.next();
+			boolean expired = (now - entry.releaseTime >= idleDuration) && (this.idleCount.get() > this.minIdle);
+			if (!expired && !this.validateIdle) {
+				continue;
+			}
+			if (!this.idle.removeLastOccurrence(entry)) {
+				continue; // acquired meanwhile
+			}
+			this.idleCount.decrementAndGet();
+			if (expired) {
+				if (this.shutdownHandler != null) {
+					this.shutdownHandler.shutdown(entry.socket);
+				}
+				quietClose(entry.socket);
+				this.evictions.getAndIncrement();
+			} else if (isValid(entry.socket)) {
+				this.idleCount.incrementAndGet();
+				this.idle.offerLast(entry);
+			} else {
+				quietClose(entry.socket);
+				this.evictions.getAndIncrement();
+			}
+		}
+	}
+
+	private void scheduleEviction() {
+		if (this.evictionTask.get() == null) {
+			long interval = Math.max(MIN_EVICTION_INTERVAL, this.idleTime);
+			ScheduledFuture<?> task = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evict();
 				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+			if (!this.evictionTask.compareAndSet(null, task)) {
+				task.cancel(false);
 			}
-			this.pool.removeAll(closed);
 		}
 	}
+
+	private void evict() {
+		try {
+			timeout(this.idleTime);
+			if (this.idle.isEmpty()) {
+				// Nothing left to watch; stop until the next release, taking
+				// care not to miss a release that raced with this check.
+				ScheduledFuture<?> task = this.evictionTask.getAndSet(null);
+				if (task != null) {
+					task.cancel(false);
+				}
+				if (!this.idle.isEmpty()) {
+					scheduleEviction();
+				}
+			}
+		} catch (Throwable thr) {
+			Log.error("Unexpected exception in socket pool eviction: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+		}
+	}
+
+	/**
+	 * @return number of acquires satisfied with an idle socket.
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of acquires that found no usable idle socket.
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return number of sockets created by this pool.
+	 */
+	public long getCreates() {
+		return this.creates.get();
+	}
+
+	/**
+	 * @return number of idle sockets closed for being idle too long or
+	 * no longer usable.
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * @return number of acquires that had to wait for a socket to be
+	 * released because the pool was at its maximum total.
+	 */
+	public long getWaits() {
+		return this.waits.get();
+	}
+
+	/**
+	 * @return total time in milliseconds acquires have spent waiting.
+	 */
+	public long getWaitTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.waitTimeNanos.get());
+	}
+
+	/**
+	 * @return current number of idle sockets.
+	 */
+	public int getIdleCount() {
+		return this.idleCount.get();
+	}
+
+	/**
+	 * @return current number of sockets acquired and not yet released.
+	 */
+	public int getActiveCount() {
+		return this.leased.size();
+	}
 }
@@ -6,10 +6,11 @@ package com.perforce.p4java.impl.mapbased.rpc.stream;
 import com.perforce.p4java.Log;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaError;
-import com.perforce.p4java.impl.mapbased.rpc.ExternalEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
-import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnectionSession;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcPacketSendBuffer;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientTrust;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
@@ -36,13 +37,13 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.text.MessageFormat;
-import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -81,15 +82,22 @@ public class RpcStreamConnection extends RpcConnection {
 	 * existing buffer the new one should be, or, alternatively, how much bigger
 	 * than the incoming field length the new buffer should be. Should probably
 	 * be more tunable...
+	 *
+	 * @deprecated no longer used; the send buffer now grows geometrically (see
+	 * RpcPacketSendBuffer).
 	 */
+	@Deprecated
 	protected static final int SENDBUF_REALLOC_INCR = 1024;
 
 	private RpcSocketPool pool = null;
 	private Socket socket = null;
+	// Set once abort() has dropped the connection; disconnect() is then a no-op
+	private volatile boolean aborted = false;
 	private InputStream inputStream = null;
 	private OutputStream outputStream = null;
 	private InputStream topInputStream = null;
 	private OutputStream topOutputStream = null;
+	private RpcPacketSendBuffer sendBuf = null;
 
 	// 'rsh' mode server launch command
 	private String rsh = null;
@@ -230,14 +238,22 @@ public class RpcStreamConnection extends RpcConnection {
 			throwConnectionException(thr);
 		}
 
-		getIpAddressFromSocketConnection();
+		try {
+			getIpAddressFromSocketConnection();
 
-		// Initialize SSL connection
-		if (secure) {
-			initSSL();
-		}
+			// Initialize SSL connection
+			if (secure) {
+				initSSL();
+			}
 
-		initRpcSocketInputAndOutputStreamIfSocketBasedServer();
+			initRpcSocketInputAndOutputStreamIfSocketBasedServer();
+		} catch (ConnectionException | RuntimeException exc) {
+			// Don't let a half-initialized connection hold on to its place in the pool
+			if (nonNull(pool)) {
+				pool.invalidate(socket);
+			}
+			throw exc;
+		}
 	}
 
 	private void getIpAddressFromSocketConnection() {
@@ -348,6 +364,14 @@ public class RpcStreamConnection extends RpcConnection {
 		return hostName + ":" + String.valueOf(hostPort);
 	}
 
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getSession()
+	 */
+	@Override
+	public RpcConnectionSession getSession() {
+		return nonNull(pool) ? pool.getSession(socket) : null;
+	}
+
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getClientIpPort()
 	 */
@@ -365,6 +389,10 @@ public class RpcStreamConnection extends RpcConnection {
 	}
 
 	public void disconnect(final RpcPacketDispatcher dispatcher) throws ConnectionException {
+		if (aborted) {
+			// Nothing left to shut down or give back
+			return;
+		}
 		try {
 			// NOTE: don't do gratuitous (any) flushes here -- this has all been
 			// handled already and will often cause errors in compressed client
@@ -392,7 +420,12 @@ public class RpcStreamConnection extends RpcConnection {
 				topOutputStream.close();
 			} else {
 				if (nonNull(pool)) {
-					pool.release(socket, handler);
+					try {
+						pool.release(socket, handler);
+					} finally {
+						// The socket's streams stay open for its next user
+						releaseCodecs();
+					}
 				} else {
 					handler.shutdown(socket);
 					topInputStream.close();
@@ -407,6 +440,59 @@ public class RpcStreamConnection extends RpcConnection {
 		}
 	}
 
+	/**
+	 * Give any pooled zlib codecs back to RpcZlibPool without closing the
+	 * streams under them.
+	 */
+	private void releaseCodecs() {
+		if (topInputStream instanceof RpcZlibInputStream) {
+			((RpcZlibInputStream) topInputStream).releaseCodecs();
+		}
+		if (topOutputStream instanceof RpcZlibOutputStream) {
+			((RpcZlibOutputStream) topOutputStream).releaseCodecs();
+		}
+	}
+
+	public void abort() {
+		aborted = true;
+		if (nonNull(pool)) {
+			pool.invalidate(socket);
+		} else if (nonNull(socket)) {
+			try {
+				socket.close();
+			} catch (IOException exc) {
+				Log.exception(exc);
+			}
+		}
+		// With the socket gone these just release resources (and any rsh
+		// process pipes); errors are expected and of no interest.
+		try {
+			if (nonNull(topInputStream)) {
+				topInputStream.close();
+			}
+		} catch (IOException exc) {
+		}
+		try {
+			if (nonNull(topOutputStream)) {
+				topOutputStream.close();
+			}
+		} catch (IOException exc) {
+		}
+	}
+
+	/**
+	 * Checks the raw (not decompressed) input; anything the decompressing
+	 * stream has already buffered isn't seen, which is safe.
+	 */
+	@Override
+	public boolean isInputAvailable() {
+		try {
+			return nonNull(inputStream) && (inputStream.available() > 0);
+		} catch (IOException exc) {
+			return false;
+		}
+	}
+
 	/**
 	 * Get a Perforce RPC packet from the underlying stream. If we're talking to
 	 * a Unicode-enabled Perforce server, we attempt to translate the incoming
@@ -424,10 +510,12 @@ public class RpcStreamConnection extends RpcConnection {
 	public RpcPacket getRpcPacket(final RpcPacketFieldRule fieldRule, final IFilterCallback filterCallback) throws ConnectionException {
 		byte[] preambleBytes = new byte[RpcPacketPreamble.RPC_PREAMBLE_SIZE];
 		RpcPacket packet = null;
+		long waitStart = sampleNanoTime();
 
 		try {
 			int bytesRead = topInputStream.read(preambleBytes);
 			throwConnectionExceptionIfConditionFails(bytesRead >= 0, "server connection unexpectedly closed");
+			long receiveStart = sampleNanoTime();
 			AtomicLong streamRecvs = stats.streamRecvs;
 			streamRecvs.incrementAndGet();
 
@@ -448,7 +536,10 @@ public class RpcStreamConnection extends RpcConnection {
 			// try to read this in. This can be a ginormous packet in some
 			// pathological
 			// cases, so we need to be flexible...
-			byte[] packetBytes = new byte[payloadLength];
+			// In lazy field mode the payload goes straight into a pooled
+			// buffer that the packet hangs on to until it's released.
+			ByteBuffer payloadBuf = nonNull(packetBufferPool) ? packetBufferPool.acquire(payloadLength) : null;
+			byte[] packetBytes = nonNull(payloadBuf) ? payloadBuf.array() : new byte[payloadLength];
 			int packetBytesRead = topInputStream.read(packetBytes, 0, payloadLength);
 			throwConnectionExceptionIfConditionFails(packetBytesRead > 0, "Perforce server network connection closed unexpectedly");
 			streamRecvs.incrementAndGet();
@@ -457,9 +548,16 @@ public class RpcStreamConnection extends RpcConnection {
 			packetBytesRead = continueReadIfIncompleteRead(streamRecvs, payloadLength, packetBytes, packetBytesRead);
 			throwP4JavaErrorIfConditionFails(packetBytesRead == payloadLength, "RPC packet payload read size mismatch; expected: %s; got: %s", payloadLength, packetBytesRead);
 
-			packet = RpcPacket.constructRpcPacket(preamble, packetBytes, unicodeServer, p4Charset.getCharset(), fieldRule, filterCallback);
+			if (nonNull(payloadBuf)) {
+				packet = RpcPacket.constructRpcPacket(preamble, payloadBuf, packetBufferPool, unicodeServer, p4Charset.getCharset(), fieldRule, filterCallback);
+			} else {
+				packet = RpcPacket.constructRpcPacket(preamble, packetBytes, unicodeServer, p4Charset.getCharset(), fieldRule, filterCallback);
+			}
 			stats.packetsRecv.incrementAndGet();
 			stats.largestRpcPacketRecv.set(Math.max(stats.largestRpcPacketRecv.get(), packet.getPacketLength()));
+			if (nonNull(commandSample)) {
+				commandSample.packetReceived(waitStart, receiveStart, RpcPacketPreamble.RPC_PREAMBLE_SIZE + payloadLength);
+			}
 		} catch (IOException exc) {
 			throwConnectionException(exc);
 		} catch (ConnectionException | P4JavaError p4jexc) {
@@ -554,99 +652,50 @@ public class RpcStreamConnection extends RpcConnection {
 	 * <pre>
 	 * <strong>Note</strong> that in general, we don't know how large the packet's output byte
 	 * buffer is going to have to be until we've finished the packet contents
-	 * marshaling, so we implement buffer resizing when needed. Our initial
-	 * guess is <code>INITIAL_SENDBUF_SIZE</code> bytes; we grow the buffer by increasing
-	 * it <code>SENDBUF_REALLOC_INCR</code> times each buffer increase.
+	 * marshaling. We marshal into a per-connection RpcPacketSendBuffer that is
+	 * reused from packet to packet and grows geometrically when needed; large
+	 * byte array values (file contents) aren't copied into it at all, but are
+	 * written to the stream in place between the surrounding fields.
 	 * </pre>
 	 */
 	public long putRpcPacket(@Nonnull RpcPacket packet) throws ConnectionException {
 		Validate.notNull(packet);
 		throwP4JavaErrorIfConditionFails(nonNull(packet.getFuncNameString()), "Unmapped / unmappable function in RpcPacket.put()");
 
-		// Skip over the first few bytes for the preamble,
-		// which we'll come back to fill in later when we know the marshaled
-		// length.
-		int startPos = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
-
-		RpcPacketSupplier supplier = new RpcPacketSupplier();
-		supplier.sendBytes(new byte[INITIAL_SENDBUF_SIZE]).sendPos(startPos);
-
-		// FixedOrder
-		processNameArgs(packet, supplier);
-		processStringArgs(packet, supplier);
-		processExternalEnv(packet, supplier);
-		processFuncName(packet, supplier);
-
-		calculatePreambleBytesAndSendtoDownstream(supplier);
-		return 0;
-	}
-
-	private void processNameArgs(@Nonnull RpcPacket packet, @Nonnull final RpcPacketSupplier argsSupplier) {
-		Map<String, Object> mapArgs = packet.getMapArgs();
-		if (nonNull(mapArgs)) {
-			for (Map.Entry<String, Object> entry : mapArgs.entrySet()) {
-				reallocateSendBufferInPutPacketIfRunOut(argsSupplier, marshalPacketField(entry.getKey(), entry.getValue()), SENDBUF_REALLOC_INCR);
-			}
-		}
-	}
-
-	private void reallocateSendBufferInPutPacketIfRunOut(@Nonnull final RpcPacketSupplier supplier, @Nonnull final byte[] fieldBytes, final int reallocateIncrement) {
-		byte[] sendBytes = supplier.sendBytes();
-		int sendPos = supplier.sendPos();
-
-		byte[] newSendBytes = sendBytes;
-		if ((sendBytes.length - sendPos) <= fieldBytes.length) {
-			stats.bufferCompacts.getAndIncrement(); // We're overloading the
-			// meaning here...
-			int newBytesLength = sendBytes.length + fieldBytes.length + reallocateIncrement;
-			newSendBytes = new byte[newBytesLength];
-			System.arraycopy(sendBytes, 0, newSendBytes, 0, sendPos);
-		}
-
-		System.arraycopy(fieldBytes, 0, newSendBytes, sendPos, fieldBytes.length);
-		supplier.sendBytes(newSendBytes).sendPos(sendPos + fieldBytes.length);
-	}
-
-	private void processStringArgs(@Nonnull RpcPacket packet, @Nonnull final RpcPacketSupplier argsSupplier) {
-		String[] strArgs = packet.getStrArgs();
-		if (nonNull(strArgs)) {
-			for (String arg : strArgs) {
-				if (isNotBlank(arg)) {
-					reallocateSendBufferInPutPacketIfRunOut(argsSupplier, marshalPacketField(null, arg), SENDBUF_REALLOC_INCR);
-				}
-			}
+		if (isNull(sendBuf)) {
+			sendBuf = new RpcPacketSendBuffer(INITIAL_SENDBUF_SIZE, stats);
 		}
-	}
-
-	private void processExternalEnv(@Nonnull RpcPacket packet, @Nonnull final RpcPacketSupplier argsSupplier) {
-		ExternalEnv externalEnv = packet.getEnv();
-		if (nonNull(externalEnv)) {
-			reallocateSendBufferInPutPacketIfRunOut(argsSupplier, externalEnv.marshal(), SENDBUF_REALLOC_INCR);
+		// The send buffer leaves room for the preamble, which we fill in
+		// later when we know the marshaled length.
+		sendBuf.reset();
+		try {
+			// FixedOrder
+			marshalPacket(packet, sendBuf);
+			sendBuf.finishPacket();
+			sendToDownstream(sendBuf);
+		} finally {
+			sendBuf.reset();
 		}
-	}
-
-	private void processFuncName(@Nonnull RpcPacket packet, @Nonnull RpcPacketSupplier supplier) {
-		byte[] nameBytes = marshalPacketField(RpcFunctionMapKey.FUNCTION, packet.getFuncNameString());
-		reallocateSendBufferInPutPacketIfRunOut(supplier, nameBytes, nameBytes.length);
+		return 0;
 	}
 
 	/**
-	 * Now go back and calculate the preamble bytes and sending it to downstream
+	 * Send the marshaled packet downstream and flush it.
 	 */
-	private void calculatePreambleBytesAndSendtoDownstream(@Nonnull final RpcPacketSupplier argsSupplier) throws ConnectionException {
-		byte[] sendBytes = argsSupplier.sendBytes();
-		int sendPos = argsSupplier.sendPos();
-
-		byte[] preambleBytes = RpcPacketPreamble.constructPreamble(sendPos - RpcPacketPreamble.RPC_PREAMBLE_SIZE).marshalAsBytes();
-		System.arraycopy(preambleBytes, 0, sendBytes, 0, preambleBytes.length);
+	private void sendToDownstream(@Nonnull final RpcPacketSendBuffer sendBuf) throws ConnectionException {
+		int packetLength = sendBuf.getPacketLength();
+		long sendStart = sampleNanoTime();
 		try {
-			topOutputStream.write(sendBytes, 0, sendPos);
+			int writes = sendBuf.writeTo(topOutputStream);
 			topOutputStream.flush();
-			stats.streamSends.incrementAndGet();
-			stats.totalBytesSent.getAndAdd(sendPos);
+			if (nonNull(commandSample)) {
+				commandSample.packetSent(sendStart, packetLength);
+			}
+			stats.streamSends.getAndAdd(writes);
+			stats.totalBytesSent.getAndAdd(packetLength);
 			stats.packetsSent.incrementAndGet();
-			if (stats.largestRpcPacketSent.get() < sendPos) {
-				stats.largestRpcPacketSent.set(sendPos);
+			if (stats.largestRpcPacketSent.get() < packetLength) {
+				stats.largestRpcPacketSent.set(packetLength);
 			}
 		} catch (IOException exc) {
 			Log.exception(exc);
@@ -672,8 +721,13 @@ public class RpcStreamConnection extends RpcConnection {
 				// itself compressed...
 				putRpcPacket(RpcPacket.constructRpcPacket(RpcFunctionSpec.PROTOCOL_COMPRESS2, "compress2", null, null));
 				topOutputStream.flush();
-				topOutputStream = new RpcGZIPOutputStream(outputStream);
-				topInputStream = new RpcGZIPInputStream(inputStream);
+				if (RpcPropertyDefs.getPropertyAsBoolean(this.props, RpcPropertyDefs.RPC_COMPRESSION_USE_JZLIB_NICK, false)) {
+					topOutputStream = new RpcGZIPOutputStream(outputStream, getCompressionLevel(), getCompressionStrategy());
+					topInputStream = new RpcGZIPInputStream(inputStream);
+				} else {
+					topOutputStream = new RpcZlibOutputStream(outputStream, getCompressionLevel(), getCompressionStrategy(), this);
+					topInputStream = new RpcZlibInputStream(inputStream, this);
+				}
 			} catch (IOException exc) {
 				Log.error("I/O exception encountered while setting up GZIP streaming: %s", exc.getLocalizedMessage());
 				Log.exception(exc);
@@ -701,27 +755,4 @@ public class RpcStreamConnection extends RpcConnection {
 		this.topOutputStream = topOutputStream;
 		return this;
 	}
-
-	static class RpcPacketSupplier {
-		private byte[] sendBytes = new byte[INITIAL_SENDBUF_SIZE];
-		private int sendPos = 0;
-
-		RpcPacketSupplier sendBytes(final byte[] sendBytes) {
-			this.sendBytes = sendBytes;
-			return this;
-		}
-
-		RpcPacketSupplier sendPos(final int sendPos) {
-			this.sendPos = sendPos;
-			return this;
-		}
-
-		byte[] sendBytes() {
-			return sendBytes;
-		}
-
-		int sendPos() {
-			return sendPos;
-		}
-	}
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.UnimplementedError;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcZlibPool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The incoming half of Perforce connection compression, using the JDK's
+ * native zlib Inflater (taken from RpcZlibPool) rather than JZlib. Reads
+ * only as many compressed bytes off the underlying stream as are
+ * available, so it never blocks waiting for more than the server has sent.
+ * <p>
+ * The bytes decompressed and the time spent decompressing them (not
+ * including waiting on the underlying stream) are added to the
+ * connection's command sample (if any) as they're read.
+ */
+public class RpcZlibInputStream extends FilterInputStream {
+
+	private static final int ZBUF_SIZE = 10240;
+
+	private final RpcConnection connection;
+	private Inflater inflater = null;
+	private final byte[] zBytes = new byte[ZBUF_SIZE];
+
+	/**
+	 * @param in         non-null stream to read compressed bytes from
+	 * @param connection possibly-null connection to report to
+	 */
+	public RpcZlibInputStream(InputStream in, RpcConnection connection) {
+		super(in);
+		this.connection = connection;
+		this.inflater = RpcZlibPool.getInflater();
+	}
+
+	@Override
+	public int read(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError("null byte array passed to RpcZlibInputStream.read()");
+		}
+		return read(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int len) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError("null byte array passed to RpcZlibInputStream.read()");
+		}
+		if ((len <= 0) || (offset < 0) || (offset >= bytes.length) || (len > (bytes.length - offset))) {
+			throw new P4JavaError("bad length or offset in RpcZlibInputStream.read()");
+		}
+		if (this.inflater == null) {
+			throw new IOException("RpcZlibInputStream is closed");
+		}
+
+		long compressedBytes = 0;
+		long inflateNanos = 0;
+		try {
+			while (true) {
+				long start = nanoTime();
+				int count = this.inflater.inflate(bytes, offset, len);
+				inflateNanos += nanoTime() - start;
+				if (count > 0) {
+					CommandSample sample = (this.connection == null) ? null : this.connection.getCommandSample();
+					if (sample != null) {
+						sample.compressed(count, compressedBytes, inflateNanos);
+					}
+					return count;
+				}
+				if (this.inflater.finished() || this.inflater.needsDictionary()) {
+					return -1;
+				}
+				if (this.inflater.needsInput()) {
+					int zCount = this.in.read(this.zBytes, 0, this.zBytes.length);
+					if (zCount < 0) {
+						return -1;
+					}
+					this.inflater.setInput(this.zBytes, 0, zCount);
+					compressedBytes += zCount;
+				}
+			}
+		} catch (DataFormatException exc) {
+			throw new IOException("connection decompression error: " + exc.getLocalizedMessage(), exc);
+		}
+	}
+
+	private long nanoTime() {
+		return (this.connection == null) ? 0 : this.connection.sampleNanoTime();
+	}
+
+	/**
+	 * Not used. Will cause a UnimplementedError to be thrown if called.
+	 */
+	@Override
+	public int read() throws IOException {
+		throw new UnimplementedError("single-byte RpcZlibInputStream.read()");
+	}
+
+	/**
+	 * Give the inflater back to the pool and close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		releaseCodecs();
+		this.in.close();
+	}
+
+	/**
+	 * Give the inflater back to the pool without closing the underlying
+	 * stream (a pooled socket's, say); nothing more can be read after this.
+	 */
+	public void releaseCodecs() {
+		if (this.inflater != null) {
+			RpcZlibPool.release(this.inflater);
+			this.inflater = null;
+		}
+	}
+}
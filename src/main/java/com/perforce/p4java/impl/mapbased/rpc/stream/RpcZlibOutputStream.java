@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.UnimplementedError;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.metrics.CommandSample;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcZlibPool;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * The outgoing half of Perforce connection compression, using the JDK's
+ * native zlib Deflater (taken from RpcZlibPool) rather than JZlib. The
+ * stream is a raw deflate stream with a full flush at each packet
+ * boundary, exactly as written by RpcGZIPOutputStream, so the same rules
+ * apply: upper levels must call flush() once each packet has been written,
+ * or the server may never see it.
+ * <p>
+ * The bytes compressed and the time spent compressing them are added to
+ * the connection's command sample (if any) at each flush.
+ */
+public class RpcZlibOutputStream extends FilterOutputStream {
+
+	private static final int ZBUF_SIZE = 10240;
+
+	private final RpcConnection connection;
+	private Deflater deflater = null;
+	private final byte[] zBytes = new byte[ZBUF_SIZE];
+
+	// Counted since the last flush
+	private long plainBytes = 0;
+	private long compressedBytes = 0;
+	private long deflateNanos = 0;
+
+	/**
+	 * @param out        non-null stream to write compressed bytes to
+	 * @param level      zlib compression level
+	 * @param strategy   zlib compression strategy
+	 * @param connection possibly-null connection to report to
+	 */
+	public RpcZlibOutputStream(OutputStream out, int level, int strategy, RpcConnection connection) {
+		super(out);
+		this.connection = connection;
+		this.deflater = RpcZlibPool.getDeflater(level, strategy);
+	}
+
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError("null byte array passed to RpcZlibOutputStream.write()");
+		}
+		write(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int len) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError("null byte array passed to RpcZlibOutputStream.write()");
+		}
+		if ((len <= 0) || (offset < 0) || (offset >= bytes.length) || (len > (bytes.length - offset))) {
+			throw new P4JavaError("bad length or offset in RpcZlibOutputStream.write()");
+		}
+		ensureOpen();
+		this.deflater.setInput(bytes, offset, len);
+		this.plainBytes += len;
+		deflate(Deflater.NO_FLUSH);
+	}
+
+	/**
+	 * Not used. Will cause a UnimplementedError to be thrown if called.
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		throw new UnimplementedError("single-byte RpcZlibOutputStream.write()");
+	}
+
+	/**
+	 * Compress and send everything written so far, ending it on a
+	 * compression boundary.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		deflate(Deflater.FULL_FLUSH);
+		this.out.flush();
+
+		CommandSample sample = (this.connection == null) ? null : this.connection.getCommandSample();
+		if (sample != null) {
+			sample.compressed(this.plainBytes, this.compressedBytes, this.deflateNanos);
+		}
+		this.plainBytes = 0;
+		this.compressedBytes = 0;
+		this.deflateNanos = 0;
+	}
+
+	/**
+	 * Give the deflater back to the pool. Doesn't close the underlying
+	 * stream, which belongs to the connection.
+	 */
+	@Override
+	public void close() throws IOException {
+		releaseCodecs();
+	}
+
+	/**
+	 * Give the deflater back to the pool, leaving the underlying stream
+	 * alone; nothing more can be written after this.
+	 */
+	public void releaseCodecs() {
+		if (this.deflater != null) {
+			RpcZlibPool.release(this.deflater);
+			this.deflater = null;
+		}
+	}
+
+	private void deflate(int flushMode) throws IOException {
+		while (true) {
+			long start = nanoTime();
+			int count = this.deflater.deflate(this.zBytes, 0, this.zBytes.length, flushMode);
+			this.deflateNanos += nanoTime() - start;
+			if (count > 0) {
+				this.out.write(this.zBytes, 0, count);
+				this.compressedBytes += count;
+			}
+			// A full output buffer may mean there's more to come even
+			// with no input left
+			if ((count < this.zBytes.length) && this.deflater.needsInput()) {
+				break;
+			}
+		}
+	}
+
+	private long nanoTime() {
+		return (this.connection == null) ? 0 : this.connection.sampleNanoTime();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.deflater == null) {
+			throw new IOException("RpcZlibOutputStream is closed");
+		}
+	}
+}
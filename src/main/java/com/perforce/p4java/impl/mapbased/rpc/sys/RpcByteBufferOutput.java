@@ -3,48 +3,144 @@
  */
 package com.perforce.p4java.impl.mapbased.rpc.sys;
 
+import com.perforce.p4java.Log;
+import com.perforce.p4java.PropertyDefs;
 import com.perforce.p4java.exception.FileDecoderException;
 import com.perforce.p4java.exception.FileEncoderException;
 import com.perforce.p4java.exception.NullPointerError;
 import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketBufferPool;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.BufferOverflowException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.ReadOnlyBufferException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 /**
- * Provides a Perforce-specific extension to the basic Java ByteBuffer to allow
- * us to intercept methods and implement our own extensions.
+ * Growable buffer holding the output of execStreamCmdForBuffer and friends.
+ * <p>
+ * Output is appended to a chain of segments taken from a shared buffer pool
+ * (heap or, optionally, direct), each segment twice the size of the last up
+ * to RpcPacketBufferPool.MAX_POOLED_SIZE, so nothing is ever copied while the
+ * command runs and nothing is silently dropped when the output outgrows the
+ * "--size" hint. Once the output exceeds the optional spill threshold, it is
+ * moved to a temp file instead, and handed back as a read-only memory-mapped
+ * view of that file.
+ * <p>
+ * The results are available either as a single buffer (getByteBuffer(),
+ * which may need to gather the segments into one), or as an array of
+ * read-only buffers over the segments themselves (getByteBuffers()). Either
+ * one finishes the output; nothing more may be written after that.
+ * <p>
+ * Not thread-safe; used by a single command's dispatch thread.
  */
 
 public class RpcByteBufferOutput {
-	private int capacity;
 
-	private int bufLimit = 0;
+	/**
+	 * Size of the first segment when there's no usable size hint.
+	 */
+	public static final int MIN_SEGMENT_SIZE = RpcPacketBufferPool.MIN_POOLED_SIZE;
 
-	private ByteBuffer byteBuffer;
+	/**
+	 * Largest segment size; segments grow geometrically up to this.
+	 */
+	public static final int MAX_SEGMENT_SIZE = RpcPacketBufferPool.MAX_POOLED_SIZE;
+
+	/**
+	 * Largest region mapped by a single buffer in getByteBuffers() once the
+	 * output has been spilled.
+	 */
+	private static final long MAX_MAPPED_REGION = 1L << 30;
+
+	private static final String SPILL_FILE_PREFIX = "p4j";
+	private static final String SPILL_FILE_SUFFIX = ".buf";
+
+	private final int capacity;
+	private final RpcPacketBufferPool pool;
+	private final long spillThreshold;
+	private final String tmpDirName;
+
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private ByteBuffer tail = null;
+	private long size = 0;
+
+	private File spillFile = null;
+	private RandomAccessFile spillRaf = null;
+	private FileChannel spillChannel = null;
+	private MappedByteBuffer[] mapped = null;
+
+	private ByteBuffer view = null;
+	private boolean finished = false;
 
 	public static RpcByteBufferOutput getBufferOutputStream(String[] cmdArguments) throws IOException {
+		return getBufferOutputStream(cmdArguments, null);
+	}
+
+	/**
+	 * Create a buffer output for a command, sized according to any "--size=N"
+	 * argument, and configured by the direct buffer and spill properties in
+	 * the passed-in (possibly-null) properties.
+	 *
+	 * @param cmdArguments possibly-null command arguments
+	 * @param props        possibly-null properties
+	 * @return new buffer output
+	 * @throws IOException on bad size argument
+	 */
+	public static RpcByteBufferOutput getBufferOutputStream(String[] cmdArguments, Properties props) throws IOException {
 		int capacity = 0;
 
-		for (String str : cmdArguments) {
-			if (str.contains("--size")) {
-				capacity = Integer.parseInt(str.split("=")[1]);
+		if (cmdArguments != null) {
+			for (String str : cmdArguments) {
+				if (str != null && str.contains("--size")) {
+					try {
+						capacity = Integer.parseInt(str.split("=")[1]);
+					} catch (NumberFormatException | ArrayIndexOutOfBoundsException exc) {
+						throw new IOException("Bad buffer size argument: " + str, exc);
+					}
+				}
 			}
 		}
-		return new RpcByteBufferOutput( capacity );
-	}
 
-	private RpcByteBufferOutput(int capacity) {
-		this.capacity = capacity;
+		boolean direct = RpcPropertyDefs.getPropertyAsBoolean(props,
+				RpcPropertyDefs.RPC_BUFFER_OUTPUT_DIRECT_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_BUFFER_OUTPUT_DIRECT);
+		int spillThreshold = RpcPropertyDefs.getPropertyAsInt(props,
+				RpcPropertyDefs.RPC_BUFFER_OUTPUT_SPILL_THRESHOLD_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_BUFFER_OUTPUT_SPILL_THRESHOLD);
+		String tmpDirName = RpcPropertyDefs.getProperty(props, PropertyDefs.P4JAVA_TMP_DIR_KEY,
+				System.getProperty("java.io.tmpdir"));
 
-		if (capacity > 0) {
-			this.byteBuffer = ByteBuffer.allocate(capacity);
-			this.bufLimit = byteBuffer.limit();
+		return new RpcByteBufferOutput(capacity,
+				direct ? RpcPacketBufferPool.getDefaultDirect(props) : RpcPacketBufferPool.getDefault(props),
+				spillThreshold, tmpDirName);
+	}
+
+	/**
+	 * Create a buffer output.
+	 *
+	 * @param capacity       size hint; used to size the first segment.
+	 * @param pool           non-null pool to take segments from.
+	 * @param spillThreshold output size above which output is spilled to a
+	 *                       memory-mapped temp file; zero or less never spills.
+	 * @param tmpDirName     possibly-null directory for the spill file.
+	 */
+	public RpcByteBufferOutput(int capacity, RpcPacketBufferPool pool, long spillThreshold, String tmpDirName) {
+		if (pool == null) {
+			throw new NullPointerError("Null buffer pool passed to RpcByteBufferOutput constructor");
 		}
+		this.capacity = Math.max(0, capacity);
+		this.pool = pool;
+		this.spillThreshold = spillThreshold;
+		this.tmpDirName = tmpDirName;
 	}
 
 	public void write(byte[] sourceBytes, int off, int len) throws IOException {
@@ -57,48 +153,44 @@ public class RpcByteBufferOutput {
 		if (len < 0) {
 			throw new P4JavaError("Negative length in RpcByteBufferOutput.write()");
 		}
-
-		int remainingBytes = this.byteBuffer.capacity() - this.byteBuffer.position();
-		if( remainingBytes < len ) {
-			len = remainingBytes;
+		if (len > sourceBytes.length - off) {
+			throw new P4JavaError("Length exceeds source bytes in RpcByteBufferOutput.write()");
 		}
+		checkNotFinished();
 
-		if (this.byteBuffer.limit() == 0) {
-			this.byteBuffer.limit(this.bufLimit);
+		if ((spillChannel == null) && (spillThreshold > 0) && (size + len > spillThreshold)) {
+			spill();
 		}
 
-		this.byteBuffer.put(sourceBytes, off, len);
+		int remaining = len;
+		while (remaining > 0) {
+			if ((tail == null) || !tail.hasRemaining()) {
+				nextSegment();
+			}
+			int n = Math.min(remaining, tail.remaining());
+			tail.put(sourceBytes, off + len - remaining, n);
+			remaining -= n;
+		}
+		size += len;
 	}
 
 	public void write(byte[] b) throws IOException {
 		if (b == null) {
 			throw new NullPointerError("Null bytes passed to RpcByteBufferOutput.write()");
 		}
-
-		int len = b.length;
-
-		int remainingBytes = this.byteBuffer.capacity() - this.byteBuffer.position();
-		if( remainingBytes < len ) {
-			len = remainingBytes;
-		}
-
-		if ( this.byteBuffer.limit() == 0) {
-			this.byteBuffer.limit(bufLimit);
-		}
-
-		this.byteBuffer.put(b, 0, len);
+		write(b, 0, b.length);
 	}
 
 	public void write(byte b) throws IOException {
-		try {
-			this.byteBuffer.put(b);
-		}
-		catch (BufferOverflowException e) {
-			System.out.println("Byte Buffer OverFlow Exception throws : " + e);
+		checkNotFinished();
+		if ((spillChannel == null) && (spillThreshold > 0) && (size + 1 > spillThreshold)) {
+			spill();
 		}
-		catch (ReadOnlyBufferException e) {
-			System.out.println("Byte Buffer ReadOnly Buffer Exception throws : " + e);
+		if ((tail == null) || !tail.hasRemaining()) {
+			nextSegment();
 		}
+		tail.put(b);
+		size++;
 	}
 
 	public long write(Map<String, Object> map) throws IOException, FileDecoderException, FileEncoderException {
@@ -126,20 +218,221 @@ public class RpcByteBufferOutput {
 		}
 	}
 
+	/**
+	 * Finish the output and return it as a single buffer, positioned at zero
+	 * with its limit at the end of the output. If the output fits in a single
+	 * segment, that segment is returned as-is; otherwise the segments are
+	 * gathered into a new buffer (direct if the segments are) and returned to
+	 * the pool. Spilled output is returned as a read-only mapped buffer.
+	 * Repeated calls return the same buffer.
+	 *
+	 * @return non-null buffer
+	 * @throws P4JavaError if the output is too large for a single buffer
+	 */
 	public ByteBuffer getByteBuffer() {
-		this.byteBuffer.flip(); // Rewinds this buffer. The position is set to zero and the mark is discarded.
-		return this.byteBuffer;
+		if (view != null) {
+			return view;
+		}
+		finish();
+		if (mapped != null) {
+			if (mapped.length == 1) {
+				view = mapped[0];
+			} else if (mapped.length == 0) {
+				view = ByteBuffer.allocate(0);
+			} else {
+				throw new P4JavaError("RPC Byte Buffer output too large for a single buffer: " + size + " bytes");
+			}
+		} else if (segments.size() == 1) {
+			view = segments.get(0);
+		} else {
+			if (size > Integer.MAX_VALUE) {
+				throw new P4JavaError("RPC Byte Buffer output too large for a single buffer: " + size + " bytes");
+			}
+			ByteBuffer gathered = pool.isDirect() ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+			for (ByteBuffer segment : segments) {
+				gathered.put(segment);
+				pool.release(segment);
+			}
+			gathered.flip();
+			segments.clear();
+			segments.add(gathered);
+			view = gathered;
+		}
+		return view;
+	}
+
+	/**
+	 * Finish the output and return it as an array of read-only buffers, in
+	 * order, with no copying. Each buffer is positioned at zero with its limit
+	 * at the end of its part of the output.
+	 *
+	 * @return non-null, possibly-empty array of buffers
+	 */
+	public ByteBuffer[] getByteBuffers() {
+		finish();
+		List<ByteBuffer> source = new ArrayList<ByteBuffer>();
+		if (view != null) {
+			source.add(view);
+		} else if (mapped != null) {
+			for (MappedByteBuffer region : mapped) {
+				source.add(region);
+			}
+		} else {
+			source.addAll(segments);
+		}
+		ByteBuffer[] buffers = new ByteBuffer[source.size()];
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = source.get(i).asReadOnlyBuffer();
+			buffer.position(0);
+			buffers[i] = buffer;
+		}
+		return buffers;
 	}
 
+	/**
+	 * @return the size hint this output was created with.
+	 */
 	public int getCapacity() {
 		return this.capacity;
 	}
 
 	public int getLimit() {
-		return this.bufLimit;
+		return this.capacity;
 	}
 
+	/**
+	 * @return the number of bytes written so far, clamped to
+	 * Integer.MAX_VALUE; see getSize().
+	 */
 	public int getPosition() {
-		return this.byteBuffer.position();
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the number of bytes written so far.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return true if the output has been spilled to a temp file.
+	 */
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	private void checkNotFinished() throws IOException {
+		if (finished) {
+			throw new IOException("RpcByteBufferOutput written to after its output was retrieved");
+		}
+	}
+
+	/**
+	 * Make a new, empty tail: a new pooled segment, or, once spilled, the
+	 * staging segment after writing its contents to the spill file.
+	 */
+	private void nextSegment() throws IOException {
+		if (spillChannel != null) {
+			drain(tail);
+			tail.clear();
+			return;
+		}
+		int segmentSize;
+		if (tail == null) {
+			segmentSize = capacity > 0 ? capacity : MIN_SEGMENT_SIZE;
+		} else {
+			segmentSize = tail.capacity() << 1;
+		}
+		segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segmentSize));
+		tail = pool.acquire(segmentSize);
+		segments.add(tail);
+	}
+
+	/**
+	 * Move everything written so far to a new temp file; from here on the
+	 * largest existing segment is kept as a staging buffer for the file and
+	 * the rest are returned to the pool.
+	 */
+	private void spill() throws IOException {
+		File tmpDir = (tmpDirName == null) ? null : new File(tmpDirName);
+		spillFile = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, tmpDir);
+		spillFile.deleteOnExit();
+		try {
+			spillRaf = new RandomAccessFile(spillFile, "rw");
+			spillChannel = spillRaf.getChannel();
+			for (ByteBuffer segment : segments) {
+				drain(segment);
+				if (segment != tail) {
+					pool.release(segment);
+				}
+			}
+		} catch (IOException exc) {
+			discardSpillFile();
+			spillFile = null;
+			throw exc;
+		}
+		segments.clear();
+		if (tail == null) {
+			tail = pool.acquire(MAX_SEGMENT_SIZE);
+		}
+		tail.clear();
+	}
+
+	private void drain(ByteBuffer segment) throws IOException {
+		segment.flip();
+		while (segment.hasRemaining()) {
+			spillChannel.write(segment);
+		}
+	}
+
+	private void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (spillChannel == null) {
+			for (ByteBuffer segment : segments) {
+				segment.flip();
+			}
+			return;
+		}
+		try {
+			drain(tail);
+			pool.release(tail);
+			tail = null;
+			int regions = (int) ((size + MAX_MAPPED_REGION - 1) / MAX_MAPPED_REGION);
+			mapped = new MappedByteBuffer[regions];
+			for (int i = 0; i < regions; i++) {
+				long start = i * MAX_MAPPED_REGION;
+				mapped[i] = spillChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_MAPPED_REGION, size - start));
+			}
+		} catch (IOException exc) {
+			Log.error("Unable to map spilled RPC Byte Buffer output: " + exc.getLocalizedMessage());
+			Log.exception(exc);
+			throw new P4JavaError("Unable to map spilled RPC Byte Buffer output: " + exc.getLocalizedMessage(), exc);
+		} finally {
+			discardSpillFile();
+		}
+	}
+
+	/**
+	 * Close and delete the spill file; any existing mappings stay valid on
+	 * platforms that allow deleting mapped files, and on the others the file
+	 * is left to deleteOnExit.
+	 */
+	private void discardSpillFile() {
+		try {
+			if (spillRaf != null) {
+				spillRaf.close();
+			}
+		} catch (IOException exc) {
+			Log.exception(exc);
+		}
+		if ((spillFile != null) && !spillFile.delete()) {
+			Log.warn("Unable to delete RPC Byte Buffer spill file " + spillFile.getPath() + "; deleting on exit");
+		}
+		spillChannel = null;
+		spillRaf = null;
 	}
 }
@@ -172,6 +172,15 @@ public class RpcInputStream extends FileInputStream {
 		}
 	}
 
+	/**
+	 * Returns true if this stream reads the file's bytes as they are, with
+	 * no charset or line ending translation; only then can the file be read
+	 * through getChannel() instead.
+	 */
+	public boolean isRaw() {
+		return this.lineEndStream == null;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (this.lineEndStream != null) {
@@ -25,6 +25,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.zip.CheckedInputStream;
@@ -72,6 +73,18 @@ public class RpcOutputStream extends FileOutputStream {
 
 	private static final int TRAILER_SIZE = 8; // bytes
 
+	/*
+	 * Size of the per-thread direct buffer as-is content is written through.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> writeBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		}
+	};
+
 	private RpcPerforceFile file = null;
 	private RpcPerforceFileType fileType = null;
 	private RpcInflaterOutputStream outStream = null;
@@ -81,6 +94,8 @@ public class RpcOutputStream extends FileOutputStream {
 	private boolean headerRead = false;
 	private byte[] footerBytes = null;
 	private boolean closed = false;
+	private boolean asIs = false;    // content is written exactly as received
+	private boolean preallocated = false;
 	private boolean writeUtf8Bom = false;
 	private ClientLineEnding lineEnding = null;
 	private RpcLineEndFilterOutputStream lineEndStream = null;
@@ -163,7 +178,7 @@ public class RpcOutputStream extends FileOutputStream {
 						this.lineEndStream = new RpcLineEndFilterOutputStream(this, this.lineEnding);
 					}
 
-					this.inflater = new Inflater(true);
+					this.inflater = RpcZlibPool.getInflater();
 					this.crc = new RpcCRC32Checksum();
 					tempBufferToStoreCompressedBytes = new ByteArrayOutputStream();
 					this.checkedOutStream = new CheckedOutputStream(tempBufferToStoreCompressedBytes, this.crc);
@@ -186,7 +201,7 @@ public class RpcOutputStream extends FileOutputStream {
 				case FST_XAPPLEFILE_GUNZIP:
 				case FST_GUNZIP:
 				case FST_XGUNZIP:
-					this.inflater = new Inflater(true);
+					this.inflater = RpcZlibPool.getInflater();
 					this.crc = new RpcCRC32Checksum();
 					this.checkedOutStream = new CheckedOutputStream(new BufferedOutputStream(this), this.crc);
 					this.outStream = new RpcInflaterOutputStream(this.checkedOutStream, this.inflater, this.localDigester);
@@ -195,6 +210,7 @@ public class RpcOutputStream extends FileOutputStream {
 					break;
 
 				default:
+					this.asIs = true;
 					break;
 			}
 		} else {
@@ -206,56 +222,92 @@ public class RpcOutputStream extends FileOutputStream {
 	public void close() throws IOException {
 		if (!closed) {
 			closed = true;
-			switch (this.fileType) {
-				case FST_UTF16_GUNZIP:
-				case FST_XUTF16_GUNZIP:
-				case FST_UTF8_GUNZIP:
-				case FST_XUTF8_GUNZIP:
-				case FST_UNICODE_GUNZIP:
-				case FST_XUNICODE_GUNZIP:
-				case FST_TEXT_GUNZIP:
-				case FST_XTEXT_GUNZIP:
-					readTrailer(this.footerBytes);
-					this.outStream.close();
-					this.checkedOutStream.close();
-				case FST_UTF16:
-				case FST_XUTF16:
-				case FST_UTF8:
-				case FST_XUTF8:
-				case FST_UNICODE:
-				case FST_XUNICODE:
-				case FST_TEXT:
-				case FST_XTEXT:
-					if (this.lineEndStream != null) {
-						this.lineEndStream.close();
-					}
-					break;
-
-				case FST_GUNZIP:
-				case FST_XGUNZIP:
-				case FST_BINARY_GUNZIP:
-				case FST_XBINARY_GUNZIP:
-				case FST_SYMLINK_GUNZIP:
-				case FST_RESOURCE_GUNZIP:
-				case FST_XSYMLINK_GUNZIP:
-				case FST_XRESOURCE_GUNZIP:
-				case FST_RTEXT_GUNZIP:
-				case FST_XRTEXT_GUNZIP:
-				case FST_APPLETEXT_GUNZIP:
-				case FST_APPLEFILE_GUNZIP:
-				case FST_XAPPLETEXT_GUNZIP:
-				case FST_XAPPLEFILE_GUNZIP:
-					readTrailer(this.footerBytes);
-					this.outStream.close();
-					this.checkedOutStream.close();
-					break;
-				default:
-					break;
+			try {
+				closeConverted();
+			} finally {
+				RpcZlibPool.release(this.inflater);
+				this.inflater = null;
+			}
+			if (this.preallocated) {
+				// Drop whatever wasn't written after all
+				FileChannel channel = getChannel();
+				if (channel.position() < channel.size()) {
+					channel.truncate(channel.position());
+				}
 			}
 			super.close();
 		}
 	}
 
+	private void closeConverted() throws IOException {
+		switch (this.fileType) {
+			case FST_UTF16_GUNZIP:
+			case FST_XUTF16_GUNZIP:
+			case FST_UTF8_GUNZIP:
+			case FST_XUTF8_GUNZIP:
+			case FST_UNICODE_GUNZIP:
+			case FST_XUNICODE_GUNZIP:
+			case FST_TEXT_GUNZIP:
+			case FST_XTEXT_GUNZIP:
+				readTrailer(this.footerBytes);
+				this.outStream.close();
+				this.checkedOutStream.close();
+			case FST_UTF16:
+			case FST_XUTF16:
+			case FST_UTF8:
+			case FST_XUTF8:
+			case FST_UNICODE:
+			case FST_XUNICODE:
+			case FST_TEXT:
+			case FST_XTEXT:
+				if (this.lineEndStream != null) {
+					this.lineEndStream.close();
+				}
+				break;
+
+			case FST_GUNZIP:
+			case FST_XGUNZIP:
+			case FST_BINARY_GUNZIP:
+			case FST_XBINARY_GUNZIP:
+			case FST_SYMLINK_GUNZIP:
+			case FST_RESOURCE_GUNZIP:
+			case FST_XSYMLINK_GUNZIP:
+			case FST_XRESOURCE_GUNZIP:
+			case FST_RTEXT_GUNZIP:
+			case FST_XRTEXT_GUNZIP:
+			case FST_APPLETEXT_GUNZIP:
+			case FST_APPLEFILE_GUNZIP:
+			case FST_XAPPLETEXT_GUNZIP:
+			case FST_XAPPLEFILE_GUNZIP:
+				readTrailer(this.footerBytes);
+				this.outStream.close();
+				this.checkedOutStream.close();
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Set the file's final length before anything is written to it, if its
+	 * content is written as-is (otherwise the written length isn't known
+	 * in advance). If less turns out to be written, the file is truncated
+	 * when it's closed.
+	 *
+	 * @param size expected file size in bytes
+	 * @throws IOException on error
+	 */
+	public void preallocate(long size) throws IOException {
+		if (this.asIs && !this.preallocated && (size > 0)) {
+			FileChannel channel = getChannel();
+			if ((channel.position() == 0) && (channel.size() < size)) {
+				// A positional write; doesn't move the channel's position
+				channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+				this.preallocated = true;
+			}
+		}
+	}
+
 	/**
 	 * Specialized write method to write a map containing a byte array
 	 * with the key RpcFunctionMapKey.DATA (all other fields are ignored).
@@ -433,13 +485,34 @@ public class RpcOutputStream extends FileOutputStream {
 				if (this.localDigester != null) {
 					this.localDigester.update(sourceBytes, 0, len);
 				}
-				this.write(sourceBytes, 0, len);
+				writeDirect(sourceBytes, 0, len);
 				bytesWritten = len + bom - 0;
 		}
 
 		return bytesWritten;
 	}
 
+	/**
+	 * Write as-is content straight to the file's channel through this
+	 * thread's direct buffer, rather than through FileOutputStream.write(),
+	 * which allocates a native buffer for every large write.
+	 */
+	private void writeDirect(byte[] sourceBytes, int off, int len) throws IOException {
+		FileChannel channel = getChannel();
+		ByteBuffer buffer = writeBuffers.get();
+		while (len > 0) {
+			int count = Math.min(len, buffer.capacity());
+			buffer.clear();
+			buffer.put(sourceBytes, off, count);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			off += count;
+			len -= count;
+		}
+	}
+
 	/**
 	 * Uncompress the source bytes and store them in "tempBufferToStoreCompressedBytes"
 	 *
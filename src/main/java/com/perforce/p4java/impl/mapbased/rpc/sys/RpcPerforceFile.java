@@ -19,6 +19,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.UUID;
 
 /**
@@ -121,7 +122,7 @@ public class RpcPerforceFile extends File {
 		}
 		try {
 			if ((this.fileType == null) || alwaysCopyUnMunged || canCopyAsIs()) {
-				if (super.renameTo(targetFile)) {
+				if (moveAtomically(targetFile) || super.renameTo(targetFile)) {
 					return true;
 				}
 				// try again, but delete the target first (Windows)
@@ -146,6 +147,20 @@ public class RpcPerforceFile extends File {
 		return false;
 	}
 
+	/**
+	 * Replace the target with this file in a single atomic rename, which
+	 * (unlike File.renameTo) also replaces an existing target on Windows.
+	 * Returns false if that's not possible, e.g. across filesystems.
+	 */
+	private boolean moveAtomically(File targetFile) {
+		try {
+			Files.move(this.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException | UnsupportedOperationException exc) {
+			return false;
+		}
+	}
+
 	private boolean renameOverlapping(File targetFile) {
 		// Either target is a substring (directory) of source,
 		// or source is a substring of target (target has a
@@ -252,9 +267,17 @@ public class RpcPerforceFile extends File {
 			targetChannel = outStream.getChannel();
 
 			if ((sourceChannel != null) && (targetChannel != null)) {
-				// Light fuse, stand back...
-
-				bytesTransferred = sourceChannel.transferTo(0, sourceChannel.size(), targetChannel);
+				// Light fuse, stand back... A single transferTo() may move
+				// less than asked for (on Linux, at most 2GB at a time).
+
+				long size = sourceChannel.size();
+				while (bytesTransferred < size) {
+					long count = sourceChannel.transferTo(bytesTransferred, size - bytesTransferred, targetChannel);
+					if (count <= 0) {
+						break;
+					}
+					bytesTransferred += count;
+				}
 
 				if (bytesTransferred != sourceChannel.size()) {
 					Log.error("channel copy for copyTo operation failed with fewer bytes" + " transferred than expected; expected: " + sourceChannel.size() + "; saw: " + bytesTransferred);
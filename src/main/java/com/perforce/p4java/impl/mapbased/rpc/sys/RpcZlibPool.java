@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A JVM-wide pool of the JDK's (native zlib) Inflater and Deflater objects,
+ * all in raw ("nowrap") mode, as used for connection compression and for
+ * decompressing gzipped file content on sync.
+ * <p>
+ * Each Inflater and Deflater holds native zlib state (a Deflater's is a
+ * few hundred KB at the default settings) that's only freed by end() or,
+ * eventually, by finalization; setting it up is also far from free. The
+ * pool keeps a bounded number of reset instances for reuse and ends any
+ * returned beyond that.
+ */
+public class RpcZlibPool {
+
+	/**
+	 * Maximum number of idle instances of each kind kept.
+	 */
+	public static final int MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+	private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private static final AtomicInteger idleInflaters = new AtomicInteger();
+	private static final AtomicInteger idleDeflaters = new AtomicInteger();
+
+	private RpcZlibPool() {
+	}
+
+	/**
+	 * @return a non-null raw Inflater ready for use; give it back with
+	 * release() when done with it.
+	 */
+	public static Inflater getInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater != null) {
+			idleInflaters.decrementAndGet();
+			return inflater;
+		}
+		return new Inflater(true);
+	}
+
+	/**
+	 * Return an Inflater got from getInflater() to the pool. It mustn't be
+	 * used again by the caller.
+	 *
+	 * @param inflater possibly-null inflater
+	 */
+	public static void release(Inflater inflater) {
+		if (inflater != null) {
+			if (idleInflaters.incrementAndGet() <= MAX_IDLE) {
+				inflater.reset();
+				inflaters.offer(inflater);
+			} else {
+				idleInflaters.decrementAndGet();
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * @param level    zlib compression level, or Deflater.DEFAULT_COMPRESSION
+	 * @param strategy zlib compression strategy, e.g. Deflater.DEFAULT_STRATEGY
+	 * @return a non-null raw Deflater ready for use; give it back with
+	 * release() when done with it.
+	 */
+	public static Deflater getDeflater(int level, int strategy) {
+		Deflater deflater = deflaters.poll();
+		if (deflater != null) {
+			idleDeflaters.decrementAndGet();
+		} else {
+			deflater = new Deflater(level, true);
+		}
+		// No input yet, so these take effect from the first deflate()
+		deflater.setLevel(level);
+		deflater.setStrategy(strategy);
+		return deflater;
+	}
+
+	/**
+	 * Return a Deflater got from getDeflater() to the pool. It mustn't be
+	 * used again by the caller.
+	 *
+	 * @param deflater possibly-null deflater
+	 */
+	public static void release(Deflater deflater) {
+		if (deflater != null) {
+			if (idleDeflaters.incrementAndGet() <= MAX_IDLE) {
+				deflater.reset();
+				deflaters.offer(deflater);
+			} else {
+				idleDeflaters.decrementAndGet();
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Map a compression strategy name as used by the compressionStrategy
+	 * property ("default", "filtered" or "huffman") to its Deflater value.
+	 *
+	 * @param name possibly-null strategy name
+	 * @return Deflater strategy; DEFAULT_STRATEGY if the name isn't known
+	 */
+	public static int getStrategy(String name) {
+		if ("filtered".equalsIgnoreCase(name)) {
+			return Deflater.FILTERED;
+		} else if ("huffman".equalsIgnoreCase(name)) {
+			return Deflater.HUFFMAN_ONLY;
+		}
+		return Deflater.DEFAULT_STRATEGY;
+	}
+}
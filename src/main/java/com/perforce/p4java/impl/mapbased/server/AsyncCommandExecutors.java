@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.server;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.PropertyDefs;
+import com.perforce.p4java.util.PropertiesHelper;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors used by the IOptionsServer ...Async methods.
+ * <p>
+ * The shared default executor is a bounded pool of daemon threads whose idle
+ * threads time out, so an application that never uses the async methods
+ * never pays for it. Applications that want a different policy (including
+ * virtual threads on JDKs that have them) should set their own executor on
+ * the server.
+ */
+public class AsyncCommandExecutors {
+
+	/**
+	 * Default maximum number of threads in the shared async executor.
+	 */
+	public static final int DEFAULT_ASYNC_COMMAND_THREADS = 16;
+
+	/**
+	 * How long idle shared executor threads are kept, in seconds.
+	 */
+	public static final int IDLE_THREAD_TIMEOUT_SECS = 60;
+
+	private static volatile Executor defaultExecutor = null;
+
+	private AsyncCommandExecutors() {
+	}
+
+	/**
+	 * Return the JVM-wide shared async executor, creating it on first use
+	 * with the number of threads given by the ASYNC_COMMAND_THREADS_KEY
+	 * property in the passed-in properties (if any).
+	 *
+	 * @param props possibly-null properties
+	 * @return non-null shared executor
+	 */
+	public static Executor getDefault(Properties props) {
+		Executor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (AsyncCommandExecutors.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					int threads = Math.max(1, PropertiesHelper.getPropertyAsInt(props,
+							new String[]{PropertyDefs.ASYNC_COMMAND_THREADS_KEY_SHORT_FORM, PropertyDefs.ASYNC_COMMAND_THREADS_KEY},
+							DEFAULT_ASYNC_COMMAND_THREADS));
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(), new AsyncThreadFactory());
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Return an executor that runs the tasks given to it one at a time, in
+	 * submission order, on the passed-in executor. Used to run async commands
+	 * against implementations that are not thread-safe.
+	 *
+	 * @param executor non-null executor to run the tasks on
+	 * @return non-null serialising executor
+	 */
+	public static SerialExecutor serial(Executor executor) {
+		return new SerialExecutor(executor);
+	}
+
+	/**
+	 * Lock-free serialising executor; at most one of its tasks is queued on or
+	 * running in the underlying executor at any time.
+	 */
+	public static class SerialExecutor implements Executor {
+		private final Executor delegate;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean active = new AtomicBoolean(false);
+
+		SerialExecutor(Executor delegate) {
+			this.delegate = delegate;
+		}
+
+		/**
+		 * @return the executor this serial executor runs its tasks on.
+		 */
+		public Executor getDelegate() {
+			return this.delegate;
+		}
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+			try {
+				scheduleNext();
+			} catch (RejectedExecutionException exc) {
+				tasks.remove(task);
+				throw exc;
+			}
+		}
+
+		private void scheduleNext() {
+			if (!tasks.isEmpty() && active.compareAndSet(false, true)) {
+				try {
+					delegate.execute(new Runnable() {
+						public void run() {
+							drain();
+						}
+					});
+				} catch (RejectedExecutionException exc) {
+					active.set(false);
+					throw exc;
+				}
+			}
+		}
+
+		private void drain() {
+			try {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Throwable thr) {
+						Log.error("Unexpected exception in async command: " + thr.getLocalizedMessage());
+						Log.exception(thr);
+					}
+				}
+			} finally {
+				active.set(false);
+				scheduleNext();
+			}
+		}
+	}
+
+	private static class AsyncThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setName("P4Java Async Command " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -223,6 +223,7 @@ import com.perforce.p4java.server.IOptionsServer;
 import com.perforce.p4java.server.IServerAddress;
 import com.perforce.p4java.server.IServerAddress.Protocol;
 import com.perforce.p4java.server.IServerInfo;
+import com.perforce.p4java.server.IServerTask;
 import com.perforce.p4java.server.P4Charset;
 import com.perforce.p4java.server.PerforceCharsets;
 import com.perforce.p4java.server.ServerStatus;
@@ -230,8 +231,11 @@ import com.perforce.p4java.server.callback.DefaultBrowserCallback;
 import com.perforce.p4java.server.callback.IBrowserCallback;
 import com.perforce.p4java.server.callback.ICommandCallback;
 import com.perforce.p4java.server.callback.IProgressCallback;
+import com.perforce.p4java.server.callback.IResultPublisher;
 import com.perforce.p4java.server.callback.ISSOCallback;
 import com.perforce.p4java.server.callback.IStreamingCallback;
+import com.perforce.p4java.server.metrics.ICommandMetrics;
+import com.perforce.p4java.server.metrics.IMetricsReporter;
 import com.perforce.p4java.server.delegator.IAttributeDelegator;
 import com.perforce.p4java.server.delegator.IBranchDelegator;
 import com.perforce.p4java.server.delegator.IBranchesDelegator;
@@ -307,17 +311,22 @@ import com.perforce.p4java.server.delegator.IUserDelegator;
 import com.perforce.p4java.server.delegator.IUsersDelegator;
 import com.perforce.p4java.server.delegator.IVerifyDelegator;
 import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.Validate;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.perforce.p4java.PropertyDefs.AUTO_CONNECT_KEY;
@@ -456,6 +465,7 @@ public abstract class Server extends HelixCommandExecutor implements IServerCont
 	protected boolean loginOnConnect = false;
 
 	protected ICommandCallback commandCallback = null;
+	protected IMetricsReporter metricsReporter = null;
 	protected IProgressCallback progressCallback = null;
 	protected ISSOCallback ssoCallback = null;
 	protected IBrowserCallback browserCallback = new DefaultBrowserCallback();
@@ -497,6 +507,8 @@ public abstract class Server extends HelixCommandExecutor implements IServerCont
 
 	protected Object browserVersion = null;
 
+	protected volatile Executor asyncExecutor = null;
+
 	// The delegators for running perforce commands
 	private IAttributeDelegator attributeDelegator = null;
 	private IBranchDelegator branchDelegator = null;
@@ -973,6 +985,21 @@ public abstract class Server extends HelixCommandExecutor implements IServerCont
 		return oldCallback;
 	}
 
+	@Override
+	public IMetricsReporter registerMetricsReporter(IMetricsReporter reporter) {
+		IMetricsReporter oldReporter = metricsReporter;
+		metricsReporter = reporter;
+		return oldReporter;
+	}
+
+	/**
+	 * This implementation gathers no metrics; see RpcServer.
+	 */
+	@Override
+	public Map<String, ICommandMetrics> getCommandMetrics() {
+		return Collections.emptyMap();
+	}
+
 	@Override
 	public IProgressCallback registerProgressCallback(IProgressCallback progressCallback) {
 		IProgressCallback oldCallback = this.progressCallback;
@@ -2028,6 +2055,84 @@ public abstract class Server extends HelixCommandExecutor implements IServerCont
 		return fstatDelegator.getExtendedFiles(fileSpecs, opts);
 	}
 
+	@Override
+	public CompletableFuture<List<Map<String, Object>>> execMapCmdListAsync(final String cmdName, final String[] cmdArgs, final Map<String, Object> inMap) {
+		return executeAsync(new IServerTask<List<Map<String, Object>>>() {
+			public List<Map<String, Object>> execute(IOptionsServer server) throws P4JavaException {
+				return server.execMapCmdList(cmdName, cmdArgs, inMap);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<IExtendedFileSpec>> getExtendedFilesAsync(final List<IFileSpec> fileSpecs, final GetExtendedFilesOptions opts) {
+		return executeAsync(new IServerTask<List<IExtendedFileSpec>>() {
+			public List<IExtendedFileSpec> execute(IOptionsServer server) throws P4JavaException {
+				return server.getExtendedFiles(fileSpecs, opts);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<IChangelistSummary>> getChangelistsAsync(final List<IFileSpec> fileSpecs, final GetChangelistsOptions opts) {
+		return executeAsync(new IServerTask<List<IChangelistSummary>>() {
+			public List<IChangelistSummary> execute(IOptionsServer server) throws P4JavaException {
+				return server.getChangelists(fileSpecs, opts);
+			}
+		});
+	}
+
+	@Override
+	public <T> CompletableFuture<T> executeAsync(@Nonnull final IServerTask<T> task) {
+		Validate.notNull(task);
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			getAsyncCommandExecutor().execute(new Runnable() {
+				public void run() {
+					if (future.isDone()) {
+						return; // cancelled before it got going
+					}
+					try {
+						future.complete(task.execute(Server.this));
+					} catch (Throwable thr) {
+						future.completeExceptionally(thr);
+					}
+				}
+			});
+		} catch (RejectedExecutionException exc) {
+			future.completeExceptionally(exc);
+		}
+		return future;
+	}
+
+	@Override
+	public void setAsyncExecutor(final Executor executor) {
+		this.asyncExecutor = executor;
+	}
+
+	@Override
+	public Executor getAsyncExecutor() {
+		Executor executor = this.asyncExecutor;
+		return executor != null ? executor : AsyncCommandExecutors.getDefault(props);
+	}
+
+	@Override
+	public IResultPublisher<Map<String, Object>> execStreamingMapCommand(final String cmdName, final String[] cmdArgs, final Map<String, Object> inMap) {
+		return new StreamingResultPublisher(this, cmdName, cmdArgs, inMap);
+	}
+
+	/**
+	 * Return the executor the ...Async methods actually submit to. This is
+	 * just the async executor, as this class doesn't itself restrict
+	 * concurrent command execution; implementations that aren't thread-safe
+	 * must override this to serialise their commands.
+	 *
+	 * @return non-null executor
+	 */
+	protected Executor getAsyncCommandExecutor() {
+		return getAsyncExecutor();
+	}
+
 	@Override
 	public List<IFileLineMatch> getMatchingLines(List<IFileSpec> fileSpecs, String pattern, MatchingLinesOptions options) throws P4JavaException {
 		return grepDelegator.getMatchingLines(fileSpecs, pattern, options);
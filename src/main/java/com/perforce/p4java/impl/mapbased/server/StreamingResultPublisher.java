@@ -0,0 +1,219 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.impl.mapbased.server;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.IServerTask;
+import com.perforce.p4java.server.callback.IFlowControlledStreamingCallback;
+import com.perforce.p4java.server.callback.IResultPublisher;
+import com.perforce.p4java.server.callback.IResultSubscriber;
+import com.perforce.p4java.server.callback.IResultSubscription;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Publisher behind IOptionsServer.execStreamingMapCommand(cmdName, cmdArgs,
+ * inMap).
+ * <p>
+ * Each subscription runs the command with the server's executeAsync method,
+ * using a flow-controlled streaming callback that blocks the command's
+ * dispatch thread whenever the subscriber has no outstanding demand -- both
+ * before delivering a result and before the server's flush1 is acknowledged.
+ * Either way the server is left waiting on us (on its flow control window or
+ * on TCP), so nothing more is read until the subscriber asks for it.
+ */
+public class StreamingResultPublisher implements IResultPublisher<Map<String, Object>> {
+
+	private final IOptionsServer server;
+	private final String cmdName;
+	private final String[] cmdArgs;
+	private final Map<String, Object> inMap;
+
+	public StreamingResultPublisher(IOptionsServer server, String cmdName, String[] cmdArgs, Map<String, Object> inMap) {
+		Validate.notNull(server);
+		Validate.notBlank(cmdName);
+		this.server = server;
+		this.cmdName = cmdName;
+		this.cmdArgs = cmdArgs;
+		this.inMap = inMap;
+	}
+
+	public void subscribe(final IResultSubscriber<? super Map<String, Object>> subscriber) {
+		Validate.notNull(subscriber);
+		final Subscription subscription = new Subscription(subscriber);
+		try {
+			subscriber.onSubscribe(subscription);
+		} catch (Throwable thr) {
+			Log.error("Unexpected exception in result subscriber onSubscribe: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+			return;
+		}
+
+		server.executeAsync(new IServerTask<Void>() {
+			public Void execute(IOptionsServer server) throws P4JavaException {
+				if (!subscription.isCancelled()) {
+					server.execStreamingMapCommand(cmdName, cmdArgs, inMap, subscription, 0);
+				}
+				return null;
+			}
+		}).whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable failure) {
+				subscription.finish(failure);
+			}
+		});
+	}
+
+	/**
+	 * One subscriber's demand and cancellation state, doubling as the
+	 * streaming callback for its run of the command.
+	 */
+	private static class Subscription implements IResultSubscription, IFlowControlledStreamingCallback {
+		private final IResultSubscriber<? super Map<String, Object>> subscriber;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition demandChanged = lock.newCondition();
+		private long demand = 0;
+		private boolean cancelled = false;
+		private boolean done = false;
+		private Throwable pendingError = null;
+
+		Subscription(IResultSubscriber<? super Map<String, Object>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			lock.lock();
+			try {
+				if (n <= 0) {
+					if (pendingError == null) {
+						pendingError = new IllegalArgumentException("non-positive subscription request: " + n);
+					}
+					cancelled = true;
+				} else {
+					demand += n;
+					if (demand < 0) {
+						demand = Long.MAX_VALUE; // saturate: effectively unbounded
+					}
+				}
+				demandChanged.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void cancel() {
+			lock.lock();
+			try {
+				cancelled = true;
+				demandChanged.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean isCancelled() {
+			lock.lock();
+			try {
+				return cancelled;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void awaitDemand(int key) throws P4JavaException {
+			lock.lock();
+			try {
+				while ((demand == 0) && !cancelled) {
+					demandChanged.await();
+				}
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				cancelled = true;
+				throw new P4JavaException("Interrupted while waiting for result subscriber demand", exc);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public boolean startResults(int key) throws P4JavaException {
+			return !isCancelled();
+		}
+
+		public boolean endResults(int key) throws P4JavaException {
+			return true;
+		}
+
+		public boolean handleResult(Map<String, Object> resultMap, int key) throws P4JavaException {
+			awaitDemand(key);
+			lock.lock();
+			try {
+				if (cancelled) {
+					return false;
+				}
+				if (demand != Long.MAX_VALUE) {
+					demand--;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				subscriber.onNext(resultMap);
+			} catch (Throwable thr) {
+				lock.lock();
+				try {
+					if (pendingError == null) {
+						pendingError = thr;
+					}
+					cancelled = true;
+				} finally {
+					lock.unlock();
+				}
+				return false;
+			}
+			return !isCancelled();
+		}
+
+		/**
+		 * Called once the command has finished, one way or another; signals
+		 * the subscriber unless it cancelled the subscription itself.
+		 */
+		void finish(Throwable failure) {
+			Throwable error;
+			lock.lock();
+			try {
+				if (done) {
+					return;
+				}
+				done = true;
+				if (pendingError != null) {
+					error = pendingError;
+				} else if (cancelled) {
+					return;
+				} else {
+					error = (failure instanceof CompletionException) && (failure.getCause() != null) ? failure.getCause() : failure;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				if (error != null) {
+					subscriber.onError(error);
+				} else {
+					subscriber.onComplete();
+				}
+			} catch (Throwable thr) {
+				Log.error("Unexpected exception in result subscriber: " + thr.getLocalizedMessage());
+				Log.exception(thr);
+			}
+		}
+	}
+}
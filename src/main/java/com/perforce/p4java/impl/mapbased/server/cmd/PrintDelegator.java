@@ -83,14 +83,23 @@ public class PrintDelegator extends BaseDelegator implements IPrintDelegator {
             opts.setSize(byteBufferContent.capacity());
         }
 
-        byteBufferContent.put( execStreamCmdForBuffer(PRINT,
+        ByteBuffer output = execStreamCmdForBuffer(PRINT,
                 processParameters(
                     opts,
                     fileSpecs,
                     null,
                     annotateFiles,
                     server )
-                ));
+                );
+
+        // The output buffer grows as needed, but the caller's buffer can't:
+        // copy as much as fits, as with the old fixed-size output buffer.
+        if (output != null) {
+            if (output.remaining() > byteBufferContent.remaining()) {
+                output.limit(output.position() + byteBufferContent.remaining());
+            }
+            byteBufferContent.put(output);
+        }
 
         byteBufferContent.flip();
     }
@@ -0,0 +1,86 @@
+package com.perforce.p4java.mapapi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * MapBulk -- run some per-path work over a range of indexes, on a
+ * ForkJoin pool once there are enough of them to be worth splitting
+ * <p>
+ * This is the one parallel loop behind MapTable::TranslateAll() and the
+ * other bulk path operations over a compiled table (protections checks,
+ * localWhere, file digests). The range is halved down to batches, and each
+ * index is handled by exactly one Range call, so results written to a slot
+ * per index need no locking; below the threshold everything runs on the
+ * calling thread.
+ */
+public final class MapBulk {
+
+	/**
+	 * Number of indexes below which run() doesn't go parallel.
+	 */
+	public static final int PARALLEL_THRESHOLD = 2048;
+
+	/**
+	 * Indexes per task below which a range isn't split any further.
+	 */
+	public static final int BATCH_SIZE = 512;
+
+	/**
+	 * The work for a range of indexes, start inclusive to end exclusive.
+	 * May be called from several threads at once, for disjoint ranges.
+	 */
+	public interface Range {
+		void run(int start, int end);
+	}
+
+	private MapBulk() {
+	}
+
+	/**
+	 * Run a range of indexes from 0 to count on the common pool, or on the
+	 * calling thread if there are fewer than PARALLEL_THRESHOLD.
+	 */
+	public static void run(int count, Range range) {
+		run(ForkJoinPool.commonPool(), count, PARALLEL_THRESHOLD, BATCH_SIZE, range);
+	}
+
+	/**
+	 * Run a range of indexes from 0 to count on the given pool, or on the
+	 * calling thread if there are fewer than threshold.
+	 */
+	public static void run(ForkJoinPool pool, int count, int threshold, int batchSize, Range range) {
+		if (count <= 0)
+			return;
+		if (count < threshold) {
+			range.run(0, count);
+		} else {
+			pool.invoke(new Task(range, 0, count, Math.max(batchSize, 1)));
+		}
+	}
+
+	private static class Task extends RecursiveAction {
+		private final Range range;
+		private final int start;
+		private final int end;
+		private final int batchSize;
+
+		Task(Range range, int start, int end, int batchSize) {
+			this.range = range;
+			this.start = start;
+			this.end = end;
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= batchSize) {
+				range.run(start, end);
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new Task(range, start, mid, batchSize),
+						new Task(range, mid, end, batchSize));
+			}
+		}
+	}
+}
@@ -7,6 +7,10 @@ public class MapDisambiguate extends MapJoiner {
 	public void insert() {
 		newLhs = map.lhs().expand(this.data, params2);
 		newRhs = map.rhs().expand(this.data, params2);
-		m0.insertNoDups(newLhs, newRhs, MfUnmap);
+		add(newLhs, newRhs, MfUnmap);
+	}
+
+	public MapJoiner copy() {
+		return getClass() == MapDisambiguate.class ? new MapDisambiguate() : null;
 	}
 }
@@ -1,5 +1,7 @@
 package com.perforce.p4java.mapapi;
 
+import com.perforce.p4java.common.base.OSUtils;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.perforce.p4java.mapapi.MapChar.MapCharClass.cCHAR;
@@ -1067,6 +1069,21 @@ public class MapHalf {
 		return fixedLen;
 	}
 
+	// Whether MapChar::Compare() ignores case for this half
+
+	boolean ignoresCase() {
+		return caseMode != 0 && OSUtils.isWindows();
+	}
+
+	// The non-wildcard initial substring, as compared by Join()
+
+	String getFixedPrefix() {
+		char[] prefix = new char[fixedLen];
+		for (int i = 0; i < fixedLen; i++)
+			prefix[i] = mapChar[i].c;
+		return new String(prefix);
+	}
+
 	boolean isWild() {
 		return isWild;
 	}
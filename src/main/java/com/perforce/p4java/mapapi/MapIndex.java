@@ -0,0 +1,255 @@
+package com.perforce.p4java.mapapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.perforce.p4java.mapapi.MapFlag.MfAndmap;
+import static com.perforce.p4java.mapapi.MapFlag.MfUnmap;
+
+/**
+ * MapIndex -- a prefix index over one direction of a MapTable
+ * <p>
+ * A path can only match a MapHalf whose fixed (non-wildcard) initial
+ * substring is a prefix of the path; that's what MapHalf::Match1 checks.
+ * MapIndex keeps the MapItems in a radix (path compressed) trie keyed by
+ * that fixed substring, so a lookup walks the path once and only tries
+ * MapHalf::Match2 on the items found along the way, best precedence first,
+ * stopping at the first that matches.
+ * <p>
+ * The answer is the same as MapItem::Match gives without an andmap array:
+ * the highest slot matching item, or nothing if that's an unmapping. The
+ * index isn't built for tables with &amp;maps, whose precedence rules need
+ * the full MapItem::Match treatment.
+ * <p>
+ * Where the items compare case-insensitively (MapChar::Compare() on
+ * Windows, unless the table is case sensitive) the trie is keyed and
+ * searched with case folded, and each item found is checked with
+ * MapHalf::Match1() before MapHalf::Match2(), so the index never decides
+ * a match on case alone: it finds at least the items the tree would, and
+ * leaves the comparison itself to the MapHalf.
+ * <p>
+ * A built index is never changed, so can be searched from any number of
+ * threads at once.
+ */
+public class MapIndex {
+
+	private static final Comparator<MapItem> BY_SLOT_DESCENDING = new Comparator<MapItem>() {
+		@Override
+		public int compare(MapItem e1, MapItem e2) {
+			return e2.slot - e1.slot;
+		}
+	};
+
+	private static class Node {
+		String label;                // edge from the parent
+		char[] firsts = new char[0]; // first char of each child's label, sorted
+		Node[] children = new Node[0];
+		MapItem[] items = null;      // items whose fixed prefix ends here
+		List<MapItem> building = null;
+
+		Node(String label) {
+			this.label = label;
+		}
+
+		Node child(char c) {
+			int i = Arrays.binarySearch(firsts, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		void putChild(Node child) {
+			char c = child.label.charAt(0);
+			int i = Arrays.binarySearch(firsts, c);
+			if (i >= 0) {
+				children[i] = child;
+				return;
+			}
+			i = -i - 1;
+			char[] f = new char[firsts.length + 1];
+			Node[] n = new Node[children.length + 1];
+			System.arraycopy(firsts, 0, f, 0, i);
+			System.arraycopy(children, 0, n, 0, i);
+			f[i] = c;
+			n[i] = child;
+			System.arraycopy(firsts, i, f, i + 1, firsts.length - i);
+			System.arraycopy(children, i, n, i + 1, children.length - i);
+			firsts = f;
+			children = n;
+		}
+
+		void add(MapItem item) {
+			if (building == null)
+				building = new ArrayList<>(1);
+			building.add(item);
+		}
+
+		void freeze() {
+			if (building != null) {
+				Collections.sort(building, BY_SLOT_DESCENDING);
+				items = building.toArray(new MapItem[building.size()]);
+				building = null;
+			}
+			for (Node child : children)
+				child.freeze();
+		}
+	}
+
+	private final Node root = new Node("");
+	private final boolean foldCase;
+
+	private MapIndex(boolean foldCase) {
+		this.foldCase = foldCase;
+	}
+
+	/**
+	 * MapIndex::Build() - index the items of a table for one direction
+	 *
+	 * @param table table to index
+	 * @param dir   direction to index
+	 * @return the index, or null if the table can't be indexed
+	 */
+	static MapIndex build(MapTable table, MapTableT dir) {
+		boolean foldCase = false;
+		for (MapItem map = table.entry; map != null && !foldCase; map = map.next())
+			foldCase = map.ths(dir).ignoresCase();
+
+		return build(table, dir, foldCase);
+	}
+
+	/**
+	 * MapIndex::Build() - index the items of a table for one direction,
+	 * folding case or not regardless of how the items compare
+	 *
+	 * @param table    table to index
+	 * @param dir      direction to index
+	 * @param foldCase key the trie with case folded
+	 * @return the index, or null if the table can't be indexed
+	 */
+	static MapIndex build(MapTable table, MapTableT dir, boolean foldCase) {
+		MapIndex index = new MapIndex(foldCase);
+
+		for (MapItem map = table.entry; map != null; map = map.next()) {
+			if (map.flag() == MfAndmap)
+				return null;
+
+			MapHalf half = map.ths(dir);
+			index.insert(index.fold(half.get().substring(0, half.getFixedLen())), map);
+		}
+
+		index.root.freeze();
+		return index;
+	}
+
+	// Fold case as String.compareToIgnoreCase() (so MapChar::Compare())
+	// does, a character at a time
+
+	private char fold(char c) {
+		return foldCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+	}
+
+	private String fold(String s) {
+		if (!foldCase)
+			return s;
+		char[] chars = s.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = fold(chars[i]);
+		return new String(chars);
+	}
+
+	private void insert(String key, MapItem item) {
+		Node node = root;
+		int i = 0;
+
+		for (; ; ) {
+			if (i == key.length()) {
+				node.add(item);
+				return;
+			}
+
+			Node child = node.child(key.charAt(i));
+
+			if (child == null) {
+				child = new Node(key.substring(i));
+				child.add(item);
+				node.putChild(child);
+				return;
+			}
+
+			// How much of the child's edge does the key share?
+
+			String label = child.label;
+			int l = 1;
+			while (l < label.length() && i + l < key.length() && label.charAt(l) == key.charAt(i + l))
+				++l;
+
+			if (l < label.length()) {
+				// Split the edge
+
+				Node mid = new Node(label.substring(0, l));
+				child.label = label.substring(l);
+				mid.putChild(child);
+				node.putChild(mid);
+				child = mid;
+			}
+
+			node = child;
+			i += l;
+		}
+	}
+
+	/**
+	 * MapIndex::Match() - find the best matching MapItem
+	 *
+	 * @param dir  direction the index was built for
+	 * @param from path to match
+	 * @return the best match, or null if there's none or it's an unmapping
+	 */
+	MapItem match(MapTableT dir, String from) {
+		MapItem best = null;
+		MapParams params = new MapParams();
+		Node node = root;
+		int i = 0;
+
+		for (; ; ) {
+			if (node.items != null) {
+				for (MapItem map : node.items) {
+					if (best != null && map.slot <= best.slot)
+						break;
+					MapHalf half = map.ths(dir);
+					if ((!foldCase || half.match1(from, 0) == 0) && half.match2(from, params)) {
+						best = map;
+						break;
+					}
+				}
+			}
+
+			if (i == from.length())
+				break;
+
+			Node child = node.child(fold(from.charAt(i)));
+			if (child == null || !labelAt(child.label, from, i))
+				break;
+
+			node = child;
+			i += child.label.length();
+		}
+
+		if (best == null || best.flag() == MfUnmap)
+			return null;
+
+		return best;
+	}
+
+	private boolean labelAt(String label, String from, int i) {
+		if (!foldCase)
+			return from.startsWith(label, i);
+		if (i + label.length() > from.length())
+			return false;
+		for (int l = 0; l < label.length(); l++)
+			if (fold(from.charAt(i + l)) != label.charAt(l))
+				return false;
+		return true;
+	}
+}
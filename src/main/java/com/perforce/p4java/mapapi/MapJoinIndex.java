@@ -0,0 +1,138 @@
+package com.perforce.p4java.mapapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MapJoinIndex -- join candidates from one direction of a MapTable
+ * <p>
+ * MapHalf::Join() gives up at once on two halves whose non-wildcard
+ * initial substrings differ over their common length, so a join need only
+ * pair an item with those whose fixed substring is a prefix of its own or
+ * has its own as a prefix. MapJoinIndex keeps the table's items sorted by
+ * fixed substring to find those, and remembers the answer for each
+ * substring it's asked about: joining many tables against the same one
+ * (client views against a protections table, say) only searches it once
+ * per distinct substring.
+ * <p>
+ * The index lives in the table's MapTree, so goes when the table changes.
+ * It can be used from any number of threads at once.
+ */
+public class MapJoinIndex {
+
+	static final Comparator<MapItem> BY_SLOT_DESCENDING = new Comparator<MapItem>() {
+		@Override
+		public int compare(MapItem e1, MapItem e2) {
+			return e2.slot - e1.slot;
+		}
+	};
+
+	private final MapTableT dir;
+	private final String[] keys;   // fixed substrings, sorted
+	private final MapItem[] items; // the item for each key
+
+	private final ConcurrentHashMap<String, MapItem[]> compatible = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, MapItem[]> treeMatches = new ConcurrentHashMap<>();
+
+	MapJoinIndex(MapTable table, MapTableT dir) {
+		this.dir = dir;
+
+		final List<MapItem> sorted = new ArrayList<>();
+		final List<String> prefixes = new ArrayList<>();
+		for (MapItem map = table.entry; map != null; map = map.next()) {
+			sorted.add(map);
+			prefixes.add(map.ths(dir).getFixedPrefix());
+		}
+
+		Integer[] order = new Integer[sorted.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return prefixes.get(i1).compareTo(prefixes.get(i2));
+			}
+		});
+
+		keys = new String[order.length];
+		items = new MapItem[order.length];
+		for (int i = 0; i < order.length; i++) {
+			keys[i] = prefixes.get(order[i]);
+			items[i] = sorted.get(order[i]);
+		}
+	}
+
+	/**
+	 * MapJoinIndex::Compatible() - items a half could join with
+	 *
+	 * @param half half to join against this direction
+	 * @return items whose fixed substrings are compatible, highest slot first
+	 */
+	MapItem[] compatible(MapHalf half) {
+		String prefix = half.getFixedPrefix();
+		MapItem[] found = compatible.get(prefix);
+		if (found != null)
+			return found;
+
+		List<MapItem> list = new ArrayList<>();
+
+		// Keys that are proper prefixes of ours
+
+		for (int l = 0; l < prefix.length(); l++) {
+			String key = prefix.substring(0, l);
+			for (int i = lowerBound(key); i < keys.length && keys[i].equals(key); i++)
+				list.add(items[i]);
+		}
+
+		// Keys that ours is a prefix of (including itself)
+
+		for (int i = lowerBound(prefix); i < keys.length && keys[i].startsWith(prefix); i++)
+			list.add(items[i]);
+
+		Collections.sort(list, BY_SLOT_DESCENDING);
+		found = list.toArray(new MapItem[list.size()]);
+		compatible.put(prefix, found);
+		return found;
+	}
+
+	/**
+	 * MapJoinIndex::TreeMatches() - what MapPairArray::Match() finds for a
+	 * half in the table's tree, before checking tails
+	 *
+	 * @param half  half to join against this direction
+	 * @param tree2 the table's tree for this direction
+	 * @param dir1  direction of the half
+	 * @return tree entries with matching fixed substrings, highest slot first
+	 */
+	MapItem[] treeMatches(MapHalf half, MapItem tree2, MapTableT dir1) {
+		String prefix = half.getFixedPrefix();
+		MapItem[] found = treeMatches.get(prefix);
+		if (found != null)
+			return found;
+
+		List<MapItem> list = new ArrayList<>();
+		new MapPairArray(dir1, dir).matchHead(half, tree2, list);
+
+		Collections.sort(list, BY_SLOT_DESCENDING);
+		found = list.toArray(new MapItem[list.size()]);
+		treeMatches.put(prefix, found);
+		return found;
+	}
+
+	private int lowerBound(String key) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,233 @@
+package com.perforce.p4java.mapapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.perforce.p4java.mapapi.MapFlag.MfUnmap;
+
+/**
+ * MapJoinTask -- the MapHalf::Join() calls for a range of MapItems
+ * <p>
+ * MapTable::Join() and MapTable::Disambiguate() do their joining through
+ * these on the common ForkJoin pool, each thread with its own copy of the
+ * MapJoiner. Joined rows aren't inserted as they're found but kept with the
+ * item they came from, and the caller inserts them afterwards in item
+ * order, so the result (including MapTable::InsertNoDups() pruning and the
+ * row limit) is the same as doing it all in one loop.
+ */
+abstract class MapJoinTask extends RecursiveAction {
+
+	// Items per task below which a range isn't split any further
+	static final int BATCH_SIZE = 16;
+
+	/**
+	 * Rows joined for one item, in the order they were found.
+	 */
+	static class Rows {
+		private List<String> lhs = null;
+		private List<String> rhs = null;
+		private List<MapFlag> flags = null;
+
+		// Joining stopped on a MapHalf::Join() that was too wild
+		boolean badJoin = false;
+
+		void add(String lhs, String rhs, MapFlag mapFlag) {
+			if (this.lhs == null) {
+				this.lhs = new ArrayList<>();
+				this.rhs = new ArrayList<>();
+				this.flags = new ArrayList<>();
+			}
+			this.lhs.add(lhs);
+			this.rhs.add(rhs);
+			this.flags.add(mapFlag);
+		}
+
+		void insert(MapTable m0) {
+			if (lhs == null)
+				return;
+			for (int i = 0; i < lhs.size(); i++)
+				m0.insertNoDups(lhs.get(i), rhs.get(i), flags.get(i));
+		}
+	}
+
+	protected final MapItem[] items;
+	protected final Rows[] rows;
+	protected final int start;
+	protected final int end;
+	protected final MapJoiner joiner;
+
+	MapJoinTask(MapItem[] items, Rows[] rows, int start, int end, MapJoiner joiner) {
+		this.items = items;
+		this.rows = rows;
+		this.start = start;
+		this.end = end;
+		this.joiner = joiner;
+	}
+
+	/**
+	 * Join the range, on the common pool unless it's too small to be worth
+	 * splitting.
+	 */
+	void run() {
+		if (end - start <= BATCH_SIZE) {
+			joinRange();
+		} else {
+			ForkJoinPool.commonPool().invoke(this);
+		}
+	}
+
+	@Override
+	protected void compute() {
+		if (end - start <= BATCH_SIZE) {
+			joinRange();
+		} else {
+			int mid = (start + end) >>> 1;
+			invokeAll(split(start, mid), split(mid, end));
+		}
+	}
+
+	void joinRange() {
+		MapJoiner j = joiner.copy();
+		for (int i = start; i < end; i++) {
+			j.rows = rows[i] = new Rows();
+			joinItem(j, items[i], rows[i]);
+		}
+		j.rows = null;
+	}
+
+	abstract MapJoinTask split(int start, int end);
+
+	abstract void joinItem(MapJoiner j, MapItem item, Rows rows);
+
+	/**
+	 * MapTable::Join() of each item against a second table, pairing it only
+	 * with the items whose fixed substrings could join it.
+	 */
+	static class Join extends MapJoinTask {
+		private final MapJoinIndex index2;
+		private final MapItem tree2;
+		private final MapTableT dir1;
+		private final MapTableT dir2;
+
+		/**
+		 * @param index2 index of the second table for dir2
+		 * @param tree2  the second table's tree for dir2, if it has one; the
+		 *               join then matches what MapPairArray::Match() would
+		 *               pair, otherwise what the untreed loop would
+		 */
+		Join(MapItem[] items, Rows[] rows, int start, int end, MapJoiner joiner,
+		     MapJoinIndex index2, MapItem tree2, MapTableT dir1, MapTableT dir2) {
+			super(items, rows, start, end, joiner);
+			this.index2 = index2;
+			this.tree2 = tree2;
+			this.dir1 = dir1;
+			this.dir2 = dir2;
+		}
+
+		@Override
+		MapJoinTask split(int start, int end) {
+			return new Join(items, rows, start, end, joiner, index2, tree2, dir1, dir2);
+		}
+
+		@Override
+		void joinItem(MapJoiner j, MapItem item, Rows rows) {
+			MapHalf h1 = item.ths(dir1);
+			MapItem[] pairs = tree2 != null
+					? index2.treeMatches(h1, tree2, dir1)
+					: index2.compatible(h1);
+
+			for (MapItem map2 : pairs) {
+				MapHalf h2 = map2.ths(dir2);
+				if (tree2 != null && h2.matchTail(h1))
+					continue;
+
+				j.map = item;
+				j.map2 = map2;
+				h1.join(h2, j);
+
+				// Only the untreed loop gives up on a bad join
+
+				if (tree2 == null && j.badJoin) {
+					rows.badJoin = true;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * MapTable::Disambiguate() of each item against the higher precedence
+	 * items of its own table that could overlap it.
+	 */
+	static class Disambiguate extends MapJoinTask {
+		private final MapJoinIndex lhsIndex;
+		private final MapJoinIndex rhsIndex;
+		private final MapItem[] andmaps;
+
+		Disambiguate(MapItem[] items, Rows[] rows, int start, int end, MapJoiner joiner,
+		             MapJoinIndex lhsIndex, MapJoinIndex rhsIndex, MapItem[] andmaps) {
+			super(items, rows, start, end, joiner);
+			this.lhsIndex = lhsIndex;
+			this.rhsIndex = rhsIndex;
+			this.andmaps = andmaps;
+		}
+
+		@Override
+		MapJoinTask split(int start, int end) {
+			return new Disambiguate(items, rows, start, end, joiner, lhsIndex, rhsIndex, andmaps);
+		}
+
+		@Override
+		void joinItem(MapJoiner j, MapItem item, Rows rows) {
+			if (item.flag() == MfUnmap)
+				return;
+
+			// &maps join their own halves first, so always need a look;
+			// everything else only if one half or the other could join.
+
+			MapItem[] lhs = lhsIndex.compatible(item.lhs());
+			MapItem[] rhs = rhsIndex.compatible(item.rhs());
+			List<MapItem> above = new ArrayList<>();
+			addAbove(above, lhs, item);
+			addAbove(above, rhs, item);
+			addAbove(above, andmaps, item);
+			MapItem[] maps = above.toArray(new MapItem[above.size()]);
+			Arrays.sort(maps, MapJoinIndex.BY_SLOT_DESCENDING);
+
+			j.map = item;
+			MapItem last = null;
+			for (MapItem map2 : maps) {
+				if (map2 == last)
+					continue;
+				last = map2;
+
+				j.map2 = map2;
+				switch (map2.flag()) {
+					case MfRemap:
+					case MfHavemap:
+						break;
+
+					case MfAndmap:
+						map2.lhs().join(map2.rhs(), j);
+						map2.rhs().join(item.rhs(), j);
+						break;
+
+					default:
+						map2.lhs().join(item.lhs(), j);
+						map2.rhs().join(item.rhs(), j);
+				}
+			}
+		}
+
+		private static void addAbove(List<MapItem> above, MapItem[] maps, MapItem item) {
+			for (MapItem map2 : maps) {
+				if (map2.slot <= item.slot)
+					break;
+				above.add(map2);
+			}
+		}
+	}
+}
@@ -11,6 +11,10 @@ public class MapJoiner extends Joiner {
 
     protected String newLhs;
     protected String newRhs;
+
+    // When set, joined rows are recorded here (by a MapJoinTask) rather
+    // than inserted into m0.
+    MapJoinTask.Rows rows;
     
     /*
      * mapFlagGrid -- how to combine two mapFlags
@@ -39,6 +43,25 @@ public class MapJoiner extends Joiner {
         newLhs = map.lhs().expand( this.data, params );
         newRhs = map.rhs().expand( this.data, params );
         MapFlag mapFlag = mapFlagGrid[ map.flag().code ][ map2.flag().code ];
-        m0.insertNoDups( newLhs, newRhs, mapFlag );
+        add( newLhs, newRhs, mapFlag );
+    }
+
+    protected void add( String lhs, String rhs, MapFlag mapFlag )
+    {
+        if( rows != null )
+            rows.add( lhs, rhs, mapFlag );
+        else
+            m0.insertNoDups( lhs, rhs, mapFlag );
+    }
+
+    /*
+     * MapJoiner::Copy() - a joiner of the same kind, for another thread
+     *
+     * Returns null for joiners that don't know how to copy themselves,
+     * which are then only run serially.
+     */
+    public MapJoiner copy()
+    {
+        return getClass() == MapJoiner.class ? new MapJoiner() : null;
     }
 }
\ No newline at end of file
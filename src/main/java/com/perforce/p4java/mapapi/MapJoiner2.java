@@ -16,6 +16,11 @@ public class MapJoiner2 extends MapJoiner {
         newLhs = map.ohs( dir1 ).expand( this.data, params );
         newRhs = map2.ohs( dir2 ).expand( this.data, params2 );
         MapFlag mapFlag = mapFlagGrid[ map.flag().code ][ map2.flag().code ];
-        m0.insertNoDups( newLhs, newRhs, mapFlag );
+        add( newLhs, newRhs, mapFlag );
+    }
+
+    public MapJoiner copy()
+    {
+        return getClass() == MapJoiner2.class ? new MapJoiner2( dir1, dir2 ) : null;
     }
 }
@@ -3,6 +3,7 @@ package com.perforce.p4java.mapapi;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * MapPairArray - array of MapPairs, candidates for MapHalf::Join
@@ -60,6 +61,32 @@ public class MapPairArray extends ArrayList<MapPair> {
         } while( i2 != null );
     }
 
+    /*
+     * MapPairArray::MatchHead() - as Match(), but just collect the tree
+     * entries whose non-wildcard initial substrings match, without
+     * checking their tails
+     */
+    public void matchHead( MapHalf half, MapItem tree2, List<MapItem> out ) {
+        MapItem i2 = tree2;
+
+        do {
+            MapItem.MapWhole t2 = i2.whole( dir2 );
+
+            int r = t2.half.matchHead( half );
+
+            if( r == 0 )
+                out.add( i2 );
+
+            if( r <= 0 && t2.left != null )   matchHead( half, t2.left, out );
+            if( r >= 0 && t2.right != null )  matchHead( half, t2.right, out );
+
+            if( r != 0 )
+                return;
+
+            i2 = t2.center;
+        } while( i2 != null );
+    }
+
     public void sort() {
         Collections.sort(this, new Comparator<MapPair>() {
             @Override
@@ -1,6 +1,7 @@
 package com.perforce.p4java.mapapi;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -26,6 +27,20 @@ public class MapTable {
 
 	public MapTree trees[] = new MapTree[]{new MapTree(), new MapTree()};
 
+	// Tables with at least this many entries also get a MapIndex for
+	// Check() and Translate(); unset useIndex to always use the tree.
+	public static final int INDEX_MIN_ENTRIES = 64;
+	public boolean useIndex = true;
+
+	// Joins of at least JOIN_MIN_PAIRS item pairs, and Disambiguate() of
+	// tables of at least INDEX_MIN_ENTRIES, pair items by fixed prefix
+	// through a MapJoinIndex and join in parallel (see MapJoinTask), a
+	// chunk of JOIN_CHUNK items at a time; unset parallelJoin to always
+	// use the nested loops.
+	public static final int JOIN_MIN_PAIRS = 4096;
+	public static final int JOIN_CHUNK = 4096;
+	public boolean parallelJoin = true;
+
 	//
 	// CHARHASH - see diff sequencer for comments
 	//
@@ -493,6 +508,19 @@ public class MapTable {
 
 		trees[dir.dir].tree = MapItem.tree(vec, 0, vec.size(), dir, null, depth);
 		trees[dir.dir].depth = depth.get();
+		trees[dir.dir].index = useIndex && count >= INDEX_MIN_ENTRIES
+				? MapIndex.build(this, dir) : null;
+	}
+
+	//
+	// MapTable::Match() - best matching MapItem, through the index if
+	// there is one
+	//
+	private MapItem match(MapTableT dir, String from) {
+		MapTree t = trees[dir.dir];
+		if (t.index != null)
+			return t.index.match(dir, from);
+		return t.tree != null ? t.tree.match(dir, from, null) : null;
 	}
 
 	//
@@ -586,6 +614,20 @@ public class MapTable {
 		return strings;
 	}
 
+	//
+	// MapTable::Compile() - build the search trees for both directions
+	// up front. Check(), Translate() and Explode() only read a compiled
+	// table, so it can then be shared between threads, as long as it
+	// isn't changed.
+	//
+	public MapTable compile() {
+		if (trees[LHS.dir].tree == null)
+			makeTree(LHS);
+		if (trees[RHS.dir].tree == null)
+			makeTree(RHS);
+		return this;
+	}
+
 	//
 	// MapTable::Check() - see if lhs matches map
 	//
@@ -593,7 +635,7 @@ public class MapTable {
 		if (trees[dir.dir].tree == null)
 			makeTree(dir);
 
-		return trees[dir.dir].tree != null ? trees[dir.dir].tree.match(dir, from, null) : null;
+		return match(dir, from);
 	}
 
 	//
@@ -605,9 +647,7 @@ public class MapTable {
 		if (trees[dir.dir].tree == null)
 			makeTree(dir);
 
-		MapItem map = trees[dir.dir].tree != null
-				? trees[dir.dir].tree.match(dir, from, null)
-				: null;
+		MapItem map = match(dir, from);
 
 		// Expand into target string.
 		// We have to Match2 here, because the last Match2 done in
@@ -629,6 +669,26 @@ public class MapTable {
 		return out;
 	}
 
+	//
+	// MapTable::TranslateAll() - Translate() a number of paths, through
+	// MapBulk, into the translated strings (null where unmapped) in the
+	// same order. The table is compiled first so the threads only read it.
+	//
+	public String[] translateAll(final MapTableT dir, final String[] from) {
+		final String[] to = new String[from.length];
+		compile();
+		MapBulk.run(from.length, new MapBulk.Range() {
+			@Override
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					MapWrap out = translate(dir, from[i]);
+					to[i] = out != null ? out.getTo() : null;
+				}
+			}
+		});
+		return to;
+	}
+
 	//
 	// MapTable::Explode() - map an lhs into one or more rhs's
 	//
@@ -914,6 +974,11 @@ public class MapTable {
 	public void disambiguate() {
 		MapDisambiguate j = new MapDisambiguate();
 
+		if (parallelJoin && count >= INDEX_MIN_ENTRIES && isOrdered()) {
+			disambiguatePartitioned(j);
+			return;
+		}
+
 		// From high precendence to low precedence
 
 		for (j.map = entry; j.map != null; j.map = j.map.next()) {
@@ -969,6 +1034,39 @@ public class MapTable {
 		insert(j.m0, true, false);
 	}
 
+	private void disambiguatePartitioned(MapDisambiguate j) {
+		MapItem[] items = items();
+		MapJoinTask.Rows[] rows = new MapJoinTask.Rows[items.length];
+		MapJoinIndex lhsIndex = joinIndex(LHS);
+		MapJoinIndex rhsIndex = joinIndex(RHS);
+
+		List<MapItem> andmaps = new ArrayList<>();
+		for (MapItem map : items) {
+			if (map.flag() == MfAndmap)
+				andmaps.add(map);
+		}
+		MapItem[] andmapArray = andmaps.toArray(new MapItem[andmaps.size()]);
+
+		for (int start = 0; start < items.length; start += JOIN_CHUNK) {
+			int end = Math.min(items.length, start + JOIN_CHUNK);
+			new MapJoinTask.Disambiguate(items, rows, start, end, j,
+					lhsIndex, rhsIndex, andmapArray).run();
+
+			for (int i = start; i < end; i++) {
+				if (items[i].flag() == MfUnmap)
+					continue;
+				rows[i].insert(j.m0);
+				rows[i] = null;
+				j.m0.insert(items[i].lhs().get(), items[i].rhs().get(), items[i].flag());
+			}
+		}
+
+		j.m0.reverse();
+
+		clear();
+		insert(j.m0, true, false);
+	}
+
 	/*
 	 * MapTable::JoinCheck() - does this maptable include this string?
 	 *
@@ -1020,7 +1118,14 @@ public class MapTable {
 		int m = max1 + m1.count + m2.count;
 		if (m > max2) m = max2;
 
-		if (m2.trees[dir2.dir].tree == null) {
+		if (m1.parallelJoin && (long) m1.count * m2.count >= JOIN_MIN_PAIRS && j.copy() != null
+				&& (m2.trees[dir2.dir].tree != null || m2.isOrdered())) {
+			if (!joinPartitioned(m1, dir1, m2, dir2, j, m)) {
+				this.joinError = true;
+				this.emptyReason = "TooWild"; //&MsgDb::TooWild;
+				return;
+			}
+		} else if (m2.trees[dir2.dir].tree == null) {
 			for (j.map = m1.entry; j.map != null && count < m; j.map = j.map.next()) {
 				for (j.map2 = m2.entry; j.map2 != null; j.map2 = j.map2.next()) {
 					j.map.ths(dir1).join(j.map2.ths(dir2), j);
@@ -1088,6 +1193,68 @@ public class MapTable {
 		//    this.Dump( "map joined" );
 	}
 
+	//
+	// MapTable::JoinPartitioned() - the body of Join() through MapJoinTask;
+	// returns false if it gave up on a bad join.
+	//
+	private boolean joinPartitioned(
+			MapTable m1, MapTableT dir1,
+			MapTable m2, MapTableT dir2,
+			MapJoiner j, int m) {
+		MapItem tree2 = m2.trees[dir2.dir].tree;
+		MapJoinIndex index2 = m2.joinIndex(dir2);
+		MapItem[] items = m1.items();
+		MapJoinTask.Rows[] rows = new MapJoinTask.Rows[items.length];
+
+		for (int start = 0; start < items.length && count < m; start += JOIN_CHUNK) {
+			int end = Math.min(items.length, start + JOIN_CHUNK);
+			new MapJoinTask.Join(items, rows, start, end, j,
+					index2, tree2, dir1, dir2).run();
+
+			for (int i = start; i < end && count < m; i++) {
+				rows[i].insert(j.m0);
+				if (rows[i].badJoin)
+					return false;
+				rows[i] = null;
+			}
+		}
+
+		return true;
+	}
+
+	//
+	// MapTable::JoinIndex() - the (shared) MapJoinIndex for a direction
+	//
+	MapJoinIndex joinIndex(MapTableT dir) {
+		MapTree t = trees[dir.dir];
+		synchronized (t) {
+			if (t.join == null)
+				t.join = new MapJoinIndex(this, dir);
+			return t.join;
+		}
+	}
+
+	// The entries in chain (precedence) order
+
+	private MapItem[] items() {
+		MapItem[] items = new MapItem[count];
+		int i = 0;
+		for (MapItem map = entry; map != null && i < items.length; map = map.next())
+			items[i++] = map;
+		return i == items.length ? items : Arrays.copyOf(items, i);
+	}
+
+	// Do slots fall strictly along the chain, so that sorting by slot
+	// gives chain order?
+
+	private boolean isOrdered() {
+		for (MapItem map = entry; map != null && map.next() != null; map = map.next()) {
+			if (map.slot <= map.next().slot)
+				return false;
+		}
+		return true;
+	}
+
 	public MapTable join(
 			MapTableT dir1,
 			MapTable m2,
@@ -1,8 +1,8 @@
 package com.perforce.p4java.mapapi;
 
 import com.perforce.p4java.client.IClient;
-import com.perforce.p4java.client.IClientViewMapping;
 import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.ViewMap;
 
 import java.util.List;
 
@@ -13,17 +13,28 @@ public class MapTableBuilder {
      * @return a MapTable with a particular clients view mappings.
      */
     public static MapTable buildMapTable(IClient client) {
-        List<IClientViewMapping> clientMappings = client.getClientView().getEntryList();
+        return buildMapTable(client.getClientView());
+    }
+
+    /**
+     * @param view - any view map (client, branch, label, stream view, etc.).
+     * @return a MapTable with the view's mappings, in view order.
+     */
+    public static MapTable buildMapTable(ViewMap<? extends IMapEntry> view) {
+        List<? extends IMapEntry> mappings = view.getEntryList();
         MapTable mt = new MapTable();
-        for (IClientViewMapping clientmapping : clientMappings) {
-            IMapEntry.EntryType type = clientmapping.getType();
+        for (IMapEntry mapping : mappings) {
+            IMapEntry.EntryType type = mapping.getType();
             MapFlag mapFlag = convertType(type);
-            mt.insert(clientmapping.getLeft(), clientmapping.getRight(), mapFlag);
+            mt.insert(mapping.getLeft(), mapping.getRight(), mapFlag);
         }
         return mt;
     }
 
     private static MapFlag convertType(IMapEntry.EntryType type) {
+        if (type == null) {
+            return MapFlag.MfMap;
+        }
         switch (type) {
             case INCLUDE:
                 return MapFlag.MfMap;
@@ -7,10 +7,14 @@ public class MapTree {
     public void clear() {
         sort = null;
         tree = null;
+        index = null;
+        join = null;
         depth = 0;
     }
 
     public ArrayList<MapItem> sort = null;
     public MapItem tree = null;
+    public MapIndex index = null;
+    public MapJoinIndex join = null;
     public int depth = 0;
 }
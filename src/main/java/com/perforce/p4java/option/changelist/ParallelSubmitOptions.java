@@ -0,0 +1,50 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.option.changelist;
+
+import com.perforce.p4java.option.client.ParallelSyncOptions;
+import com.perforce.p4java.server.callback.IParallelCallback;
+
+/**
+ * Simple default options object for IChangelist.submit with parallel file
+ * transfer (the p4 submit --parallel option).
+ * <p>
+ * The knobs are those of a parallel sync; the file transfers are handed to
+ * the IParallelCallback (by default DefaultParallelSync), whose transmits
+ * send the files to the server over the worker connections.
+ *
+ * @since 2023.2
+ */
+public class ParallelSubmitOptions extends ParallelSyncOptions {
+
+	/**
+	 * Default constructor
+	 */
+	public ParallelSubmitOptions() {
+	}
+
+	/**
+	 * Constructor with the given arguments
+	 *
+	 * @param batch           - number of files in a batch
+	 * @param batchSize       - number of bytes in a batch
+	 * @param minimum         - minimum number of files in a parallel submit
+	 * @param minumumSize     - minimum number of bytes in a parallel submit
+	 * @param numberOfThreads - number of independent network connections to be used during parallelisation
+	 * @param callback        - call back interface for parallel execution
+	 */
+	public ParallelSubmitOptions(int batch, int batchSize, int minimum, int minumumSize, int numberOfThreads,
+	                             IParallelCallback callback) {
+		super(batch, batchSize, minimum, minumumSize, numberOfThreads, callback);
+	}
+
+	/**
+	 * Constructs a ParallelSubmitOptions with an instance of an IParallelCallback
+	 *
+	 * @param callback - call back interface for parallel execution
+	 */
+	public ParallelSubmitOptions(IParallelCallback callback) {
+		super(callback);
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2023 Perforce Software Inc., All Rights Reserved.
+ */
+package com.perforce.p4java.option.client;
+
+import com.perforce.p4java.server.callback.IParallelCallback;
+
+/**
+ * Simple default options object for IClient.shelveFiles with parallel file
+ * transfer (p4 shelve --parallel); takes the same settings as a parallel
+ * sync.
+ *
+ * @since 2023.2
+ */
+public class ParallelShelveOptions extends ParallelSyncOptions {
+
+	/**
+	 * Default constructor
+	 */
+	public ParallelShelveOptions() {
+	}
+
+	/**
+	 * Constructor with the given arguments
+	 *
+	 * @param batch           - number of files in a batch
+	 * @param batchSize       - number of bytes in a batch
+	 * @param minimum         - minimum number of files in a parallel shelve
+	 * @param minumumSize     - minimum number of bytes in a parallel shelve
+	 * @param numberOfThreads - number of independent network connections to be used during parallelisation
+	 * @param callback        - call back interface for parallel execution
+	 */
+	public ParallelShelveOptions(int batch, int batchSize, int minimum, int minumumSize, int numberOfThreads,
+	                             IParallelCallback callback) {
+		super(batch, batchSize, minimum, minumumSize, numberOfThreads, callback);
+	}
+
+	/**
+	 * Constructs a ParallelShelveOptions with an instance of an IParallelCallback
+	 *
+	 * @param callback - call back interface for parallel execution
+	 */
+	public ParallelShelveOptions(IParallelCallback callback) {
+		super(callback);
+	}
+}
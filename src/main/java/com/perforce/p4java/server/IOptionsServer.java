@@ -3,16 +3,26 @@ package com.perforce.p4java.server;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
 import com.perforce.p4java.option.UsageOptions;
+import com.perforce.p4java.option.server.GetChangelistsOptions;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
 import com.perforce.p4java.option.server.TrustOptions;
 import com.perforce.p4java.server.callback.IFilterCallback;
 import com.perforce.p4java.server.callback.IParallelCallback;
+import com.perforce.p4java.server.callback.IResultPublisher;
 import com.perforce.p4java.server.callback.IStreamingCallback;
+import com.perforce.p4java.server.metrics.ICommandMetrics;
+import com.perforce.p4java.server.metrics.IMetricsReporter;
 
 /**
  * An extension of the basic IServer interface to provide Options object-based
@@ -194,6 +204,195 @@ public interface IOptionsServer extends IServer {
             IFilterCallback filterCallback,
             IParallelCallback parallelCallback) throws P4JavaException;;
 
+    /**
+     * Issue an arbitrary P4Java command to the Perforce server and return the
+     * results as a list of maps, as with execMapCmdList(cmdName, cmdArgs,
+     * filterCallback, parallelCallback), but with an input map for commands
+     * that read their input from a spec (e.g. "submit -i").
+     *
+     * @param cmdName
+     *            the command to be issued; must be non-null, and correspond to
+     *            a Perforce command recognized by P4Java and defined in
+     *            CmdSpec.
+     * @param cmdArgs
+     *            the array of command arguments (options and file arguments,
+     *            etc.) to be sent to the Perforce server. These must be in the
+     *            form used by the corresponding p4 command line interpreter.
+     *            Ignored if null.
+     * @param inMap
+     *            an optional map to be sent to the server as standard input,
+     *            using the Python map format (-G) form. You must remember to
+     *            issue the relevant command-specific option to enable this if
+     *            needed.
+     * @param filterCallback
+     *            an optional filter callback to decide on skipping or keeping
+     *            individual key/value pairs as part of the results map.
+     * @param parallelCallback
+     *            an optional parallel sync/submit callback to provide a
+     *            multi-threaded file transfer implementation.
+     * @return a non-null Java Map of results; these results are as returned
+     *         from issuing the command using the -G option with the p4 command
+     *         line interpreter.
+     * @throws P4JavaException
+     *             if an error occurs processing this method and its parameters
+     * @since 2023.2
+     */
+    List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap,
+            IFilterCallback filterCallback,
+            IParallelCallback parallelCallback) throws P4JavaException;
+
+    /**
+     * Asynchronous version of execMapCmdList(cmdName, cmdArgs, inMap): issue
+     * the command on this server's async executor and return a future for its
+     * results. The NIO ("p4jrpcnio") implementation doesn't use the executor;
+     * it runs the command on its selector threads instead.
+     * <p>
+     * 
+     * The future is completed exceptionally with whatever exception the
+     * synchronous method would have thrown. Commands run concurrently only if
+     * the underlying implementation is thread-safe (e.g. the default one-shot
+     * implementation); commands on a non-thread-safe implementation are run
+     * one at a time, in submission order.
+     * 
+     * @param cmdName
+     *            the command to be issued; must be non-null, and correspond to
+     *            a Perforce command recognized by P4Java and defined in
+     *            CmdSpec.
+     * @param cmdArgs
+     *            the array of command arguments (options and file arguments,
+     *            etc.) to be sent to the Perforce server. Ignored if null.
+     * @param inMap
+     *            an optional map to be sent to the server as standard input.
+     * @return a non-null future for the command's results.
+     * @since 2023.2
+     */
+    CompletableFuture<List<Map<String, Object>>> execMapCmdListAsync(String cmdName,
+            String[] cmdArgs, Map<String, Object> inMap);
+
+    /**
+     * Asynchronous version of getExtendedFiles(fileSpecs, opts); see
+     * execMapCmdListAsync for the execution and error semantics.
+     * 
+     * @param fileSpecs
+     *            non-null list of Perforce file specification(s).
+     * @param opts
+     *            GetExtendedFilesOptions object describing optional parameters;
+     *            if null, no options are set.
+     * @return a non-null future for the list of qualifying files.
+     * @since 2023.2
+     */
+    CompletableFuture<List<IExtendedFileSpec>> getExtendedFilesAsync(List<IFileSpec> fileSpecs,
+            GetExtendedFilesOptions opts);
+
+    /**
+     * Asynchronous version of getChangelists(fileSpecs, opts); see
+     * execMapCmdListAsync for the execution and error semantics.
+     * 
+     * @param fileSpecs
+     *            if non-empty, limits the results to changelists that affect
+     *            the specified files.
+     * @param opts
+     *            GetChangelistsOptions object describing optional parameters;
+     *            if null, no options are set.
+     * @return a non-null future for the list of qualifying changelists.
+     * @since 2023.2
+     */
+    CompletableFuture<List<IChangelistSummary>> getChangelistsAsync(List<IFileSpec> fileSpecs,
+            GetChangelistsOptions opts);
+
+    /**
+     * Run an arbitrary task against this server on the server's async
+     * executor; this is the general form of the other ...Async methods, and
+     * can be used to run any combination of synchronous server calls in the
+     * background. See execMapCmdListAsync for the execution and error
+     * semantics.
+     * 
+     * @param <T>
+     *            the task's result type
+     * @param task
+     *            non-null task to run
+     * @return a non-null future for the task's result.
+     * @since 2023.2
+     */
+    <T> CompletableFuture<T> executeAsync(IServerTask<T> task);
+
+    /**
+     * Set the executor used to run this server's ...Async methods. Any
+     * executor will do, including a virtual-thread-per-task executor on JDKs
+     * that have one: the RPC layer never blocks while holding a monitor.
+     * 
+     * @param executor
+     *            if null, the shared default P4Java async executor is used;
+     *            its size is set by the asyncCommandThreads property.
+     * @since 2023.2
+     */
+    void setAsyncExecutor(Executor executor);
+
+    /**
+     * Get the executor used to run this server's ...Async methods.
+     * 
+     * @return non-null executor
+     * @since 2023.2
+     */
+    Executor getAsyncExecutor();
+
+    /**
+     * Backpressure-aware version of execStreamingMapCommand: return a
+     * publisher that, for each subscriber, issues the command on this
+     * server's async executor and passes its results to the subscriber no
+     * faster than the subscriber requests them.
+     * <p>
+     *
+     * While the subscriber has no outstanding demand the command stops
+     * reading results from the server, and holds back its acknowledgement of
+     * the server's flow control messages, so only a bounded amount of result
+     * data is ever buffered however slow the subscriber is. Cancelling the
+     * subscription cancels the command as if a streaming callback had
+     * returned false. Command failures are passed to the subscriber's onError
+     * method; errors reported by the server in the result maps themselves are
+     * passed on as results, exactly as with execStreamingMapCommand.
+     *
+     * @param cmdName
+     *            the command to be issued; must be non-null, and correspond to
+     *            a Perforce command recognized by P4Java and defined in
+     *            CmdSpec.
+     * @param cmdArgs
+     *            the array of command arguments (options and file arguments,
+     *            etc.) to be sent to the Perforce server. Ignored if null.
+     * @param inMap
+     *            an optional map to be sent to the server as standard input.
+     * @return a non-null publisher; each subscription runs the command anew.
+     * @since 2023.2
+     */
+    IResultPublisher<Map<String, Object>> execStreamingMapCommand(String cmdName,
+            String[] cmdArgs, Map<String, Object> inMap);
+
+    /**
+     * Register a metrics reporter with this server, to be told about each
+     * command's measurements (phase latencies, bytes and packets sent and
+     * received, etc.) as it completes. Only one reporter can be registered
+     * with a given server at any one time.
+     * 
+     * @param reporter
+     *            reporter to be registered; if null, reporting is disabled
+     *            (metrics are still gathered for getCommandMetrics). Nothing
+     *            is reported unless the commandMetrics property is "true".
+     * @return the previous reporter, if it existed; null otherwise
+     * @since 2023.2
+     */
+    IMetricsReporter registerMetricsReporter(IMetricsReporter reporter);
+
+    /**
+     * Get the per-command metrics gathered by this server since it was last
+     * connected. Metrics are only gathered if the commandMetrics property is
+     * set to "true".
+     * 
+     * @return non-null, possibly-empty map of command name to the metrics for
+     *         that command.
+     * @since 2023.2
+     */
+    Map<String, ICommandMetrics> getCommandMetrics();
+
     /**
      * Issue an arbitrary P4Java command to the Perforce server and return the
      * results as a list of maps without invoking any command callbacks.
@@ -21,7 +21,7 @@ import java.util.Properties;
  * 
  * protocol://host:port?query
  * 
- * protocol = p4java|p4javassl|p4jrpc|p4jrpcssl|p4jrpcnts|p4jrpcntsssl
+ * protocol = p4java|p4javassl|p4jrpc|p4jrpcssl|p4jrpcnts|p4jrpcntsssl|p4jrpcnio
  * host = hostname|IP address
  * port = [0-9]* (values 0 to 65535)
  * query = string (i.e. key0=value0&key1=value1...)
@@ -33,6 +33,7 @@ import java.util.Properties;
  * p4jrpcnts - non-thread-safe (multiple-commands-per-connection) RPC protocol implementation.
  * p4jrpcntsssl - secure non-thread-safe (multiple-commands-per-connection) RPC protocol implementation.
  * p4jrsh - run p4d in 'rsh' mode.
+ * p4jrpcnio - one-shot RPC protocol implementation over non-blocking NIO channels.
  * 
  * P4Java URI Examples:
  * 
@@ -86,7 +87,13 @@ public interface IServerAddress {
 		/**
 		 * Non-thread-safe (multiple-commands-per-connection) RSH protocol (run p4d in 'rsh' mode).
 		 */
-		P4JRSHNTS("p4jrshnts");
+		P4JRSHNTS("p4jrshnts"),
+
+		/**
+		 * One-shot (connection-per-command) RPC protocol over non-blocking
+		 * NIO socket channels.
+		 */
+		P4JRPCNIO("p4jrpcnio");
 
 		/**
 		 * The connection protocol in string form.
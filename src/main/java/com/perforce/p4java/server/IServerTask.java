@@ -0,0 +1,25 @@
+package com.perforce.p4java.server;
+
+import com.perforce.p4java.exception.P4JavaException;
+
+/**
+ * A unit of work to be run against an IOptionsServer, typically one or more
+ * ordinary (synchronous) server method calls. Used with
+ * IOptionsServer.executeAsync to run arbitrary server calls on the server's
+ * async executor.
+ *
+ * @param <T> the task's result type
+ * @since 2023.2
+ */
+public interface IServerTask<T> {
+
+	/**
+	 * Run the task against the passed-in server.
+	 *
+	 * @param server non-null server the task was submitted to
+	 * @return the task's (possibly null) result
+	 * @throws P4JavaException if any error occurs; it is used to complete the
+	 *                         task's future exceptionally
+	 */
+	T execute(IOptionsServer server) throws P4JavaException;
+}
@@ -14,6 +14,7 @@ import com.perforce.p4java.exception.NoSuchObjectException;
 import com.perforce.p4java.exception.NullPointerError;
 import com.perforce.p4java.exception.ResourceException;
 import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
+import com.perforce.p4java.impl.mapbased.rpc.NioServerImpl;
 import com.perforce.p4java.impl.mapbased.rpc.NtsServerImpl;
 import com.perforce.p4java.impl.mapbased.rpc.OneShotServerImpl;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.RpcSystemFileCommandsHelper;
@@ -100,6 +101,7 @@ public class ServerFactory {
 		implMap.put(Protocol.P4JRPCNTSSSL, NtsServerImpl.class);
 		implMap.put(Protocol.P4JRSH, OneShotServerImpl.class);
 		implMap.put(Protocol.P4JRSHNTS, NtsServerImpl.class);
+		implMap.put(Protocol.P4JRPCNIO, NioServerImpl.class);
 		Log.info("P4Java server factory loaded; version: " + Metadata.getP4JVersionString()
 				+ "; date: " + Metadata.getP4JDateString());
 		Log.info("Using default charset: " + CharsetDefs.DEFAULT
@@ -0,0 +1,28 @@
+package com.perforce.p4java.server.callback;
+
+import com.perforce.p4java.exception.P4JavaException;
+
+/**
+ * A streaming callback that can hold up the server until its consumer is
+ * ready for more results.
+ * <p>
+ * Besides the normal IStreamingCallback calls, the RPC layer calls awaitDemand
+ * before acknowledging each of the server's flow control (flush) messages. As
+ * the server won't send more than a window's worth of results past an
+ * unacknowledged flush, a callback that blocks here until it has demand keeps
+ * the amount of buffered result data bounded, however slow its consumer is.
+ * A callback may also simply block in handleResult, which stops the RPC layer
+ * reading from the connection altogether.
+ *
+ * @since 2023.2
+ */
+public interface IFlowControlledStreamingCallback extends IStreamingCallback {
+
+	/**
+	 * Block until the consumer wants more results (or has gone away).
+	 *
+	 * @param key opaque integer key as passed to the associated streaming method.
+	 * @throws P4JavaException if the wait was interrupted or the consumer failed.
+	 */
+	void awaitDemand(int key) throws P4JavaException;
+}
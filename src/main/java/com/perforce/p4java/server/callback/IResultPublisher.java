@@ -0,0 +1,28 @@
+package com.perforce.p4java.server.callback;
+
+/**
+ * A source of streamed command results that delivers them to a subscriber
+ * only as fast as the subscriber asks for them.
+ * <p>
+ * This (together with IResultSubscriber and IResultSubscription) has the same
+ * shape and semantics as the Reactive Streams / java.util.concurrent.Flow
+ * interfaces, so adapting to either is a matter of a few one-line delegating
+ * methods; P4Java defines its own copy as it still runs on Java 8.
+ * <p>
+ * Publishers returned by P4Java are cold: each subscription runs the
+ * underlying command afresh.
+ *
+ * @param <T> the result type
+ * @since 2023.2
+ */
+public interface IResultPublisher<T> {
+
+	/**
+	 * Subscribe to this publisher's results. The subscriber's onSubscribe
+	 * method is always called first, with a subscription that is then used
+	 * to request results or to cancel.
+	 *
+	 * @param subscriber non-null subscriber
+	 */
+	void subscribe(IResultSubscriber<? super T> subscriber);
+}
@@ -0,0 +1,44 @@
+package com.perforce.p4java.server.callback;
+
+/**
+ * Receiver of results from an IResultPublisher. Results are only delivered
+ * after being requested through the subscription passed to onSubscribe.
+ * <p>
+ * All methods are called serially, but not necessarily on the thread that
+ * subscribed. As with IStreamingCallback, implementations must not call back
+ * into the server that is producing the results.
+ *
+ * @param <T> the result type
+ * @since 2023.2
+ */
+public interface IResultSubscriber<T> {
+
+	/**
+	 * Called once, before any other method, with the subscription to use to
+	 * request results or cancel.
+	 *
+	 * @param subscription non-null subscription
+	 */
+	void onSubscribe(IResultSubscription subscription);
+
+	/**
+	 * Called for each result, never more often than requested.
+	 *
+	 * @param result non-null result
+	 */
+	void onNext(T result);
+
+	/**
+	 * Called at most once if the command failed; no further methods are
+	 * called afterwards.
+	 *
+	 * @param throwable non-null cause of the failure
+	 */
+	void onError(Throwable throwable);
+
+	/**
+	 * Called at most once when all results have been delivered; no further
+	 * methods are called afterwards.
+	 */
+	void onComplete();
+}
@@ -0,0 +1,24 @@
+package com.perforce.p4java.server.callback;
+
+/**
+ * Link between an IResultPublisher and one of its subscribers, used to
+ * signal demand for results or to cancel the command.
+ *
+ * @since 2023.2
+ */
+public interface IResultSubscription {
+
+	/**
+	 * Ask for up to n more results. Demand is cumulative; Long.MAX_VALUE
+	 * means unbounded.
+	 *
+	 * @param n number of further results wanted; must be positive
+	 */
+	void request(long n);
+
+	/**
+	 * Stop the command; results may still be delivered for a short while
+	 * after this is called, but eventually stop.
+	 */
+	void cancel();
+}
@@ -0,0 +1,52 @@
+package com.perforce.p4java.server.metrics;
+
+/**
+ * The phases a command's elapsed time is split into for metrics purposes.
+ * Phases other than TOTAL don't necessarily add up to TOTAL: time spent in
+ * P4Java itself (result map handling, callbacks, etc.) isn't in any of them.
+ *
+ * @since 2023.2
+ */
+public enum CommandPhase {
+
+	/**
+	 * Opening the command's connection (including any SSL handshake, or
+	 * taking a connection from the socket pool); not measured for commands
+	 * run on an already-open connection.
+	 */
+	CONNECT,
+
+	/**
+	 * Writing marshaled packets to the server.
+	 */
+	SEND,
+
+	/**
+	 * Waiting for the next packet from the server to start arriving.
+	 */
+	SERVER_WAIT,
+
+	/**
+	 * Reading the rest of each incoming packet and decoding it.
+	 */
+	RECEIVE,
+
+	/**
+	 * Writing, moving, deleting, etc. client files (and command output) on
+	 * the server's instructions, excluding any time spent sending replies.
+	 */
+	CLIENT_FILE_WRITE,
+
+	/**
+	 * Compressing outgoing and decompressing incoming packets, when
+	 * connection compression is on. This is the time spent in zlib itself,
+	 * which is effectively CPU time; the socket I/O on either side of it is
+	 * counted in SEND and RECEIVE, which therefore overlap with this phase.
+	 */
+	COMPRESSION,
+
+	/**
+	 * The whole command, start to finish.
+	 */
+	TOTAL
+}
@@ -0,0 +1,82 @@
+package com.perforce.p4java.server.metrics;
+
+/**
+ * Metrics accumulated across all runs of a single command (by name) on a
+ * server object, as returned from IOptionsServer.getCommandMetrics().
+ * <p>
+ * Values are live and updated concurrently, so successive calls may reflect
+ * different numbers of commands; they're not intended to be exact. Latency
+ * percentiles come from a histogram with roughly 3% resolution.
+ *
+ * @since 2023.2
+ */
+public interface ICommandMetrics {
+
+	/**
+	 * @return non-null command name, e.g. "sync".
+	 */
+	String getCommandName();
+
+	/**
+	 * @return the number of times the command has completed.
+	 */
+	long getCount();
+
+	/**
+	 * @return the number of times the command has failed; see
+	 * ICommandSample.isFailed().
+	 */
+	long getErrorCount();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	long getPacketsSent();
+
+	long getPacketsReceived();
+
+	/**
+	 * @return the number of bytes that went through connection compression,
+	 * before compression; see ICommandSample.getUncompressedBytes().
+	 */
+	long getUncompressedBytes();
+
+	/**
+	 * @return the number of bytes those compressed to on the wire.
+	 */
+	long getCompressedBytes();
+
+	/**
+	 * @return the overall connection compression ratio, uncompressed bytes
+	 * over compressed bytes; zero if nothing was compressed.
+	 */
+	double getCompressionRatio();
+
+	/**
+	 * @param phase non-null phase
+	 * @return the number of commands for which the phase was measured.
+	 */
+	long getCount(CommandPhase phase);
+
+	/**
+	 * @param phase non-null phase
+	 * @return total time spent in the phase, in nanoseconds.
+	 */
+	long getTotalNanos(CommandPhase phase);
+
+	/**
+	 * @param phase non-null phase
+	 * @return longest time spent in the phase by a single command, in
+	 * nanoseconds.
+	 */
+	long getMaxNanos(CommandPhase phase);
+
+	/**
+	 * @param phase      non-null phase
+	 * @param percentile percentile wanted, from 0.0 to 100.0
+	 * @return approximate time spent in the phase by commands at the given
+	 * percentile, in nanoseconds; zero if there are none.
+	 */
+	long getPercentileNanos(CommandPhase phase, double percentile);
+}
@@ -0,0 +1,54 @@
+package com.perforce.p4java.server.metrics;
+
+/**
+ * The measurements for a single completed command, as passed to
+ * IMetricsReporter.commandCompleted.
+ *
+ * @since 2023.2
+ */
+public interface ICommandSample {
+
+	/**
+	 * @return non-null command name, e.g. "sync".
+	 */
+	String getCommandName();
+
+	/**
+	 * @return true if the command threw an exception or returned an error
+	 * message.
+	 */
+	boolean isFailed();
+
+	/**
+	 * @param phase non-null phase
+	 * @return true if the phase was measured for this command.
+	 */
+	boolean isMeasured(CommandPhase phase);
+
+	/**
+	 * @param phase non-null phase
+	 * @return the time spent in the phase, in nanoseconds; zero if the phase
+	 * wasn't measured.
+	 */
+	long getNanos(CommandPhase phase);
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	long getPacketsSent();
+
+	long getPacketsReceived();
+
+	/**
+	 * @return the number of bytes (in both directions) that went through
+	 * connection compression, before compression; zero if the connection
+	 * wasn't compressed.
+	 */
+	long getUncompressedBytes();
+
+	/**
+	 * @return the number of bytes those compressed to on the wire.
+	 */
+	long getCompressedBytes();
+}
@@ -0,0 +1,26 @@
+package com.perforce.p4java.server.metrics;
+
+/**
+ * Service provider interface for bridging P4Java command metrics to an
+ * external monitoring system; register an implementation with
+ * IOptionsServer.registerMetricsReporter. Metrics are only gathered (and
+ * reported) if the server's commandMetrics property is set to "true".
+ * <p>
+ * Aggregated metrics are also available from
+ * IOptionsServer.getCommandMetrics(), so a reporter that only publishes
+ * those periodically needn't do anything here.
+ * <p>
+ * NOTE: implementations must be thread-safe, and must not block or spend
+ * much time in commandCompleted, which is called on the command's own thread.
+ *
+ * @since 2023.2
+ */
+public interface IMetricsReporter {
+
+	/**
+	 * Report the measurements for a command that has just completed.
+	 *
+	 * @param sample non-null command measurements
+	 */
+	void commandCompleted(ICommandSample sample);
+}